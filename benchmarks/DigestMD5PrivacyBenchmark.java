@@ -0,0 +1,220 @@
+package benchmarks;
+
+import java.lang.reflect.Field;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.filterchain.IoFilter.NextFilter;
+import org.apache.mina.core.session.DummySession;
+import org.apache.mina.core.session.IdleStatus;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.core.write.DefaultWriteRequest;
+import org.apache.mina.core.write.WriteRequest;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.mailster.core.pop3.commands.auth.AuthDigestMD5Command;
+import org.mailster.core.pop3.commands.auth.AuthException;
+import org.mailster.core.pop3.commands.auth.iofilter.AuthDigestMD5IoFilter;
+import org.mailster.core.pop3.commands.auth.iofilter.DigestMD5PrivacyIoFilterCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ---<br>
+ * Mailster (C) 2007-2009 De Oliveira Edouard
+ * <p>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 675 Mass
+ * Ave, Cambridge, MA 02139, USA.
+ * <p>
+ * See&nbsp; <a href="http://tedorg.free.fr/en/projects.php" target="_parent">Mailster
+ * Web Site</a> <br>
+ * ---
+ * <p>
+ * DigestMD5PrivacyBenchmark.java - Measures the DIGEST-MD5 privacy codec on
+ * a POP3 write of <code>size</code> bytes (a RETR response is written in
+ * chunks of at most {@link org.mailster.util.StreamUtilities#WRITE_CHUNK_SIZE}
+ * bytes). The MIME structure of the data is irrelevant to the codec.
+ * <p>
+ * The round trip feeds the server codec with the data wrapped by a codec
+ * turned into a client one : its ciphers and integrity keys are swapped.
+ *
+ * @author <a href="mailto:doe_wanted@yahoo.fr">Edouard De Oliveira</a>
+ * @version $Revision$, $Date$
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DigestMD5PrivacyBenchmark
+{
+	static
+	{
+		if (Security.getProvider("BC") == null)
+			Security.addProvider(new BouncyCastleProvider());
+	}
+
+	private final static String ENCODING = "UTF-8"; //$NON-NLS-1$
+	private final static String PREFIX = AuthDigestMD5IoFilter.class.getName();
+
+	@Param({"1024", "16384", "65536"})
+	public int size;
+
+	@Param({"RC4", "DES3"})
+	public String cipher;
+
+	private DigestMD5PrivacyIoFilterCodec server;
+	private DigestMD5PrivacyIoFilterCodec client;
+	private Capture capture = new Capture();
+	private WriteRequest request = new DefaultWriteRequest(IoBuffer.allocate(0));
+	private byte[] data;
+
+	/**
+	 * Records the buffers forwarded by a codec.
+	 */
+	private static class Capture implements NextFilter
+	{
+		private Object written;
+		private Object received;
+
+		public void filterWrite(IoSession session, WriteRequest writeRequest)
+		{
+			written = writeRequest.getMessage();
+		}
+
+		public void messageReceived(IoSession session, Object message)
+		{
+			received = message;
+		}
+
+		public void exceptionCaught(IoSession session, Throwable cause)
+		{
+		}
+
+		public void filterClose(IoSession session)
+		{
+		}
+
+		public void messageSent(IoSession session, WriteRequest writeRequest)
+		{
+		}
+
+		public void sessionClosed(IoSession session)
+		{
+		}
+
+		public void sessionCreated(IoSession session)
+		{
+		}
+
+		public void sessionIdle(IoSession session, IdleStatus status)
+		{
+		}
+
+		public void sessionOpened(IoSession session)
+		{
+		}
+	}
+
+	private IoSession createSession()
+	{
+		IoSession session = new DummySession();
+		session.setAttribute(AuthDigestMD5Command.ENCODING, ENCODING);
+		session.setAttribute(AuthDigestMD5Command.A1, "user:Mailster:pwd".getBytes());
+		session.setAttribute(AuthDigestMD5Command.NEGOCIATED_CIPHER,
+				AuthDigestMD5IoFilter.CIPHER.valueOf(cipher));
+		session.setAttribute(AuthDigestMD5Command.CLIENT_MAXBUF, new Integer(Integer.MAX_VALUE));
+
+		return session;
+	}
+
+	private static void setCipher(Object codec, String name, Object value) throws Exception
+	{
+		Field f = DigestMD5PrivacyIoFilterCodec.class.getDeclaredField(name);
+		f.setAccessible(true);
+		f.set(codec, value);
+	}
+
+	private DigestMD5PrivacyIoFilterCodec createClientCodec() throws Exception
+	{
+		IoSession session = createSession();
+		DigestMD5PrivacyIoFilterCodec codec = new DigestMD5PrivacyIoFilterCodec(session);
+
+		AuthDigestMD5IoFilter.computePrivacyKeys(session, ENCODING, true);
+		setCipher(codec, "encCipher", session.getAttribute(PREFIX + ".encodingCipher"));
+		setCipher(codec, "decCipher", session.getAttribute(PREFIX + ".decodingCipher"));
+
+		AuthDigestMD5IoFilter.computeIntegrityKeys(session, ENCODING);
+		Object kic = session.getAttribute(PREFIX + ".Kic");
+		session.setAttribute(PREFIX + ".Kic", session.getAttribute(PREFIX + ".Kis"));
+		session.setAttribute(PREFIX + ".Kis", kic);
+
+		return codec;
+	}
+
+	@Setup
+	public void setUp() throws Exception
+	{
+		server = new DigestMD5PrivacyIoFilterCodec(createSession());
+		client = createClientCodec();
+
+		// The codecs expect a line terminated data
+		byte[] msg = MessageCorpus.createMessageBytes(size, 0);
+		data = new byte[size];
+		System.arraycopy(msg, 0, data, 0, Math.min(msg.length, size - 2));
+		data[size - 2] = '\r';
+		data[size - 1] = '\n';
+
+		IoBuffer out = roundTrip();
+		byte[] unwrapped = new byte[out.remaining()];
+		out.get(unwrapped);
+		if (!Arrays.equals(data, unwrapped))
+			throw new IllegalStateException("Round trip failed with cipher " + cipher);
+	}
+
+	@Benchmark
+	public Object wrap() throws AuthException
+	{
+		server.wrap(capture, request, IoBuffer.wrap(data));
+		return capture.written;
+	}
+
+	@Benchmark
+	public IoBuffer roundTrip() throws AuthException
+	{
+		client.wrap(capture, request, IoBuffer.wrap(data));
+
+		// The line delimiter is consumed before unwrapping
+		IoBuffer wrapped = (IoBuffer) capture.written;
+		wrapped.limit(wrapped.limit() - 2);
+
+		capture.received = null;
+		server.unwrap(capture, wrapped);
+		if (!(capture.received instanceof IoBuffer))
+			throw new IllegalStateException("Unwrapping failed");
+
+		return (IoBuffer) capture.received;
+	}
+}
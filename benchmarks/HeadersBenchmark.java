@@ -0,0 +1,88 @@
+package benchmarks;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.mailster.core.mail.SmtpHeaders;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ---<br>
+ * Mailster (C) 2007-2009 De Oliveira Edouard
+ * <p>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 675 Mass
+ * Ave, Cambridge, MA 02139, USA.
+ * <p>
+ * See&nbsp; <a href="http://tedorg.free.fr/en/projects.php" target="_parent">Mailster
+ * Web Site</a> <br>
+ * ---
+ * <p>
+ * HeadersBenchmark.java - Measures {@link SmtpHeaders#addHeaderLine(String)}
+ * on the header block of a message. The size of a header block does not
+ * depend on the message size but on the number of relays the message went
+ * through (each one adding a folded Received header), so the block is
+ * parameterized by the number of hops instead.
+ *
+ * @author <a href="mailto:doe_wanted@yahoo.fr">Edouard De Oliveira</a>
+ * @version $Revision$, $Date$
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeadersBenchmark
+{
+	@Param({"0", "8", "64"})
+	public int hops;
+
+	private String[] lines;
+
+	@Setup
+	public void setUp() throws IOException
+	{
+		BufferedReader in = new BufferedReader(new StringReader(MessageCorpus.createHeaders(hops)));
+		List<String> l = new ArrayList<String>();
+		String line;
+		while ((line = in.readLine()) != null)
+			l.add(line);
+
+		lines = l.toArray(new String[l.size()]);
+	}
+
+	@Benchmark
+	public SmtpHeaders addHeaderLine()
+	{
+		SmtpHeaders headers = new SmtpHeaders();
+		for (int i = 0; i < lines.length; i++)
+			headers.addHeaderLine(lines[i]);
+
+		return headers;
+	}
+}
@@ -0,0 +1,82 @@
+package benchmarks;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.mailster.core.mail.SmtpMessage;
+import org.mailster.core.mail.SmtpMessageFactory;
+import org.mailster.core.smtp.MailsterConstants;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ---<br>
+ * Mailster (C) 2007-2009 De Oliveira Edouard
+ * <p>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 675 Mass
+ * Ave, Cambridge, MA 02139, USA.
+ * <p>
+ * See&nbsp; <a href="http://tedorg.free.fr/en/projects.php" target="_parent">Mailster
+ * Web Site</a> <br>
+ * ---
+ * <p>
+ * IngestBenchmark.java - Measures {@link SmtpMessageFactory#asSmtpMessage}
+ * i.e. the work done by the SMTP server for each received message : the
+ * copy of the DATA and the parsing of the headers.
+ *
+ * @author <a href="mailto:doe_wanted@yahoo.fr">Edouard De Oliveira</a>
+ * @version $Revision$, $Date$
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IngestBenchmark
+{
+	@Param({"1024", "65536", "1048576"})
+	public int size;
+
+	@Param({"0", "2", "8"})
+	public int depth;
+
+	private SmtpMessageFactory factory;
+	private List<String> recipients;
+	private byte[] data;
+
+	@Setup
+	public void setUp()
+	{
+		factory = new SmtpMessageFactory(MailsterConstants.DEFAULT_CHARSET);
+		recipients = Arrays.asList(new String[] {"user@mailster.org", "other@mailster.org"});
+		data = MessageCorpus.createMessageBytes(size, depth);
+	}
+
+	@Benchmark
+	public SmtpMessage asSmtpMessage()
+	{
+		return factory.asSmtpMessage(data, recipients);
+	}
+}
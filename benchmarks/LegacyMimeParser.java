@@ -0,0 +1,275 @@
+package benchmarks;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.mailster.core.mail.SmtpHeaders;
+import org.mailster.core.mail.SmtpHeadersInterface;
+import org.mailster.core.mail.SmtpMessage;
+import org.mailster.core.mail.SmtpMessagePart;
+import org.mailster.util.MailUtilities;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The BufferedReader based MIME parser formerly used by
+ * {@link MailUtilities#parseInternalParts(SmtpMessage, String)}. Kept as a
+ * reference for {@link MimeParserBenchmark#legacy()}.
+ */
+public class LegacyMimeParser
+{
+    private static final Logger LOG = LoggerFactory.getLogger(LegacyMimeParser.class);
+
+    private final static int MAX_LINE_LENGTH = 80;
+
+    private static String getPartBoundary(SmtpHeadersInterface headers)
+    {
+        return MailUtilities.getHeaderParameterValue(headers,
+                SmtpHeadersInterface.CONTENT_TYPE,
+                SmtpHeadersInterface.BOUNDARY_PARAMETER);
+    }
+
+    private static boolean isMessagePart(SmtpHeadersInterface headers)
+    {
+        String contentType = headers
+                .getHeaderValue(SmtpHeadersInterface.CONTENT_TYPE);
+        return contentType != null && contentType.startsWith("message");
+    }
+
+    /**
+     * Returns a SmtpMessagePart from parsing <code>reader</code>. If
+     * <code>readHeader</code> is true then data read from <code>reader</code>
+     * should contain the headers of the part (always the case except for a
+     * simple single part message where headers are set within the message
+     * headers).
+     * 
+     * @param reader the mail body reader stream
+     * @param parentHeaders the headers of the parent part
+     * @param readHeader true if method should read headers from the reader
+     * @return a part representing the reader contents
+     * @throws IOException
+     */
+    private static SmtpMessagePart handleBodyPart(BufferedReader reader,
+            SmtpHeadersInterface parentHeaders, boolean readHeader)
+            throws IOException
+    {
+        boolean isHeader = readHeader;
+        int lineNum = 0;
+        SmtpHeadersInterface headers = new SmtpHeaders();
+        SmtpMessagePart mPart = new SmtpMessagePart();
+
+        LOG.debug("[DEBUG] --- BODY PART START ---");
+        if (isHeader)
+            LOG.debug("[DEBUG] --- Header start ---");
+
+        while (reader.ready())
+        {
+            reader.mark(MAX_LINE_LENGTH);
+            String line = reader.readLine();
+
+            if (isHeader)
+            {
+                if ("".equals(line))
+                {
+                    isHeader = false;
+                    LOG.debug("[DEBUG] --- Header end ---");
+
+                    mPart.setHeaders(headers);
+                    if (MailUtilities.isMultiPart(headers))
+                    {
+                        mPart.setBoundary(getPartBoundary(headers));
+                        mPart.setParts(handleMultiPart(reader, headers));
+                        LOG.debug("[DEBUG] --- BODY PART END ---");
+                        return mPart;
+                    }
+                    if (isMessagePart(headers))
+                    {
+                        handleRFC822MessagePart(reader, mPart,
+                                getPartBoundary(parentHeaders));
+                        LOG.debug("[DEBUG] --- BODY PART END ---");
+                        return mPart;
+                    }
+                }
+                else
+                    headers.addHeaderLine(line);
+
+                LOG.debug(line);
+            }
+            else if (line == null || line.startsWith("--"))
+            {
+                reader.reset();
+                break;
+            }
+            else
+            {
+            	if (lineNum == 1)
+            	{
+                	lineNum++;
+                	mPart.appendToBody("\n");
+            	}
+
+            	if (!"".equals(line))
+            		mPart.appendToBody(line);
+            	
+            	if (!readHeader && lineNum == 0)
+            		lineNum++;
+            	else
+            		mPart.appendToBody("\n");
+            }
+        }
+
+        if (LOG.isDebugEnabled())
+        	LOG.debug(mPart.getBody().toString());
+        
+        LOG.debug("[DEBUG] --- BODY PART END ---");
+        return mPart;
+    }
+
+    /**
+     * Reads an embedded RFC 822 message and writes it to the <code>part</code>
+     * body's part.
+     * 
+     * @param reader the reader stream
+     * @param part the target part
+     * @param boundary the boundary of the part
+     * @throws IOException
+     */
+    private static void handleRFC822MessagePart(BufferedReader reader,
+            SmtpMessagePart part, String boundary) throws IOException
+    {
+        String partEndBoundary = "--" + boundary + "--";
+
+        while (reader.ready())
+        {
+            String line = reader.readLine();
+
+            if (line == null || line.startsWith(partEndBoundary))
+                break;
+            else
+            {
+                part.appendToBody(line);
+                part.appendToBody("\n");
+            }
+        }
+
+        if (LOG.isDebugEnabled())
+        	LOG.debug(part.getBody().toString());
+    }
+
+    /**
+     * Returns a SmtpMessagePart's list from parsing <code>reader</code>.
+     * 
+     * @param reader the mail body reader stream
+     * @param parentHeaders the headers of the parent part
+     * @return the list of parts
+     * @throws IOException
+     */
+    private static List<SmtpMessagePart> handleMultiPart(BufferedReader reader,
+            SmtpHeadersInterface parentHeaders) throws IOException
+    {
+        List<SmtpMessagePart> mParts = new ArrayList<SmtpMessagePart>();
+        String boundary = getPartBoundary(parentHeaders);
+        String end = "--" + boundary + "--";
+        StringBuilder bodyPart = new StringBuilder();
+
+        while (reader.ready())
+        {
+            String line = reader.readLine();
+            
+            if (line == null)
+        	break;
+            
+            if (boundary == null && line.startsWith("--"))
+            {
+                boundary = line;
+                end = boundary + "--";
+            }
+            
+            if (boundary != null && line.equals(end)) {
+                bodyPart.append(line).append('\n');
+                break;
+            }
+            
+            bodyPart.append(line).append('\n');
+        }
+
+        BufferedReader mpReader = new BufferedReader(new StringReader(bodyPart
+                .toString()));
+        LOG.debug("[DEBUG] --- MULTI PART START (boundary {}) --- ", boundary);
+
+        int i = 1;
+        String line = null;
+        do
+        {
+            while (mpReader.ready())
+            {
+                line = mpReader.readLine();
+                if (line == null || line.indexOf(boundary) >= 0)
+                    break;
+                LOG.debug(line);
+            }
+
+            if (line == null || line.equals(end))
+                break;
+
+            LOG.debug("[DEBUG] --- MULTI PART {} (boundary={}) START ---", i, boundary);
+            mParts.add(handleBodyPart(mpReader, parentHeaders, true));
+            LOG.debug("[DEBUG] --- MULTI PART {} (boundary={}) END ---", i, boundary);
+            i++;
+        }
+        while (mpReader.ready());
+
+        LOG.debug("[DEBUG] --- MULTI PART END (boundary {}) ---", boundary);
+        return mParts;
+    }
+
+    /**
+     * Parses <code>msg</code> and returns a SmtpMessagePart representing the
+     * contents of the message.
+     * 
+     * @param msg the message to be parsed
+     * @param body the body of the message
+     * @return the object representation of the message's body
+     */
+    public static SmtpMessagePart parse(SmtpMessage msg, String body)
+    {
+        LOG.debug("[DEBUG] --- MAIL ---");
+        if (LOG.isDebugEnabled())
+        	LOG.debug(body);
+        LOG.debug("[DEBUG] --- END MAIL ---\n\n");
+
+        SmtpMessagePart mPart = null;
+
+        try
+        {
+            BufferedReader reader = new BufferedReader(new StringReader(body));
+            LOG.debug("[DEBUG] --- MAIL BODY PARSING START ---");
+
+            if (MailUtilities.isMultiPart(msg.getHeaders()))
+            {
+                mPart = new SmtpMessagePart();
+                mPart.setBoundary(getPartBoundary(msg.getHeaders()));
+                mPart.setParts(handleMultiPart(reader, msg.getHeaders()));
+            }
+            else
+                mPart = handleBodyPart(reader, msg.getHeaders(), false);
+
+            mPart.setHeaders(msg.getHeaders());
+            LOG.debug("[DEBUG] --- MAIL BODY PARSING END ---");
+        }
+        catch (Exception ex)
+        {
+        	LOG.debug("[EXCEPTION] --- !!! PARSING FAILED EXCEPTION !!! ---", ex);
+            mPart = new SmtpMessagePart();
+            mPart.setHeaders(msg.getHeaders());
+            mPart.setBody(body);
+        }
+        LOG.debug("*************************************************************");
+        if (LOG.isDebugEnabled())
+        	LOG.debug(mPart.toString());
+        return mPart;
+    }
+}
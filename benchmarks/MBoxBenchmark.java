@@ -0,0 +1,157 @@
+package benchmarks;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.mailster.core.mail.MBoxImporter;
+import org.mailster.core.mail.SmtpMessage;
+import org.mailster.core.mail.SmtpMessageFactory;
+import org.mailster.core.pop3.mailbox.MessageExporter;
+import org.mailster.core.pop3.mailbox.StoredSmtpMessage;
+import org.mailster.core.smtp.MailsterConstants;
+import org.mailster.util.StreamUtilities;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ---<br>
+ * Mailster (C) 2007-2009 De Oliveira Edouard
+ * <p>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 675 Mass
+ * Ave, Cambridge, MA 02139, USA.
+ * <p>
+ * See&nbsp; <a href="http://tedorg.free.fr/en/projects.php" target="_parent">Mailster
+ * Web Site</a> <br>
+ * ---
+ * <p>
+ * MBoxBenchmark.java - Measures the mbox import and export of
+ * {@link StreamUtilities}, the import of a mapped file by the
+ * {@link MBoxImporter} and the export by the {@link MessageExporter}. The
+ * {@link StreamUtilities} export output is discarded so that only the
+ * formatting is measured.
+ *
+ * @author <a href="mailto:doe_wanted@yahoo.fr">Edouard De Oliveira</a>
+ * @version $Revision$, $Date$
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MBoxBenchmark
+{
+	@Param({"1024", "65536", "1048576"})
+	public int size;
+
+	@Param({"0", "2", "8"})
+	public int depth;
+
+	private StoredSmtpMessage stored;
+	private String mbox;
+	private PrintWriter nullWriter;
+	private File file;
+	private File exportFile;
+	private MessageExporter exporter = new MessageExporter(1);
+	private MBoxImporter importer = new MBoxImporter(MailsterConstants.DEFAULT_CHARSET);
+
+	@Setup
+	public void setUp() throws IOException
+	{
+		SmtpMessageFactory factory = new SmtpMessageFactory(MailsterConstants.DEFAULT_CHARSET);
+		stored = new StoredSmtpMessage(factory.asSmtpMessage(
+				MessageCorpus.createMessageBytes(size, depth), null), new Long(1));
+
+		StringWriter sw = new StringWriter();
+		PrintWriter out = new PrintWriter(sw);
+		StreamUtilities.writeMessageToMBoxRDFormat(stored, out);
+		out.flush();
+		mbox = sw.toString();
+
+		file = File.createTempFile("mailster-bench", ".mbx");
+		FileOutputStream fos = new FileOutputStream(file);
+		fos.write(mbox.getBytes(MailsterConstants.DEFAULT_CHARSET_NAME));
+		fos.close();
+		exportFile = File.createTempFile("mailster-bench-export", ".mbx");
+
+		nullWriter = new PrintWriter(new Writer() {
+			public void write(char[] cbuf, int off, int len)
+			{
+			}
+
+			public void flush()
+			{
+			}
+
+			public void close()
+			{
+			}
+		});
+	}
+
+	@Benchmark
+	public List<SmtpMessage> read()
+	{
+		return StreamUtilities.readMessageFromMBoxRDFormat(
+				new BufferedReader(new StringReader(mbox)), MailsterConstants.DEFAULT_CHARSET);
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		file.delete();
+		exportFile.delete();
+	}
+
+	@Benchmark
+	public int importFile() throws Exception
+	{
+		return importer.importFile(file, new MBoxImporter.ImportListener() {
+			public void messagesImported(List<SmtpMessage> messages, long position, long length)
+			{
+			}
+		});
+	}
+
+	@Benchmark
+	public void write()
+	{
+		StreamUtilities.writeMessageToMBoxRDFormat(stored, nullWriter);
+	}
+
+	@Benchmark
+	public int export() throws IOException
+	{
+		return exporter.exportMBox(Collections.singletonList(stored), exportFile);
+	}
+}
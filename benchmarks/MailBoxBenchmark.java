@@ -0,0 +1,134 @@
+package benchmarks;
+
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mailster.core.mail.SmtpMessage;
+import org.mailster.core.mail.SmtpMessageFactory;
+import org.mailster.core.pop3.mailbox.MailBox;
+import org.mailster.core.pop3.mailbox.MailDrop;
+import org.mailster.core.pop3.mailbox.StoredSmtpMessage;
+import org.mailster.core.pop3.mailbox.UserManager;
+import org.mailster.core.smtp.MailsterConstants;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ---<br>
+ * Mailster (C) 2007-2009 De Oliveira Edouard
+ * <p>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 675 Mass
+ * Ave, Cambridge, MA 02139, USA.
+ * <p>
+ * See&nbsp; <a href="http://tedorg.free.fr/en/projects.php" target="_parent">Mailster
+ * Web Site</a> <br>
+ * ---
+ * <p>
+ * MailBoxBenchmark.java - Measures {@link MailBox#storeMessage(SmtpMessage)}
+ * with several threads delivering to the same mailbox.
+ * <p>
+ * Storing a message spools it and parses its MIME structure, which is only
+ * done once per message content : each thread thus stores a batch of
+ * freshly ingested and distinct messages per iteration. The mailbox is
+ * emptied after each iteration to bound the spool size.
+ *
+ * @author <a href="mailto:doe_wanted@yahoo.fr">Edouard De Oliveira</a>
+ * @version $Revision$, $Date$
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, batchSize = MailBoxBenchmark.BATCH_SIZE)
+@Measurement(iterations = 10, batchSize = MailBoxBenchmark.BATCH_SIZE)
+@Threads(4)
+@Fork(1)
+public class MailBoxBenchmark
+{
+	public final static int BATCH_SIZE = 100;
+
+	private final static AtomicLong SEQUENCE = new AtomicLong();
+
+	@Param({"1024", "16384", "262144"})
+	public int size;
+
+	@Param({"0", "2", "8"})
+	public int depth;
+
+	private MailBox mailBox;
+
+	@State(Scope.Thread)
+	public static class Batch
+	{
+		private SmtpMessage[] messages = new SmtpMessage[BATCH_SIZE];
+		private int next;
+
+		@Setup(Level.Iteration)
+		public void setUp(MailBoxBenchmark benchmark) throws UnsupportedEncodingException
+		{
+			SmtpMessageFactory factory = new SmtpMessageFactory(MailsterConstants.DEFAULT_CHARSET);
+			String data = MessageCorpus.createMessage(benchmark.size, benchmark.depth);
+
+			// Identical messages would share the same blob
+			for (int i = 0; i < messages.length; i++)
+			{
+				String unique = data.replace("<benchmark@", "<" + SEQUENCE.incrementAndGet() + "@");
+				messages[i] = factory.asSmtpMessage(unique.getBytes(MessageCorpus.CHARSET), null);
+			}
+			next = 0;
+		}
+
+		public SmtpMessage next()
+		{
+			// Messages are reused if the harness runs more operations
+			// than the batch size
+			return messages[next++ % messages.length];
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		UserManager users = new UserManager();
+		mailBox = users.getMailBoxManager().getMailBoxByUser(
+				users.getUserByEmail("user@mailster.org"));
+	}
+
+	@TearDown(Level.Iteration)
+	public void emptyMailBox()
+	{
+		MailDrop drop = mailBox.tryLock();
+		for (int i = 1; i <= drop.size(); i++)
+			drop.markDeleted(i);
+		drop.commit();
+	}
+
+	@Benchmark
+	public StoredSmtpMessage storeMessage(Batch batch)
+	{
+		return mailBox.storeMessage(batch.next());
+	}
+}
@@ -0,0 +1,117 @@
+package benchmarks;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * ---<br>
+ * Mailster (C) 2007-2009 De Oliveira Edouard
+ * <p>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 675 Mass
+ * Ave, Cambridge, MA 02139, USA.
+ * <p>
+ * See&nbsp; <a href="http://tedorg.free.fr/en/projects.php" target="_parent">Mailster
+ * Web Site</a> <br>
+ * ---
+ * <p>
+ * MessageCorpus.java - Generates the messages used by the benchmarks. A
+ * message of depth 0 is a single text part, a message of depth n is a
+ * multipart whose first part is a message of depth n-1 and second part a
+ * text part. The text lines are spread over the n+1 text parts so that the
+ * message is roughly <code>size</code> bytes long whatever its depth.
+ *
+ * @author <a href="mailto:doe_wanted@yahoo.fr">Edouard De Oliveira</a>
+ * @version $Revision$, $Date$
+ */
+public class MessageCorpus
+{
+	public final static String CHARSET = "US-ASCII"; //$NON-NLS-1$
+
+	private final static String LINE =
+		"Line of a text part used to measure the throughput of the hot paths\r\n"; //$NON-NLS-1$
+
+	private static void appendPart(StringBuilder sb, int depth, int bodyLines)
+	{
+		if (depth == 0)
+		{
+			sb.append("Content-Type: text/plain; charset=us-ascii\r\n\r\n");
+			for (int i = 0; i < bodyLines; i++)
+				sb.append(LINE);
+			return;
+		}
+
+		String boundary = "----=_Part_" + depth;
+		sb.append("Content-Type: multipart/mixed;\r\n\tboundary=\"").append(boundary).append("\"\r\n\r\n");
+		sb.append("This is a multi-part message in MIME format.\r\n");
+
+		for (int i = 0; i < 2; i++)
+		{
+			sb.append("--").append(boundary).append("\r\n");
+			appendPart(sb, i == 0 ? depth - 1 : 0, bodyLines);
+		}
+
+		sb.append("--").append(boundary).append("--\r\n");
+	}
+
+	/**
+	 * Returns the header lines of a message relayed <code>hops</code> times.
+	 */
+	public static String createHeaders(int hops)
+	{
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < hops; i++)
+		{
+			sb.append("Received: from relay").append(i).append(".mailster.org (relay")
+				.append(i).append(".mailster.org [10.0.0.").append(i % 256).append("])\r\n")
+				.append("\tby mx.mailster.org with ESMTP id ").append(i).append(";\r\n")
+				.append("\tSat, 17 Oct 2009 10:00:00 +0200\r\n");
+		}
+
+		sb.append("From: sender@mailster.org\r\n");
+		sb.append("To: user@mailster.org, other@mailster.org\r\n");
+		sb.append("Subject: benchmark message\r\n");
+		sb.append("Date: Sat, 17 Oct 2009 10:00:00 +0200\r\n");
+		sb.append("Message-ID: <benchmark@mailster.org>\r\n");
+		sb.append("X-Mailer: Mailster benchmarks\r\n");
+		sb.append("MIME-Version: 1.0\r\n");
+
+		return sb.toString();
+	}
+
+	/**
+	 * Returns a message of about <code>size</code> bytes with
+	 * <code>depth</code> nested multiparts.
+	 */
+	public static String createMessage(int size, int depth)
+	{
+		int bodyLines = Math.max(1, size / ((depth + 1) * LINE.length()));
+
+		StringBuilder sb = new StringBuilder(size + 1024);
+		sb.append(createHeaders(2));
+		appendPart(sb, depth, bodyLines);
+
+		return sb.toString();
+	}
+
+	public static byte[] createMessageBytes(int size, int depth)
+	{
+		try
+		{
+			return createMessage(size, depth).getBytes(CHARSET);
+		}
+		catch (UnsupportedEncodingException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,170 @@
+package benchmarks;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.mailster.core.mail.SmtpMessage;
+import org.mailster.core.mail.SmtpMessageFactory;
+import org.mailster.core.pop3.mailbox.MessageBlob;
+import org.mailster.core.pop3.mailbox.MessageBlobStore;
+import org.mailster.core.pop3.mailbox.MessageCache;
+import org.mailster.core.pop3.mailbox.MessageIndex;
+import org.mailster.core.smtp.MailsterConstants;
+import org.mailster.core.spool.MessageSpool;
+import org.mailster.util.FileUtilities;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ---<br>
+ * Mailster (C) 2007-2009 De Oliveira Edouard
+ * <p>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 675 Mass
+ * Ave, Cambridge, MA 02139, USA.
+ * <p>
+ * See&nbsp; <a href="http://tedorg.free.fr/en/projects.php" target="_parent">Mailster
+ * Web Site</a> <br>
+ * ---
+ * <p>
+ * MessageIndexBenchmark.java - Measures the queries of the
+ * {@link MessageIndex} on messages made of words drawn from a vocabulary
+ * with a skewed distribution, as well as the storage and indexing of a
+ * message.
+ *
+ * @author <a href="mailto:doe_wanted@yahoo.fr">Edouard De Oliveira</a>
+ * @version $Revision$, $Date$
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = {"-Xmx4g"})
+public class MessageIndexBenchmark
+{
+	private final static int VOCABULARY_SIZE = 50000;
+	private final static int WORDS_PER_MESSAGE = 60;
+
+	@Param({"10000", "100000", "500000"})
+	public int messages;
+
+	private File dir;
+	private MessageIndex index;
+	private String[] vocabulary;
+	private SmtpMessageFactory factory;
+	private MessageBlobStore store;
+	private List<MessageBlob> blobs = new ArrayList<MessageBlob>();
+	private Random random = new Random(1);
+	private int sequence;
+
+	@Setup
+	public void setUp() throws Exception
+	{
+		vocabulary = new String[VOCABULARY_SIZE];
+		for (int i = 0; i < vocabulary.length; i++)
+		{
+			StringBuilder sb = new StringBuilder();
+			int len = 3 + random.nextInt(8);
+			for (int j = 0; j < len; j++)
+				sb.append((char) ('a' + random.nextInt(26)));
+			vocabulary[i] = sb.toString();
+		}
+
+		dir = new File(System.getProperty("java.io.tmpdir"), "indexbench");
+		factory = new SmtpMessageFactory(MailsterConstants.DEFAULT_CHARSET);
+		store = new MessageBlobStore(new MessageSpool(dir, 64 * 1024 * 1024), new MessageCache());
+		index = new MessageIndex();
+
+		for (int i = 0; i < messages; i++)
+			index();
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		for (MessageBlob blob : blobs)
+			blob.release();
+
+		FileUtilities.deleteDirectory(dir);
+	}
+
+	private String word()
+	{
+		// Frequent words are the first ones
+		return vocabulary[Math.min(VOCABULARY_SIZE - 1, (int) Math.abs(random.nextGaussian() * 8000))];
+	}
+
+	private MessageBlob index() throws Exception
+	{
+		StringBuilder sb = new StringBuilder();
+		int n = sequence++;
+		sb.append("Subject: message ").append(n).append(' ').append(word()).append("\r\n");
+		sb.append("From: user").append(n % 1000).append("@mailster.org\r\n");
+		sb.append("To: bob@mailster.org\r\nMessage-ID: <").append(n).append("@mailster.org>\r\n\r\n");
+		for (int i = 0; i < WORDS_PER_MESSAGE; i++)
+			sb.append(word()).append(i % 12 == 11 ? "\r\n" : " ");
+
+		SmtpMessage msg = factory.asSmtpMessage(sb.toString().getBytes(MessageCorpus.CHARSET), null);
+		MessageBlob blob = store.acquire(msg);
+		index.add(blob, msg);
+		blobs.add(blob);
+		return blob;
+	}
+
+	@Benchmark
+	public int searchRareWord()
+	{
+		return index.search(vocabulary[20000]).size();
+	}
+
+	@Benchmark
+	public int searchFrequentWord()
+	{
+		return index.search(vocabulary[10]).size();
+	}
+
+	@Benchmark
+	public int searchPrefix()
+	{
+		return index.search(vocabulary[3].substring(0, 3)).size();
+	}
+
+	@Benchmark
+	public int searchConjunction()
+	{
+		return index.search("mailster " + vocabulary[10]).size();
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@Warmup(iterations = 5, batchSize = 1000)
+	@Measurement(iterations = 10, batchSize = 1000)
+	public MessageBlob indexMessage() throws Exception
+	{
+		return index();
+	}
+}
@@ -0,0 +1,111 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.mailster.core.mail.SmtpMessage;
+import org.mailster.core.mail.SmtpMessageFactory;
+import org.mailster.core.pop3.mailbox.MessageCache;
+import org.mailster.core.pop3.mailbox.SpooledMessageReference;
+import org.mailster.core.smtp.MailsterConstants;
+import org.mailster.core.spool.MessageSpool;
+import org.mailster.util.FileUtilities;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ---<br>
+ * Mailster (C) 2007-2009 De Oliveira Edouard
+ * <p>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 675 Mass
+ * Ave, Cambridge, MA 02139, USA.
+ * <p>
+ * See&nbsp; <a href="http://tedorg.free.fr/en/projects.php" target="_parent">Mailster
+ * Web Site</a> <br>
+ * ---
+ * <p>
+ * SpooledMessageReferenceBenchmark.java - Measures the spooling of a message
+ * and its reloading from the spool. The cache holds nothing so that every
+ * {@link SpooledMessageReference#get()} reloads the message.
+ *
+ * @author <a href="mailto:doe_wanted@yahoo.fr">Edouard De Oliveira</a>
+ * @version $Revision$, $Date$
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SpooledMessageReferenceBenchmark
+{
+	@Param({"1024", "65536", "1048576"})
+	public int size;
+
+	@Param({"0", "2", "8"})
+	public int depth;
+
+	private File directory;
+	private MessageSpool spool;
+	private MessageCache cache;
+	private SmtpMessage msg;
+	private SpooledMessageReference ref;
+
+	@Setup
+	public void setUp() throws IOException
+	{
+		directory = File.createTempFile("spool", null);
+		directory.delete();
+		spool = new MessageSpool(directory);
+		cache = new MessageCache(0, 0);
+
+		SmtpMessageFactory factory = new SmtpMessageFactory(MailsterConstants.DEFAULT_CHARSET);
+		msg = factory.asSmtpMessage(MessageCorpus.createMessageBytes(size, depth), null);
+		ref = new SpooledMessageReference(msg, spool, cache);
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		ref.delete();
+		FileUtilities.deleteDirectory(directory);
+	}
+
+	@Benchmark
+	public SpooledMessageReference store()
+	{
+		SpooledMessageReference r = new SpooledMessageReference(msg, spool, cache);
+
+		// Frees the spool segments as they get filled
+		r.delete();
+		return r;
+	}
+
+	@Benchmark
+	public SmtpMessage reload()
+	{
+		return ref.get();
+	}
+}
@@ -0,0 +1,11 @@
+#!/bin/sh
+
+# Headless mode : no GUI classes are loaded so a small heap is enough.
+# Settings are read from config.properties and may be overridden on the
+# command line, ie : mailster-server.sh --smtp.port=2525 --pop3.port=1110
+export JAVA_OPTIONS="-Xms32m -Xmx128m"
+
+export JAVA_HOME=/usr/java/jre1.6.0_01/
+
+export CP=./mailster.jar:lib/*
+$JAVA_HOME/bin/java $JAVA_OPTIONS -cp $CP org.mailster.core.MailsterServer "$@"
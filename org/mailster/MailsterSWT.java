@@ -51,6 +51,9 @@ import org.mailster.core.pop3.MailsterPop3Service;
 import org.mailster.core.pop3.Pop3ProtocolHandler;
 import org.mailster.core.pop3.connection.MinaPop3Connection;
 import org.mailster.core.pop3.mailbox.MailBoxManager;
+import org.mailster.core.pop3.mailbox.MessageCache;
+import org.mailster.core.pop3.mailbox.RetentionPolicy;
+import org.mailster.core.pop3.mailbox.StoredSmtpMessage;
 import org.mailster.core.pop3.mailbox.UserManager;
 import org.mailster.core.smtp.MailsterSMTPServer;
 import org.mailster.core.smtp.MailsterSmtpService;
@@ -503,10 +506,27 @@ public class MailsterSWT
 
 		smtpService.setConnectionTimeout(store.getInt(ConfigurationManager.SMTP_CONNECTION_TIMEOUT_KEY));
 
+		if (store.getInt(ConfigurationManager.SMTP_DISPATCHER_THREADS_KEY) > 0)
+			smtpService.setEventDispatcherParallelism(store.getInt(ConfigurationManager.SMTP_DISPATCHER_THREADS_KEY));
+
+		if (store.getInt(ConfigurationManager.SMTP_DISPATCHER_QUEUE_CAPACITY_KEY) > 0)
+			smtpService.setEventDispatcherQueueCapacity(store.getInt(ConfigurationManager.SMTP_DISPATCHER_QUEUE_CAPACITY_KEY));
+
 		UserManager.setDefaultPassword(store.getString(ConfigurationManager.POP3_PASSWORD_KEY));
 
 		Pop3ProtocolHandler.setTimeout(store.getInt(ConfigurationManager.POP3_CONNECTION_TIMEOUT_KEY));
 
+		if (store.getInt(ConfigurationManager.POP3_CACHE_SIZE_KEY) > 0)
+			MessageCache.getDefault().setMaxBytes(store.getLong(ConfigurationManager.POP3_CACHE_SIZE_KEY) * 1024);
+
+		if (store.getInt(ConfigurationManager.POP3_CACHE_ENTRIES_KEY) > 0)
+			MessageCache.getDefault().setMaxEntries(store.getInt(ConfigurationManager.POP3_CACHE_ENTRIES_KEY));
+
+		smtpService.getPop3Service().getUserManager().getMailBoxManager().setDefaultRetentionPolicy(
+				new RetentionPolicy(Math.max(0, store.getInt(ConfigurationManager.POP3_RETENTION_MAX_MESSAGES_KEY)),
+						Math.max(0, store.getLong(ConfigurationManager.POP3_RETENTION_MAX_SIZE_KEY)) * 1024,
+						Math.max(0, store.getLong(ConfigurationManager.POP3_RETENTION_MAX_AGE_KEY)) * 1000));
+
 		SSLProtocol protocol = store.getInt(ConfigurationManager.PREFERRED_SSL_PROTOCOL_KEY) == 0 ? SSLProtocol.SSL
 				: SSLProtocol.TLS;
 		boolean clientAuthNeeded = store.getBoolean(ConfigurationManager.AUTH_SSL_CLIENT_KEY);
@@ -600,6 +620,8 @@ public class MailsterSWT
 			}
 		}
 
+		StoredSmtpMessage.setDefaultHostLabel(Messages.getString("MailsterSWT.treeView.localNetwork.label")); //$NON-NLS-1$
+
 		final MailsterSWT _main = main;
 		Thread.UncaughtExceptionHandler exHandler = new Thread.UncaughtExceptionHandler() {
 			public void uncaughtException(final Thread t, final Throwable ex)
@@ -623,12 +645,27 @@ public class MailsterSWT
 		main.createSShell();
 		main.applyPreferences();
 
+		if (store.getBoolean(ConfigurationManager.POP3_STORE_PERSISTENT_KEY))
+		{
+			String dir = store.getString(ConfigurationManager.POP3_STORE_DIRECTORY_KEY);
+			try
+			{
+				main.smtpService.openPersistentStore(new File("".equals(dir) //$NON-NLS-1$
+						? MailsterPop3Service.DEFAULT_STORE_DIRECTORY : dir));
+				main.smtpService.refreshEmailQueue(false);
+			} catch (IOException e)
+			{
+				LOG.error("Unable to open the message store", e);
+			}
+		}
+
 		Runtime.getRuntime().addShutdownHook(new Thread() {
 			public void run()
 			{
 				try
 				{
 					_main.smtpService.shutdownServer(true);
+					_main.smtpService.getPop3Service().closeStore();
 					if (_main.trayItem != null)
 						_main.trayItem.dispose();
 				} catch (Exception ex)
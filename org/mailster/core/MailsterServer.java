@@ -0,0 +1,360 @@
+package org.mailster.core;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+import javax.management.JMException;
+
+import org.mailster.core.mail.AttachmentStore;
+import org.mailster.core.metrics.DeliveryTracer;
+import org.mailster.core.metrics.MetricsRegistry;
+import org.mailster.core.metrics.PrometheusFileExporter;
+import org.mailster.core.pop3.MailsterPop3Service;
+import org.mailster.core.pop3.Pop3ProtocolHandler;
+import org.mailster.core.pop3.mailbox.MailBoxManager;
+import org.mailster.core.pop3.mailbox.MessageBlobStore;
+import org.mailster.core.pop3.mailbox.MessageCache;
+import org.mailster.core.pop3.mailbox.RetentionPolicy;
+import org.mailster.core.pop3.mailbox.UserManager;
+import org.mailster.core.smtp.MailsterSMTPServer;
+import org.mailster.core.smtp.events.SMTPServerAdapter;
+import org.mailster.core.smtp.events.SMTPServerEvent;
+import org.mailster.gui.prefs.ConfigurationManager;
+import org.mailster.util.StringUtilities;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ---<br>
+ * Mailster (C) 2007-2009 De Oliveira Edouard
+ * <p>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 675 Mass
+ * Ave, Cambridge, MA 02139, USA.
+ * <p>
+ * See&nbsp; <a href="http://tedorg.free.fr/en/projects.php" target="_parent">Mailster
+ * Web Site</a> <br>
+ * ---
+ * <p>
+ * MailsterServer.java - The headless Mailster server. Wires the SMTP server,
+ * the POP3 service and the mailboxes together without loading any GUI class.
+ * <p>
+ * Settings are read from the same keys as the GUI configuration file (only
+ * the protocol related ones are used). They can be overridden on the command
+ * line with <code>--key=value</code> arguments, <code>--config=file</code>
+ * selecting another configuration file. Note that the key constants of
+ * {@link ConfigurationManager} are compile time constants : referencing them
+ * does not load the class.
+ *
+ * @author <a href="mailto:doe_wanted@yahoo.fr">Edouard De Oliveira</a>
+ * @version $Revision$, $Date$
+ */
+public class MailsterServer
+{
+	private static final Logger LOG = LoggerFactory.getLogger(MailsterServer.class);
+
+	/**
+	 * The command line option used to select the configuration file.
+	 */
+	public final static String CONFIG_OPTION = "config";
+
+	/**
+	 * The key to enable the protocols debug output.
+	 */
+	public final static String DEBUG_KEY = "debug";
+
+	private MailsterSMTPServer smtpServer;
+	private MailsterPop3Service pop3Service;
+	private PrometheusFileExporter metricsExporter;
+	private Properties config;
+	private boolean debug;
+	private boolean pop3Enabled = true;
+	private int metricsPeriod;
+	private File storeDirectory;
+
+	public MailsterServer(Properties config) throws Exception
+	{
+		this.config = config;
+
+		pop3Service = new MailsterPop3Service();
+		smtpServer = new MailsterSMTPServer();
+		smtpServer.addSMTPServerListener(new SMTPServerAdapter() {
+			public void emailReceived(SMTPServerEvent event)
+			{
+				pop3Service.storeMessage(event.getMessage());
+			}
+		});
+
+		applyConfiguration();
+	}
+
+	private void applyConfiguration()
+	{
+		debug = getBoolean(DEBUG_KEY, false);
+		pop3Enabled = getBoolean(ConfigurationManager.START_POP3_ON_SMTP_START_KEY, true);
+
+		smtpServer.setHostName(config.getProperty(ConfigurationManager.SMTP_SERVER_KEY));
+		smtpServer.setPort(getInt(ConfigurationManager.SMTP_PORT_KEY,
+				MailsterSMTPServer.DEFAULT_SMTP_PORT));
+		smtpServer.setConnectionTimeout(getInt(ConfigurationManager.SMTP_CONNECTION_TIMEOUT_KEY,
+				MailsterSMTPServer.DEFAULT_TIMEOUT / 1000));
+
+		int value = getInt(ConfigurationManager.SMTP_DISPATCHER_THREADS_KEY, 0);
+		if (value > 0)
+			smtpServer.setEventDispatcherParallelism(value);
+
+		value = getInt(ConfigurationManager.SMTP_DISPATCHER_QUEUE_CAPACITY_KEY, 0);
+		if (value > 0)
+			smtpServer.setEventDispatcherQueueCapacity(value);
+
+		pop3Service.setHost(config.getProperty(ConfigurationManager.POP3_SERVER_KEY));
+		pop3Service.setPort(getInt(ConfigurationManager.POP3_PORT_KEY,
+				MailsterPop3Service.POP3_PORT));
+		pop3Service.setUsingAPOPAuthMethod(getBoolean(
+				ConfigurationManager.POP3_ALLOW_APOP_AUTH_METHOD_KEY, true));
+		pop3Service.setSecureAuthRequired(getBoolean(
+				ConfigurationManager.POP3_REQUIRE_SECURE_AUTH_METHOD_KEY, true));
+
+		String login = config.getProperty(ConfigurationManager.POP3_SPECIAL_ACCOUNT_KEY);
+		if (!StringUtilities.isEmpty(login))
+			getMailBoxManager().setPop3SpecialAccountLogin(login);
+
+		String pwd = config.getProperty(ConfigurationManager.POP3_PASSWORD_KEY);
+		if (!StringUtilities.isEmpty(pwd))
+			UserManager.setDefaultPassword(pwd);
+
+		Pop3ProtocolHandler.setTimeout(getInt(ConfigurationManager.POP3_CONNECTION_TIMEOUT_KEY,
+				Pop3ProtocolHandler.DEFAULT_TIMEOUT_SECONDS));
+
+		value = getInt(ConfigurationManager.POP3_CACHE_SIZE_KEY, 0);
+		if (value > 0)
+			MessageCache.getDefault().setMaxBytes(value * 1024L);
+
+		value = getInt(ConfigurationManager.POP3_CACHE_ENTRIES_KEY, 0);
+		if (value > 0)
+			MessageCache.getDefault().setMaxEntries(value);
+
+		value = getInt(ConfigurationManager.POP3_MAILBOX_IDLE_TIMEOUT_KEY, 0);
+		if (value > 0)
+			pop3Service.setMailBoxIdleTimeout(value);
+
+		getMailBoxManager().setDefaultRetentionPolicy(new RetentionPolicy(
+				Math.max(0, getInt(ConfigurationManager.POP3_RETENTION_MAX_MESSAGES_KEY, 0)),
+				Math.max(0, getInt(ConfigurationManager.POP3_RETENTION_MAX_SIZE_KEY, 0)) * 1024L,
+				Math.max(0, getInt(ConfigurationManager.POP3_RETENTION_MAX_AGE_KEY, 0)) * 1000L));
+
+		if (getBoolean(ConfigurationManager.POP3_STORE_PERSISTENT_KEY, false))
+		{
+			String dir = config.getProperty(ConfigurationManager.POP3_STORE_DIRECTORY_KEY);
+			storeDirectory = new File(StringUtilities.isEmpty(dir) 
+					? MailsterPop3Service.DEFAULT_STORE_DIRECTORY : dir.trim());
+		}
+
+		String file = config.getProperty(ConfigurationManager.METRICS_PROMETHEUS_FILE_KEY);
+		if (!StringUtilities.isEmpty(file))
+			metricsExporter = new PrometheusFileExporter(MetricsRegistry.getDefault(), 
+					new File(file.trim()));
+		metricsPeriod = getInt(ConfigurationManager.METRICS_PROMETHEUS_PERIOD_KEY,
+				PrometheusFileExporter.DEFAULT_PERIOD);
+	}
+
+	private int getInt(String key, int defaultValue)
+	{
+		String value = config.getProperty(key);
+		if (StringUtilities.isEmpty(value))
+			return defaultValue;
+
+		try
+		{
+			return Integer.parseInt(value.trim());
+		}
+		catch (NumberFormatException e)
+		{
+			LOG.warn("Invalid value '{}' for key {}, using default", value, key);
+			return defaultValue;
+		}
+	}
+
+	private boolean getBoolean(String key, boolean defaultValue)
+	{
+		String value = config.getProperty(key);
+		return StringUtilities.isEmpty(value) ? defaultValue : Boolean.valueOf(value.trim()).booleanValue();
+	}
+
+	public void start() throws IOException
+	{
+		try
+		{
+			MetricsRegistry.getDefault().registerMBean();
+			DeliveryTracer.getDefault().registerMBean();
+		}
+		catch (JMException e)
+		{
+			LOG.warn("Unable to export the metrics over JMX", e);
+		}
+
+		// Restored before the first delivery. The default store isn't created
+		// just to be checked as it would create the temporary spool
+		MessageBlobStore store = MessageBlobStore.peekDefault();
+		if (storeDirectory != null && (store == null || !store.isPersistent()))
+			pop3Service.openPersistentStore(storeDirectory);
+
+		smtpServer.setDebug(debug);
+		smtpServer.start();
+
+		if (smtpServer.isStopped())
+			throw new IOException("SMTP server failed to start on port " + smtpServer.getPort());
+
+		LOG.info("SMTP server listening on port {}", smtpServer.getPort());
+
+		if (pop3Enabled)
+		{
+			pop3Service.startService(debug);
+			LOG.info("POP3 server listening on port {}", pop3Service.getPort());
+		}
+
+		if (metricsExporter != null)
+		{
+			metricsExporter.start(metricsPeriod);
+			LOG.info("Writing metrics to {}", metricsExporter.getFile());
+		}
+	}
+
+	public void stop()
+	{
+		try
+		{
+			if (pop3Service.getListeningPort() != null)
+				pop3Service.shutdownService();
+		}
+		catch (IOException e)
+		{
+			LOG.error("Failed to stop POP3 service", e);
+		}
+
+		if (!smtpServer.isStopped())
+			smtpServer.stop();
+
+		if (metricsExporter != null)
+			metricsExporter.stop();
+
+		pop3Service.closeStore();
+
+		LOG.info("Mailster server stopped ({}, {})", MessageCache.getDefault(),
+				AttachmentStore.getDefault());
+		LOG.info("Delivery latency by stage : {}", DeliveryTracer.getDefault().getSummary());
+	}
+
+	public MailsterSMTPServer getSmtpServer()
+	{
+		return smtpServer;
+	}
+
+	public MailsterPop3Service getPop3Service()
+	{
+		return pop3Service;
+	}
+
+	public MailBoxManager getMailBoxManager()
+	{
+		return pop3Service.getUserManager().getMailBoxManager();
+	}
+
+	/**
+	 * Builds the configuration from the configuration file and the command
+	 * line arguments.
+	 *
+	 * @param args the command line arguments
+	 * @return the configuration
+	 * @throws IOException if the configuration file can't be read
+	 */
+	public static Properties loadConfiguration(String[] args) throws IOException
+	{
+		Properties overrides = new Properties();
+		for (String arg : args)
+		{
+			int pos = arg.indexOf('=');
+			if (!arg.startsWith("--") || pos < 0)
+				throw new IllegalArgumentException("Invalid argument : " + arg);
+
+			overrides.setProperty(arg.substring(2, pos), arg.substring(pos + 1));
+		}
+
+		Properties config = new Properties();
+		File f = new File(overrides.getProperty(CONFIG_OPTION,
+				ConfigurationManager.CONFIGURATION_FILENAME));
+
+		if (f.exists())
+		{
+			InputStream in = new FileInputStream(f);
+			try
+			{
+				config.load(in);
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		else
+		if (overrides.getProperty(CONFIG_OPTION) != null)
+			throw new IOException("Configuration file not found : " + f);
+
+		config.putAll(overrides);
+		return config;
+	}
+
+	public static void usage()
+	{
+		System.out.println(ConfigurationManager.MAILSTER_VERSION + "\n");
+		System.out.println("Usage : java -cp <classpath> " + MailsterServer.class.getName()
+				+ " [--config=<file>] [--<key>=<value> ...]");
+		System.out.println("  --config=<file>   configuration file (defaults to "
+				+ ConfigurationManager.CONFIGURATION_FILENAME + ")");
+		System.out.println("  --<key>=<value>   overrides a configuration setting (ie --smtp.port=2525)");
+		System.out.println("  --debug=true      logs the protocols exchanges");
+	}
+
+	public static void main(String[] args)
+	{
+		final MailsterServer server;
+		try
+		{
+			server = new MailsterServer(loadConfiguration(args));
+			server.start();
+		}
+		catch (IllegalArgumentException e)
+		{
+			System.out.println(e.getMessage());
+			usage();
+			System.exit(1);
+			return;
+		}
+		catch (Exception e)
+		{
+			LOG.error("Unable to start the Mailster server", e);
+			System.exit(1);
+			return;
+		}
+
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run()
+			{
+				server.stop();
+			}
+		});
+	}
+}
@@ -48,6 +48,11 @@ public class SSLFilterFactory
     	{			
 			sslFilter = new SslFilter((new DummySSLSocketFactory()).getSSLContext());
 		}
+    	catch (LinkageError e)
+    	{
+    		// GUI classes are not available (ie headless mode)
+    		sslFilter = new SslFilter((new DummySSLSocketFactory()).getSSLContext());
+    	}
     	
     	if (sslFilter == null)
     		throw new RuntimeException("SSLFilter creation failed");
@@ -0,0 +1,86 @@
+package org.mailster.core.mail;
+
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+
+/**
+ * ---<br>
+ * Mailster (C) 2007-2009 De Oliveira Edouard
+ * <p>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 675 Mass
+ * Ave, Cambridge, MA 02139, USA.
+ * <p>
+ * See&nbsp; <a href="http://tedorg.free.fr/en/projects.php" target="_parent">Mailster
+ * Web Site</a> <br>
+ * ---
+ * <p>
+ * Attachment.java - The encoded body of an attached file, shared by all the
+ * parts carrying the same content. Instances are canonicalized by the
+ * {@link AttachmentStore}.
+ *
+ * @author <a href="mailto:doe_wanted@yahoo.fr">Edouard De Oliveira</a>
+ * @version $Revision$, $Date$
+ */
+public class Attachment implements CharSequence, Serializable
+{
+	private static final long serialVersionUID = -4913021556032410853L;
+
+	private final String digest;
+	private final String content;
+
+	protected Attachment(String digest, String content)
+	{
+		this.digest = digest;
+		this.content = content;
+	}
+
+	/**
+	 * Returns the hex encoded digest of the content.
+	 */
+	public String getDigest()
+	{
+		return digest;
+	}
+
+	public char charAt(int index)
+	{
+		return content.charAt(index);
+	}
+
+	public int length()
+	{
+		return content.length();
+	}
+
+	public CharSequence subSequence(int start, int end)
+	{
+		return content.subSequence(start, end);
+	}
+
+	/**
+	 * Returns the shared content : no copy is made.
+	 */
+	public String toString()
+	{
+		return content;
+	}
+
+	/**
+	 * Deserialized attachments are shared again.
+	 */
+	private Object readResolve() throws ObjectStreamException
+	{
+		return AttachmentStore.getDefault().intern(this);
+	}
+}
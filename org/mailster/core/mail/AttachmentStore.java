@@ -0,0 +1,244 @@
+package org.mailster.core.mail;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.mailster.util.md5.MD5;
+
+/**
+ * ---<br>
+ * Mailster (C) 2007-2009 De Oliveira Edouard
+ * <p>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 675 Mass
+ * Ave, Cambridge, MA 02139, USA.
+ * <p>
+ * See&nbsp; <a href="http://tedorg.free.fr/en/projects.php" target="_parent">Mailster
+ * Web Site</a> <br>
+ * ---
+ * <p>
+ * AttachmentStore.java - Canonicalizes the bodies of attached files : parts
+ * carrying the same content (identified by its SHA-256 digest) share a single
+ * {@link Attachment}. The store only holds weak references : an attachment
+ * is forgotten once no parsed message references it anymore.
+ * <p>
+ * Bodies smaller than the minimum size are not worth hashing and are never
+ * shared.
+ *
+ * @author <a href="mailto:doe_wanted@yahoo.fr">Edouard De Oliveira</a>
+ * @version $Revision$, $Date$
+ */
+public class AttachmentStore
+{
+	/**
+	 * The default minimum size (in chars) of a shared body.
+	 */
+	public final static int DEFAULT_MIN_SIZE = 1024;
+
+	private final static String DIGEST_ALGORITHM = "SHA-256"; //$NON-NLS-1$
+
+	private static AttachmentStore defaultStore;
+
+	/**
+	 * A weak reference remembering its key so that it can be purged.
+	 */
+	private static class AttachmentReference extends WeakReference<Attachment>
+	{
+		private final String digest;
+
+		public AttachmentReference(Attachment attachment, ReferenceQueue<Attachment> queue)
+		{
+			super(attachment, queue);
+			this.digest = attachment.getDigest();
+		}
+	}
+
+	private Map<String, AttachmentReference> attachments = new HashMap<String, AttachmentReference>();
+	private ReferenceQueue<Attachment> queue = new ReferenceQueue<Attachment>();
+	private int minSize = DEFAULT_MIN_SIZE;
+
+	private long internCount;
+	private long hitCount;
+	private long internedChars;
+	private long storedChars;
+
+	/**
+	 * Returns the store used by the MIME parser.
+	 */
+	public static synchronized AttachmentStore getDefault()
+	{
+		if (defaultStore == null)
+			defaultStore = new AttachmentStore();
+
+		return defaultStore;
+	}
+
+	/**
+	 * Computes the digest of the chars of <code>source</code> from
+	 * <code>start</code> to <code>end</code> (exclusive).
+	 */
+	public static String computeDigest(CharSequence source, int start, int end)
+	{
+		MessageDigest md;
+		try
+		{
+			md = MessageDigest.getInstance(DIGEST_ALGORITHM);
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			// Every JRE provides SHA-256
+			throw new IllegalStateException(e);
+		}
+
+		byte[] buffer = new byte[8192];
+		int pos = 0;
+		for (int i = start; i < end; i++)
+		{
+			char c = source.charAt(i);
+			buffer[pos++] = (byte) (c >> 8);
+			buffer[pos++] = (byte) c;
+
+			if (pos == buffer.length)
+			{
+				md.update(buffer, 0, pos);
+				pos = 0;
+			}
+		}
+		md.update(buffer, 0, pos);
+
+		return MD5.asHex(md.digest());
+	}
+
+	/**
+	 * Returns the shared attachment holding the chars of <code>source</code>
+	 * from <code>start</code> to <code>end</code> (exclusive), creating it if
+	 * needed.
+	 */
+	public Attachment intern(String source, int start, int end)
+	{
+		String digest = computeDigest(source, start, end);
+
+		synchronized (this)
+		{
+			Attachment attachment = lookup(digest, end - start);
+			if (attachment == null)
+				attachment = store(new Attachment(digest, source.substring(start, end)));
+
+			return attachment;
+		}
+	}
+
+	/**
+	 * Returns the shared attachment with the same content as
+	 * <code>attachment</code>, storing it if needed.
+	 */
+	public synchronized Attachment intern(Attachment attachment)
+	{
+		Attachment shared = lookup(attachment.getDigest(), attachment.length());
+		return shared == null ? store(attachment) : shared;
+	}
+
+	private Attachment lookup(String digest, int length)
+	{
+		purge();
+		internCount++;
+		internedChars += length;
+
+		AttachmentReference ref = attachments.get(digest);
+		Attachment attachment = ref == null ? null : ref.get();
+		if (attachment != null)
+			hitCount++;
+
+		return attachment;
+	}
+
+	private Attachment store(Attachment attachment)
+	{
+		attachments.put(attachment.getDigest(), new AttachmentReference(attachment, queue));
+		storedChars += attachment.length();
+
+		return attachment;
+	}
+
+	/**
+	 * Forgets the collected attachments.
+	 */
+	private void purge()
+	{
+		AttachmentReference ref;
+		while ((ref = (AttachmentReference) queue.poll()) != null)
+		{
+			// The digest may have been mapped again to a new attachment
+			if (attachments.get(ref.digest) == ref)
+				attachments.remove(ref.digest);
+		}
+	}
+
+	public synchronized int getMinSize()
+	{
+		return minSize;
+	}
+
+	public synchronized void setMinSize(int minSize)
+	{
+		if (minSize < 1)
+			throw new IllegalArgumentException("Minimum size must be >= 1");
+
+		this.minSize = minSize;
+	}
+
+	/**
+	 * Returns the number of attachments currently shared.
+	 */
+	public synchronized int size()
+	{
+		purge();
+		return attachments.size();
+	}
+
+	/**
+	 * Returns the number of bodies interned so far.
+	 */
+	public synchronized long getInternCount()
+	{
+		return internCount;
+	}
+
+	/**
+	 * Returns the number of bodies which were already stored.
+	 */
+	public synchronized long getHitCount()
+	{
+		return hitCount;
+	}
+
+	/**
+	 * Returns the ratio of the chars interned to the chars actually stored,
+	 * i.e. 10 when the attachments were received ten times each on average.
+	 */
+	public synchronized double getDedupRatio()
+	{
+		return storedChars == 0 ? 1 : (double) internedChars / storedChars;
+	}
+
+	public synchronized String toString()
+	{
+		return "Attachment store [" + attachments.size() + " shared, " + internCount
+				+ " interned, " + hitCount + " hits, dedup ratio "
+				+ Math.round(getDedupRatio() * 100) / 100.0 + "]";
+	}
+}
@@ -0,0 +1,431 @@
+package org.mailster.core.mail;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.mina.filter.codec.textline.LineDelimiter;
+import org.mailster.util.ThreadFactoryUtilities;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ---<br>
+ * Mailster (C) 2007-2009 De Oliveira Edouard
+ * <p>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 675 Mass
+ * Ave, Cambridge, MA 02139, USA.
+ * <p>
+ * See&nbsp; <a href="http://tedorg.free.fr/en/projects.php" target="_parent">Mailster
+ * Web Site</a> <br>
+ * ---
+ * <p>
+ * MBoxImporter.java - Imports the messages of a mbox file (mboxrd format, see
+ * http://www.qmail.org/qmail-manual-html/man5/mbox.html) without loading it
+ * in memory. The file is mapped window by window and scanned for From_ lines
+ * by the calling thread, while batches of messages are unquoted and parsed
+ * by a pool of threads.
+ * <p>
+ * Parsed batches are handed to an {@link ImportListener} in file order as
+ * soon as they are ready, and only a few batches are pending at any time,
+ * so that the memory used does not depend on the size of the file.
+ *
+ * @author <a href="mailto:doe_wanted@yahoo.fr">Edouard De Oliveira</a>
+ * @version $Revision$, $Date$
+ */
+public class MBoxImporter
+{
+	private static final Logger LOG = LoggerFactory.getLogger(MBoxImporter.class);
+
+	/**
+	 * Receives the imported messages.
+	 */
+	public interface ImportListener
+	{
+		/**
+		 * Called from the importing thread, in file order.
+		 *
+		 * @param messages the messages of the batch
+		 * @param position the offset in the file of the end of the batch
+		 * @param length the size of the file
+		 */
+		public void messagesImported(List<SmtpMessage> messages, long position, long length);
+	}
+
+	/**
+	 * The default maximum number of messages in a batch.
+	 */
+	public final static int DEFAULT_BATCH_SIZE = 256;
+
+	/**
+	 * The default size of the mapped windows. Batches never span more bytes.
+	 */
+	public final static int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+
+	private final static byte[] FROM_ = {'F', 'r', 'o', 'm', ' '};
+
+	private final SmtpMessageFactory factory;
+	private final int parallelism;
+	private int batchSize = DEFAULT_BATCH_SIZE;
+	private int windowSize = DEFAULT_WINDOW_SIZE;
+	private volatile boolean cancelled;
+
+	public MBoxImporter(Charset charset)
+	{
+		this(charset, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param parallelism the number of parsing threads
+	 */
+	public MBoxImporter(Charset charset, int parallelism)
+	{
+		if (parallelism < 1)
+			throw new IllegalArgumentException("Parallelism must be >= 1");
+
+		this.factory = new SmtpMessageFactory(charset, new LineDelimiter("\n")); //$NON-NLS-1$
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * A run of consecutive messages. The message <code>i</code> spans from
+	 * <code>bounds[i]</code> (its From_ line) to <code>bounds[i + 1]</code>.
+	 */
+	private class Batch
+		implements Callable<List<SmtpMessage>>
+	{
+		private final FileChannel channel;
+		private long[] bounds = new long[16];
+		private int count;
+
+		private Batch(FileChannel channel, long start)
+		{
+			this.channel = channel;
+			bounds[0] = start;
+		}
+
+		private void add(long end)
+		{
+			if (++count == bounds.length)
+			{
+				long[] b = new long[bounds.length << 1];
+				System.arraycopy(bounds, 0, b, 0, bounds.length);
+				bounds = b;
+			}
+			bounds[count] = end;
+		}
+
+		private long getStart()
+		{
+			return bounds[0];
+		}
+
+		private long getEnd()
+		{
+			return bounds[count];
+		}
+
+		public List<SmtpMessage> call() throws IOException
+		{
+			long start = getStart();
+			ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, start, getEnd() - start);
+			List<SmtpMessage> messages = new ArrayList<SmtpMessage>(count);
+
+			for (int i = 0; i < count; i++)
+			{
+				byte[] msg = unquote(data, (int) (bounds[i] - start), (int) (bounds[i + 1] - start));
+				if (msg != null)
+					messages.add(factory.asSmtpMessage(msg, null));
+			}
+
+			return messages;
+		}
+	}
+
+	/**
+	 * Stops the running import. The batches already handed to the listener
+	 * are not rolled back.
+	 */
+	public void cancel()
+	{
+		cancelled = true;
+	}
+
+	/**
+	 * Imports the messages of <code>file</code>.
+	 *
+	 * @return the number of imported messages
+	 * @throws IOException if the file can't be read
+	 * @throws InterruptedException if the importing thread is interrupted
+	 */
+	public int importFile(File file, ImportListener listener)
+		throws IOException, InterruptedException
+	{
+		cancelled = false;
+		FileInputStream in = new FileInputStream(file);
+		ExecutorService executor = Executors.newFixedThreadPool(parallelism,
+				ThreadFactoryUtilities.createFactory("MBox Parser")); //$NON-NLS-1$
+		LinkedList<Future<List<SmtpMessage>>> futures = new LinkedList<Future<List<SmtpMessage>>>();
+		LinkedList<Batch> pending = new LinkedList<Batch>();
+		int imported = 0;
+
+		try
+		{
+			FileChannel channel = in.getChannel();
+			long length = channel.size();
+			Batch batch = null;
+			long windowStart = 0;
+
+			while (windowStart < length && !cancelled)
+			{
+				int size = (int) Math.min(windowSize, length - windowStart);
+				MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, size);
+
+				// A From_ line at the beginning of the file has no preceding '\n'
+				if (windowStart == 0 && startsWithFrom(window, 0))
+					batch = new Batch(channel, 0);
+
+				// Windows overlap so that a separator is never split
+				int max = size - FROM_.length;
+				for (int i = 0; i < max; i++)
+				{
+					if (window.get(i) != '\n' || !startsWithFrom(window, i + 1))
+						continue;
+
+					long separator = windowStart + i + 1;
+					if (batch == null)
+					{
+						// Content preceding the first From_ line is ignored
+						batch = new Batch(channel, separator);
+						continue;
+					}
+
+					if (separator - batch.getStart() > windowSize && batch.count > 0)
+					{
+						long start = batch.getEnd();
+						submit(executor, batch, futures, pending);
+						imported += deliver(futures, pending, parallelism * 2, listener, length);
+						batch = new Batch(channel, start);
+					}
+
+					if (separator - batch.getEnd() > Integer.MAX_VALUE)
+						throw new IOException("Message too large at offset " + batch.getEnd());
+
+					batch.add(separator);
+					if (batch.count >= batchSize)
+					{
+						submit(executor, batch, futures, pending);
+						imported += deliver(futures, pending, parallelism * 2, listener, length);
+						batch = new Batch(channel, separator);
+					}
+				}
+
+				windowStart += size == length - windowStart ? size : max;
+			}
+
+			if (batch != null && !cancelled)
+			{
+				if (length - batch.getEnd() > Integer.MAX_VALUE)
+					throw new IOException("Message too large at offset " + batch.getEnd());
+
+				if (length - batch.getStart() > windowSize && batch.count > 0)
+				{
+					long start = batch.getEnd();
+					submit(executor, batch, futures, pending);
+					batch = new Batch(channel, start);
+				}
+
+				batch.add(length);
+				submit(executor, batch, futures, pending);
+			}
+
+			imported += deliver(futures, pending, 0, listener, length);
+			LOG.debug("Imported {} messages from {}", new Integer(imported), file);
+
+			return imported;
+		}
+		finally
+		{
+			executor.shutdownNow();
+			in.close();
+		}
+	}
+
+	private void submit(ExecutorService executor, Batch batch,
+			List<Future<List<SmtpMessage>>> futures, List<Batch> pending)
+	{
+		futures.add(executor.submit(batch));
+		pending.add(batch);
+	}
+
+	/**
+	 * Hands the parsed batches to the listener, in order, until no more than
+	 * <code>max</code> batches are pending.
+	 */
+	private int deliver(LinkedList<Future<List<SmtpMessage>>> futures, LinkedList<Batch> pending,
+			int max, ImportListener listener, long length)
+		throws IOException, InterruptedException
+	{
+		int count = 0;
+		while (futures.size() > max && !cancelled)
+		{
+			List<SmtpMessage> messages;
+			try
+			{
+				messages = futures.removeFirst().get();
+			}
+			catch (ExecutionException e)
+			{
+				if (e.getCause() instanceof IOException)
+					throw (IOException) e.getCause();
+
+				throw new IOException("Failed to parse messages : " + e.getCause());
+			}
+
+			Batch batch = pending.removeFirst();
+			listener.messagesImported(messages, batch.getEnd(), length);
+			count += messages.size();
+		}
+
+		return count;
+	}
+
+	private static boolean startsWithFrom(ByteBuffer data, int pos)
+	{
+		if (pos + FROM_.length > data.limit())
+			return false;
+
+		for (int j = 0; j < FROM_.length; j++)
+		{
+			if (data.get(pos + j) != FROM_[j])
+				return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Extracts the message spanning from <code>start</code> (its From_ line)
+	 * to <code>end</code>. The From_ line and the final blank line are
+	 * stripped and one level of quoting is removed from the quoted From_
+	 * lines.
+	 *
+	 * @return the message or null if it is empty
+	 */
+	private static byte[] unquote(ByteBuffer data, int start, int end)
+	{
+		int pos = start;
+		while (pos < end && data.get(pos++) != '\n');
+
+		// Strip the last line delimiter which precedes the next From_ line
+		if (end > pos && data.get(end - 1) == '\n')
+			end--;
+		if (end > pos && data.get(end - 1) == '\r')
+			end--;
+
+		if (pos >= end)
+			return null;
+
+		byte[] msg = new byte[end - pos];
+		ByteBuffer src = data.duplicate();
+		int len = 0;
+
+		while (pos < end)
+		{
+			int lineEnd = pos;
+			while (lineEnd < end && data.get(lineEnd) != '\n')
+				lineEnd++;
+			if (lineEnd < end)
+				lineEnd++;
+
+			int q = pos;
+			while (q < lineEnd && data.get(q) == '>')
+				q++;
+
+			if (q > pos && isFromAt(data, q, lineEnd))
+				pos++;
+
+			src.limit(lineEnd).position(pos);
+			src.get(msg, len, lineEnd - pos);
+			len += lineEnd - pos;
+			pos = lineEnd;
+		}
+
+		if (len == msg.length)
+			return msg;
+
+		byte[] b = new byte[len];
+		System.arraycopy(msg, 0, b, 0, len);
+		return b;
+	}
+
+	/**
+	 * Returns true if the line contains "From" at <code>pos</code>, which is
+	 * how {@link org.mailster.util.StreamUtilities} quotes lines.
+	 */
+	private static boolean isFromAt(ByteBuffer data, int pos, int lineEnd)
+	{
+		if (pos + 4 > lineEnd)
+			return false;
+
+		for (int j = 0; j < 4; j++)
+		{
+			if (data.get(pos + j) != FROM_[j])
+				return false;
+		}
+
+		return true;
+	}
+
+	public int getBatchSize()
+	{
+		return batchSize;
+	}
+
+	public void setBatchSize(int batchSize)
+	{
+		if (batchSize < 1)
+			throw new IllegalArgumentException("Batch size must be >= 1");
+
+		this.batchSize = batchSize;
+	}
+
+	public int getWindowSize()
+	{
+		return windowSize;
+	}
+
+	/**
+	 * Sets the size of the mapped windows. Only useful for tests.
+	 */
+	public void setWindowSize(int windowSize)
+	{
+		if (windowSize <= FROM_.length)
+			throw new IllegalArgumentException("Window size must be > " + FROM_.length);
+
+		this.windowSize = windowSize;
+	}
+}
@@ -32,10 +32,18 @@
 package org.mailster.core.mail;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
@@ -45,6 +53,7 @@ import javax.mail.MessagingException;
 import javax.mail.Session;
 import javax.mail.internet.MimeMessage;
 
+import org.mailster.core.metrics.DeliveryTrace;
 import org.mailster.core.smtp.MailsterConstants;
 import org.mailster.util.MailUtilities;
 
@@ -66,16 +75,36 @@ public class SmtpMessage implements Serializable
     private SmtpHeadersInterface headers;
     
     /** 
-     * Message body. 
+     * Raw message data as received (headers and body). It may be a slice
+     * of a spool segment so its position and limit must never be modified :
+     * always work on a duplicate.
      */
-    private StringBuilder body;
+    private transient ByteBuffer data;
+    
+    /**
+     * Offset of the body in the raw data.
+     */
+    private int bodyOffset;
+    
+    /**
+     * Name of the charset the raw data was received with.
+     */
+    private String rawCharset = MailsterConstants.DEFAULT_CHARSET_NAME;
+    
+    /**
+     * Size in octets of the message, computed once from the raw data.
+     */
+    private int size = -1;
     
     /** 
      * Recipients (read from envelope) 
      */
     private List<String> recipients;
 
-    private SmtpMessagePart internalParts;
+    /**
+     * Parsed body, lazily built from the raw data.
+     */
+    private transient SmtpMessagePart internalParts;
 
     private String content;
     private String oldPreferredContentType;
@@ -83,9 +112,10 @@ public class SmtpMessage implements Serializable
 
     private String internalDate;
     
-    private String charset;
-    //private Charset serverCharset = null;
-    private Boolean needsConversion = null;
+    /**
+     * Trace of the delivery of a received message.
+     */
+    private transient DeliveryTrace trace;
     
     /**
      * Likewise, a global id for Message-ID generation.
@@ -93,55 +123,140 @@ public class SmtpMessage implements Serializable
     private final static AtomicLong id = new AtomicLong(0);
 
     /**
-     * Constructor. Initializes headers Map and body buffer.
+     * Constructor. Initializes headers Map and recipients list.
      */
     public SmtpMessage()
     {
         headers = new SmtpHeaders();
-        body = new StringBuilder();
+        data = ByteBuffer.allocate(0);
         recipients = new ArrayList<String>();
     }
     
     /**
-     * Update the headers or body of the message.
+     * Sets the raw data of the message. Body is not decoded until 
+     * it's requested.
      * 
-     * @param isHeaderData true if data is part of the mail header
-     * @param line the line of mail data 
+     * @param data the raw message data, from its position to its limit
+     * @param bodyOffset the offset of the body in <code>data</code>
+     * @param charsetName the charset the data was received with
      */
-    protected void append(boolean isHeaderData, String line)
+    protected void setRawData(ByteBuffer data, int bodyOffset, String charsetName)
     {
-        if (line != null)
-        {
-            if (isHeaderData)
-                headers.addHeaderLine(line);
-            else
-            {
-            	if (needsConversion == null)
-            	{
-            		charset = getBodyCharset();
-            		needsConversion = charset  != null && !MailsterConstants.DEFAULT_CHARSET_NAME.equals(charset);
-            		/*if (charset  != null && SimpleSmtpServer.DEFAULT_CHARSET.equals(charset))
-            			serverCharset = Charset.forName(SimpleSmtpServer.DEFAULT_CHARSET);*/
-            	}
-            	
-                if (Boolean.TRUE.equals(needsConversion))
-                {
-                    try
-                    {                        
-                        line = new String(line.getBytes(MailsterConstants.DEFAULT_CHARSET_NAME), charset);
-                        // Since 1.6
-                        //params = new String(params.getBytes(serverCharset), charset);
-                    }
-                    catch (UnsupportedEncodingException e)
-                    {
-                        e.printStackTrace();                        
-                    }
-                }
-                body.append(line);
-            }
-        }
+    	this.data = data;
+    	this.bodyOffset = bodyOffset;
+    	this.rawCharset = charsetName;
+    	this.internalParts = null;
+    	this.size = -1;
+    }
+    
+    /**
+     * Decodes the raw body with the charset specified in the Content-Type 
+     * header. Line delimiters are normalized to a single '\n' and a 
+     * delimiter is added to the last line if it has none.
+     */
+    private String decodeBody()
+    {
+    	Charset cs = null;
+    	String name = getBodyCharset();
+    	
+    	if (name != null)
+    	{
+    		try
+    		{
+    			cs = Charset.forName(name);
+    		}
+    		catch (IllegalArgumentException ex)
+    		{
+    			// Unknown charset : fallback to the raw charset
+    		}
+    	}
+    	
+    	if (cs == null)
+    		cs = Charset.forName(rawCharset);
+    	
+    	CharBuffer cb;
+    	try
+    	{
+    		cb = cs.newDecoder()
+    			.onMalformedInput(CodingErrorAction.REPLACE)
+    			.onUnmappableCharacter(CodingErrorAction.REPLACE)
+    			.decode(getBodyData());
+    	}
+    	catch (CharacterCodingException e)
+    	{
+    		// Can't happen with REPLACE actions
+    		throw new IllegalStateException(e);
+    	}
+    	
+    	char[] c = cb.array();
+    	int len = cb.limit();
+    	int n = 0;
+    	
+    	for (int i = 0; i < len; i++)
+    	{
+    		if (c[i] != '\r' || i + 1 == len || c[i + 1] != '\n')
+    			c[n++] = c[i];
+    	}
+    	
+    	String s = new String(c, 0, n);
+    	
+    	return n > 0 && c[n - 1] != '\n' ? s + '\n' : s;
     }
 
+    private ByteBuffer getBodyData()
+    {
+    	ByteBuffer b = data.duplicate();
+    	b.position(b.position() + bodyOffset);
+    	return b;
+    }
+    
+    /**
+     * Returns a read-only view of the message as received. The returned
+     * buffer has its own position and limit.
+     */
+    public ByteBuffer getRawData()
+    {
+    	return data.asReadOnlyBuffer();
+    }
+    
+    /**
+     * Returns the name of the charset the raw data was received with.
+     */
+    public String getRawCharset()
+    {
+    	return rawCharset;
+    }
+    
+    /**
+     * Restores the values generated by a previous instance of this message 
+     * when it is rebuilt from its raw data, so that the Message-ID and the 
+     * date of a message without such headers remain stable.
+     */
+    public void restoreGeneratedValues(String messageID, String date)
+    {
+    	this.messageID = messageID;
+    	if (getHeaders().getHeaderValue(SmtpHeadersInterface.DATE) == null)
+    		this.internalDate = date;
+    }
+    
+    private void writeObject(ObjectOutputStream out) throws IOException
+    {
+    	out.defaultWriteObject();
+    	byte[] b = new byte[data.remaining()];
+    	data.duplicate().get(b);
+    	out.writeInt(b.length);
+    	out.write(b);
+    }
+    
+    private void readObject(ObjectInputStream in) 
+    	throws IOException, ClassNotFoundException
+    {
+    	in.defaultReadObject();
+    	byte[] b = new byte[in.readInt()];
+    	in.readFully(b);
+    	data = ByteBuffer.wrap(b);
+    }
+    
     /**
      * Get a unique value to use 'as' a Message-ID. If the headers don't contain
      * a Message-ID header value, this implementation generates it by
@@ -162,8 +277,9 @@ public class SmtpMessage implements Serializable
             messageID = getHeaderValue(SmtpHeadersInterface.MESSAGE_ID);
             if (messageID == null)
             {
-                StringBuilder s = new StringBuilder(hashCode());
-                s.append('.').append(id.incrementAndGet()).append(System.currentTimeMillis())
+                StringBuilder s = new StringBuilder();
+                s.append(hashCode()).append('.').append(id.incrementAndGet())
+                        .append('.').append(System.currentTimeMillis())
                         .append(".Mailster@");
                 try
                 {
@@ -227,7 +343,8 @@ public class SmtpMessage implements Serializable
     }
     
     /**
-     * Converts from a <code>SmtpMessage</code> to a <code>MimeMessage</code>.
+     * Converts from a <code>SmtpMessage</code> to a <code>MimeMessage</code>
+     * built from the raw data.
      * 
      * @return a <code>MimeMessage</code> object
      * @throws MessagingException if MimeMessage creation fails
@@ -235,22 +352,21 @@ public class SmtpMessage implements Serializable
      */
     public MimeMessage asMimeMessage() throws MessagingException, UnsupportedEncodingException
     {
-    	String charset = getBodyCharset();
-        if (charset == null)
-        	charset = MailsterConstants.DEFAULT_CHARSET_NAME;
+        byte[] b = new byte[data.remaining()];
+        data.duplicate().get(b);
         
-        return new MimeMessage(MAIL_SESSION, 
-        		new ByteArrayInputStream(toString().getBytes(charset)));
+        return new MimeMessage(MAIL_SESSION, new ByteArrayInputStream(b));
     }        
 
     /**
-     * String representation of the SmtpMessage.
+     * String representation of the SmtpMessage : the raw data decoded with 
+     * the charset it was received with.
      * 
      * @return a String
      */
     public String toString()
     {
-    	return getInternalParts().toString();
+    	return Charset.forName(rawCharset).decode(data.duplicate()).toString();
     }
 
     public SmtpHeadersInterface getHeaders()
@@ -294,10 +410,8 @@ public class SmtpMessage implements Serializable
     {
         if (internalParts == null)
         {
-        	body.trimToSize();
-            internalParts = MailUtilities.parseInternalParts(this, body.toString());
+            internalParts = MailUtilities.parseInternalParts(this, decodeBody());
             internalParts.compress();
-            body = null;
         }
 
         return internalParts;
@@ -360,23 +474,54 @@ public class SmtpMessage implements Serializable
     }
 
     /**
-     * Return the size of the content of this message in bytes. Return 0 if the
-     * size cannot be determined.
-     * <p>
-     * Note that this number may not be an exact measure of the content size and
-     * may or may not account for any transfer encoding of the content.
-     * <p>
-     * This implementation returns the size of the message body (if not null),
-     * otherwise, it returns 0.
+     * Returns the trace of the delivery of this message, or null if it was
+     * not received by the SMTP server.
+     */
+    public DeliveryTrace getTrace()
+    {
+        return trace;
+    }
+
+    public void setTrace(DeliveryTrace trace)
+    {
+        this.trace = trace;
+    }
+
+    /**
+     * Return the size in octets of this message as sent to a POP3 client, 
+     * that is the raw data with CRLF line delimiters and without 
+     * byte-stuffing. The size is computed once and doesn't require the body
+     * to be decoded.
      * 
-     * @return size of content in bytes
+     * @return size of the message in octets
      */
     public int getSize()
     {
-        String s = getBody();
-        if (s != null)
-            return s.length();
-
-        return 0;
+        if (size == -1)
+        	size = getOctetSize(data);
+        
+        return size;
+    }
+    
+    /**
+     * Counts the remaining bytes of <code>data</code>, bare LFs being 
+     * counted as CRLF. A CRLF is counted if data doesn't end with a LF.
+     */
+    private static int getOctetSize(ByteBuffer data)
+    {
+    	int pos = data.position();
+    	int limit = data.limit();
+    	int size = limit - pos;
+    	
+    	for (int i = pos; i < limit; i++)
+    	{
+    		if (data.get(i) == '\n' && (i == pos || data.get(i - 1) != '\r'))
+    			size++;
+    	}
+    	
+    	if (limit > pos && data.get(limit - 1) != '\n')
+    		size += 2;
+    	
+    	return size;
     }
 }
\ No newline at end of file
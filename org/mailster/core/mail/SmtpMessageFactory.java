@@ -1,14 +1,13 @@
 package org.mailster.core.mail;
 
+import java.io.IOException;
 import java.io.InputStream;
-import java.nio.charset.CharacterCodingException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
-import java.nio.charset.CharsetDecoder;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 
-import org.apache.mina.core.buffer.IoBuffer;
 import org.apache.mina.filter.codec.textline.LineDelimiter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -37,6 +36,11 @@ import org.slf4j.LoggerFactory;
  * <p>
  * SmtpMessageFactory.java - This class creates a {@link SmtpMessage} from an 
  * {@link InputStream}. 
+ * <p>
+ * The raw stream is kept as bytes : only the header lines are decoded while 
+ * scanning, the body is handed over untouched to the message which decodes 
+ * it lazily. The factory holds no parsing state so a single instance can be 
+ * shared by all the delivery threads.
  * 
  * @author <a href="mailto:doe_wanted@yahoo.fr">Edouard De Oliveira</a>
  * @version $Revision: 1.4 $, $Date: 2009/02/08 01:02:49 $
@@ -45,16 +49,14 @@ public class SmtpMessageFactory
 {
 	private static Logger log = LoggerFactory.getLogger(SmtpMessageFactory.class);
 	
-    private IoBuffer delimBuf;
-    private Charset charset;
-    private CharsetDecoder decoder;
+	/**
+	 * Initial size of the buffer used to read a message.
+	 */
+	private final static int INITIAL_BUFFER_SIZE = 8192;
+	
+    private final byte[] delimiter;
+    private final Charset charset;
     
-    /**
-     * Decoding vars.
-     */
-    private boolean previousLineInHeader = true;
-    private boolean isHeaderLine = true;
-
     /**
      * Creates a new instance with the current default {@link Charset}, 
      * the {@link LineDelimiter#CRLF} delimiter.
@@ -90,50 +92,38 @@ public class SmtpMessageFactory
             throw new NullPointerException("delimiter");
         }
         
-        // Convert delimiter to IoBuffer.
-        delimBuf = IoBuffer.allocate(delimiter.getValue().length()).setAutoExpand(true);
-        try 
-        {
-			delimBuf.putString(delimiter.getValue(), charset.newEncoder());
-		} 
-        catch (CharacterCodingException e) 
-        {
-			throw new RuntimeException(e);
-		}
-        delimBuf.flip();
+        this.delimiter = delimiter.getValue().getBytes(charset);
+        if (this.delimiter.length == 0)
+        	throw new IllegalArgumentException("delimiter");
     }
 
-    private void reset()
+    public SmtpMessage asSmtpMessage(InputStream data, List<String> recipients)
+    	throws Exception
+    {    	
+    	return asSmtpMessage(readFully(data), recipients);
+    }
+    
+    /**
+     * Creates a message from the raw bytes <tt>data</tt>. The array is 
+     * owned by the returned message and must not be modified afterwards.
+     */
+    public SmtpMessage asSmtpMessage(byte[] data, List<String> recipients)
     {
-        isHeaderLine = true;
-        previousLineInHeader = true;
-        decoder = charset.newDecoder();
+    	return asSmtpMessage(ByteBuffer.wrap(data), recipients);
     }
     
-    public synchronized SmtpMessage asSmtpMessage(InputStream data, List<String> recipients)
-    	throws Exception
-    {    	
-    	reset();
-
-    	SmtpMessage msg = new SmtpMessage();    	
-    	IoBuffer buf = IoBuffer.allocate(1024).setAutoExpand(true);
-    	byte[] b = new byte[1024];
-		int len = 0;
-		
-		while ((len = data.read(b)) > -1)
-		{
-			if (buf.position() != 0)
-				buf.compact();
-			
-			buf.put(b, 0, len);
-			buf.flip();
-			consume(msg, buf);
-		}
-		
-		if (buf.remaining()>0)
-			updateMessage(msg, buf);
-		
-		buf.free();
+    /**
+     * Creates a message from the remaining bytes of <tt>data</tt>. Only the
+     * headers are parsed : the body is decoded on demand straight from the
+     * buffer, which is owned by the returned message and must not be modified
+     * afterwards. This allows to rebuild a message from a spool slice without
+     * copying it.
+     */
+    public SmtpMessage asSmtpMessage(ByteBuffer data, List<String> recipients)
+    {
+    	SmtpMessage msg = new SmtpMessage();
+    	int bodyOffset = parseHeaders(msg.getHeaders(), data);
+    	msg.setRawData(data, bodyOffset, charset.name());
 
 		if (recipients == null)
 		{
@@ -143,8 +133,7 @@ public class SmtpMessageFactory
 			recipients = new ArrayList<String>(set);
     	}
     
-		if (recipients != null)
-    		msg.addRecipients(recipients);
+		msg.addRecipients(recipients);
 		
     	return msg;
     }
@@ -159,81 +148,104 @@ public class SmtpMessageFactory
     }
     
     /**
-     * Stores the data in the {@link SmtpMessage} body.
+     * Reads the whole stream in a single array sized to fit the data.
      */
-    private void updateMessage(SmtpMessage msg, IoBuffer in)
-    	throws Exception
+    private static byte[] readFully(InputStream data)
+    	throws IOException
     {
-        String line = in.getString(decoder);
-        
-        if (line.endsWith("\r"))
-        	log.debug("[CONSUME] "+line.substring(0, line.length()-1));
-        else		
-        	log.debug("[CONSUME] "+line);
-        
-        if (isHeaderLine)
-        {
-        	if (line.length() >= 1 && !"\r".equals(line))
-        		msg.append(true, line);
-        	else
-        		isHeaderLine = false;
-        }
-        else
-        {
-        	if (previousLineInHeader)
-        	{
-        		msg.append(false, line);
-        		previousLineInHeader = false;
-        	}
-        	else
-        		msg.append(false, "\n"+line);
-        }
+    	byte[] buf = new byte[INITIAL_BUFFER_SIZE];
+    	int count = 0;
+    	int len = 0;
+    	
+    	while ((len = data.read(buf, count, buf.length - count)) > -1)
+    	{
+    		count += len;
+    		if (count == buf.length)
+    		{
+    			byte[] b = new byte[buf.length << 1];
+    			System.arraycopy(buf, 0, b, 0, count);
+    			buf = b;
+    		}
+    	}
+    	
+    	if (count == buf.length)
+    		return buf;
+    	
+    	byte[] b = new byte[count];
+    	System.arraycopy(buf, 0, b, 0, count);
+    	return b;
     }
     
-    private boolean consume(SmtpMessage msg, IoBuffer in) 
-    	throws Exception
-    {        
-        // Try to find a match
-        int oldPos = in.position();
-        int oldLimit = in.limit();
-        int matchCount = 0;
-        boolean decoded = false;
-        
-        while(in.hasRemaining())
-        {
-            byte b = in.get();
-            if(delimBuf.get(matchCount) == b)
-            {
-                matchCount ++;
-                if(matchCount == delimBuf.limit())
-                {
-                    // Found a match.
-                    int pos = in.position();
-                    in.position(oldPos);
-                    in.limit(pos - matchCount);
-                    
-                    updateMessage(msg, in);
-                    decoded = true;
-                    
-                    in.limit(oldLimit);
-                    in.position(pos);
-                    oldPos = pos;
-                    matchCount = 0;
-                }
-            }
-            else
-            {
-            	if (matchCount > 0)
-            	{
-            		in.position(in.position()-matchCount);
-            		matchCount = 0;
-            	}
-            }
-        }
-        
-        // Let remainder in buf.
-        in.position(oldPos);
-        
-        return decoded;
+    /**
+     * Scans the header lines of <tt>data</tt> and stores them in 
+     * <tt>headers</tt>. Scanning stops on the first empty line.
+     * 
+     * @return the offset of the first byte of the body relative to the 
+     * position of <tt>data</tt>
+     */
+    private int parseHeaders(SmtpHeadersInterface headers, ByteBuffer data)
+    {
+    	int pos = data.position();
+    	int limit = data.limit();
+    	int start = pos;
+    	int max = limit - delimiter.length;
+    	
+    	for (int i = pos; i <= max; i++)
+    	{
+    		if (isDelimiterAt(data, i))
+    		{
+    			int end = i;
+    			if (end > start && data.get(end - 1) == '\r')
+    				end--;
+    			
+    			i += delimiter.length;
+    			if (end == start)
+    				return i - pos;
+    			
+    			addHeaderLine(headers, data, start, end);
+    			start = i;
+    			i--;
+    		}
+    	}
+    	
+    	// Data ends without any body
+    	int end = limit;
+    	if (end > start && data.get(end - 1) == '\r')
+    		end--;
+    	if (end > start)
+    		addHeaderLine(headers, data, start, end);
+    	
+    	return limit - pos;
+    }
+    
+    private boolean isDelimiterAt(ByteBuffer data, int pos)
+    {
+    	for (int j = 0; j < delimiter.length; j++)
+    	{
+    		if (data.get(pos + j) != delimiter[j])
+    			return false;
+    	}
+    	
+    	return true;
+    }
+    
+    private void addHeaderLine(SmtpHeadersInterface headers, 
+    		ByteBuffer data, int start, int end)
+    {
+    	String line;
+    	if (data.hasArray())
+    		line = new String(data.array(), data.arrayOffset() + start, end - start, charset);
+    	else
+    	{
+    		byte[] b = new byte[end - start];
+    		ByteBuffer src = data.duplicate();
+    		src.limit(end);
+    		src.position(start);
+    		src.get(b);
+    		line = new String(b, charset);
+    	}
+    	
+    	log.debug("[CONSUME] {}", line);
+    	headers.addHeaderLine(line);
     }
-}
\ No newline at end of file
+}
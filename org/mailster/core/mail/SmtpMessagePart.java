@@ -2,6 +2,7 @@ package org.mailster.core.mail;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
 import java.io.UnsupportedEncodingException;
@@ -50,16 +51,56 @@ public class SmtpMessagePart implements Serializable
 	private SmtpHeadersInterface headers = new SmtpHeaders();
     private List<SmtpMessagePart> parts = new ArrayList<SmtpMessagePart>(1);
     private Map<String, String> cids;
-    private StringBuilder body = new StringBuilder();
+    private CharSequence body = new StringBuilder();
     private SmtpMessagePart[] attachedFiles;
     private SmtpMessagePart parentPart;
 
     private String boundary = "";
 
+    /**
+     * A read-only view of a range of a string. Allows parts to reference 
+     * their body in the decoded message body without copying it.
+     */
+    private static class BodySlice implements CharSequence, Serializable
+    {
+        private static final long serialVersionUID = -2164236525366519217L;
+
+        private final String source;
+        private final int start;
+        private final int end;
+
+        public BodySlice(String source, int start, int end)
+        {
+            this.source = source;
+            this.start = start;
+            this.end = end;
+        }
+
+        public char charAt(int index)
+        {
+            return source.charAt(start + index);
+        }
+
+        public int length()
+        {
+            return end - start;
+        }
+
+        public CharSequence subSequence(int from, int to)
+        {
+            return new BodySlice(source, start + from, start + to);
+        }
+
+        public String toString()
+        {
+            return source.substring(start, end);
+        }
+    }
+
     public SmtpMessagePart() {
     }
 
-    public StringBuilder getBody()
+    public CharSequence getBody()
     {
         return body;
     }
@@ -69,6 +110,43 @@ public class SmtpMessagePart implements Serializable
         this.body = new StringBuilder(body);
     }
 
+    /**
+     * Sets the body to the characters of <code>source</code> from 
+     * <code>start</code> to <code>end</code> (exclusive) without copying 
+     * them.
+     */
+    public void setBody(String source, int start, int end)
+    {
+        this.body = new BodySlice(source, start, end);
+    }
+
+    /**
+     * Sets the body to a shared attachment.
+     */
+    public void setBody(Attachment attachment)
+    {
+        this.body = attachment;
+    }
+
+    /**
+     * Returns the shared attachment holding the body or null if the body is
+     * not shared.
+     */
+    public Attachment getAttachment()
+    {
+        return body instanceof Attachment ? (Attachment) body : null;
+    }
+
+    /**
+     * Copies the body if it references the decoded message body so that the
+     * latter can be collected.
+     */
+    protected void detachBody()
+    {
+        if (body instanceof BodySlice)
+            this.body = body.toString();
+    }
+
     public String getBoundary()
     {
         return boundary;
@@ -97,7 +175,8 @@ public class SmtpMessagePart implements Serializable
      */
     protected void compress()
     {
-    	body.trimToSize();
+    	if (body instanceof StringBuilder)
+    		((StringBuilder) body).trimToSize();
     	
     	for (SmtpMessagePart part : parts)
             part.compress();
@@ -152,7 +231,10 @@ public class SmtpMessagePart implements Serializable
 
     public void appendToBody(String s)
     {
-        body.append(s);
+        if (!(body instanceof StringBuilder))
+            body = new StringBuilder(body);
+
+        ((StringBuilder) body).append(s);
     }
 
     public String toString()
@@ -160,13 +242,28 @@ public class SmtpMessagePart implements Serializable
         return toString(true);
     }
 
+    /**
+     * Returns the length of {@link #toString()} without rendering the body.
+     */
     public int getSize()
     {
-        String s = toString(true);
-        if (s != null)
-            return s.length();
+        int size = headers.toString().length() + 2;
+
+        if (isMultiPart())
+        {
+            int delimiterLength = "".equals(boundary) ? 0 : boundary.length() + 3;
+            for (SmtpMessagePart part : parts)
+                size += delimiterLength + part.getSize();
+
+            if (delimiterLength > 0)
+                size += delimiterLength + 2;
+            if (parentPart != null)
+                size++;
+        }
+        else
+            size += body.length();
 
-        return 0;
+        return size;
     }
     
     public String toString(boolean includeHeaders)
@@ -210,9 +307,18 @@ public class SmtpMessagePart implements Serializable
         return body;
     }
 
+    /**
+     * Returns a stream reading the decoded body. The body is decoded as it
+     * is read : no copy is made.
+     */
+    public InputStream getInputStream() throws IOException, MessagingException
+    {
+        return MailUtilities.getDecodedInputStream(getBody(), getCharset(), getEncoding());
+    }
+
     public void write(OutputStream os) throws IOException, MessagingException
     {
-        MailUtilities.write(os, getBody().toString(), getCharset(), getEncoding());
+        MailUtilities.write(os, getBody(), getCharset(), getEncoding());
     }
 
     private String getMultiPartRelatedContent(SmtpMessagePart parent, String preferredContentType)
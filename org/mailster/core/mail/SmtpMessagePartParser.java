@@ -0,0 +1,299 @@
+package org.mailster.core.mail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.mailster.util.MailUtilities;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ---<br>
+ * Mailster (C) 2007-2009 De Oliveira Edouard
+ * <p>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 675 Mass
+ * Ave, Cambridge, MA 02139, USA.
+ * <p>
+ * See&nbsp; <a href="http://tedorg.free.fr/en/projects.php" target="_parent">Mailster
+ * Web Site</a> <br>
+ * ---
+ * <p>
+ * SmtpMessagePartParser.java - Builds the {@link SmtpMessagePart} tree of a
+ * decoded message body in a single pass. Lines are scanned once, whatever the
+ * nesting depth : a stack holds the boundaries of the enclosing multiparts
+ * and a delimiter line closes every part nested in the multipart it belongs
+ * to. Part bodies are views of the decoded body so no body is ever copied.
+ * <p>
+ * As lines are not read through a <code>BufferedReader</code>, they may have
+ * any length.
+ * 
+ * @author <a href="mailto:doe_wanted@yahoo.fr">Edouard De Oliveira</a>
+ * @version $Revision$, $Date$
+ */
+public class SmtpMessagePartParser
+{
+    private static final Logger LOG = LoggerFactory.getLogger(SmtpMessagePartParser.class);
+
+    private static final int NO_BOUNDARY = 0;
+    private static final int DELIMITER = 1;
+    private static final int CLOSE_DELIMITER = 2;
+
+    /**
+     * An open multipart.
+     */
+    private static class Frame
+    {
+        private SmtpMessagePart part;
+        private String boundary;
+        private List<SmtpMessagePart> parts = new ArrayList<SmtpMessagePart>();
+
+        public Frame(SmtpMessagePart part, String boundary)
+        {
+            this.part = part;
+            this.boundary = boundary;
+        }
+    }
+
+    private String text;
+    private List<Frame> frames = new ArrayList<Frame>();
+
+    /**
+     * The part being read, null when reading a preamble or an epilogue.
+     */
+    private SmtpMessagePart current;
+    private SmtpHeadersInterface currentHeaders;
+    private boolean readingHeaders;
+    private int bodyStart;
+
+    /**
+     * The store sharing the bodies of attached files.
+     */
+    private AttachmentStore store;
+    private List<SmtpMessagePart> slicedParts = new ArrayList<SmtpMessagePart>();
+    private boolean shared;
+
+    private SmtpMessagePartParser(String text, AttachmentStore store)
+    {
+        this.text = text;
+        this.store = store;
+    }
+
+    /**
+     * Parses a decoded message body.
+     * 
+     * @param headers the headers of the message
+     * @param body the body with '\n' line delimiters
+     * @return the root part of the message
+     */
+    public static SmtpMessagePart parse(SmtpHeadersInterface headers, String body)
+    {
+        return parse(headers, body, AttachmentStore.getDefault());
+    }
+
+    /**
+     * Parses a decoded message body, sharing the bodies of the attached files
+     * through <code>store</code>.
+     * 
+     * @param headers the headers of the message
+     * @param body the body with '\n' line delimiters
+     * @param store the attachment store or null to disable sharing
+     * @return the root part of the message
+     */
+    public static SmtpMessagePart parse(SmtpHeadersInterface headers, String body, 
+            AttachmentStore store)
+    {
+        return new SmtpMessagePartParser(body, store).parse(headers);
+    }
+
+    private SmtpMessagePart parse(SmtpHeadersInterface headers)
+    {
+        SmtpMessagePart root = new SmtpMessagePart();
+
+        if (MailUtilities.isMultiPart(headers))
+        {
+            root.setBoundary(getBoundary(headers));
+            frames.add(new Frame(root, root.getBoundary()));
+
+            int len = text.length();
+            int pos = 0;
+            while (pos < len)
+            {
+                int eol = text.indexOf('\n', pos);
+                if (eol == -1)
+                    eol = len;
+
+                readLine(pos, eol);
+                pos = eol + 1;
+            }
+
+            endPart(len);
+            while (!frames.isEmpty())
+                closeFrame();
+
+            // Once an attachment is shared, the other parts must not keep
+            // the decoded message body alive
+            if (shared)
+            {
+                for (SmtpMessagePart part : slicedParts)
+                    part.detachBody();
+            }
+        }
+        else
+        {
+            // A single line body doesn't keep its line delimiter
+            int end = text.length();
+            if (end > 0 && text.indexOf('\n') == end - 1)
+                end--;
+
+            root.setBody(text, 0, end);
+        }
+
+        root.setHeaders(headers);
+        return root;
+    }
+
+    private static String getBoundary(SmtpHeadersInterface headers)
+    {
+        return MailUtilities.getHeaderParameterValue(headers,
+                SmtpHeadersInterface.CONTENT_TYPE,
+                SmtpHeadersInterface.BOUNDARY_PARAMETER);
+    }
+
+    private void readLine(int start, int end)
+    {
+        if (end - start >= 2 && text.startsWith("--", start)
+                && readBoundary(start, end))
+            return;
+
+        if (current != null && readingHeaders)
+        {
+            if (start == end)
+                endHeaders(end + 1);
+            else
+                currentHeaders.addHeaderLine(text.substring(start, end));
+        }
+    }
+
+    /**
+     * Handles the line if it is a delimiter of one of the open multiparts.
+     * 
+     * @return true if the line is a delimiter
+     */
+    private boolean readBoundary(int start, int end)
+    {
+        for (int i = frames.size() - 1; i >= 0; i--)
+        {
+            Frame f = frames.get(i);
+            if (f.boundary == null)
+            {
+                // No boundary parameter : use the first delimiter like line
+                f.boundary = text.substring(start + 2, end).trim();
+                f.part.setBoundary(f.boundary);
+                LOG.debug("Missing boundary parameter, using {}", f.boundary);
+            }
+
+            int type = getBoundaryType(f.boundary, start, end);
+            if (type == NO_BOUNDARY)
+                continue;
+
+            endPart(start);
+            while (frames.size() - 1 > i)
+                closeFrame();
+
+            if (type == CLOSE_DELIMITER)
+                closeFrame();
+            else
+                startPart();
+
+            return true;
+        }
+
+        return false;
+    }
+
+    private int getBoundaryType(String boundary, int start, int end)
+    {
+        int pos = start + 2;
+        if (!text.startsWith(boundary, pos))
+            return NO_BOUNDARY;
+
+        pos += boundary.length();
+        if (text.startsWith("--", pos) && pos + 2 <= end)
+            return CLOSE_DELIMITER;
+
+        // Only trailing white spaces are allowed
+        for (; pos < end; pos++)
+        {
+            if (!Character.isWhitespace(text.charAt(pos)))
+                return NO_BOUNDARY;
+        }
+
+        return DELIMITER;
+    }
+
+    private void startPart()
+    {
+        current = new SmtpMessagePart();
+        currentHeaders = new SmtpHeaders();
+        readingHeaders = true;
+        frames.get(frames.size() - 1).parts.add(current);
+    }
+
+    private void endHeaders(int pos)
+    {
+        readingHeaders = false;
+        current.setHeaders(currentHeaders);
+
+        if (MailUtilities.isMultiPart(currentHeaders))
+        {
+            current.setBoundary(getBoundary(currentHeaders));
+            frames.add(new Frame(current, current.getBoundary()));
+            current = null;
+        }
+        else
+            bodyStart = pos;
+    }
+
+    private void endPart(int pos)
+    {
+        if (current == null)
+            return;
+
+        if (readingHeaders)
+            current.setHeaders(currentHeaders);
+        else
+        {
+            int start = Math.min(bodyStart, pos);
+            if (store != null && pos - start >= store.getMinSize()
+                    && current.getFileName() != null)
+            {
+                current.setBody(store.intern(text, start, pos));
+                shared = true;
+            }
+            else
+            {
+                current.setBody(text, start, pos);
+                slicedParts.add(current);
+            }
+        }
+
+        current = null;
+    }
+
+    private void closeFrame()
+    {
+        Frame f = frames.remove(frames.size() - 1);
+        f.part.setParts(f.parts);
+    }
+}
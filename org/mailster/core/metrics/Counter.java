@@ -0,0 +1,63 @@
+package org.mailster.core.metrics;
+
+/**
+ * ---<br>
+ * Mailster (C) 2007-2009 De Oliveira Edouard
+ * <p>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 675 Mass
+ * Ave, Cambridge, MA 02139, USA.
+ * <p>
+ * See&nbsp; <a href="http://tedorg.free.fr/en/projects.php" target="_parent">Mailster
+ * Web Site</a> <br>
+ * ---
+ * <p>
+ * Counter.java - A monotonic counter metric backed by a {@link StripedCounter}.
+ *
+ * @author <a href="mailto:doe_wanted@yahoo.fr">Edouard De Oliveira</a>
+ * @version $Revision$, $Date$
+ */
+public class Counter extends Metric
+{
+	private final StripedCounter value = new StripedCounter();
+
+	public Counter(String name, String help)
+	{
+		super(name, help);
+	}
+
+	public Counter(String name, String help, String labelName, String labelValue)
+	{
+		super(name, help, labelName, labelValue);
+	}
+
+	public void increment()
+	{
+		value.add(1);
+	}
+
+	public void add(long delta)
+	{
+		value.add(delta);
+	}
+
+	public long getValue()
+	{
+		return value.sum();
+	}
+
+	public String getType()
+	{
+		return "counter";
+	}
+}
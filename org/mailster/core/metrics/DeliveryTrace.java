@@ -0,0 +1,182 @@
+package org.mailster.core.metrics;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * ---<br>
+ * Mailster (C) 2007-2009 De Oliveira Edouard
+ * <p>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 675 Mass
+ * Ave, Cambridge, MA 02139, USA.
+ * <p>
+ * See&nbsp; <a href="http://tedorg.free.fr/en/projects.php" target="_parent">Mailster
+ * Web Site</a> <br>
+ * ---
+ * <p>
+ * DeliveryTrace.java - Timestamps the stages a received message goes through,
+ * from the start of the SMTP DATA command to its display in the GUI queue. A
+ * trace is created by a {@link DeliveryTracer} and is visible as soon as the
+ * message starts being received : a message stuck in the pipeline shows the
+ * last stage it reached.
+ * <p>
+ * Each stage is recorded once, by whichever thread reaches it first.
+ *
+ * @author <a href="mailto:doe_wanted@yahoo.fr">Edouard De Oliveira</a>
+ * @version $Revision$, $Date$
+ */
+public class DeliveryTrace
+{
+	/**
+	 * The stages of a delivery, in pipeline order.
+	 */
+	public enum Stage
+	{
+		/** The SMTP DATA command started */
+		RECEIVED("received"), //$NON-NLS-1$
+		/** The message was read and its headers parsed */
+		PARSED("parsed"), //$NON-NLS-1$
+		/** The message was accepted by the event dispatcher */
+		QUEUED("queued"), //$NON-NLS-1$
+		/** A dispatching thread handed the message to the listeners */
+		DISPATCHED("dispatched"), //$NON-NLS-1$
+		/** The message was stored in the mailboxes, visible to POP3 clients */
+		STORED("stored"), //$NON-NLS-1$
+		/** The message was added to the GUI queue */
+		DISPLAYED("displayed"); //$NON-NLS-1$
+
+		private final String label;
+
+		private Stage(String label)
+		{
+			this.label = label;
+		}
+
+		public String getLabel()
+		{
+			return label;
+		}
+	}
+
+	private final static Stage[] STAGES = Stage.values();
+
+	private final DeliveryTracer tracer;
+	private final long startTime;
+	private final long startNanos;
+	private final AtomicLongArray stamps = new AtomicLongArray(STAGES.length);
+	private volatile String messageID;
+
+	protected DeliveryTrace(DeliveryTracer tracer)
+	{
+		this.tracer = tracer;
+		this.startTime = System.currentTimeMillis();
+		this.startNanos = System.nanoTime();
+
+		// Stamps are stored as offsets plus one : 0 means not reached
+		stamps.set(Stage.RECEIVED.ordinal(), 1);
+	}
+
+	/**
+	 * Records that the message reached <code>stage</code>. Does nothing if it
+	 * was already recorded.
+	 */
+	public void mark(Stage stage)
+	{
+		long elapsed = System.nanoTime() - startNanos;
+		if (stamps.compareAndSet(stage.ordinal(), 0, elapsed + 1))
+			tracer.stageReached(this, stage);
+	}
+
+	/**
+	 * Returns the time (in nanoseconds) elapsed between the start of the
+	 * delivery and <code>stage</code>, or -1 if it was not reached.
+	 */
+	public long getElapsed(Stage stage)
+	{
+		return stamps.get(stage.ordinal()) - 1;
+	}
+
+	/**
+	 * Returns the time (in nanoseconds) spent between the previous reached
+	 * stage and <code>stage</code>, or -1 if it was not reached.
+	 */
+	public long getStageDuration(Stage stage)
+	{
+		long elapsed = getElapsed(stage);
+		if (elapsed < 0)
+			return -1;
+
+		for (int i = stage.ordinal() - 1; i >= 0; i--)
+		{
+			long previous = getElapsed(STAGES[i]);
+			if (previous >= 0)
+				return Math.max(0, elapsed - previous);
+		}
+
+		return 0;
+	}
+
+	/**
+	 * Returns the last stage reached by the message.
+	 */
+	public Stage getLastStage()
+	{
+		for (int i = STAGES.length - 1; i > 0; i--)
+		{
+			if (stamps.get(i) != 0)
+				return STAGES[i];
+		}
+
+		return Stage.RECEIVED;
+	}
+
+	/**
+	 * Returns the Message-ID of the message, null until it is parsed.
+	 */
+	public String getMessageID()
+	{
+		return messageID;
+	}
+
+	public void setMessageID(String messageID)
+	{
+		this.messageID = messageID;
+	}
+
+	/**
+	 * Returns the time the delivery started.
+	 */
+	public long getStartTime()
+	{
+		return startTime;
+	}
+
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append(new SimpleDateFormat("HH:mm:ss.SSS").format(new Date(startTime))); //$NON-NLS-1$
+		sb.append(' ').append(messageID == null ? "<unparsed>" : messageID); //$NON-NLS-1$
+
+		for (int i = 1; i < STAGES.length; i++)
+		{
+			long duration = getStageDuration(STAGES[i]);
+			if (duration >= 0)
+				sb.append(' ').append(STAGES[i].getLabel())
+					.append(" +").append(duration / 1000 / 1000.0).append("ms"); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+
+		return sb.toString();
+	}
+}
@@ -0,0 +1,211 @@
+package org.mailster.core.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.mailster.core.metrics.DeliveryTrace.Stage;
+
+/**
+ * ---<br>
+ * Mailster (C) 2007-2009 De Oliveira Edouard
+ * <p>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 675 Mass
+ * Ave, Cambridge, MA 02139, USA.
+ * <p>
+ * See&nbsp; <a href="http://tedorg.free.fr/en/projects.php" target="_parent">Mailster
+ * Web Site</a> <br>
+ * ---
+ * <p>
+ * DeliveryTracer.java - Keeps the {@link DeliveryTrace}s of the recently
+ * received messages in a bounded ring : starting a trace overwrites the
+ * oldest one without any lock.
+ * <p>
+ * The duration of each stage (since the previous reached stage) is also
+ * recorded in a histogram labelled with the stage, so that the percentiles
+ * cover all the deliveries and not only the traces kept.
+ *
+ * @author <a href="mailto:doe_wanted@yahoo.fr">Edouard De Oliveira</a>
+ * @version $Revision$, $Date$
+ */
+public class DeliveryTracer implements DeliveryTracerMBean
+{
+	/**
+	 * The default number of traces kept.
+	 */
+	public final static int DEFAULT_CAPACITY = 1024;
+
+	/**
+	 * The name of the MBean exporting the default tracer.
+	 */
+	public final static String OBJECT_NAME = "org.mailster:type=DeliveryTracer"; //$NON-NLS-1$
+
+	private static DeliveryTracer defaultTracer;
+
+	private final AtomicReferenceArray<DeliveryTrace> traces;
+	private final AtomicLong next = new AtomicLong();
+	private final Histogram[] stageTimes;
+
+	public DeliveryTracer(int capacity, MetricsRegistry registry)
+	{
+		if (capacity < 1)
+			throw new IllegalArgumentException("Capacity must be >= 1");
+
+		traces = new AtomicReferenceArray<DeliveryTrace>(capacity);
+
+		Stage[] stages = Stage.values();
+		stageTimes = new Histogram[stages.length];
+		for (int i = 1; i < stages.length; i++)
+			stageTimes[i] = registry.histogram("mailster_delivery_stage_seconds", //$NON-NLS-1$
+					"Time spent by a received message to reach a stage from the previous one", //$NON-NLS-1$
+					"stage", stages[i].getLabel()); //$NON-NLS-1$
+	}
+
+	/**
+	 * Returns the tracer shared by the server components.
+	 */
+	public static synchronized DeliveryTracer getDefault()
+	{
+		if (defaultTracer == null)
+			defaultTracer = new DeliveryTracer(DEFAULT_CAPACITY, MetricsRegistry.getDefault());
+
+		return defaultTracer;
+	}
+
+	/**
+	 * Starts the trace of a message being received.
+	 */
+	public DeliveryTrace start()
+	{
+		DeliveryTrace trace = new DeliveryTrace(this);
+		traces.set((int) (next.getAndIncrement() % traces.length()), trace);
+
+		return trace;
+	}
+
+	protected void stageReached(DeliveryTrace trace, Stage stage)
+	{
+		Histogram h = stageTimes[stage.ordinal()];
+		if (h != null)
+			h.record(trace.getStageDuration(stage));
+	}
+
+	/**
+	 * Returns the histogram of the durations of a stage.
+	 */
+	public Histogram getStageHistogram(Stage stage)
+	{
+		return stageTimes[stage.ordinal()];
+	}
+
+	/**
+	 * Returns the traces kept, newest first.
+	 */
+	public List<DeliveryTrace> getTraces()
+	{
+		int capacity = traces.length();
+		long last = next.get();
+		List<DeliveryTrace> list = new ArrayList<DeliveryTrace>();
+
+		for (long n = last - 1; n >= 0 && n >= last - capacity; n--)
+		{
+			DeliveryTrace trace = traces.get((int) (n % capacity));
+			if (trace != null)
+				list.add(trace);
+		}
+
+		return list;
+	}
+
+	/**
+	 * Returns the most recent trace of a message, or null if it is not kept
+	 * anymore.
+	 */
+	public DeliveryTrace getTrace(String messageID)
+	{
+		for (DeliveryTrace trace : getTraces())
+		{
+			if (messageID.equals(trace.getMessageID()))
+				return trace;
+		}
+
+		return null;
+	}
+
+	public int getCapacity()
+	{
+		return traces.length();
+	}
+
+	public String[] getRecentTraces()
+	{
+		List<DeliveryTrace> list = getTraces();
+		String[] result = new String[list.size()];
+		for (int i = 0; i < result.length; i++)
+			result[i] = list.get(i).toString();
+
+		return result;
+	}
+
+	public String getSummary()
+	{
+		StringBuilder sb = new StringBuilder();
+		for (Stage stage : Stage.values())
+		{
+			Histogram h = stageTimes[stage.ordinal()];
+			if (h == null || h.getCount() == 0)
+				continue;
+
+			if (sb.length() > 0)
+				sb.append(", "); //$NON-NLS-1$
+			sb.append(stage.getLabel())
+				.append(" p50=").append(toMillis(h.getQuantile(0.5))) //$NON-NLS-1$
+				.append("ms p99=").append(toMillis(h.getQuantile(0.99))) //$NON-NLS-1$
+				.append("ms max=").append(toMillis(h.getMax())).append("ms"); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+
+		return sb.toString();
+	}
+
+	private static double toMillis(long nanos)
+	{
+		return nanos / 1000 / 1000.0;
+	}
+
+	public String findTrace(String messageID)
+	{
+		DeliveryTrace trace = getTrace(messageID);
+		return trace == null ? null : trace.toString();
+	}
+
+	/**
+	 * Registers the tracer in the platform MBean server. Does nothing if it
+	 * is already registered.
+	 *
+	 * @throws JMException if the registration fails
+	 */
+	public void registerMBean() throws JMException
+	{
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(OBJECT_NAME);
+		if (!server.isRegistered(name))
+			server.registerMBean(this, name);
+	}
+}
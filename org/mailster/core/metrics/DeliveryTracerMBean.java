@@ -0,0 +1,53 @@
+package org.mailster.core.metrics;
+
+/**
+ * ---<br>
+ * Mailster (C) 2007-2009 De Oliveira Edouard
+ * <p>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 675 Mass
+ * Ave, Cambridge, MA 02139, USA.
+ * <p>
+ * See&nbsp; <a href="http://tedorg.free.fr/en/projects.php" target="_parent">Mailster
+ * Web Site</a> <br>
+ * ---
+ * <p>
+ * DeliveryTracerMBean.java - The JMX interface of the {@link DeliveryTracer}.
+ *
+ * @author <a href="mailto:doe_wanted@yahoo.fr">Edouard De Oliveira</a>
+ * @version $Revision$, $Date$
+ */
+public interface DeliveryTracerMBean
+{
+	/**
+	 * Returns the maximum number of traces kept.
+	 */
+	public int getCapacity();
+
+	/**
+	 * Returns the recent traces, newest first.
+	 */
+	public String[] getRecentTraces();
+
+	/**
+	 * Returns the median, 99th percentile and maximum durations of each
+	 * stage.
+	 */
+	public String getSummary();
+
+	/**
+	 * Returns the most recent trace of the message with the given
+	 * Message-ID, or null if it is not kept anymore.
+	 */
+	public String findTrace(String messageID);
+}
@@ -1,7 +1,4 @@
-package org.mailster.util;
-
-import java.lang.ref.ReferenceQueue;
-import java.lang.ref.SoftReference;
+package org.mailster.core.metrics;
 
 /**
  * ---<br>
@@ -25,22 +22,28 @@ import java.lang.ref.SoftReference;
  * Web Site</a> <br>
  * ---
  * <p>
- * AbstractReloadableSoftReference.java - Provides a reloadable soft reference
- * for an object.
- * 
+ * Gauge.java - A metric sampling a value when it is read, e.g. the size of a
+ * queue. Subclasses must make {@link #getValue()} cheap and thread safe.
+ *
  * @author <a href="mailto:doe_wanted@yahoo.fr">Edouard De Oliveira</a>
- * @version $Revision: 1.3 $, $Date: 2008/12/06 13:57:17 $
+ * @version $Revision$, $Date$
  */
-public abstract class AbstractReloadableSoftReference<T> extends SoftReference<T>
-{	
-	public AbstractReloadableSoftReference(T referent, ReferenceQueue<? super T> q)
+public abstract class Gauge extends Metric
+{
+	public Gauge(String name, String help)
+	{
+		super(name, help);
+	}
+
+	public Gauge(String name, String help, String labelName, String labelValue)
 	{
-		super(referent, q);
+		super(name, help, labelName, labelValue);
 	}
 
-	public abstract void store(T object);
-	
-	public abstract T reload();
-	
-	public abstract void delete();
-}
\ No newline at end of file
+	public abstract long getValue();
+
+	public String getType()
+	{
+		return "gauge";
+	}
+}
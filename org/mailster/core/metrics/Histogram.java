@@ -0,0 +1,189 @@
+package org.mailster.core.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * ---<br>
+ * Mailster (C) 2007-2009 De Oliveira Edouard
+ * <p>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 675 Mass
+ * Ave, Cambridge, MA 02139, USA.
+ * <p>
+ * See&nbsp; <a href="http://tedorg.free.fr/en/projects.php" target="_parent">Mailster
+ * Web Site</a> <br>
+ * ---
+ * <p>
+ * Histogram.java - A latency histogram with exponential buckets : the bucket
+ * <code>i</code> counts the durations lower than 2^i microseconds, the last
+ * one counts the longer durations. The buckets are striped like a
+ * {@link StripedCounter} so that recording a duration is cheap.
+ * <p>
+ * Quantiles are estimated with the upper bound of their bucket : they are
+ * at most twice the actual value.
+ *
+ * @author <a href="mailto:doe_wanted@yahoo.fr">Edouard De Oliveira</a>
+ * @version $Revision$, $Date$
+ */
+public class Histogram extends Metric
+{
+	/**
+	 * The number of buckets. The last bounded bucket is about 67 seconds.
+	 */
+	public final static int BUCKETS = 28;
+
+	private final static int STRIPES = StripedCounter.getStripeCountValue();
+
+	private final AtomicLongArray buckets = new AtomicLongArray(STRIPES * BUCKETS);
+	private final StripedCounter sum = new StripedCounter();
+	private final AtomicLong max = new AtomicLong();
+
+	public Histogram(String name, String help)
+	{
+		super(name, help);
+	}
+
+	public Histogram(String name, String help, String labelName, String labelValue)
+	{
+		super(name, help, labelName, labelValue);
+	}
+
+	/**
+	 * Returns the bucket of a duration.
+	 */
+	private static int getBucket(long nanos)
+	{
+		long micros = nanos / 1000;
+		int bucket = 64 - Long.numberOfLeadingZeros(micros);
+		return bucket < BUCKETS ? bucket : BUCKETS - 1;
+	}
+
+	/**
+	 * Returns the upper bound (in nanoseconds) of a bucket, 
+	 * <code>Long.MAX_VALUE</code> for the last one.
+	 */
+	public static long getUpperBound(int bucket)
+	{
+		return bucket < BUCKETS - 1 ? (1L << bucket) * 1000 : Long.MAX_VALUE;
+	}
+
+	/**
+	 * Records a duration.
+	 *
+	 * @param nanos the duration in nanoseconds
+	 */
+	public void record(long nanos)
+	{
+		if (nanos < 0)
+			nanos = 0;
+
+		buckets.incrementAndGet(StripedCounter.getStripe() * BUCKETS + getBucket(nanos));
+		sum.add(nanos);
+
+		long m = max.get();
+		while (nanos > m && !max.compareAndSet(m, nanos))
+			m = max.get();
+	}
+
+	/**
+	 * Records the time elapsed since <code>start</code>.
+	 *
+	 * @param start a value returned by <code>System.nanoTime()</code>
+	 */
+	public void recordSince(long start)
+	{
+		record(System.nanoTime() - start);
+	}
+
+	/**
+	 * Returns the number of durations recorded in each bucket.
+	 */
+	public long[] getBucketCounts()
+	{
+		long[] counts = new long[BUCKETS];
+		for (int s = 0; s < STRIPES; s++)
+		{
+			for (int i = 0; i < BUCKETS; i++)
+				counts[i] += buckets.get(s * BUCKETS + i);
+		}
+
+		return counts;
+	}
+
+	public long getCount()
+	{
+		long count = 0;
+		for (int i = 0; i < buckets.length(); i++)
+			count += buckets.get(i);
+
+		return count;
+	}
+
+	/**
+	 * Returns the sum (in nanoseconds) of the recorded durations.
+	 */
+	public long getSum()
+	{
+		return sum.sum();
+	}
+
+	/**
+	 * Returns the longest duration (in nanoseconds).
+	 */
+	public long getMax()
+	{
+		return max.get();
+	}
+
+	/**
+	 * Returns the mean duration (in nanoseconds).
+	 */
+	public long getMean()
+	{
+		long count = getCount();
+		return count == 0 ? 0 : getSum() / count;
+	}
+
+	/**
+	 * Returns an estimation (in nanoseconds) of a quantile.
+	 *
+	 * @param q the quantile, between 0 and 1
+	 */
+	public long getQuantile(double q)
+	{
+		long[] counts = getBucketCounts();
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++)
+			total += counts[i];
+
+		if (total == 0)
+			return 0;
+
+		long rank = (long) Math.ceil(q * total);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			seen += counts[i];
+			if (seen >= rank && seen > 0)
+				return Math.min(getUpperBound(i), getMax());
+		}
+
+		return getMax();
+	}
+
+	public String getType()
+	{
+		return "histogram";
+	}
+}
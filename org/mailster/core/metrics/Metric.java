@@ -0,0 +1,100 @@
+package org.mailster.core.metrics;
+
+/**
+ * ---<br>
+ * Mailster (C) 2007-2009 De Oliveira Edouard
+ * <p>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 675 Mass
+ * Ave, Cambridge, MA 02139, USA.
+ * <p>
+ * See&nbsp; <a href="http://tedorg.free.fr/en/projects.php" target="_parent">Mailster
+ * Web Site</a> <br>
+ * ---
+ * <p>
+ * Metric.java - The base class of the metrics of a {@link MetricsRegistry}. A metric
+ * is identified by its name and an optional label.
+ *
+ * @author <a href="mailto:doe_wanted@yahoo.fr">Edouard De Oliveira</a>
+ * @version $Revision$, $Date$
+ */
+public abstract class Metric
+{
+	private final String name;
+	private final String help;
+	private final String labelName;
+	private final String labelValue;
+
+	protected Metric(String name, String help)
+	{
+		this(name, help, null, null);
+	}
+
+	protected Metric(String name, String help, String labelName, String labelValue)
+	{
+		if (name == null || (labelName == null) != (labelValue == null))
+			throw new IllegalArgumentException("Invalid metric name or label");
+
+		this.name = name;
+		this.help = help;
+		this.labelName = labelName;
+		this.labelValue = labelValue;
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	public String getHelp()
+	{
+		return help;
+	}
+
+	public String getLabelName()
+	{
+		return labelName;
+	}
+
+	public String getLabelValue()
+	{
+		return labelValue;
+	}
+
+	/**
+	 * Returns the key of the metric in its registry, i.e. its name followed
+	 * by its label in the Prometheus syntax.
+	 */
+	public String getKey()
+	{
+		return getKey(name, labelName, labelValue);
+	}
+
+	protected static String getKey(String name, String labelName, String labelValue)
+	{
+		if (labelName == null)
+			return name;
+
+		return name + '{' + labelName + "=\"" + labelValue + "\"}";
+	}
+
+	/**
+	 * Returns the Prometheus type of the metric.
+	 */
+	public abstract String getType();
+
+	public String toString()
+	{
+		return getKey();
+	}
+}
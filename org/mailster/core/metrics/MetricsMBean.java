@@ -0,0 +1,177 @@
+package org.mailster.core.metrics;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.ReflectionException;
+
+/**
+ * ---<br>
+ * Mailster (C) 2007-2009 De Oliveira Edouard
+ * <p>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 675 Mass
+ * Ave, Cambridge, MA 02139, USA.
+ * <p>
+ * See&nbsp; <a href="http://tedorg.free.fr/en/projects.php" target="_parent">Mailster
+ * Web Site</a> <br>
+ * ---
+ * <p>
+ * MetricsMBean.java - Exports a {@link MetricsRegistry} over JMX. Each counter and
+ * gauge is a read-only attribute named after its key. Each histogram is
+ * exported as its count and its mean, median, 99th percentile and maximum
+ * durations in milliseconds. The attributes follow the metrics registered
+ * after the MBean.
+ *
+ * @author <a href="mailto:doe_wanted@yahoo.fr">Edouard De Oliveira</a>
+ * @version $Revision$, $Date$
+ */
+public class MetricsMBean implements DynamicMBean
+{
+	private final static String[] HISTOGRAM_SUFFIXES = {
+		".count", ".meanMillis", ".p50Millis", ".p99Millis", ".maxMillis" //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$
+	};
+
+	private final static String DUMP_OPERATION = "dumpPrometheus"; //$NON-NLS-1$
+
+	private MetricsRegistry registry;
+
+	public MetricsMBean(MetricsRegistry registry)
+	{
+		this.registry = registry;
+	}
+
+	public Object getAttribute(String attribute) throws AttributeNotFoundException,
+			MBeanException, ReflectionException
+	{
+		Metric m = registry.getMetric(attribute);
+		if (m instanceof Counter)
+			return new Long(((Counter) m).getValue());
+		if (m instanceof Gauge)
+			return new Long(((Gauge) m).getValue());
+
+		for (int i = 0; i < HISTOGRAM_SUFFIXES.length; i++)
+		{
+			String suffix = HISTOGRAM_SUFFIXES[i];
+			if (!attribute.endsWith(suffix))
+				continue;
+
+			m = registry.getMetric(attribute.substring(0, attribute.length() - suffix.length()));
+			if (m instanceof Histogram)
+			{
+				Histogram h = (Histogram) m;
+				switch (i)
+				{
+					case 0 : return new Long(h.getCount());
+					case 1 : return toMillis(h.getMean());
+					case 2 : return toMillis(h.getQuantile(0.5));
+					case 3 : return toMillis(h.getQuantile(0.99));
+					default : return toMillis(h.getMax());
+				}
+			}
+		}
+
+		throw new AttributeNotFoundException(attribute);
+	}
+
+	private static Double toMillis(long nanos)
+	{
+		return new Double(nanos / 1e6);
+	}
+
+	public AttributeList getAttributes(String[] attributes)
+	{
+		AttributeList list = new AttributeList();
+		for (String name : attributes)
+		{
+			try
+			{
+				list.add(new Attribute(name, getAttribute(name)));
+			}
+			catch (Exception e)
+			{
+				// Unknown attributes are omitted
+			}
+		}
+
+		return list;
+	}
+
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException
+	{
+		throw new AttributeNotFoundException("Metrics are read-only");
+	}
+
+	public AttributeList setAttributes(AttributeList attributes)
+	{
+		return new AttributeList();
+	}
+
+	public Object invoke(String actionName, Object[] params, String[] signature)
+			throws MBeanException, ReflectionException
+	{
+		if (!DUMP_OPERATION.equals(actionName))
+			throw new ReflectionException(new NoSuchMethodException(actionName));
+
+		StringWriter out = new StringWriter();
+		try
+		{
+			registry.writePrometheus(out);
+		}
+		catch (IOException e)
+		{
+			throw new MBeanException(e);
+		}
+
+		return out.toString();
+	}
+
+	public MBeanInfo getMBeanInfo()
+	{
+		List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+		for (Metric m : registry.getMetrics())
+		{
+			if (m instanceof Histogram)
+			{
+				for (int i = 0; i < HISTOGRAM_SUFFIXES.length; i++)
+				{
+					attributes.add(new MBeanAttributeInfo(m.getKey() + HISTOGRAM_SUFFIXES[i], 
+							i == 0 ? Long.class.getName() : Double.class.getName(), 
+							m.getHelp(), true, false, false));
+				}
+			}
+			else
+				attributes.add(new MBeanAttributeInfo(m.getKey(), Long.class.getName(),
+						m.getHelp(), true, false, false));
+		}
+
+		MBeanOperationInfo dump = new MBeanOperationInfo(DUMP_OPERATION,
+				"Returns the metrics in the Prometheus text format",
+				new MBeanParameterInfo[0], String.class.getName(), MBeanOperationInfo.INFO);
+
+		return new MBeanInfo(getClass().getName(), "Mailster metrics",
+				attributes.toArray(new MBeanAttributeInfo[attributes.size()]),
+				null, new MBeanOperationInfo[] {dump}, null);
+	}
+}
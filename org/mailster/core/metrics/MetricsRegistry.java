@@ -0,0 +1,237 @@
+package org.mailster.core.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * ---<br>
+ * Mailster (C) 2007-2009 De Oliveira Edouard
+ * <p>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 675 Mass
+ * Ave, Cambridge, MA 02139, USA.
+ * <p>
+ * See&nbsp; <a href="http://tedorg.free.fr/en/projects.php" target="_parent">Mailster
+ * Web Site</a> <br>
+ * ---
+ * <p>
+ * MetricsRegistry.java - Holds the metrics of the server. Instrumented classes get their
+ * metrics once and keep them in static fields : updating a metric never
+ * involves the registry.
+ * <p>
+ * The metrics are exported over JMX by a {@link MetricsMBean} and can be
+ * dumped in the Prometheus text format.
+ *
+ * @author <a href="mailto:doe_wanted@yahoo.fr">Edouard De Oliveira</a>
+ * @version $Revision$, $Date$
+ */
+public class MetricsRegistry
+{
+	/**
+	 * The name of the MBean exporting the default registry.
+	 */
+	public final static String OBJECT_NAME = "org.mailster:type=Metrics"; //$NON-NLS-1$
+
+	private static MetricsRegistry defaultRegistry;
+
+	private ConcurrentMap<String, Metric> metrics = new ConcurrentHashMap<String, Metric>();
+
+	/**
+	 * Returns the registry shared by the server components.
+	 */
+	public static synchronized MetricsRegistry getDefault()
+	{
+		if (defaultRegistry == null)
+			defaultRegistry = new MetricsRegistry();
+
+		return defaultRegistry;
+	}
+
+	/**
+	 * Returns the counter with the given name, creating it if needed.
+	 */
+	public Counter counter(String name, String help)
+	{
+		return counter(name, help, null, null);
+	}
+
+	public Counter counter(String name, String help, String labelName, String labelValue)
+	{
+		Metric m = metrics.get(Metric.getKey(name, labelName, labelValue));
+		if (m == null)
+			m = putIfAbsent(new Counter(name, help, labelName, labelValue));
+
+		return (Counter) m;
+	}
+
+	/**
+	 * Returns the histogram with the given name, creating it if needed.
+	 */
+	public Histogram histogram(String name, String help)
+	{
+		return histogram(name, help, null, null);
+	}
+
+	public Histogram histogram(String name, String help, String labelName, String labelValue)
+	{
+		Metric m = metrics.get(Metric.getKey(name, labelName, labelValue));
+		if (m == null)
+			m = putIfAbsent(new Histogram(name, help, labelName, labelValue));
+
+		return (Histogram) m;
+	}
+
+	private Metric putIfAbsent(Metric metric)
+	{
+		Metric m = metrics.putIfAbsent(metric.getKey(), metric);
+		return m == null ? metric : m;
+	}
+
+	/**
+	 * Registers a gauge, replacing the one with the same key if any : the
+	 * last registered object is sampled.
+	 */
+	public void register(Gauge gauge)
+	{
+		metrics.put(gauge.getKey(), gauge);
+	}
+
+	public void unregister(Metric metric)
+	{
+		metrics.remove(metric.getKey(), metric);
+	}
+
+	public Metric getMetric(String key)
+	{
+		return metrics.get(key);
+	}
+
+	/**
+	 * Returns the metrics sorted by key.
+	 */
+	public List<Metric> getMetrics()
+	{
+		List<Metric> list = new ArrayList<Metric>(metrics.values());
+		Collections.sort(list, new Comparator<Metric>() {
+			public int compare(Metric m1, Metric m2)
+			{
+				return m1.getKey().compareTo(m2.getKey());
+			}
+		});
+
+		return list;
+	}
+
+	/**
+	 * Writes the metrics in the Prometheus text exposition format. Durations
+	 * are written in seconds.
+	 */
+	public void writePrometheus(Writer out) throws IOException
+	{
+		String lastName = null;
+		for (Metric m : getMetrics())
+		{
+			if (!m.getName().equals(lastName))
+			{
+				lastName = m.getName();
+				if (m.getHelp() != null)
+					out.write("# HELP " + lastName + ' ' + m.getHelp() + '\n');
+				out.write("# TYPE " + lastName + ' ' + m.getType() + '\n');
+			}
+
+			if (m instanceof Counter)
+				writeSample(out, m, "", null, Long.toString(((Counter) m).getValue()));
+			else if (m instanceof Gauge)
+				writeSample(out, m, "", null, Long.toString(((Gauge) m).getValue()));
+			else if (m instanceof Histogram)
+				writeHistogram(out, (Histogram) m);
+		}
+		out.flush();
+	}
+
+	private static void writeHistogram(Writer out, Histogram h) throws IOException
+	{
+		long[] counts = h.getBucketCounts();
+		long cumulated = 0;
+		for (int i = 0; i < counts.length; i++)
+		{
+			cumulated += counts[i];
+			long bound = Histogram.getUpperBound(i);
+			String le = bound == Long.MAX_VALUE ? "+Inf" : toSeconds(bound);
+			writeSample(out, h, "_bucket", le, Long.toString(cumulated));
+		}
+		writeSample(out, h, "_sum", null, toSeconds(h.getSum()));
+		writeSample(out, h, "_count", null, Long.toString(cumulated));
+	}
+
+	private static void writeSample(Writer out, Metric m, String suffix, String le, String value)
+		throws IOException
+	{
+		out.write(m.getName());
+		out.write(suffix);
+		if (m.getLabelName() != null || le != null)
+		{
+			out.write('{');
+			if (m.getLabelName() != null)
+			{
+				out.write(m.getLabelName() + "=\"" + m.getLabelValue() + '"');
+				if (le != null)
+					out.write(',');
+			}
+			if (le != null)
+				out.write("le=\"" + le + '"');
+			out.write('}');
+		}
+		out.write(' ');
+		out.write(value);
+		out.write('\n');
+	}
+
+	private static String toSeconds(long nanos)
+	{
+		return Double.toString(nanos / 1e9);
+	}
+
+	/**
+	 * Registers the MBean exporting the registry in the platform MBean
+	 * server. Does nothing if it is already registered.
+	 *
+	 * @throws JMException if the registration fails
+	 */
+	public void registerMBean() throws JMException
+	{
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(OBJECT_NAME);
+		if (!server.isRegistered(name))
+			server.registerMBean(new MetricsMBean(this), name);
+	}
+
+	/**
+	 * Returns the number of metrics.
+	 */
+	public int size()
+	{
+		return metrics.size();
+	}
+}
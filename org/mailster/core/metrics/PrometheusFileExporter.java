@@ -0,0 +1,139 @@
+package org.mailster.core.metrics;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.mailster.util.ThreadFactoryUtilities;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ---<br>
+ * Mailster (C) 2007-2009 De Oliveira Edouard
+ * <p>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 675 Mass
+ * Ave, Cambridge, MA 02139, USA.
+ * <p>
+ * See&nbsp; <a href="http://tedorg.free.fr/en/projects.php" target="_parent">Mailster
+ * Web Site</a> <br>
+ * ---
+ * <p>
+ * PrometheusFileExporter.java - Periodically writes the metrics of a registry
+ * to a file in the Prometheus text format, e.g. for the textfile collector of
+ * a node exporter. The file is written aside then renamed so that readers
+ * never see a partial dump.
+ *
+ * @author <a href="mailto:doe_wanted@yahoo.fr">Edouard De Oliveira</a>
+ * @version $Revision$, $Date$
+ */
+public class PrometheusFileExporter
+{
+	private static final Logger LOG = LoggerFactory.getLogger(PrometheusFileExporter.class);
+
+	/**
+	 * The default period (in seconds) between two dumps.
+	 */
+	public final static int DEFAULT_PERIOD = 15;
+
+	private MetricsRegistry registry;
+	private File file;
+	private ScheduledExecutorService executor;
+
+	public PrometheusFileExporter(MetricsRegistry registry, File file)
+	{
+		this.registry = registry;
+		this.file = file;
+	}
+
+	/**
+	 * Starts dumping the metrics every <code>period</code> seconds.
+	 */
+	public synchronized void start(int period)
+	{
+		if (executor != null)
+			return;
+
+		executor = Executors.newSingleThreadScheduledExecutor(
+				ThreadFactoryUtilities.createFactory("Metrics Exporter"));
+		executor.scheduleWithFixedDelay(new Runnable() {
+			public void run()
+			{
+				try
+				{
+					export();
+				}
+				catch (IOException e)
+				{
+					LOG.error("Failed to write metrics to " + file, e);
+				}
+			}
+		}, 0, Math.max(1, period), TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Stops the periodic dumps. The metrics are written a last time.
+	 */
+	public void stop()
+	{
+		synchronized (this)
+		{
+			if (executor == null)
+				return;
+
+			executor.shutdownNow();
+			executor = null;
+		}
+
+		try
+		{
+			export();
+		}
+		catch (IOException e)
+		{
+			LOG.error("Failed to write metrics to " + file, e);
+		}
+	}
+
+	/**
+	 * Writes the metrics to the file.
+	 */
+	public synchronized void export() throws IOException
+	{
+		File tmp = new File(file.getPath() + ".tmp");
+		Writer out = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+		try
+		{
+			registry.writePrometheus(out);
+		}
+		finally
+		{
+			out.close();
+		}
+
+		// Renaming over an existing file fails on some platforms
+		if (!tmp.renameTo(file) && (!file.delete() || !tmp.renameTo(file)))
+			throw new IOException("Unable to rename " + tmp + " to " + file);
+	}
+
+	public File getFile()
+	{
+		return file;
+	}
+}
@@ -0,0 +1,116 @@
+package org.mailster.core.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * ---<br>
+ * Mailster (C) 2007-2009 De Oliveira Edouard
+ * <p>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 675 Mass
+ * Ave, Cambridge, MA 02139, USA.
+ * <p>
+ * See&nbsp; <a href="http://tedorg.free.fr/en/projects.php" target="_parent">Mailster
+ * Web Site</a> <br>
+ * ---
+ * <p>
+ * StripedCounter.java - A counter spreading its updates over several cells to avoid the
+ * contention of a single atomic variable : each thread updates the cell
+ * selected by its id, the value is the sum of the cells. Cells are padded
+ * so that they don't share a cache line.
+ * <p>
+ * Updates are wait free and almost never contended, reading the value is
+ * more expensive and not atomic with respect to concurrent updates.
+ *
+ * @author <a href="mailto:doe_wanted@yahoo.fr">Edouard De Oliveira</a>
+ * @version $Revision$, $Date$
+ */
+public class StripedCounter
+{
+	/**
+	 * The distance (in longs) between two cells : a cache line is 64 bytes
+	 * on most processors.
+	 */
+	private final static int PADDING = 8;
+
+	private final static int STRIPES = getStripeCount();
+
+	private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+	/**
+	 * Returns the lowest power of two not lower than twice the number of
+	 * processors.
+	 */
+	private static int getStripeCount()
+	{
+		int n = 1;
+		while (n < 2 * Runtime.getRuntime().availableProcessors())
+			n <<= 1;
+
+		return n;
+	}
+
+	/**
+	 * Returns the stripe used by the calling thread.
+	 */
+	protected static int getStripe()
+	{
+		long id = Thread.currentThread().getId();
+		int h = (int) (id ^ (id >>> 32));
+
+		// Spreads the sequential thread ids
+		h ^= (h >>> 16);
+		h *= 0x85ebca6b;
+		h ^= (h >>> 13);
+
+		return h & (STRIPES - 1);
+	}
+
+	protected static int getStripeCountValue()
+	{
+		return STRIPES;
+	}
+
+	public void increment()
+	{
+		add(1);
+	}
+
+	public void add(long delta)
+	{
+		cells.addAndGet(getStripe() * PADDING, delta);
+	}
+
+	/**
+	 * Returns the sum of the cells.
+	 */
+	public long sum()
+	{
+		long sum = 0;
+		for (int i = 0; i < STRIPES; i++)
+			sum += cells.get(i * PADDING);
+
+		return sum;
+	}
+
+	public void reset()
+	{
+		for (int i = 0; i < STRIPES; i++)
+			cells.set(i * PADDING, 0);
+	}
+
+	public String toString()
+	{
+		return Long.toString(sum());
+	}
+}
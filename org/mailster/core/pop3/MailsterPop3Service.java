@@ -1,10 +1,17 @@
 package org.mailster.core.pop3;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.mina.core.buffer.IoBuffer;
 import org.apache.mina.core.filterchain.DefaultIoFilterChainBuilder;
@@ -17,12 +24,19 @@ import org.apache.mina.transport.socket.SocketAcceptor;
 import org.apache.mina.transport.socket.SocketSessionConfig;
 import org.apache.mina.transport.socket.nio.NioSocketAcceptor;
 import org.mailster.core.mail.SmtpMessage;
-import org.mailster.core.pop3.mailbox.MailBox;
-import org.mailster.core.pop3.mailbox.Pop3User;
+import org.mailster.core.metrics.Counter;
+import org.mailster.core.metrics.DeliveryTrace;
+import org.mailster.core.metrics.Gauge;
+import org.mailster.core.metrics.Histogram;
+import org.mailster.core.metrics.MetricsRegistry;
+import org.mailster.core.pop3.mailbox.MailBoxManager;
+import org.mailster.core.pop3.mailbox.MessageBlob;
+import org.mailster.core.pop3.mailbox.MessageBlobStore;
+import org.mailster.core.pop3.mailbox.MessageCache;
 import org.mailster.core.pop3.mailbox.StoredSmtpMessage;
 import org.mailster.core.pop3.mailbox.UserManager;
 import org.mailster.core.smtp.MailsterConstants;
-import org.mailster.gui.prefs.ConfigurationManager;
+import org.mailster.core.spool.MessageSpool;
 import org.mailster.util.StringUtilities;
 import org.mailster.util.ThreadFactoryUtilities;
 import org.slf4j.Logger;
@@ -62,19 +76,57 @@ public class MailsterPop3Service
      */
     public static final int POP3_PORT = 110;
     
+    /**
+     * The default time (in seconds) after which an empty mailbox which is 
+     * not accessed is evicted.
+     */
+    public static final int DEFAULT_MAILBOX_IDLE_TIMEOUT = 600;
+    
+    /**
+     * The period (in seconds) of the retention policies enforcement.
+     */
+    public static final int RETENTION_CHECK_PERIOD = 5;
+    
+    /**
+     * The maximum number of messages expired in one pass. Passes are 
+     * repeated until the policies are met.
+     */
+    private static final int EXPIRY_BATCH_SIZE = 500;
+    
+    /**
+     * The maximum number of spool segments compacted in one pass.
+     */
+    private static final int COMPACTION_BATCH_SIZE = 4;
+    
+    /**
+     * The default directory of the persistent store.
+     */
+    public static final String DEFAULT_STORE_DIRECTORY = 
+    	MailsterConstants.USER_DIR + File.separator + "store"; //$NON-NLS-1$
+    
     private static final Logger LOG = 
     	LoggerFactory.getLogger(MailsterPop3Service.class);
     
     private SocketAcceptor acceptor;
     private ExecutorService executor;
+    private ScheduledExecutorService maintenance;
+    private ScheduledFuture<?> eviction;
     private InetSocketAddress iSocketAddr;
     private SocketSessionConfig config;
     private Pop3ProtocolHandler handler;
     
     private UserManager userManager = new UserManager();    
 
+    private final static Histogram DELIVERY_TIME = MetricsRegistry.getDefault().histogram(
+    		"mailster_pop3_delivery_seconds", "Time spent storing a message in the mailboxes");
+    private final static Counter EXPIRED = MetricsRegistry.getDefault().counter(
+    		"mailster_pop3_messages_expired_total", "Messages removed by the retention policies");
+    private final static Counter EVICTED = MetricsRegistry.getDefault().counter(
+    		"mailster_pop3_mailboxes_evicted_total", "Idle mailboxes evicted");
+
     private String host;
     private int port = POP3_PORT;
+    private volatile int mailBoxIdleTimeout = DEFAULT_MAILBOX_IDLE_TIMEOUT;
     
     private boolean debugEnabled;
     
@@ -104,6 +156,50 @@ public class MailsterPop3Service
 		chain.addLast("threadPool", new ExecutorFilter(executor));
 		
         handler = new Pop3ProtocolHandler(userManager);
+        registerGauges();
+        
+        // Messages are stored even if the POP3 listener is never started
+        startMaintenance();
+    }
+    
+    private void registerGauges()
+    {
+    	MetricsRegistry registry = MetricsRegistry.getDefault();
+    	final MailBoxManager manager = userManager.getMailBoxManager();
+    	
+    	registry.register(new Gauge("mailster_pop3_mailboxes", "Mailboxes in memory") {
+			public long getValue()
+			{
+				return manager.getMailBoxCount();
+			}
+		});
+    	registry.register(new Gauge("mailster_pop3_catchall_messages", 
+    			"Messages in the special account mailbox") {
+			public long getValue()
+			{
+				return manager.getSpecialAccountMailBox().getMessageCount();
+			}
+		});
+    	registry.register(new Gauge("mailster_pop3_catchall_bytes", 
+    			"Size of the messages in the special account mailbox") {
+			public long getValue()
+			{
+				return manager.getSpecialAccountMailBox().getMailBoxByteSize();
+			}
+		});
+    	registry.register(new Gauge("mailster_pop3_active_sessions", "Connected POP3 sessions") {
+			public long getValue()
+			{
+				return acceptor.getManagedSessionCount();
+			}
+		});
+    	registry.register(new Gauge("mailster_pop3_executor_active_threads", 
+    			"POP3 threads executing a command") {
+			public long getValue()
+			{
+				return ((ThreadPoolExecutor) executor).getActiveCount();
+			}
+		});
     }
     
     public void startService(boolean debug) throws IOException
@@ -120,12 +216,113 @@ public class MailsterPop3Service
         
 		acceptor.setHandler(handler);
         acceptor.bind(iSocketAddr);        
+        
+        // Restarted after a shutdown
+        startMaintenance();
     }
     
-    public String getOutputDirectory()
+    /**
+     * Periodically evicts the empty mailboxes which were not accessed for 
+     * the idle timeout and enforces the retention policies. It runs from the
+     * creation of the service until {@link #closeStore()}, whether the POP3 
+     * listener is started or not. Calling this method while the maintenance
+     * is running has no effect.
+     */
+    public synchronized void startMaintenance()
     {
-        return ConfigurationManager.CONFIG_STORE.
-            getString(ConfigurationManager.DEFAULT_ENCLOSURES_DIRECTORY_KEY);
+    	if (maintenance != null)
+    		return;
+    	
+    	maintenance = Executors.newSingleThreadScheduledExecutor(
+    			ThreadFactoryUtilities.createFactory("POP3 Mailbox Maintenance", true));
+    	
+    	maintenance.scheduleWithFixedDelay(new Runnable() {
+			public void run()
+			{
+				try
+				{
+					expireMessages();
+				}
+				catch (Exception e)
+				{
+					LOG.error("Message expiry failed", e);
+				}
+			}
+		}, RETENTION_CHECK_PERIOD, RETENTION_CHECK_PERIOD, TimeUnit.SECONDS);
+    	
+    	scheduleEviction();
+    }
+    
+    private void scheduleEviction()
+    {
+    	if (eviction != null)
+    		eviction.cancel(false);
+    	
+    	// Checks several times per timeout period
+    	long period = Math.max(1, mailBoxIdleTimeout / 4);
+    	eviction = maintenance.scheduleWithFixedDelay(new Runnable() {
+			public void run()
+			{
+				try
+				{
+					int count = userManager.evictIdleMailBoxes(mailBoxIdleTimeout * 1000L);
+					if (count > 0)
+					{
+						EVICTED.add(count);
+						LOG.debug("{} idle mailboxes evicted", count);
+					}
+				}
+				catch (Exception e)
+				{
+					LOG.error("Mailbox eviction failed", e);
+				}
+			}
+		}, period, period, TimeUnit.SECONDS);
+    }
+    
+    /**
+     * Stops the maintenance started with the service.
+     */
+    public synchronized void stopMaintenance()
+    {
+    	if (maintenance != null)
+    	{
+    		maintenance.shutdownNow();
+    		maintenance = null;
+    		eviction = null;
+    	}
+    }
+    
+    /**
+     * Expires the messages exceeding the retention policies by batches, then
+     * compacts the spool segments they leave sparse.
+     */
+    private void expireMessages() throws IOException
+    {
+    	// Nothing stored yet : the store may still be replaced by a persistent one
+    	MessageBlobStore store = MessageBlobStore.peekDefault();
+    	if (store == null)
+    		return;
+    	
+    	MailBoxManager manager = userManager.getMailBoxManager();
+    	int total = 0;
+    	int count;
+    	do
+    	{
+    		count = manager.expireMessages(EXPIRY_BATCH_SIZE);
+    		total += count;
+    		
+    		// Lets the deliveries and sessions run between batches
+    		Thread.yield();
+    	} while (count == EXPIRY_BATCH_SIZE);
+    	EXPIRED.add(total);
+    	
+    	int released = store.getSpool().compact(
+    			MessageSpool.DEFAULT_COMPACTION_RATIO, COMPACTION_BATCH_SIZE);
+    	
+    	if (total > 0 || released > 0)
+    		LOG.debug("{} messages expired, {} spool segments compacted", 
+    				new Integer(total), new Integer(released));
     }
     
     public void setUsingAPOPAuthMethod(boolean usingAPOPAuthMethod)
@@ -168,6 +365,45 @@ public class MailsterPop3Service
         }
     }
 
+    /**
+     * Opens the persistent store of <code>directory</code> and restores the
+     * mailboxes it holds. It must be called before any message is stored.
+     * 
+     * @return the restored messages of the special account mailbox
+     * @throws IOException if the store can't be opened
+     */
+    public List<StoredSmtpMessage> openPersistentStore(File directory) throws IOException
+    {
+        MessageBlobStore store = MessageBlobStore.open(directory, MessageCache.getDefault());
+        MessageBlobStore.setDefault(store);
+        
+        MailBoxManager manager = userManager.getMailBoxManager();
+        List<StoredSmtpMessage> restored = new ArrayList<StoredSmtpMessage>();
+        for (StoredSmtpMessage stored : store.restore(manager))
+        {
+            if (stored.getMailBox() == manager.getSpecialAccountMailBox())
+                restored.add(stored);
+        }
+        
+        return restored;
+    }
+    
+    /**
+     * Flushes the store of the mailboxes to disk, if persistent.
+     */
+    public void closeStore()
+    {
+        stopMaintenance();
+        try
+        {
+            MessageBlobStore.getDefault().close();
+        }
+        catch (IOException e)
+        {
+            LOG.error("Unable to close the message store", e);
+        }
+    }
+    
     public void removeAllMessages()
     {
     	userManager.getMailBoxManager().removeAllMessages();
@@ -178,22 +414,72 @@ public class MailsterPop3Service
     	userManager.getMailBoxManager().removeMessage(msg);
     }
     
+    /**
+     * Stores the message in the mailboxes of its recipients and in the 
+     * special account mailbox. Mailboxes are never locked by deliveries so
+     * this call does not wait for the POP3 sessions.
+     */
     public StoredSmtpMessage storeMessage(SmtpMessage msg)
     {
-        for (String recipient : msg.getRecipients())
+        long start = System.nanoTime();
+        
+        // The message is spooled once, each mailbox only references it
+        MessageBlob blob = MessageBlobStore.getDefault().acquire(msg);
+        StoredSmtpMessage stored;
+        try
+        {
+	        MailBoxManager manager = userManager.getMailBoxManager();
+	        for (String recipient : msg.getRecipients())
+	        {
+	            int pos = recipient.indexOf('<');
+	        	if ( pos > -1)
+	        		recipient = recipient.substring(pos + 1, recipient.indexOf('>'));
+	        	
+	            LOG.debug("Storing new message in mailbox of recipient <{}>", recipient);
+	            manager.storeMessage(recipient, blob);
+	        }
+	        
+	        stored = manager.addMessageToSpecialAccount(blob);
+        }
+        finally
         {
-            int pos = recipient.indexOf('<');
-        	if ( pos > -1)
-        		recipient = recipient.substring(pos + 1, recipient.indexOf('>'));
-        	
-            LOG.debug("Storing new message in mailbox of recipient <{}>", recipient);
-            Pop3User user = userManager.getUserByEmail(recipient);
-            MailBox mbox = userManager.getMailBoxManager().getMailBoxByUser(user);
-            if (mbox != null)
-            	mbox.storeMessage(msg);
+        	blob.release();
         }
         
-        return userManager.getMailBoxManager().addMessageToSpecialAccount(msg);
+        long elapsed = System.nanoTime() - start;
+        DELIVERY_TIME.record(elapsed);
+        LOG.debug("Message delivered in {} us", elapsed / 1000);
+        
+        if (msg.getTrace() != null)
+        	msg.getTrace().mark(DeliveryTrace.Stage.STORED);
+        
+        return stored;
+    }
+    
+    /**
+     * Returns the number of messages delivered to the mailboxes.
+     */
+    public long getDeliveredCount()
+    {
+        return DELIVERY_TIME.getCount();
+    }
+    
+    /**
+     * Returns the average time (in microseconds) spent storing a message 
+     * in the mailboxes.
+     */
+    public long getAverageDeliveryLatency()
+    {
+        return DELIVERY_TIME.getMean() / 1000;
+    }
+    
+    /**
+     * Returns the longest time (in microseconds) spent storing a message 
+     * in the mailboxes.
+     */
+    public long getMaxDeliveryLatency()
+    {
+        return DELIVERY_TIME.getMax() / 1000;
     }
 
     public UserManager getUserManager()
@@ -201,6 +487,25 @@ public class MailsterPop3Service
         return userManager;
     }
 
+    /**
+     * Sets the time (in seconds) after which an empty mailbox which is not 
+     * accessed is evicted.
+     */
+    public synchronized void setMailBoxIdleTimeout(int mailBoxIdleTimeout)
+    {
+    	if (mailBoxIdleTimeout < 1)
+    		throw new IllegalArgumentException("Idle timeout must be >= 1");
+    	
+        this.mailBoxIdleTimeout = mailBoxIdleTimeout;
+        if (maintenance != null)
+        	scheduleEviction();
+    }
+
+    public int getMailBoxIdleTimeout()
+    {
+        return mailBoxIdleTimeout;
+    }
+
     public void setPort(int port)
     {
         this.port = port;
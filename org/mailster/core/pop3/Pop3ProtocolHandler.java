@@ -1,6 +1,8 @@
 package org.mailster.core.pop3;
 
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.mina.core.service.IoHandlerAdapter;
 import org.apache.mina.core.session.IdleStatus;
@@ -8,11 +10,15 @@ import org.apache.mina.core.session.IoSession;
 import org.apache.mina.filter.ssl.SslFilter;
 import org.apache.mina.filter.ssl.SslFilter.SslFilterMessage;
 import org.apache.mina.transport.socket.SocketSessionConfig;
+import org.mailster.core.metrics.Counter;
+import org.mailster.core.metrics.Histogram;
+import org.mailster.core.metrics.MetricsRegistry;
 import org.mailster.core.pop3.commands.ApopCommand;
 import org.mailster.core.pop3.commands.MultiStatePop3Command;
 import org.mailster.core.pop3.commands.Pop3Command;
 import org.mailster.core.pop3.commands.Pop3CommandRegistry;
 import org.mailster.core.pop3.commands.Pop3CommandState;
+import org.mailster.core.pop3.commands.auth.AuthCommand;
 import org.mailster.core.pop3.connection.AbstractPop3Connection;
 import org.mailster.core.pop3.connection.AbstractPop3Handler;
 import org.mailster.core.pop3.connection.MinaPop3Connection;
@@ -56,6 +62,7 @@ public class Pop3ProtocolHandler extends IoHandlerAdapter
     private final static String USING_APOP_AUTH = Pop3ProtocolHandler.class.getName()+".usingApopAuth";
     private final static String SECURED_AUTH_REQUIRED = Pop3ProtocolHandler.class.getName()+".securedAuthRequired";
     private final static String LAST_INCOMPLETE_COMMAND = Pop3ProtocolHandler.class.getName()+".lastIncompleteCommand";
+    private final static String LAST_INCOMPLETE_COMMAND_LABEL = Pop3ProtocolHandler.class.getName()+".lastIncompleteCommandLabel";
     
     // Default 10 Minutes Timeout by RFC recommendation (see RFC 1939);
     public final static int DEFAULT_TIMEOUT_SECONDS = 600;
@@ -64,6 +71,13 @@ public class Pop3ProtocolHandler extends IoHandlerAdapter
     
     private static final Logger log = LoggerFactory.getLogger(Pop3ProtocolHandler.class);
 
+    private final static Counter SESSIONS = MetricsRegistry.getDefault().counter(
+    		"mailster_pop3_sessions_total", "POP3 sessions opened");
+    
+    // Command latency histograms by command label
+    private final static ConcurrentMap<String, Histogram> COMMAND_TIMES = 
+    	new ConcurrentHashMap<String, Histogram>();
+
     private UserManager userManager;
     
     // Defaults to maximum security.
@@ -78,6 +92,8 @@ public class Pop3ProtocolHandler extends IoHandlerAdapter
 
     public void sessionCreated(IoSession session)
     {
+        SESSIONS.increment();
+        
         if (session.getConfig() instanceof SocketSessionConfig)
         {
             SocketSessionConfig cfg = (SocketSessionConfig) session.getConfig();
@@ -103,8 +119,8 @@ public class Pop3ProtocolHandler extends IoHandlerAdapter
     {
         log.info("Session closed by peer");
         MinaPop3Connection conn = (MinaPop3Connection) session.getAttribute(CONNECTION);
-        if (conn != null && conn.getState().isAuthenticated())
-            conn.getState().getMailBox().releaseLock();
+        if (conn != null)
+            conn.getState().closeMailDrop();
     }
     
     private void sendGreetings(MinaPop3Connection conn)
@@ -126,8 +142,7 @@ public class Pop3ProtocolHandler extends IoHandlerAdapter
         log.info("Session timed out");
         MinaPop3Connection conn = (MinaPop3Connection) session.getAttribute(CONNECTION);
         conn.println("421 Service shutting down and closing transmission channel");
-        if (conn.getState().isAuthenticated())
-            conn.getState().getMailBox().releaseLock();
+        conn.getState().closeMailDrop();
         session.close(false);
     }
 
@@ -135,8 +150,8 @@ public class Pop3ProtocolHandler extends IoHandlerAdapter
     {
         log.error("Exception occured : {}", cause.getMessage());
         MinaPop3Connection conn = (MinaPop3Connection) session.getAttribute(CONNECTION);
-        if (conn != null && conn.getState().isAuthenticated())
-            conn.getState().getMailBox().releaseLock();
+        if (conn != null)
+            conn.getState().closeMailDrop();
         session.close(false);
     }
 
@@ -165,10 +180,12 @@ public class Pop3ProtocolHandler extends IoHandlerAdapter
         
         Pop3CommandState state = (Pop3CommandState) session.getAttribute(LAST_INCOMPLETE_COMMAND);
         Pop3Command command = null;
+        String label;
         
         if (state == null)
         {
-	        String commandName = new StringTokenizer(request, " ").nextToken().toUpperCase();
+	        StringTokenizer st = new StringTokenizer(request, " ");
+	        String commandName = st.nextToken().toUpperCase();
 	        command = Pop3CommandRegistry.getCommand(commandName);
 	        
 	        if (command == null)
@@ -182,21 +199,55 @@ public class Pop3ProtocolHandler extends IoHandlerAdapter
 	            conn.println("-ERR Command not valid for this state");
 	            return;
 	        }
+	        
+	        label = commandName;
+	        if (command instanceof AuthCommand && st.hasMoreTokens())
+	        {
+	        	// Only known mechanisms get their own metric
+	        	String mechanism = st.nextToken();
+	        	if (AuthCommand.isRegistered(mechanism))
+	        		label += ' ' + mechanism;
+	        }
         }
         else
+        {
         	command = state.getCommand();
+        	label = (String) session.getAttribute(LAST_INCOMPLETE_COMMAND_LABEL);
+        }
         
-        if (command instanceof MultiStatePop3Command)
+        long start = System.nanoTime();
+        try
         {
-            state = ((MultiStatePop3Command)command).execute(this, conn, request, state);
-            session.setAttribute(LAST_INCOMPLETE_COMMAND, state);
+	        if (command instanceof MultiStatePop3Command)
+	        {
+	            state = ((MultiStatePop3Command)command).execute(this, conn, request, state);
+	            session.setAttribute(LAST_INCOMPLETE_COMMAND, state);
+	            session.setAttribute(LAST_INCOMPLETE_COMMAND_LABEL, state == null ? null : label);
+	        }
+	        else
+	        {
+	        	command.execute(this, conn, request);
+	        	session.setAttribute(LAST_INCOMPLETE_COMMAND, null);
+	        }
         }
-        else
+        finally
         {
-        	command.execute(this, conn, request);
-        	session.setAttribute(LAST_INCOMPLETE_COMMAND, null);
+        	getCommandHistogram(label).recordSince(start);
         }
     }
+    
+    private static Histogram getCommandHistogram(String label)
+    {
+    	Histogram h = COMMAND_TIMES.get(label);
+    	if (h == null)
+    	{
+    		h = MetricsRegistry.getDefault().histogram("mailster_pop3_command_seconds", 
+    				"POP3 command execution time", "command", label);
+    		COMMAND_TIMES.putIfAbsent(label, h);
+    	}
+    	
+    	return h;
+    }
 
     public boolean isUsingAPOPAuthMethod(AbstractPop3Connection conn)
     {
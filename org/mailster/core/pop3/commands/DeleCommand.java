@@ -1,12 +1,9 @@
 package org.mailster.core.pop3.commands;
 
-import javax.mail.Flags;
-
 import org.mailster.core.pop3.connection.AbstractPop3Connection;
 import org.mailster.core.pop3.connection.AbstractPop3Handler;
 import org.mailster.core.pop3.connection.Pop3State;
-import org.mailster.core.pop3.mailbox.MailBox;
-import org.mailster.core.pop3.mailbox.StoredSmtpMessage;
+import org.mailster.core.pop3.mailbox.MailDrop;
 import org.mailster.util.StringUtilities;
 
 /**
@@ -49,7 +46,7 @@ public class DeleCommand extends Pop3Command
     {
         try
         {
-            MailBox inbox = conn.getState().getMailBox();
+            MailDrop inbox = conn.getState().getMailDrop();
             String[] cmdLine = StringUtilities.split(cmd);
             if (cmdLine.length < 2)
             {
@@ -57,23 +54,21 @@ public class DeleCommand extends Pop3Command
                 return;
             }
 
-            StoredSmtpMessage msg = inbox.getMessage(new Long(cmdLine[1]));
+            int id = Integer.parseInt(cmdLine[1]);
 
-            if (msg == null)
+            if (inbox.getMessage(id) == null)
             {
                 conn.println("-ERR no such message");
                 return;
             }
 
-            Flags flags = msg.getFlags();
-
-            if (flags.contains(Flags.Flag.DELETED))
+            if (inbox.isDeleted(id))
             {
                 conn.println("-ERR message already deleted");
                 return;
             }
 
-            flags.add(Flags.Flag.DELETED);
+            inbox.markDeleted(id);
             conn.println("+OK message scheduled for deletion");
         }
         catch (Exception e)
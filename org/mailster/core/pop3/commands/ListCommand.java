@@ -1,13 +1,9 @@
 package org.mailster.core.pop3.commands;
 
-import java.util.List;
-
-import javax.mail.Flags;
-
 import org.mailster.core.pop3.connection.AbstractPop3Connection;
 import org.mailster.core.pop3.connection.AbstractPop3Handler;
 import org.mailster.core.pop3.connection.Pop3State;
-import org.mailster.core.pop3.mailbox.MailBox;
+import org.mailster.core.pop3.mailbox.MailDrop;
 import org.mailster.core.pop3.mailbox.StoredSmtpMessage;
 import org.mailster.util.StringUtilities;
 
@@ -51,13 +47,13 @@ public class ListCommand extends Pop3Command
     {
         try
         {
-            MailBox inbox = conn.getState().getMailBox();
+            MailDrop inbox = conn.getState().getMailDrop();
             String[] cmdLine = StringUtilities.split(cmd);
 
             if (cmdLine.length > 1)
             {
-                String id = cmdLine[1];
-                StoredSmtpMessage msg = inbox.getMessage(new Long(id));
+                int id = Integer.parseInt(cmdLine[1]);
+                StoredSmtpMessage msg = inbox.getMessage(id);
 
                 if (msg == null)
                 {
@@ -65,7 +61,7 @@ public class ListCommand extends Pop3Command
                     return;
                 }
 
-                if (msg.getFlags().contains(Flags.Flag.DELETED))
+                if (inbox.isDeleted(id))
                 {
                     conn.println("-ERR message marked as deleted");
                     return;
@@ -75,10 +71,12 @@ public class ListCommand extends Pop3Command
             }
             else
             {
-                List<StoredSmtpMessage> messages = inbox.getNonDeletedMessages();
                 conn.println("+OK scan listing follows");
-                for (StoredSmtpMessage msg : messages)
-                    conn.println(msg.getId() + " " + msg.getMessageSize());
+                for (int i = 1, max = inbox.size(); i <= max; i++)
+                {
+                    if (!inbox.isDeleted(i))
+                        conn.println(i + " " + inbox.getMessage(i).getMessageSize());
+                }
 
                 conn.println(".");
             }
@@ -60,11 +60,15 @@ public abstract class Pop3Command
      */
     public void tryLockingMailbox(AbstractPop3Connection conn)
     {
-    	conn.getState().setAuthenticated();
-        boolean locked = conn.getState().getMailBox().tryAcquireLock(3, 300);
-        if (locked)
+    	Pop3State state = conn.getState();
+    	state.setAuthenticated();
+        if (state.openMailDrop())
             conn.println("+OK maildrop locked and ready");
         else
+        {
+            // Back to the AUTHORIZATION state
+            state.reset();
             conn.println("-ERR maildrop is already locked");
+        }
     }
 }
\ No newline at end of file
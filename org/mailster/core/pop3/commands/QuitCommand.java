@@ -3,7 +3,7 @@ package org.mailster.core.pop3.commands;
 import org.mailster.core.pop3.connection.AbstractPop3Connection;
 import org.mailster.core.pop3.connection.AbstractPop3Handler;
 import org.mailster.core.pop3.connection.Pop3State;
-import org.mailster.core.pop3.mailbox.MailBox;
+import org.mailster.core.pop3.mailbox.MailDrop;
 
 /**
  * ---<br>
@@ -43,12 +43,11 @@ public class QuitCommand extends Pop3Command
                         AbstractPop3Connection conn, 
                         String cmd)
     {
-        MailBox inbox = null;
         try
         {
-            inbox = conn.getState().getMailBox();
+            MailDrop inbox = conn.getState().getMailDrop();
             if (inbox != null)
-                inbox.deleteMarked();
+                inbox.commit();
             
             conn.println("+OK Signing off from Mailster POP3");
             handler.quit(conn);
@@ -60,8 +59,7 @@ public class QuitCommand extends Pop3Command
         }
         finally
         {
-            if (inbox != null)
-                inbox.releaseLock();
+            conn.getState().closeMailDrop();
         }
     }
 }
\ No newline at end of file
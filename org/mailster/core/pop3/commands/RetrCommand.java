@@ -1,11 +1,11 @@
 package org.mailster.core.pop3.commands;
 
-import javax.mail.Flags;
+import java.nio.ByteBuffer;
 
 import org.mailster.core.pop3.connection.AbstractPop3Connection;
 import org.mailster.core.pop3.connection.AbstractPop3Handler;
 import org.mailster.core.pop3.connection.Pop3State;
-import org.mailster.core.pop3.mailbox.MailBox;
+import org.mailster.core.pop3.mailbox.MailDrop;
 import org.mailster.core.pop3.mailbox.StoredSmtpMessage;
 import org.mailster.util.StreamUtilities;
 import org.mailster.util.StringUtilities;
@@ -50,17 +50,17 @@ public class RetrCommand extends Pop3Command
     {
         try
         {
-            MailBox inbox = conn.getState().getMailBox();
+            MailDrop inbox = conn.getState().getMailDrop();
             String[] cmdLine = StringUtilities.split(cmd);
 
-            String id = cmdLine[1];
             if (cmdLine.length < 2)
             {
                 conn.println("-ERR Required syntax: RETR <id>");
                 return;
             }
 
-            StoredSmtpMessage msg = inbox.getMessage(new Long(id));
+            int id = Integer.parseInt(cmdLine[1]);
+            StoredSmtpMessage msg = inbox.getMessage(id);
 
             if (msg == null)
             {
@@ -68,14 +68,21 @@ public class RetrCommand extends Pop3Command
                 return;
             }
 
-            if (msg.getFlags().contains(Flags.Flag.DELETED))
+            if (inbox.isDeleted(id))
             {
                 conn.println("-ERR message marked as deleted");
                 return;
             }
 
+            ByteBuffer data = msg.getRawData();
+            if (data == null)
+            {
+                conn.println("-ERR unable to read message");
+                return;
+            }
+
             conn.println("+OK");
-            StreamUtilities.write(msg.getMessage().toString(), conn);
+            StreamUtilities.write(data, conn, -1);
             conn.println(".");            
         }
         catch (Exception e)
@@ -44,7 +44,7 @@ public class RsetCommand extends Pop3Command
     {
         try
         {
-            conn.getState().getMailBox().reset();
+            conn.getState().getMailDrop().reset();
             conn.println("+OK");
         }
         catch (Exception e)
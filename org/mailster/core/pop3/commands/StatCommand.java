@@ -1,12 +1,9 @@
 package org.mailster.core.pop3.commands;
 
-import java.util.List;
-
 import org.mailster.core.pop3.connection.AbstractPop3Connection;
 import org.mailster.core.pop3.connection.AbstractPop3Handler;
 import org.mailster.core.pop3.connection.Pop3State;
-import org.mailster.core.pop3.mailbox.MailBox;
-import org.mailster.core.pop3.mailbox.StoredSmtpMessage;
+import org.mailster.core.pop3.mailbox.MailDrop;
 
 /**
  * ---<br>
@@ -48,14 +45,8 @@ public class StatCommand extends Pop3Command
     {
         try
         {
-            MailBox inbox = conn.getState().getMailBox();
-            List<StoredSmtpMessage> messages = inbox.getNonDeletedMessages();
-            long size = 0;
-            
-            for (StoredSmtpMessage msg : messages)
-                size += msg.getMessageSize();
-            
-            conn.println("+OK " + messages.size() + " " + size);
+            MailDrop inbox = conn.getState().getMailDrop();
+            conn.println("+OK " + inbox.getMessageCount() + " " + inbox.getMailDropSize());
         }
         catch (Exception me)
         {
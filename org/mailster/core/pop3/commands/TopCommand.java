@@ -1,11 +1,11 @@
 package org.mailster.core.pop3.commands;
 
-import javax.mail.Flags;
+import java.nio.ByteBuffer;
 
 import org.mailster.core.pop3.connection.AbstractPop3Connection;
 import org.mailster.core.pop3.connection.AbstractPop3Handler;
 import org.mailster.core.pop3.connection.Pop3State;
-import org.mailster.core.pop3.mailbox.MailBox;
+import org.mailster.core.pop3.mailbox.MailDrop;
 import org.mailster.core.pop3.mailbox.StoredSmtpMessage;
 import org.mailster.util.StreamUtilities;
 import org.mailster.util.StringUtilities;
@@ -50,7 +50,7 @@ public class TopCommand extends Pop3Command
     {
         try
         {
-            MailBox inbox = conn.getState().getMailBox();
+            MailDrop inbox = conn.getState().getMailDrop();
             String[] cmdLine = StringUtilities.split(cmd);
             if (cmdLine.length < 3)
             {
@@ -58,7 +58,8 @@ public class TopCommand extends Pop3Command
                 return;
             }
 
-            StoredSmtpMessage msg = inbox.getMessage(new Long(cmdLine[1]));
+            int id = Integer.parseInt(cmdLine[1]);
+            StoredSmtpMessage msg = inbox.getMessage(id);
 
             if (msg == null)
             {
@@ -66,7 +67,7 @@ public class TopCommand extends Pop3Command
                 return;
             }
 
-            if (msg.getFlags().contains(Flags.Flag.DELETED))
+            if (inbox.isDeleted(id))
             {
                 conn.println("-ERR message marked as deleted");
                 return;
@@ -79,9 +80,15 @@ public class TopCommand extends Pop3Command
                 return;
             }
 
+            ByteBuffer data = msg.getRawData();
+            if (data == null)
+            {
+                conn.println("-ERR unable to read message");
+                return;
+            }
+
             conn.println("+OK");
-            StreamUtilities.write(msg.getMessage().toString(), conn,
-                    numLines);
+            StreamUtilities.write(data, conn, numLines);
             conn.println(".");
         }
         catch (Exception e)
@@ -54,6 +54,14 @@ public class AuthCommand extends MultiStatePop3Command
 		algorithms.remove(algorithm);
 	}
 	
+	/**
+	 * Returns true if an authentication type is implemented under this name.
+	 */
+	public static boolean isRegistered(String algorithm)
+	{
+		return algorithms.containsKey(algorithm);
+	}
+	
     public boolean isValidForState(Pop3State state)
     {
         return !state.isAuthenticated();
@@ -1,5 +1,7 @@
 package org.mailster.core.pop3.connection;
 
+import java.nio.ByteBuffer;
+
 /**
  * ---<br>
  * Mailster (C) 2007-2009 De Oliveira Edouard
@@ -31,6 +33,12 @@ public interface AbstractPop3Connection
 {
     public abstract void println(String line);
 
+    /**
+     * Writes raw bytes to the connection. The buffer must not be modified 
+     * afterwards.
+     */
+    public void write(ByteBuffer data);
+
     public boolean isTLSConnection();
     
     public void startTLS(String response) throws Exception;
@@ -1,5 +1,9 @@
 package org.mailster.core.pop3.connection;
 
+import java.nio.ByteBuffer;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.future.WriteFuture;
 import org.apache.mina.core.session.IoSession;
 import org.apache.mina.filter.ssl.SslFilter;
 import org.mailster.core.crypto.SSLFilterFactory;
@@ -45,6 +49,11 @@ public class MinaPop3Connection implements AbstractPop3Connection
     private IoSession session;
     private Pop3State state;
     
+    /**
+     * The last raw write, used to throttle the raw writes.
+     */
+    private WriteFuture lastWrite;
+    
     public static void setupSSLParameters(SSLProtocol protocol)
 	{
     	setupSSLParameters(protocol, false);
@@ -85,6 +94,22 @@ public class MinaPop3Connection implements AbstractPop3Connection
         session.write(line);
     }
 
+    /**
+     * Buffers bypass the text line codec. The caller is blocked until the 
+     * previous buffer has been sent so that at most two buffers are pending
+     * in the session write queue whatever the size of the data to send.
+     */
+    public void write(ByteBuffer data)
+    {
+        LOG.debug("S: <{} bytes>", data.remaining());
+        
+        WriteFuture previous = lastWrite;
+        lastWrite = session.write(IoBuffer.wrap(data));
+        
+        if (previous != null)
+            previous.awaitUninterruptibly();
+    }
+
     public static boolean isClientAuthNeeded()
     {
         return sslFilter != null 
@@ -7,6 +7,7 @@
 package org.mailster.core.pop3.connection;
 
 import org.mailster.core.pop3.mailbox.MailBox;
+import org.mailster.core.pop3.mailbox.MailDrop;
 import org.mailster.core.pop3.mailbox.Pop3User;
 import org.mailster.core.pop3.mailbox.UserManager;
 
@@ -43,6 +44,7 @@ public class Pop3State
     
     private Pop3User user;
     private MailBox inbox;
+    private MailDrop mailDrop;
     private String generatedAPOPBanner;
     private boolean authenticated;
 
@@ -111,8 +113,47 @@ public class Pop3State
             return null;
     }
     
+    /**
+     * Locks the mailbox of the authenticated user for this session.
+     * 
+     * @return false if the mailbox is already locked by another session
+     */
+    public boolean openMailDrop()
+    {
+        if (mailDrop == null)
+        {
+            mailDrop = getMailBox().tryLock();
+            
+            // The mailbox may have been evicted since it was looked up
+            if (mailDrop == null && inbox.isEvicted())
+            {
+                inbox = null;
+                mailDrop = getMailBox().tryLock();
+            }
+        }
+        
+        return mailDrop != null;
+    }
+    
+    public MailDrop getMailDrop()
+    {
+        return mailDrop;
+    }
+    
+    /**
+     * Releases the lock on the mailbox if this session holds it.
+     */
+    public void closeMailDrop()
+    {
+        MailDrop drop = mailDrop;
+        mailDrop = null;
+        if (drop != null)
+            drop.close();
+    }
+    
     public void reset()
     {
+        closeMailDrop();
         user = null;
         inbox = null;
         authenticated = false;
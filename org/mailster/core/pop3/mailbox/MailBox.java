@@ -1,18 +1,20 @@
 package org.mailster.core.pop3.mailbox;
 
 import java.io.File;
-import java.io.FileWriter;
-import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Semaphore;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
-import javax.mail.Flags.Flag;
+import javax.mail.Flags;
 
 import org.mailster.core.mail.SmtpMessage;
-import org.mailster.util.StreamUtilities;
+import org.mailster.core.metrics.Counter;
+import org.mailster.core.metrics.MetricsRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -38,7 +40,10 @@ import org.slf4j.LoggerFactory;
  * Web Site</a> <br>
  * ---
  * <p>
- * MailBox.java - In-memory store of a user mails .
+ * MailBox.java - In-memory store of a user mails . Mails are appended to an
+ * ordered concurrent map without any locking so that deliveries never wait
+ * for a POP3 session. A POP3 session gets an exclusive {@link MailDrop}, a
+ * snapshot of the mailbox taken when the session locks it (see RFC 1939).
  * 
  * @author <a href="mailto:doe_wanted@yahoo.fr">Edouard De Oliveira</a>
  * @version $Revision: 1.15 $, $Date: 2011/05/14 12:08:10 $
@@ -47,18 +52,35 @@ public class MailBox
 {
     private static final Logger log = LoggerFactory.getLogger(MailBox.class);
     
-    private final Semaphore available = new Semaphore(1);
-    private ConcurrentHashMap<Long, StoredSmtpMessage> mails = new ConcurrentHashMap<Long, StoredSmtpMessage>();
+    private final static Counter LOCK_FAILURES = MetricsRegistry.getDefault().counter(
+    		"mailster_pop3_mailbox_lock_failures_total", "Maildrops refused because already locked");
+    
+    private final AtomicBoolean locked = new AtomicBoolean();
+    private ConcurrentSkipListMap<Long, StoredSmtpMessage> mails = new ConcurrentSkipListMap<Long, StoredSmtpMessage>();
     private String mailBoxID;
     private String email;
     
     // Unique counter ID for the mailbox
     private AtomicLong counter = new AtomicLong(1);
+    
+    // Maintained on each update, the map size is not a constant time call
+    private final AtomicInteger messageCount = new AtomicInteger();
+    private final AtomicLong byteSize = new AtomicLong();
+    
+    // Last time (in milliseconds) the mailbox was delivered to or locked
+    private volatile long lastAccessTime;
+    private volatile boolean evicted;
 
     public MailBox(Pop3User user)
     {
-        this.mailBoxID = user.getQualifiedMailboxID();
-        this.email = user.getEmail();
+        this(user.getEmail());
+    }
+
+    public MailBox(String email)
+    {
+        this.mailBoxID = Pop3User.getQualifiedMailboxID(email);
+        this.email = email;
+        touch();
     }
 
     public String toString()
@@ -71,53 +93,167 @@ public class MailBox
         return email;
     }
     
-    public boolean tryAcquireLock(int nbOfRetries, long delayInMs)
+    /**
+     * Tries to get the exclusive access to the mailbox for a POP3 session. 
+     * This call never blocks.
+     * 
+     * @return a snapshot of the mailbox or null if it is already locked by 
+     * another session
+     */
+    public MailDrop tryLock()
     {
-        if (nbOfRetries<1 || delayInMs<0)
-            throw new IllegalArgumentException("Number of retries must be >=1 and delayInMs must be > 0");
-        
-        boolean acquired = false;
-        for (int i=0;!acquired && i<nbOfRetries;i++)
+        if (!locked.compareAndSet(false, true))
         {
-            if (i>0)
-            {
-                try
-                {
-                    Thread.sleep(delayInMs);
-                }
-                catch (InterruptedException e) {}
-            }
-            log.debug("Try n={} to acquire lock on mailbox of {}", i+1, getEmail());
-            acquired = available.tryAcquire();
+            LOCK_FAILURES.increment();
+            log.debug("Mailbox of {} is already locked", getEmail());
+            return null;
         }
         
-        log.debug("Lock acquired {}",acquired);
-        return acquired;
+        touch();
+        log.debug("Mailbox of {} locked", getEmail());
+        return new MailDrop(this, new ArrayList<StoredSmtpMessage>(mails.values()));
     }
     
-    public boolean tryAcquireLock()
+    public boolean isLocked()
     {
-        return available.tryAcquire();
+        return locked.get();
     }
-
-    protected void acquireLock() throws InterruptedException
+    
+    protected void releaseLock()
+    {
+        touch();
+        locked.set(false);
+    }
+    
+    private void touch()
     {
-        available.acquire();
+        lastAccessTime = System.currentTimeMillis();
     }
     
-    public void releaseLock()
+    /**
+     * Returns the last time (in milliseconds) the mailbox was delivered to 
+     * or locked by a POP3 session.
+     */
+    public long getLastAccessTime()
+    {
+        return lastAccessTime;
+    }
+    
+    /**
+     * Returns true if the mailbox was removed from its manager. Messages 
+     * stored in an evicted mailbox are unreachable.
+     */
+    public boolean isEvicted()
     {
-        available.release();
+        return evicted;
+    }
+    
+    /**
+     * Tries to evict the mailbox if it is empty and not locked. On success, 
+     * the mailbox stays locked for good so that no POP3 session can use it.
+     * <p>
+     * A concurrent delivery either sees the eviction flag after storing its
+     * message, or the message is seen here and the eviction is cancelled.
+     * 
+     * @return true if the mailbox is evicted
+     */
+    protected boolean tryEvict()
+    {
+        if (!locked.compareAndSet(false, true))
+            return false;
+        
+        if (mails.isEmpty())
+        {
+            evicted = true;
+            if (mails.isEmpty())
+                return true;
+            
+            evicted = false;
+        }
+        
+        locked.set(false);
+        return false;
     }
     
     protected void removeMessage(StoredSmtpMessage msg)
     {
-   		mails.remove(msg.getId());
+   		remove(msg);
+    }
+    
+    private boolean remove(StoredSmtpMessage msg)
+    {
+    	if (!mails.remove(msg.getId(), msg))
+    		return false;
+    	
+    	messageCount.decrementAndGet();
+    	byteSize.addAndGet(-msg.getMessageSize());
+    	msg.getBlob().getStore().entryRemoved(this, msg);
+    	msg.release();
+    	return true;
+    }
+    
+    /**
+     * Removes an entry holding <code>blob</code>, if any. This requires a 
+     * scan of the mailbox.
+     */
+    protected void removeMessage(MessageBlob blob)
+    {
+    	for (StoredSmtpMessage msg : mails.values())
+    	{
+    		if (msg.getBlob() == blob && remove(msg))
+    			return;
+    	}
     }
     
     protected void removeAllMessages()
     {
-   		mails.clear();
+    	for (StoredSmtpMessage msg : mails.values())
+    		remove(msg);
+    }
+    
+    /**
+     * Removes the oldest messages until the mailbox complies with 
+     * <code>policy</code>. A locked mailbox is skipped : its messages belong
+     * to the maildrop of a POP3 session.
+     * 
+     * @param policy the retention policy to enforce
+     * @param limit the maximum number of messages to remove
+     * @return the removed messages
+     */
+    protected List<StoredSmtpMessage> expire(RetentionPolicy policy, int limit)
+    {
+    	List<StoredSmtpMessage> expired = new ArrayList<StoredSmtpMessage>();
+    	if (policy.isUnlimited() || !locked.compareAndSet(false, true))
+    		return expired;
+    	
+    	try
+    	{
+    		long now = System.currentTimeMillis();
+    		while (expired.size() < limit)
+    		{
+    			// Ids are increasing : the first entry is the oldest
+    			Map.Entry<Long, StoredSmtpMessage> first = mails.firstEntry();
+    			if (first == null)
+    				break;
+    			
+    			StoredSmtpMessage msg = first.getValue();
+    			if (!policy.isExceeded(messageCount.get(), byteSize.get())
+    					&& !policy.isExpired(msg.getInternalDate().getTime(), now))
+    				break;
+    			
+    			if (remove(msg))
+    				expired.add(msg);
+    		}
+    	}
+    	finally
+    	{
+    		locked.set(false);
+    	}
+    	
+    	if (!expired.isEmpty())
+    		log.debug("{} messages expired from mailbox of {}", expired.size(), getEmail());
+    	
+    	return expired;
     }
     
     /**
@@ -128,49 +264,81 @@ public class MailBox
      */
     public StoredSmtpMessage storeMessage(SmtpMessage message)
     {
-    	Long id = new Long(counter.getAndIncrement());
-    	StoredSmtpMessage stored = new StoredSmtpMessage(message, id);
-        mails.put(id, stored);
-    	
-        return stored;
+    	MessageBlob blob = MessageBlobStore.getDefault().acquire(message);
+    	try
+    	{
+    		return storeMessage(blob);
+    	}
+    	finally
+    	{
+    		blob.release();
+    	}
     }
     
     /**
-     * Removes everything from the to-be-deleted set
+     * Stores a mail in the mailbox. The entry takes its own reference on 
+     * the blob.
+     * 
+     * @param blob the content of the message to be stored
+     * @return the stored object
      */
-    public void reset()
+    public StoredSmtpMessage storeMessage(MessageBlob blob)
     {
-        for (StoredSmtpMessage msg : mails.values())
-            msg.getFlags().remove(Flag.DELETED);
+    	blob.retain();
+    	Long id = new Long(counter.getAndIncrement());
+    	StoredSmtpMessage stored = new StoredSmtpMessage(blob, id);
+    	stored.setMailBox(this);
+    	
+    	// Recorded first so that a removal is never recorded before it
+    	blob.getStore().entryAdded(this, stored);
+        mails.put(id, stored);
+        messageCount.incrementAndGet();
+        byteSize.addAndGet(stored.getMessageSize());
+        touch();
+    	
+        return stored;
     }
-
+    
     /**
-     * Returns the list of mails that are not marked for deletion.
+     * Restores an entry recorded by a persistent {@link MessageBlobStore}. 
+     * The entry keeps its id so that the ids of the following deliveries 
+     * are still increasing.
      * 
-     * @return the list
+     * @return the restored object
      */
-    public List<StoredSmtpMessage> getNonDeletedMessages()
+    protected StoredSmtpMessage restoreMessage(MessageBlob blob, long id, 
+    		long internalDate, boolean seen)
     {
-        List<StoredSmtpMessage> l = new ArrayList<StoredSmtpMessage>();
-
-        for (StoredSmtpMessage msg : mails.values())
-        {
-            if (!msg.getFlags().contains(Flag.DELETED))
-                l.add(msg);
-        }
-
-        return l;
+    	blob.retain();
+    	Long key = new Long(id);
+    	StoredSmtpMessage stored = new StoredSmtpMessage(blob, key);
+    	stored.setMailBox(this);
+    	stored.setInternalDate(new Date(internalDate));
+    	if (seen)
+    		stored.getFlags().add(Flags.Flag.SEEN);
+    	
+    	if (mails.putIfAbsent(key, stored) != null)
+    	{
+    		stored.release();
+    		return mails.get(key);
+    	}
+    	
+        messageCount.incrementAndGet();
+        byteSize.addAndGet(stored.getMessageSize());
+        
+        long next;
+        while ((next = counter.get()) <= id && !counter.compareAndSet(next, id + 1));
+        
+        return stored;
     }
-
+    
     /**
      * Returns mail size by its ID
      */
     public long getMessageSize(Long id)
     {
-        if (mails.containsKey(id))
-            return mails.get(id).getMessageSize();
-        else
-            return 0;
+        StoredSmtpMessage msg = mails.get(id);
+        return msg == null ? 0 : msg.getMessageSize();
     }
 
     /**
@@ -186,24 +354,10 @@ public class MailBox
      * hashcode of the mailbox concatened with the message hexed hashcode
      * separated by the ':' char.
      */
-    public String getMessageUniqueID(Long id)
+    public String getMessageUniqueID(StoredSmtpMessage msg)
     {
         return Integer.toHexString(hashCode()) + ":"
-                + Integer.toHexString(mails.get(id).hashCode());
-    }
-
-    /**
-     * Deletes mails marked for deletion.
-     * 
-     * @throws Exception
-     */
-    public void deleteMarked() throws Exception
-    {
-        for (StoredSmtpMessage msg : mails.values())
-        {
-            if (msg.getFlags().contains(Flag.DELETED))
-                mails.remove(msg.getId());
-        }
+                + Integer.toHexString(msg.hashCode());
     }
 
     /**
@@ -211,7 +365,7 @@ public class MailBox
      */
     public long getMessageCount()
     {
-        return mails.values().size();
+        return messageCount.get();
     }
 
     /**
@@ -219,11 +373,7 @@ public class MailBox
      */
     public long getMailBoxByteSize()
     {
-        int total = 0;
-        for (StoredSmtpMessage msg : mails.values())
-            total += msg.getMessage().toString().length();
-        
-        return total;
+        return byteSize.get();
     }
 
     /**
@@ -233,16 +383,8 @@ public class MailBox
     {
         try
         {
-            PrintWriter out = new PrintWriter(new FileWriter(
-            		outputDirectory + File.separator + mailBoxID + ".mbox", 
-            		false));
-            
-            for (StoredSmtpMessage msg : mails.values())
-            {
-                if (!msg.getFlags().contains(Flag.DELETED))
-                    StreamUtilities.writeMessageToMBoxRDFormat(msg, out);
-            }
-            out.close();
+            new MessageExporter(1).exportMBox(mails.values(), 
+            		new File(outputDirectory, mailBoxID + ".mbox"));
         }
         catch (Exception e)
         {
@@ -1,7 +1,11 @@
 package org.mailster.core.pop3.mailbox;
 
-import java.util.Hashtable;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.mailster.core.mail.SmtpMessage;
 import org.slf4j.Logger;
@@ -45,124 +49,279 @@ public class MailBoxManager
      */
     public final static String POP3_SPECIAL_ACCOUNT_LOGIN = "pop3.all@Mailster.host.org";
 
-    private Hashtable<String, MailBox> mailBoxes = new Hashtable<String, MailBox>();
+    private ConcurrentMap<String, MailBox> mailBoxes = new ConcurrentHashMap<String, MailBox>();
     private MailBox pop3SpecialAccountMailbox;
-    private String pop3SpecialAccountLogin = POP3_SPECIAL_ACCOUNT_LOGIN; 
+    private volatile String pop3SpecialAccountLogin = POP3_SPECIAL_ACCOUNT_LOGIN; 
+    
+    private volatile RetentionPolicy defaultRetentionPolicy = RetentionPolicy.UNLIMITED;
+    private ConcurrentMap<String, RetentionPolicy> retentionPolicies = 
+    	new ConcurrentHashMap<String, RetentionPolicy>();
+    private List<MessageExpiryListener> expiryListeners = 
+    	new CopyOnWriteArrayList<MessageExpiryListener>();
     
     protected MailBoxManager()
     {
-        pop3SpecialAccountMailbox = new MailBox(new Pop3User(POP3_SPECIAL_ACCOUNT_LOGIN));
-        mailBoxes.put(POP3_SPECIAL_ACCOUNT_LOGIN, pop3SpecialAccountMailbox);
+        pop3SpecialAccountMailbox = new MailBox(POP3_SPECIAL_ACCOUNT_LOGIN);
     }
 
+    /**
+     * Stores a mail in the special account mailbox. Never blocks : POP3 
+     * sessions work on a snapshot of the mailbox.
+     */
     public StoredSmtpMessage addMessageToSpecialAccount(SmtpMessage msg)
     {
-    	boolean acquired = pop3SpecialAccountMailbox.tryAcquireLock(3, 300);
-    	if (acquired)
-    	{
-    		StoredSmtpMessage m = pop3SpecialAccountMailbox.storeMessage(msg);
-    		pop3SpecialAccountMailbox.releaseLock();
-    		
-    		return m;
-    	}
-    	
-    	return null;
+   		return pop3SpecialAccountMailbox.storeMessage(msg);
+    }
+    
+    /**
+     * Stores a mail in the special account mailbox.
+     */
+    public StoredSmtpMessage addMessageToSpecialAccount(MessageBlob blob)
+    {
+   		return pop3SpecialAccountMailbox.storeMessage(blob);
     }
     
     public void removeAllMessagesFromSpecialAccount()
     {
-    	boolean acquired = pop3SpecialAccountMailbox.tryAcquireLock(3, 300);
-    	if (acquired)
-    	{
-    		pop3SpecialAccountMailbox.removeAllMessages();
-    		pop3SpecialAccountMailbox.releaseLock();
-    	}
+   		pop3SpecialAccountMailbox.removeAllMessages();
     }
     
     protected void removeMessageFromSpecialAccount(StoredSmtpMessage msg) 
     {
-    	boolean acquired = pop3SpecialAccountMailbox.tryAcquireLock(3, 300);
-    	if (acquired)
-    	{
-    		pop3SpecialAccountMailbox.removeMessage(msg);
-    		pop3SpecialAccountMailbox.releaseLock();
-    	}
+   		pop3SpecialAccountMailbox.removeMessage(msg);
     }
 
     public void removeAllMessages()
     {
-    	synchronized (this) 
-    	{
-        	Iterator<MailBox> it = mailBoxes.values().iterator();
-        	while (it.hasNext())
-        	{
-        		MailBox m = it.next();
-        		try
-        		{
-        			m.acquireLock();
-        			m.removeAllMessages();
-        			m.releaseLock();
-        		}
-        		catch (Exception ex)
-        		{
-       				log.debug("Error acquiring lock on mailbox", ex);
-        		}
-        	}			
-		}
+    	pop3SpecialAccountMailbox.removeAllMessages();
+    	for (MailBox mbox : mailBoxes.values())
+    		mbox.removeAllMessages();
     }
     
     public void removeMessage(StoredSmtpMessage msg)
     {
     	removeMessageFromSpecialAccount(msg);
-        for (String recipient : msg.getMessage().getRecipients())
+    	
+    	// The entries of the recipients mailboxes share the blob of msg
+    	MessageBlob blob = msg.getBlob();
+        for (String recipient : blob.getRecipients())
         {
         	if (recipient.indexOf('<') > -1)
         		recipient = recipient.substring(recipient.indexOf('<') + 1, recipient.indexOf('>'));
         	
-            MailBox mbox = getMailBoxByUser(new Pop3User(recipient));            
-			boolean acquired = mbox.tryAcquireLock(3, 300);
-			if (acquired)
-			{
-				mbox.removeMessage(msg);
-				mbox.releaseLock();
-			}
+        	// Don't create a mailbox just to find it empty
+            MailBox mbox = mailBoxes.get(recipient);
+            if (mbox != null)
+            	mbox.removeMessage(blob);
         }
 	}
     
     public MailBox getMailBoxByUser(Pop3User user)
     {
-        if (user == null || "".equals(user.getEmail()))
+        return user == null ? null : getMailBoxByEmail(user.getEmail());
+    }
+
+    /**
+     * Returns the mailbox of <code>email</code>, creating it if needed. This
+     * call never blocks : concurrent callers asking for a missing mailbox 
+     * agree on the one which was registered first.
+     */
+    public MailBox getMailBoxByEmail(String email)
+    {
+        if (email == null || "".equals(email))
             return null;
 
-        synchronized (this)
+        if (pop3SpecialAccountLogin.equals(email))
+            return pop3SpecialAccountMailbox;
+
+        MailBox mbox = mailBoxes.get(email);
+        if (mbox == null)
         {
-        	if (pop3SpecialAccountLogin.equals(user.getEmail()))
-        		return pop3SpecialAccountMailbox;
-        	
-        	if (!mailBoxes.containsKey(user.getEmail()))
+            MailBox m = new MailBox(email);
+            mbox = mailBoxes.putIfAbsent(email, m);
+            if (mbox == null)
+                mbox = m;
+        }
+
+        return mbox;
+    }
+
+    /**
+     * Stores a mail in the mailbox of <code>email</code>. The delivery is 
+     * done again if the mailbox is evicted meanwhile.
+     * 
+     * @return the stored object or null if <code>email</code> is empty
+     */
+    public StoredSmtpMessage storeMessage(String email, MessageBlob blob)
+    {
+        for (;;)
+        {
+            MailBox mbox = getMailBoxByEmail(email);
+            if (mbox == null)
+                return null;
+
+            StoredSmtpMessage stored = mbox.storeMessage(blob);
+            if (!mbox.isEvicted())
+                return stored;
+
+            mbox.removeMessage(stored);
+        }
+    }
+
+    /**
+     * Restores an entry of the mailbox of <code>email</code> recorded by a
+     * persistent {@link MessageBlobStore}.
+     */
+    protected StoredSmtpMessage restoreMessage(String email, MessageBlob blob, 
+    		long id, long internalDate, boolean seen)
+    {
+        MailBox mbox = POP3_SPECIAL_ACCOUNT_LOGIN.equals(email) 
+        	? pop3SpecialAccountMailbox : getMailBoxByEmail(email);
+        return mbox.restoreMessage(blob, id, internalDate, seen);
+    }
+
+    /**
+     * Evicts the mailboxes which are empty, not locked and which were not 
+     * accessed for at least <code>idleTime</code> milliseconds. The special
+     * account mailbox is never evicted.
+     * 
+     * @return the emails of the evicted mailboxes
+     */
+    public List<String> evictIdleMailBoxes(long idleTime)
+    {
+        List<String> evicted = new ArrayList<String>();
+        long limit = System.currentTimeMillis() - idleTime;
+
+        for (MailBox mbox : mailBoxes.values())
+        {
+            if (mbox.getLastAccessTime() <= limit && mbox.tryEvict())
             {
-                MailBox m = new MailBox(user);
-                mailBoxes.put(user.getEmail(), m);
-                return m;
+                mailBoxes.remove(mbox.getEmail(), mbox);
+                evicted.add(mbox.getEmail());
             }
         }
-        
-        return mailBoxes.get(user.getEmail());
+
+        if (!evicted.isEmpty())
+            log.debug("Evicted {} idle mailboxes", evicted.size());
+
+        return evicted;
+    }
+
+    /**
+     * Expires the messages exceeding the retention policies, oldest first.
+     * Mailboxes are processed one at a time and locked POP3 maildrops are 
+     * skipped so that neither deliveries nor sessions are stalled.
+     * 
+     * @param limit the maximum number of messages to remove
+     * @return the number of removed messages
+     */
+    public int expireMessages(int limit)
+    {
+        int count = expireMessages(pop3SpecialAccountMailbox, limit);
+        for (MailBox mbox : mailBoxes.values())
+        {
+            if (count >= limit)
+                break;
+
+            count += expireMessages(mbox, limit - count);
+        }
+
+        return count;
+    }
+
+    private int expireMessages(MailBox mbox, int limit)
+    {
+        List<StoredSmtpMessage> expired = mbox.expire(getRetentionPolicy(mbox.getEmail()), limit);
+        if (!expired.isEmpty())
+        {
+            for (MessageExpiryListener listener : expiryListeners)
+                listener.messagesExpired(mbox, expired);
+        }
+
+        return expired.size();
+    }
+
+    /**
+     * Returns the policy applied to the mailbox of <code>email</code>.
+     */
+    public RetentionPolicy getRetentionPolicy(String email)
+    {
+        RetentionPolicy policy = retentionPolicies.get(email);
+        return policy == null ? defaultRetentionPolicy : policy;
+    }
+
+    /**
+     * Sets the policy of the mailbox of <code>email</code>. The policy is 
+     * kept if the mailbox is evicted.
+     * 
+     * @param policy the policy or null to apply the default one
+     */
+    public void setRetentionPolicy(String email, RetentionPolicy policy)
+    {
+        if (policy == null)
+            retentionPolicies.remove(email);
+        else
+            retentionPolicies.put(email, policy);
+    }
+
+    public RetentionPolicy getDefaultRetentionPolicy()
+    {
+        return defaultRetentionPolicy;
+    }
+
+    /**
+     * Sets the policy of the mailboxes which have no specific policy, 
+     * including the special account mailbox.
+     */
+    public void setDefaultRetentionPolicy(RetentionPolicy policy)
+    {
+        if (policy == null)
+            throw new IllegalArgumentException("Policy can't be null");
+
+        this.defaultRetentionPolicy = policy;
+    }
+
+    public void addMessageExpiryListener(MessageExpiryListener listener)
+    {
+        expiryListeners.add(listener);
+    }
+
+    public void removeMessageExpiryListener(MessageExpiryListener listener)
+    {
+        expiryListeners.remove(listener);
+    }
+
+    /**
+     * Returns the special account mailbox.
+     */
+    public MailBox getSpecialAccountMailBox()
+    {
+        return pop3SpecialAccountMailbox;
+    }
+
+    /**
+     * Returns the number of mailboxes, not counting the special account one.
+     */
+    public int getMailBoxCount()
+    {
+        return mailBoxes.size();
     }
 
+    /**
+     * Drops the mailboxes, except the special account one, releasing the 
+     * messages they hold.
+     */
     public void clear()
     {
-    	synchronized (this)
-    	{
-    		mailBoxes.clear();
-    	}
+        for (Iterator<MailBox> it = mailBoxes.values().iterator(); it.hasNext();)
+        {
+            it.next().removeAllMessages();
+            it.remove();
+        }
     }
 
 	public void setPop3SpecialAccountLogin(String pop3SpecialAccountLogin) 
 	{
-		synchronized (this) 
-		{
-			this.pop3SpecialAccountLogin = pop3SpecialAccountLogin;	
-		}
+		this.pop3SpecialAccountLogin = pop3SpecialAccountLogin;	
 	}
 }
@@ -0,0 +1,157 @@
+package org.mailster.core.pop3.mailbox;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * ---<br>
+ * Mailster (C) 2007-2009 De Oliveira Edouard
+ * <p>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 675 Mass
+ * Ave, Cambridge, MA 02139, USA.
+ * <p>
+ * See&nbsp; <a href="http://tedorg.free.fr/en/projects.php" target="_parent">Mailster
+ * Web Site</a> <br>
+ * ---
+ * <p>
+ * MailDrop.java - The view of a mailbox owned by a POP3 session. It is a
+ * snapshot of the mailbox content taken when the session locked it : mails
+ * delivered afterwards are not visible and messages are numbered from 1 to
+ * n for the whole session as required by RFC 1939. Deletion marks are local
+ * to the session and only applied to the mailbox on {@link #commit()}.
+ * <p>
+ * Apart from {@link #close()}, a maildrop is confined to its POP3 session and
+ * is not thread safe.
+ *
+ * @author <a href="mailto:doe_wanted@yahoo.fr">Edouard De Oliveira</a>
+ * @version $Revision$, $Date$
+ */
+public class MailDrop
+{
+	private MailBox mailBox;
+	private List<StoredSmtpMessage> messages;
+	private BitSet deleted = new BitSet();
+	private final AtomicBoolean closed = new AtomicBoolean();
+
+	protected MailDrop(MailBox mailBox, List<StoredSmtpMessage> messages)
+	{
+		this.mailBox = mailBox;
+		this.messages = messages;
+	}
+
+	public MailBox getMailBox()
+	{
+		return mailBox;
+	}
+
+	/**
+	 * Returns the number of messages of the snapshot, including those marked
+	 * as deleted.
+	 */
+	public int size()
+	{
+		return messages.size();
+	}
+
+	/**
+	 * Returns the message with the given number or null if no such message
+	 * exists.
+	 *
+	 * @param msgNumber the message number (starting from 1)
+	 */
+	public StoredSmtpMessage getMessage(int msgNumber)
+	{
+		if (msgNumber < 1 || msgNumber > messages.size())
+			return null;
+
+		return messages.get(msgNumber - 1);
+	}
+
+	public boolean isDeleted(int msgNumber)
+	{
+		return deleted.get(msgNumber - 1);
+	}
+
+	public void markDeleted(int msgNumber)
+	{
+		deleted.set(msgNumber - 1);
+	}
+
+	/**
+	 * Unmarks all the messages marked as deleted.
+	 */
+	public void reset()
+	{
+		deleted.clear();
+	}
+
+	/**
+	 * Returns the number of messages not marked as deleted.
+	 */
+	public int getMessageCount()
+	{
+		return messages.size() - deleted.cardinality();
+	}
+
+	/**
+	 * Returns the size in octets of the messages not marked as deleted.
+	 */
+	public long getMailDropSize()
+	{
+		long size = 0;
+		for (int i = 0, max = messages.size(); i < max; i++)
+		{
+			if (!deleted.get(i))
+				size += messages.get(i).getMessageSize();
+		}
+
+		return size;
+	}
+
+	public String getMessageUniqueID(int msgNumber)
+	{
+		return mailBox.getMessageUniqueID(getMessage(msgNumber));
+	}
+
+	/**
+	 * Removes the messages marked as deleted from the mailbox and releases
+	 * the lock.
+	 */
+	public void commit()
+	{
+		try
+		{
+			if (!closed.get())
+			{
+				for (int i = deleted.nextSetBit(0); i >= 0; i = deleted.nextSetBit(i + 1))
+					mailBox.removeMessage(messages.get(i));
+			}
+		}
+		finally
+		{
+			close();
+		}
+	}
+
+	/**
+	 * Releases the lock without deleting any message. Calling this method
+	 * more than once has no effect.
+	 */
+	public void close()
+	{
+		if (closed.compareAndSet(false, true))
+			mailBox.releaseLock();
+	}
+}
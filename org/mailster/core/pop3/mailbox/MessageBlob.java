@@ -0,0 +1,324 @@
+package org.mailster.core.pop3.mailbox;
+
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.mailster.core.mail.SmtpHeadersInterface;
+import org.mailster.core.mail.SmtpMessage;
+import org.mailster.core.spool.MailJournal;
+import org.mailster.core.spool.MessageSpool;
+import org.mailster.util.DateUtilities;
+import org.mailster.util.DateUtilities.DateFormatterEnum;
+
+/**
+ * ---<br>
+ * Mailster (C) 2007-2009 De Oliveira Edouard
+ * <p>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 675 Mass
+ * Ave, Cambridge, MA 02139, USA.
+ * <p>
+ * See&nbsp; <a href="http://tedorg.free.fr/en/projects.php" target="_parent">Mailster
+ * Web Site</a> <br>
+ * ---
+ * <p>
+ * MessageBlob.java - The immutable content of a delivered message, shared by
+ * all the mailboxes it was delivered to. The message is spooled once and the
+ * values displayed or listed by the POP3 service are computed once.
+ * <p>
+ * Blobs are created and reference counted by a {@link MessageBlobStore} : each
+ * mailbox entry holds a reference which is released when the entry is
+ * removed, the spooled data being deleted with the last reference.
+ *
+ * @author <a href="mailto:doe_wanted@yahoo.fr">Edouard De Oliveira</a>
+ * @version $Revision$, $Date$
+ */
+public class MessageBlob
+{
+	private MessageBlobStore store;
+	private String digest;
+	private SpooledMessageReference message;
+	private List<String> recipients;
+
+	/**
+	 * The number of references, guarded by the store.
+	 */
+	int references;
+
+	/**
+	 * The document number of the blob in the index, guarded by the index.
+	 */
+	volatile int indexId = MessageIndex.NOT_INDEXED;
+
+	private Date messageDate;
+	private String _msgId;
+	private String _msgFrom;
+	private String _msgTo;
+	private String _msgSubject;
+	private String _msgHost;
+	private int _msgSize;
+	private int _msgAttachedFilesCount;
+
+	protected MessageBlob(MessageBlobStore store, String digest, SmtpMessage msg,
+			MessageSpool spool, MessageCache cache)
+	{
+		this.store = store;
+		this.digest = digest;
+		this.recipients = Collections.unmodifiableList(new ArrayList<String>(msg.getRecipients()));
+
+		try
+		{
+			messageDate = DateUtilities.parse(DateFormatterEnum.RFC822, msg.getDate());
+		} catch (ParseException e)
+		{
+			messageDate = new Date();
+		}
+
+		_msgId = msg.getMessageID();
+		_msgTo = msg.getTo();
+		_msgSubject = msg.getSubject();
+		_msgSize = msg.getSize();
+		_msgAttachedFilesCount = msg.getInternalParts().getAttachedFiles().length;
+		_msgFrom = msg.getHeaderValue(SmtpHeadersInterface.FROM);
+		_msgHost = computeHost();
+
+		message = new SpooledMessageReference(msg, spool, cache);
+	}
+
+	/**
+	 * Restores a blob recorded in the journal of a persistent store. The
+	 * message is not parsed until it is accessed.
+	 */
+	protected MessageBlob(MessageBlobStore store, MailJournal.MessageRecord m,
+			MessageSpool spool, MessageCache cache)
+	{
+		this.store = store;
+		this.digest = m.digest;
+		this.recipients = Collections.unmodifiableList(new ArrayList<String>(m.recipients));
+
+		messageDate = new Date(m.messageDate);
+		_msgId = m.messageID;
+		_msgFrom = m.from;
+		_msgTo = m.to;
+		_msgSubject = m.subject;
+		_msgHost = m.host;
+		_msgSize = m.size;
+		_msgAttachedFilesCount = m.attachedFilesCount;
+
+		message = new SpooledMessageReference(m.key, m.charset, m.recipients, m.messageID,
+				m.date, spool, cache);
+	}
+
+	/**
+	 * Returns the journal record of the blob or null if the message could not
+	 * be spooled.
+	 */
+	protected MailJournal.MessageRecord toRecord()
+	{
+		Long key = message.getKey();
+		if (key == null)
+			return null;
+
+		MailJournal.MessageRecord m = new MailJournal.MessageRecord();
+		m.key = key.longValue();
+		m.digest = digest;
+		m.charset = message.getCharset();
+		m.recipients.addAll(recipients);
+		m.messageID = message.getMessageID();
+		m.date = message.getDate();
+		m.messageDate = messageDate.getTime();
+		m.from = _msgFrom;
+		m.to = _msgTo;
+		m.subject = _msgSubject;
+		m.host = _msgHost;
+		m.size = _msgSize;
+		m.attachedFilesCount = _msgAttachedFilesCount;
+
+		return m;
+	}
+
+	/**
+	 * Returns the id of the message in the spool or null if it could not be
+	 * spooled.
+	 */
+	public Long getKey()
+	{
+		return message.getKey();
+	}
+
+	/**
+	 * Retrieves the host of the first email in the TO header.
+	 */
+	private String computeHost()
+	{
+		String email = _msgTo;
+		String defaultHostLabel = StoredSmtpMessage.getDefaultHostLabel();
+
+		if (email == null)
+			return defaultHostLabel;
+
+		try
+		{
+			email = email.toLowerCase();
+			int pos = email.indexOf(','); //$NON-NLS-1$
+			if (pos >= 0)
+				email = email.substring(0, pos);
+
+			pos = email.indexOf(';'); //$NON-NLS-1$
+			if (pos >= 0)
+				email = email.substring(0, pos);
+
+			pos = email.lastIndexOf("@"); //$NON-NLS-1$
+			if (pos >= 0)
+			{
+				pos++;
+				int end = email.indexOf(">"); //$NON-NLS-1$
+				return end < 0 ? email.substring(pos) : email.substring(pos, end);
+			}
+			else
+				return defaultHostLabel;
+		} catch (Exception ex)
+		{
+			return defaultHostLabel;
+		}
+	}
+
+	/**
+	 * Returns the hex encoded digest identifying the content of the blob.
+	 */
+	public String getDigest()
+	{
+		return digest;
+	}
+
+	/**
+	 * Returns the message or null if the blob has been freed.
+	 */
+	public SmtpMessage getMessage()
+	{
+		return message.get();
+	}
+
+	/**
+	 * Returns the message or null if the blob has been freed. A message
+	 * which isn't cached is parsed from the spool and not cached.
+	 */
+	public SmtpMessage peekMessage()
+	{
+		return message.peek();
+	}
+
+	/**
+	 * Returns a read-only view of the message as received or null if the
+	 * blob has been freed.
+	 */
+	public ByteBuffer getRawData()
+	{
+		return message.getRawData();
+	}
+
+	/**
+	 * Returns the envelope recipients of the message.
+	 */
+	public List<String> getRecipients()
+	{
+		return recipients;
+	}
+
+	public Date getMessageDate()
+	{
+		return messageDate;
+	}
+
+	public String getMessageId()
+	{
+		return _msgId;
+	}
+
+	public String getMessageHost()
+	{
+		return _msgHost;
+	}
+
+	public String getMessageFrom()
+	{
+		return _msgFrom;
+	}
+
+	public String getMessageTo()
+	{
+		return _msgTo;
+	}
+
+	public String getMessageSubject()
+	{
+		return _msgSubject;
+	}
+
+	public int getMessageSize()
+	{
+		return _msgSize;
+	}
+
+	public int getAttachedFilesCount()
+	{
+		return _msgAttachedFilesCount;
+	}
+
+	public MessageBlobStore getStore()
+	{
+		return store;
+	}
+
+	/**
+	 * Returns the number of mailbox entries referencing the blob.
+	 */
+	public int getReferenceCount()
+	{
+		synchronized (store)
+		{
+			return references;
+		}
+	}
+
+	/**
+	 * Adds a reference to the blob.
+	 *
+	 * @throws IllegalStateException if the blob has already been freed
+	 */
+	public void retain()
+	{
+		store.retain(this);
+	}
+
+	/**
+	 * Releases a reference, freeing the blob when it was the last one.
+	 */
+	public void release()
+	{
+		store.release(this);
+	}
+
+	/**
+	 * Deletes the spooled message.
+	 */
+	protected void free()
+	{
+		message.delete();
+		store.messageFreed(this);
+	}
+}
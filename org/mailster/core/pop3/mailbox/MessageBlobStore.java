@@ -0,0 +1,456 @@
+package org.mailster.core.pop3.mailbox;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.mailster.core.mail.SmtpMessage;
+import org.mailster.core.spool.MailJournal;
+import org.mailster.core.spool.MessageSpool;
+import org.mailster.util.md5.MD5;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ---<br>
+ * Mailster (C) 2007-2009 De Oliveira Edouard
+ * <p>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 675 Mass
+ * Ave, Cambridge, MA 02139, USA.
+ * <p>
+ * See&nbsp; <a href="http://tedorg.free.fr/en/projects.php" target="_parent">Mailster
+ * Web Site</a> <br>
+ * ---
+ * <p>
+ * MessageBlobStore.java - Content addressed store of {@link MessageBlob}s.
+ * A blob is identified by the SHA-256 digest of the raw message, of its
+ * envelope recipients and of the values generated when the message lacks
+ * them : acquiring a message identical to a stored one returns the stored
+ * blob instead of spooling a new copy.
+ * <p>
+ * Blobs are reference counted. The store is their only owner : it frees a
+ * blob and forgets it once its last reference is released.
+ * <p>
+ * A persistent store spools the messages in a persistent {@link MessageSpool}
+ * and records their metadata and the mailbox entries referencing them in a
+ * {@link MailJournal}, so that the mailboxes can be restored after a restart
+ * without parsing the messages.
+ * <p>
+ * New and restored blobs are handed to the {@link MessageIndex} of the store,
+ * if any, which indexes them in the background.
+ *
+ * @author <a href="mailto:doe_wanted@yahoo.fr">Edouard De Oliveira</a>
+ * @version $Revision$, $Date$
+ */
+public class MessageBlobStore
+{
+	private static final Logger LOG = LoggerFactory.getLogger(MessageBlobStore.class);
+
+	private final static String DIGEST_ALGORITHM = "SHA-256"; //$NON-NLS-1$
+
+	private static MessageBlobStore defaultStore;
+
+	private MessageSpool spool;
+	private MessageCache cache;
+	private MailJournal journal;
+	private MessageIndex index;
+	private Map<String, MessageBlob> blobs = new HashMap<String, MessageBlob>();
+
+	public MessageBlobStore(MessageSpool spool, MessageCache cache)
+	{
+		this(spool, cache, null);
+	}
+
+	/**
+	 * Creates a store recording its content in <code>journal</code>.
+	 *
+	 * @param journal the journal or null if the store isn't persistent
+	 */
+	public MessageBlobStore(MessageSpool spool, MessageCache cache, MailJournal journal)
+	{
+		this.spool = spool;
+		this.cache = cache;
+		this.journal = journal;
+	}
+
+	/**
+	 * Opens the persistent store of <code>directory</code>, holding the 
+	 * messages stored by a previous instance.
+	 *
+	 * @throws IOException if the spool or the journal can't be opened
+	 */
+	public static MessageBlobStore open(File directory, MessageCache cache) throws IOException
+	{
+		MessageSpool spool = MessageSpool.open(directory, MessageSpool.DEFAULT_SEGMENT_SIZE);
+		MessageBlobStore store = new MessageBlobStore(spool, cache, new MailJournal(directory));
+		store.setIndex(MessageIndex.getDefault());
+		return store;
+	}
+
+	/**
+	 * Returns the store shared by the mailboxes.
+	 */
+	public static synchronized MessageBlobStore getDefault()
+	{
+		if (defaultStore == null)
+		{
+			defaultStore = new MessageBlobStore(MessageSpool.getDefault(), MessageCache.getDefault());
+			defaultStore.setIndex(MessageIndex.getDefault());
+		}
+
+		return defaultStore;
+	}
+
+	/**
+	 * Returns the store shared by the mailboxes or null if it hasn't been
+	 * created yet, that is if no message has been stored.
+	 */
+	public static synchronized MessageBlobStore peekDefault()
+	{
+		return defaultStore;
+	}
+
+	/**
+	 * Replaces the store shared by the mailboxes. It must be called before
+	 * any message is stored.
+	 */
+	public static synchronized void setDefault(MessageBlobStore store)
+	{
+		defaultStore = store;
+		store.getSpool().registerGauges();
+	}
+
+	/**
+	 * Returns the index of the stored messages or null if they aren't indexed.
+	 */
+	public MessageIndex getIndex()
+	{
+		return index;
+	}
+
+	/**
+	 * Sets the index of the messages. Only the messages stored afterwards
+	 * are indexed.
+	 */
+	public void setIndex(MessageIndex index)
+	{
+		this.index = index;
+	}
+
+	public boolean isPersistent()
+	{
+		return journal != null;
+	}
+
+	/**
+	 * Returns the spool holding the raw messages.
+	 */
+	public MessageSpool getSpool()
+	{
+		return spool;
+	}
+
+	private static void update(MessageDigest md, String s)
+		throws UnsupportedEncodingException
+	{
+		if (s != null)
+			md.update(s.getBytes("UTF-8")); //$NON-NLS-1$
+
+		// Separates the values
+		md.update((byte) 0);
+	}
+
+	/**
+	 * Computes the digest identifying a message.
+	 */
+	public static String computeDigest(SmtpMessage msg)
+	{
+		try
+		{
+			MessageDigest md = MessageDigest.getInstance(DIGEST_ALGORITHM);
+			md.update(msg.getRawData());
+			md.update((byte) 0);
+
+			for (String recipient : msg.getRecipients())
+				update(md, recipient);
+
+			update(md, msg.getMessageID());
+			update(md, msg.getDate());
+
+			return MD5.asHex(md.digest());
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			// Every JRE provides SHA-256
+			throw new IllegalStateException(e);
+		}
+		catch (UnsupportedEncodingException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Returns the blob holding the message, creating it if none is stored
+	 * yet. The caller owns a reference on the returned blob and must
+	 * {@link MessageBlob#release()} it.
+	 */
+	public MessageBlob acquire(SmtpMessage msg)
+	{
+		String digest = computeDigest(msg);
+
+		synchronized (this)
+		{
+			MessageBlob blob = blobs.get(digest);
+			if (blob != null)
+			{
+				blob.references++;
+				return blob;
+			}
+		}
+
+		// Spools and parses the message without holding the lock
+		MessageBlob created = new MessageBlob(this, digest, msg, spool, cache);
+		MessageBlob blob;
+
+		synchronized (this)
+		{
+			blob = blobs.get(digest);
+			if (blob == null)
+			{
+				blob = created;
+				blobs.put(digest, blob);
+
+				// Recorded before any entry references it
+				if (journal != null && created.getKey() != null)
+				{
+					try
+					{
+						journal.addMessage(created.toRecord());
+					}
+					catch (IOException e)
+					{
+						LOG.error("Unable to record message in journal", e);
+					}
+				}
+			}
+
+			blob.references++;
+		}
+
+		// Another thread stored the same message meanwhile
+		if (blob != created)
+			created.free();
+		else
+		if (index != null)
+			index.submit(created);
+
+		return blob;
+	}
+
+	protected synchronized void retain(MessageBlob blob)
+	{
+		if (blob.references <= 0)
+			throw new IllegalStateException("Blob " + blob.getDigest() + " has been freed");
+
+		blob.references++;
+	}
+
+	protected void release(MessageBlob blob)
+	{
+		synchronized (this)
+		{
+			if (blob.references <= 0)
+				throw new IllegalStateException("Blob " + blob.getDigest() + " has been freed");
+
+			if (--blob.references > 0)
+				return;
+
+			if (blobs.get(blob.getDigest()) == blob)
+				blobs.remove(blob.getDigest());
+		}
+
+		blob.free();
+	}
+
+	/**
+	 * Records that <code>stored</code> was added to <code>mailBox</code>.
+	 */
+	protected void entryAdded(MailBox mailBox, StoredSmtpMessage stored)
+	{
+		Long key = stored.getBlob().getKey();
+		if (journal == null || key == null)
+			return;
+
+		MailJournal.EntryRecord e = new MailJournal.EntryRecord();
+		e.email = mailBox.getEmail();
+		e.id = stored.getId().longValue();
+		e.key = key.longValue();
+		e.internalDate = stored.getInternalDate().getTime();
+		e.seen = stored.isSeen();
+		try
+		{
+			journal.addEntry(e);
+		}
+		catch (IOException ex)
+		{
+			LOG.error("Unable to record mailbox entry in journal", ex);
+		}
+	}
+
+	/**
+	 * Records that <code>stored</code> was removed from <code>mailBox</code>.
+	 */
+	protected void entryRemoved(MailBox mailBox, StoredSmtpMessage stored)
+	{
+		if (journal == null)
+			return;
+
+		try
+		{
+			journal.removeEntry(mailBox.getEmail(), stored.getId().longValue());
+		}
+		catch (IOException ex)
+		{
+			LOG.error("Unable to record mailbox entry removal in journal", ex);
+		}
+	}
+
+	/**
+	 * Records the seen flag of <code>stored</code>.
+	 */
+	protected void seenChanged(StoredSmtpMessage stored)
+	{
+		if (journal == null || stored.getMailBox() == null)
+			return;
+
+		try
+		{
+			journal.setSeen(stored.getMailBox().getEmail(), stored.getId().longValue(),
+					stored.isSeen());
+		}
+		catch (IOException ex)
+		{
+			LOG.error("Unable to record flags in journal", ex);
+		}
+	}
+
+	protected void messageFreed(MessageBlob blob)
+	{
+		if (index != null)
+			index.remove(blob);
+
+		Long key = blob.getKey();
+		if (journal == null || key == null)
+			return;
+
+		try
+		{
+			journal.removeMessage(key.longValue());
+		}
+		catch (IOException ex)
+		{
+			LOG.error("Unable to record message deletion in journal", ex);
+		}
+	}
+
+	/**
+	 * Restores the mailbox entries recorded in the journal of a persistent
+	 * store. Messages are not parsed : their metadata is read from the 
+	 * journal and their content is loaded on first access. Spooled messages
+	 * no entry references anymore are deleted.
+	 *
+	 * @return the restored entries
+	 */
+	public List<StoredSmtpMessage> restore(MailBoxManager manager)
+	{
+		List<StoredSmtpMessage> restored = new ArrayList<StoredSmtpMessage>();
+		if (journal == null)
+			return restored;
+
+		Map<Long, MessageBlob> restoredBlobs = new HashMap<Long, MessageBlob>();
+		for (MailJournal.MessageRecord m : journal.getMessages())
+		{
+			// The spooled data may have been lost
+			if (!spool.contains(m.key))
+				continue;
+
+			MessageBlob blob = new MessageBlob(this, m, spool, cache);
+			synchronized (this)
+			{
+				if (blobs.containsKey(blob.getDigest()))
+					continue;
+
+				// Held until the entries are restored
+				blob.references = 1;
+				blobs.put(blob.getDigest(), blob);
+			}
+			restoredBlobs.put(new Long(m.key), blob);
+		}
+
+		for (MailJournal.EntryRecord e : journal.getEntries())
+		{
+			MessageBlob blob = restoredBlobs.get(new Long(e.key));
+			if (blob != null)
+				restored.add(manager.restoreMessage(e.email, blob, e.id, e.internalDate, e.seen));
+		}
+
+		Set<Long> orphans = spool.getIds();
+		orphans.removeAll(restoredBlobs.keySet());
+		for (Long key : orphans)
+			spool.delete(key.longValue());
+
+		for (MessageBlob blob : restoredBlobs.values())
+		{
+			blob.release();
+
+			// Parsed from the spool by the indexing thread, bypassing the
+			// cache so that a restart doesn't load every message in it
+			if (index != null)
+				index.submit(blob);
+		}
+
+		LOG.info("{} messages restored from {}", new Integer(restored.size()),
+				journal.getDirectory());
+
+		return restored;
+	}
+
+	/**
+	 * Flushes and closes the journal of a persistent store.
+	 */
+	public void close() throws IOException
+	{
+		if (journal != null)
+		{
+			spool.force();
+			journal.close();
+		}
+	}
+
+	/**
+	 * Returns the number of blobs in the store.
+	 */
+	public synchronized int size()
+	{
+		return blobs.size();
+	}
+}
@@ -0,0 +1,291 @@
+package org.mailster.core.pop3.mailbox;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.mailster.core.mail.SmtpMessage;
+import org.mailster.core.metrics.Counter;
+import org.mailster.core.metrics.Gauge;
+import org.mailster.core.metrics.MetricsRegistry;
+
+/**
+ * ---<br>
+ * Mailster (C) 2007-2009 De Oliveira Edouard
+ * <p>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 675 Mass
+ * Ave, Cambridge, MA 02139, USA.
+ * <p>
+ * See&nbsp; <a href="http://tedorg.free.fr/en/projects.php" target="_parent">Mailster
+ * Web Site</a> <br>
+ * ---
+ * <p>
+ * MessageCache.java - A bounded LRU cache of the messages reloaded from the
+ * spool. The cache is bounded both by a number of entries and by the
+ * estimated heap size of the messages it holds, the least recently used
+ * messages being evicted first. A message larger than the byte bound is never
+ * cached.
+ * <p>
+ * Hits, misses and evictions are counted so that the heap and the cache can
+ * be sized according to the expected load.
+ *
+ * @author <a href="mailto:doe_wanted@yahoo.fr">Edouard De Oliveira</a>
+ * @version $Revision$, $Date$
+ */
+public class MessageCache
+{
+	/**
+	 * The default maximum estimated heap size in bytes of the cached messages.
+	 */
+	public final static long DEFAULT_MAX_BYTES = 64 * 1024 * 1024;
+
+	/**
+	 * The estimated heap size of the decoded body and parts of a message per
+	 * byte of raw data : about one char, that is 2 bytes, per byte.
+	 */
+	private final static int DECODED_BYTES_PER_RAW_BYTE = 2;
+
+	/**
+	 * The default maximum number of cached messages.
+	 */
+	public final static int DEFAULT_MAX_ENTRIES = 5000;
+
+	private static MessageCache defaultCache;
+
+	private static class CacheEntry
+	{
+		private final SmtpMessage message;
+		private final int weight;
+
+		public CacheEntry(SmtpMessage message, int weight)
+		{
+			this.message = message;
+			this.weight = weight;
+		}
+	}
+
+	private LinkedHashMap<Long, CacheEntry> entries =
+		new LinkedHashMap<Long, CacheEntry>(16, 0.75f, true);
+
+	private long maxBytes;
+	private int maxEntries;
+	private long bytes;
+
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	/**
+	 * The exported hit and miss counters, null unless this is the default
+	 * cache.
+	 */
+	private Counter hitCounter;
+	private Counter missCounter;
+
+	public MessageCache()
+	{
+		this(DEFAULT_MAX_BYTES, DEFAULT_MAX_ENTRIES);
+	}
+
+	public MessageCache(long maxBytes, int maxEntries)
+	{
+		setMaxBytes(maxBytes);
+		setMaxEntries(maxEntries);
+	}
+
+	/**
+	 * Returns the cache shared by the mailboxes.
+	 */
+	public static synchronized MessageCache getDefault()
+	{
+		if (defaultCache == null)
+		{
+			final MessageCache cache = new MessageCache();
+			MetricsRegistry registry = MetricsRegistry.getDefault();
+			registry.register(new Gauge("mailster_cache_messages", "Parsed messages in the cache") {
+				public long getValue()
+				{
+					return cache.size();
+				}
+			});
+			registry.register(new Gauge("mailster_cache_bytes", "Estimated heap size of the cached messages") {
+				public long getValue()
+				{
+					return cache.getByteSize();
+				}
+			});
+			cache.hitCounter = registry.counter("mailster_cache_hits_total",
+					"Cache lookups which found the message");
+			cache.missCounter = registry.counter("mailster_cache_misses_total",
+					"Cache lookups which triggered a reload");
+			defaultCache = cache;
+		}
+
+		return defaultCache;
+	}
+
+	/**
+	 * Returns the weight of a message, that is its estimated heap size. The
+	 * decoded body and the parts built on first access are counted as soon
+	 * as the message is cached. The raw data is only counted if it is held
+	 * on the heap : a message reloaded from the spool is a view of a mapped
+	 * segment.
+	 */
+	private static int weigh(SmtpMessage msg)
+	{
+		ByteBuffer raw = msg.getRawData();
+		long weight = (long) raw.remaining() * DECODED_BYTES_PER_RAW_BYTE;
+		if (!raw.isDirect())
+			weight += raw.remaining();
+
+		return (int) Math.min(weight, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Returns the cached message or null if it isn't cached.
+	 */
+	public synchronized SmtpMessage get(Long key)
+	{
+		CacheEntry e = entries.get(key);
+		if (e == null)
+		{
+			misses++;
+			if (missCounter != null)
+				missCounter.increment();
+			return null;
+		}
+
+		hits++;
+		if (hitCounter != null)
+			hitCounter.increment();
+		return e.message;
+	}
+
+	/**
+	 * Caches a message, evicting the least recently used ones if needed.
+	 */
+	public synchronized void put(Long key, SmtpMessage msg)
+	{
+		int weight = weigh(msg);
+		if (weight > maxBytes)
+			return;
+
+		CacheEntry old = entries.put(key, new CacheEntry(msg, weight));
+		if (old != null)
+			bytes -= old.weight;
+		bytes += weight;
+
+		evict();
+	}
+
+	public synchronized void remove(Long key)
+	{
+		CacheEntry old = entries.remove(key);
+		if (old != null)
+			bytes -= old.weight;
+	}
+
+	public synchronized void clear()
+	{
+		entries.clear();
+		bytes = 0;
+	}
+
+	private void evict()
+	{
+		Iterator<Map.Entry<Long, CacheEntry>> it = entries.entrySet().iterator();
+		while (it.hasNext() && (bytes > maxBytes || entries.size() > maxEntries))
+		{
+			bytes -= it.next().getValue().weight;
+			it.remove();
+			evictions++;
+		}
+	}
+
+	public synchronized long getMaxBytes()
+	{
+		return maxBytes;
+	}
+
+	public synchronized void setMaxBytes(long maxBytes)
+	{
+		if (maxBytes < 0)
+			throw new IllegalArgumentException("Maximum size must be >= 0");
+
+		this.maxBytes = maxBytes;
+		evict();
+	}
+
+	public synchronized int getMaxEntries()
+	{
+		return maxEntries;
+	}
+
+	public synchronized void setMaxEntries(int maxEntries)
+	{
+		if (maxEntries < 0)
+			throw new IllegalArgumentException("Maximum entries must be >= 0");
+
+		this.maxEntries = maxEntries;
+		evict();
+	}
+
+	/**
+	 * Returns the number of cached messages.
+	 */
+	public synchronized int size()
+	{
+		return entries.size();
+	}
+
+	/**
+	 * Returns the size in bytes of the cached messages.
+	 */
+	public synchronized long getByteSize()
+	{
+		return bytes;
+	}
+
+	public synchronized long getHitCount()
+	{
+		return hits;
+	}
+
+	public synchronized long getMissCount()
+	{
+		return misses;
+	}
+
+	public synchronized long getEvictionCount()
+	{
+		return evictions;
+	}
+
+	/**
+	 * Returns the ratio of lookups served from the cache.
+	 */
+	public synchronized double getHitRatio()
+	{
+		long total = hits + misses;
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	public synchronized String toString()
+	{
+		return "MessageCache[entries=" + entries.size() + ", bytes=" + bytes 
+			+ ", hits=" + hits + ", misses=" + misses 
+			+ ", evictions=" + evictions + "]";
+	}
+}
@@ -0,0 +1,41 @@
+package org.mailster.core.pop3.mailbox;
+
+import java.util.EventListener;
+import java.util.List;
+
+/**
+ * ---<br>
+ * Mailster (C) 2007-2009 De Oliveira Edouard
+ * <p>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 675 Mass
+ * Ave, Cambridge, MA 02139, USA.
+ * <p>
+ * See&nbsp; <a href="http://tedorg.free.fr/en/projects.php" target="_parent">Mailster
+ * Web Site</a> <br>
+ * ---
+ * <p>
+ * MessageExpiryListener.java - Notified when messages are expired from a
+ * mailbox by its {@link RetentionPolicy}.
+ *
+ * @author <a href="mailto:doe_wanted@yahoo.fr">Edouard De Oliveira</a>
+ * @version $Revision$, $Date$
+ */
+public interface MessageExpiryListener extends EventListener
+{
+	/**
+	 * Called from the expiry thread once <code>messages</code> are removed
+	 * from <code>mailBox</code>.
+	 */
+	public void messagesExpired(MailBox mailBox, List<StoredSmtpMessage> messages);
+}
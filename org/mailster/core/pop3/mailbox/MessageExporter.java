@@ -0,0 +1,339 @@
+package org.mailster.core.pop3.mailbox;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+import org.mailster.core.smtp.MailsterConstants;
+import org.mailster.util.DateUtilities;
+import org.mailster.util.ThreadFactoryUtilities;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ---<br>
+ * Mailster (C) 2007-2009 De Oliveira Edouard
+ * <p>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 675 Mass
+ * Ave, Cambridge, MA 02139, USA.
+ * <p>
+ * See&nbsp; <a href="http://tedorg.free.fr/en/projects.php" target="_parent">Mailster
+ * Web Site</a> <br>
+ * ---
+ * <p>
+ * MessageExporter.java - Exports stored messages to a mbox file (mboxrd
+ * format, see http://www.qmail.org/qmail-manual-html/man5/mbox.html) or to
+ * .eml files. Messages are written as received, straight from their raw data
+ * : passivated messages are read from the spool without being parsed.
+ * <p>
+ * The mbox quoting splits the raw data into slices around the quoted lines,
+ * which are written along with the From_ lines by gathering writes so that
+ * no message is copied.
+ *
+ * @author <a href="mailto:doe_wanted@yahoo.fr">Edouard De Oliveira</a>
+ * @version $Revision$, $Date$
+ */
+public class MessageExporter
+{
+	private static final Logger LOG = LoggerFactory.getLogger(MessageExporter.class);
+
+	/**
+	 * The maximum number of buffers of a gathering write.
+	 */
+	private final static int MAX_BUFFERS = 256;
+
+	private final static String From_ = "From "; //$NON-NLS-1$
+	private final static byte[] FROM = {'F', 'r', 'o', 'm'};
+	private final static byte[] QUOTE = {'>'};
+	private final static byte[] NEW_LINE = {'\n'};
+	private final static byte[] BLANK_LINE = {'\n', '\n'};
+
+	private final static Pattern SENDER_SPACES = Pattern.compile("[ \t\r\n]"); //$NON-NLS-1$
+	private final static Pattern FILE_NAME_CHARS = Pattern.compile("[\\\\/:*?\"<>|]"); //$NON-NLS-1$
+
+	private final int parallelism;
+
+	public MessageExporter()
+	{
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param parallelism the number of threads writing .eml files
+	 */
+	public MessageExporter(int parallelism)
+	{
+		if (parallelism < 1)
+			throw new IllegalArgumentException("Parallelism must be >= 1");
+
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Writes <code>messages</code> to the mbox file <code>file</code>.
+	 * Messages removed meanwhile are skipped.
+	 *
+	 * @return the number of exported messages
+	 * @throws IOException if the file can't be written
+	 */
+	public int exportMBox(Collection<StoredSmtpMessage> messages, File file) throws IOException
+	{
+		FileOutputStream out = new FileOutputStream(file, false);
+		try
+		{
+			FileChannel channel = out.getChannel();
+			List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+			int count = 0;
+
+			for (StoredSmtpMessage msg : messages)
+			{
+				ByteBuffer data = msg.getRawData();
+				if (data == null)
+					continue;
+
+				buffers.add(ByteBuffer.wrap(getFromLine(msg)));
+				addQuoted(channel, buffers, data);
+
+				// The blank line ending the message
+				int limit = data.limit();
+				boolean partial = limit == data.position() || data.get(limit - 1) != '\n';
+				buffers.add(ByteBuffer.wrap(partial ? BLANK_LINE : NEW_LINE));
+				count++;
+
+				if (buffers.size() >= MAX_BUFFERS)
+					write(channel, buffers);
+			}
+
+			write(channel, buffers);
+			return count;
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	/**
+	 * Builds the From_ line of a message from its sender and internal date.
+	 */
+	private static byte[] getFromLine(StoredSmtpMessage msg) throws IOException
+	{
+		String envSender = msg.getMessageFrom();
+		envSender = envSender == null || "".equals(envSender) //$NON-NLS-1$
+				? "MAILER-DAEMON" //$NON-NLS-1$
+				: SENDER_SPACES.matcher(envSender).replaceAll("-").trim(); //$NON-NLS-1$
+
+		String line = From_ + envSender + " " //$NON-NLS-1$
+				+ DateUtilities.formatAsFixedWidthAsctime(msg.getInternalDate()) + "\n"; //$NON-NLS-1$
+		return line.getBytes(MailsterConstants.DEFAULT_CHARSET_NAME);
+	}
+
+	/**
+	 * Adds the slices of <code>data</code> to <code>buffers</code>, with a
+	 * '&gt;' inserted before the lines starting with "From" or with '&gt;'
+	 * characters followed by "From".
+	 */
+	private static void addQuoted(FileChannel channel, List<ByteBuffer> buffers, ByteBuffer data)
+		throws IOException
+	{
+		int limit = data.limit();
+		int start = data.position();
+		int pos = start;
+
+		while (pos < limit)
+		{
+			int q = pos;
+			while (q < limit && data.get(q) == '>')
+				q++;
+
+			if (startsWithFrom(data, q, limit))
+			{
+				if (pos > start)
+					buffers.add(slice(data, start, pos));
+				buffers.add(ByteBuffer.wrap(QUOTE));
+				start = pos;
+
+				if (buffers.size() >= MAX_BUFFERS)
+					write(channel, buffers);
+			}
+
+			// Next line
+			while (q < limit && data.get(q++) != '\n');
+			pos = q;
+		}
+
+		if (limit > start)
+			buffers.add(slice(data, start, limit));
+	}
+
+	private static boolean startsWithFrom(ByteBuffer data, int pos, int limit)
+	{
+		if (pos + FROM.length > limit)
+			return false;
+
+		for (int j = 0; j < FROM.length; j++)
+		{
+			if (data.get(pos + j) != FROM[j])
+				return false;
+		}
+
+		return true;
+	}
+
+	private static ByteBuffer slice(ByteBuffer data, int start, int end)
+	{
+		ByteBuffer b = data.duplicate();
+		b.limit(end).position(start);
+		return b;
+	}
+
+	private static void write(FileChannel channel, List<ByteBuffer> buffers) throws IOException
+	{
+		ByteBuffer[] srcs = buffers.toArray(new ByteBuffer[buffers.size()]);
+		long remaining = 0;
+		for (ByteBuffer b : srcs)
+			remaining += b.remaining();
+
+		while (remaining > 0)
+			remaining -= channel.write(srcs);
+
+		buffers.clear();
+	}
+
+	/**
+	 * Writes each message of <code>messages</code> to a .eml file of
+	 * <code>directory</code> named after its Message-ID. Files are written
+	 * in parallel and a file which can't be written is skipped. Messages
+	 * sharing a Message-ID get a counter appended to their file name so
+	 * that no two of them are written to the same file.
+	 *
+	 * @return the number of exported messages
+	 * @throws InterruptedException if the calling thread is interrupted
+	 */
+	public int exportEmlFiles(Collection<StoredSmtpMessage> messages, final File directory)
+		throws InterruptedException
+	{
+		ExecutorService executor = Executors.newFixedThreadPool(parallelism,
+				ThreadFactoryUtilities.createFactory("EML Exporter")); //$NON-NLS-1$
+		List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(messages.size());
+		Set<String> names = new HashSet<String>();
+
+		try
+		{
+			for (final StoredSmtpMessage msg : messages)
+			{
+				final String name = getUniqueName(names, getEmlFileName(msg));
+				futures.add(executor.submit(new Callable<Boolean>() {
+					public Boolean call() throws IOException
+					{
+						return Boolean.valueOf(exportEmlFile(msg, new File(directory, name)));
+					}
+				}));
+			}
+
+			int count = 0;
+			for (Future<Boolean> f : futures)
+			{
+				try
+				{
+					if (f.get().booleanValue())
+						count++;
+				}
+				catch (ExecutionException e)
+				{
+					LOG.error("Failed exporting message", e.getCause());
+				}
+			}
+
+			return count;
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Returns <code>name</code>, or if it is already in <code>names</code>
+	 * the first name with a counter before its extension which isn't, and
+	 * adds it to <code>names</code>. Names are compared ignoring case as
+	 * some file systems do.
+	 */
+	private static String getUniqueName(Set<String> names, String name)
+	{
+		String unique = name;
+		int dot = name.lastIndexOf('.');
+		for (int i = 1; !names.add(unique.toLowerCase()); i++)
+			unique = name.substring(0, dot) + '-' + i + name.substring(dot);
+
+		return unique;
+	}
+
+	/**
+	 * Writes the raw data of <code>msg</code> to <code>file</code>.
+	 *
+	 * @return false if the message was removed meanwhile
+	 * @throws IOException if the file can't be written
+	 */
+	public static boolean exportEmlFile(StoredSmtpMessage msg, File file) throws IOException
+	{
+		ByteBuffer data = msg.getRawData();
+		if (data == null)
+			return false;
+
+		FileOutputStream out = new FileOutputStream(file, false);
+		try
+		{
+			FileChannel channel = out.getChannel();
+			while (data.hasRemaining())
+				channel.write(data);
+		}
+		finally
+		{
+			out.close();
+		}
+
+		return true;
+	}
+
+	/**
+	 * Returns the name of the .eml file of <code>msg</code> : its Message-ID
+	 * without the angle brackets and the characters not allowed in file
+	 * names.
+	 */
+	public static String getEmlFileName(StoredSmtpMessage msg)
+	{
+		String id = msg.getMessageId();
+		if (id == null || "".equals(id)) //$NON-NLS-1$
+			id = Integer.toHexString(msg.hashCode());
+		else
+		if (id.startsWith("<") && id.endsWith(">")) //$NON-NLS-1$ //$NON-NLS-2$
+			id = id.substring(1, id.length() - 1);
+
+		return FILE_NAME_CHARS.matcher(id).replaceAll("_") + ".eml"; //$NON-NLS-1$ //$NON-NLS-2$
+	}
+}
@@ -0,0 +1,761 @@
+package org.mailster.core.pop3.mailbox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.mailster.core.mail.SmtpHeadersInterface;
+import org.mailster.core.mail.SmtpMessage;
+import org.mailster.core.mail.SmtpMessagePart;
+import org.mailster.util.MailUtilities;
+import org.mailster.util.ThreadFactoryUtilities;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ---<br>
+ * Mailster (C) 2007-2009 De Oliveira Edouard
+ * <p>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 675 Mass
+ * Ave, Cambridge, MA 02139, USA.
+ * <p>
+ * See&nbsp; <a href="http://tedorg.free.fr/en/projects.php" target="_parent">Mailster
+ * Web Site</a> <br>
+ * ---
+ * <p>
+ * MessageIndex.java - Inverted index of the words of the stored messages :
+ * their subject, From, To and Cc headers, the decoded bodies of their text
+ * parts and the names of their attached files.
+ * <p>
+ * Each indexed {@link MessageBlob} is given a document number and each word
+ * maps to the sorted list of the numbers of the documents containing it.
+ * Blobs are indexed in the background as they are stored, so that the
+ * delivery of a message doesn't wait for its tokenization. A query is a
+ * list of words which must all be found in a message, each of them being
+ * matched as a prefix : its cost depends on the number of matching
+ * documents, not on the number of stored messages.
+ *
+ * @author <a href="mailto:doe_wanted@yahoo.fr">Edouard De Oliveira</a>
+ * @version $Revision$, $Date$
+ */
+public class MessageIndex
+{
+	private static final Logger LOG = LoggerFactory.getLogger(MessageIndex.class);
+
+	/**
+	 * Longer words, which are most likely encoded data, are not indexed.
+	 */
+	public final static int MAX_TERM_LENGTH = 64;
+
+	/**
+	 * The document number of a blob not indexed yet.
+	 */
+	final static int NOT_INDEXED = -1;
+
+	/**
+	 * The document number of a blob removed from the index.
+	 */
+	final static int REMOVED = -2;
+
+	/**
+	 * Postings lists are purged from the removed documents when they
+	 * outnumber the live ones and this threshold.
+	 */
+	private final static int PURGE_THRESHOLD = 4096;
+
+	/**
+	 * The initial capacity of the documents array.
+	 */
+	private final static int INITIAL_CAPACITY = 1024;
+
+	/**
+	 * The estimated cost of looking a document up in a postings list,
+	 * relative to reading one entry of a list.
+	 */
+	private final static int PROBE_COST = 16;
+
+	private static MessageIndex defaultIndex;
+
+	/**
+	 * The sorted document numbers of a word.
+	 */
+	private static class Postings
+	{
+		private int[] docs = new int[2];
+		private int size;
+
+		private void add(int doc)
+		{
+			if (size == docs.length)
+			{
+				int[] d = new int[size << 1];
+				System.arraycopy(docs, 0, d, 0, size);
+				docs = d;
+			}
+			docs[size++] = doc;
+		}
+
+		private void addTo(BitSet set)
+		{
+			for (int i = 0; i < size; i++)
+				set.set(docs[i]);
+		}
+
+		/**
+		 * Returns the position of the first document greater than or equal
+		 * to <code>doc</code>, looked up from <code>from</code> by galloping :
+		 * increasing documents are looked up in a single pass.
+		 */
+		private int seek(int doc, int from)
+		{
+			int step = 1;
+			int high = from;
+			while (high < size && docs[high] < doc)
+			{
+				from = high + 1;
+				high += step;
+				step <<= 1;
+			}
+
+			high = Math.min(high, size - 1);
+			while (from <= high)
+			{
+				int mid = (from + high) >>> 1;
+				if (docs[mid] < doc)
+					from = mid + 1;
+				else
+					high = mid - 1;
+			}
+
+			return from;
+		}
+
+		/**
+		 * Renumbers the documents with <code>ids</code>, the new number of
+		 * each document or -1 to drop it. Numbers must keep their order.
+		 */
+		private void purge(int[] ids)
+		{
+			int len = 0;
+			for (int i = 0; i < size; i++)
+			{
+				int id = ids[docs[i]];
+				if (id >= 0)
+					docs[len++] = id;
+			}
+			size = len;
+		}
+	}
+
+	/**
+	 * The postings lists of the words beginning with a query word.
+	 */
+	private static class Expansion
+		implements Comparable<Expansion>
+	{
+		private Postings[] postings;
+		private int[] positions;
+		private long count;
+
+		private Expansion(Collection<Postings> postings)
+		{
+			this.postings = postings.toArray(new Postings[postings.size()]);
+			this.positions = new int[this.postings.length];
+			for (Postings p : this.postings)
+				count += p.size;
+		}
+
+		/**
+		 * Returns true if a list contains <code>doc</code>. Documents must be
+		 * looked up in increasing order.
+		 */
+		private boolean contains(int doc)
+		{
+			for (int i = 0; i < postings.length; i++)
+			{
+				Postings p = postings[i];
+				positions[i] = p.seek(doc, positions[i]);
+				if (positions[i] < p.size && p.docs[positions[i]] == doc)
+					return true;
+			}
+
+			return false;
+		}
+
+		public int compareTo(Expansion e)
+		{
+			return count < e.count ? -1 : (count == e.count ? 0 : 1);
+		}
+	}
+
+	/**
+	 * The messages matching a query when it was run. As the documents are
+	 * renumbered when the index is purged, the query is run again on first
+	 * use after a purge.
+	 */
+	public class SearchResult
+	{
+		private String[] words;
+		private BitSet matches;
+		private int indexed;
+		private int generation;
+
+		private SearchResult(String[] words, BitSet matches)
+		{
+			this.words = words;
+			this.matches = matches;
+			this.indexed = docCount;
+			this.generation = MessageIndex.this.generation;
+		}
+
+		/**
+		 * Runs the query again if the index has been purged since. Must be
+		 * called with the read lock held.
+		 */
+		private void validate()
+		{
+			if (generation != MessageIndex.this.generation)
+			{
+				matches = match(words);
+				indexed = docCount;
+				generation = MessageIndex.this.generation;
+			}
+		}
+
+		/**
+		 * Returns true if <code>blob</code> matches the query. A blob which
+		 * wasn't indexed when the query was run is matched against the words
+		 * of its subject, From and To headers.
+		 */
+		public synchronized boolean contains(MessageBlob blob)
+		{
+			if (matches == null)
+				return true;
+
+			lock.readLock().lock();
+			try
+			{
+				validate();
+				int doc = blob.indexId;
+				if (doc >= 0 && doc < indexed)
+					return matches.get(doc);
+			}
+			finally
+			{
+				lock.readLock().unlock();
+			}
+
+			Set<String> terms = new HashSet<String>();
+			addHeaderTerms(blob, terms);
+			for (String word : words)
+			{
+				boolean found = false;
+				for (Iterator<String> it = terms.iterator(); !found && it.hasNext();)
+					found = it.next().startsWith(word);
+
+				if (!found)
+					return false;
+			}
+
+			return true;
+		}
+
+		/**
+		 * Returns the number of matching messages or -1 if the query matches
+		 * every message.
+		 */
+		public synchronized int size()
+		{
+			if (matches == null)
+				return -1;
+
+			lock.readLock().lock();
+			try
+			{
+				validate();
+				return matches.cardinality();
+			}
+			finally
+			{
+				lock.readLock().unlock();
+			}
+		}
+
+		/**
+		 * Returns the matching blobs which have not been removed since the
+		 * query was run.
+		 */
+		public synchronized List<MessageBlob> getBlobs()
+		{
+			List<MessageBlob> blobs = new ArrayList<MessageBlob>();
+			lock.readLock().lock();
+			try
+			{
+				if (matches != null)
+					validate();
+
+				if (matches == null)
+				{
+					for (int i = 0; i < docCount; i++)
+						if (docs[i] != null)
+							blobs.add(docs[i]);
+				}
+				else
+				{
+					for (int i = matches.nextSetBit(0); i >= 0; i = matches.nextSetBit(i + 1))
+						if (docs[i] != null)
+							blobs.add(docs[i]);
+				}
+			}
+			finally
+			{
+				lock.readLock().unlock();
+			}
+
+			return blobs;
+		}
+	}
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private final Map<String, Postings> postings = new HashMap<String, Postings>();
+
+	/**
+	 * The same lists sorted by word, to look the prefixes up.
+	 */
+	private final TreeMap<String, Postings> terms = new TreeMap<String, Postings>();
+	private MessageBlob[] docs = new MessageBlob[INITIAL_CAPACITY];
+	private int docCount;
+	private int removedCount;
+
+	/**
+	 * Incremented each time the documents are renumbered.
+	 */
+	private int generation;
+
+	private ExecutorService executor;
+
+	/**
+	 * Returns the index of the messages of the default store.
+	 */
+	public static synchronized MessageIndex getDefault()
+	{
+		if (defaultIndex == null)
+			defaultIndex = new MessageIndex();
+
+		return defaultIndex;
+	}
+
+	/**
+	 * Indexes <code>blob</code> in the background. Only the blob is queued :
+	 * its message is taken from the cache, or parsed from the spool without
+	 * caching it, when its turn comes, so that a backlog of blobs to index
+	 * doesn't hold their parsed messages.
+	 */
+	public void submit(final MessageBlob blob)
+	{
+		getExecutor().execute(new Runnable() {
+			public void run()
+			{
+				try
+				{
+					add(blob, null);
+				}
+				catch (Exception ex)
+				{
+					LOG.error("Unable to index message " + blob.getMessageId(), ex);
+				}
+			}
+		});
+	}
+
+	private synchronized ExecutorService getExecutor()
+	{
+		if (executor == null)
+		{
+			executor = Executors.newSingleThreadExecutor(
+					ThreadFactoryUtilities.createFactory("Message Indexer", true)); //$NON-NLS-1$
+		}
+
+		return executor;
+	}
+
+	/**
+	 * Waits until the blobs submitted so far are indexed.
+	 *
+	 * @throws InterruptedException if the calling thread is interrupted
+	 */
+	public void flush() throws InterruptedException
+	{
+		try
+		{
+			getExecutor().submit(new Runnable() {
+				public void run()
+				{
+				}
+			}).get();
+		}
+		catch (ExecutionException e)
+		{
+			// Can't happen
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Indexes <code>blob</code> unless it is already indexed or has been
+	 * removed.
+	 *
+	 * @param msg the parsed message or null to parse it from the blob
+	 *            without caching it
+	 */
+	public void add(MessageBlob blob, SmtpMessage msg)
+	{
+		if (blob.indexId != NOT_INDEXED)
+			return;
+
+		if (msg == null)
+			msg = blob.peekMessage();
+
+		// Freed meanwhile
+		if (msg == null)
+			return;
+
+		Set<String> words = new HashSet<String>();
+		addHeaderTerms(blob, words);
+		tokenize(MailUtilities.decodeHeaderValue(msg.getHeaderValue(SmtpHeadersInterface.CC)), false, words);
+		addPartTerms(msg.getInternalParts(), words);
+
+		lock.writeLock().lock();
+		try
+		{
+			if (blob.indexId != NOT_INDEXED)
+				return;
+
+			if (docCount == docs.length)
+			{
+				MessageBlob[] d = new MessageBlob[docCount << 1];
+				System.arraycopy(docs, 0, d, 0, docCount);
+				docs = d;
+			}
+
+			int doc = docCount++;
+			docs[doc] = blob;
+			for (String word : words)
+			{
+				Postings p = postings.get(word);
+				if (p == null)
+				{
+					p = new Postings();
+					postings.put(word, p);
+					terms.put(word, p);
+				}
+				p.add(doc);
+			}
+
+			blob.indexId = doc;
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Removes <code>blob</code> from the index. A blob which isn't indexed
+	 * yet won't be.
+	 */
+	public void remove(MessageBlob blob)
+	{
+		lock.writeLock().lock();
+		try
+		{
+			int doc = blob.indexId;
+			blob.indexId = REMOVED;
+			if (doc < 0)
+				return;
+
+			docs[doc] = null;
+			removedCount++;
+
+			if (removedCount > PURGE_THRESHOLD && removedCount > docCount - removedCount)
+				purge();
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Renumbers the live documents from 0 in the same order, dropping the
+	 * removed ones from the postings lists and the words left without any
+	 * document.
+	 */
+	private void purge()
+	{
+		int[] ids = new int[docCount];
+		int live = 0;
+		for (int i = 0; i < docCount; i++)
+		{
+			MessageBlob blob = docs[i];
+			if (blob == null)
+				ids[i] = -1;
+			else
+			{
+				ids[i] = live;
+				docs[live] = blob;
+				blob.indexId = live++;
+			}
+		}
+
+		int capacity = Math.max(INITIAL_CAPACITY, live << 1);
+		if (docs.length > capacity)
+		{
+			MessageBlob[] d = new MessageBlob[capacity];
+			System.arraycopy(docs, 0, d, 0, live);
+			docs = d;
+		}
+		else
+			Arrays.fill(docs, live, docCount, null);
+
+		for (Iterator<Map.Entry<String, Postings>> it = postings.entrySet().iterator(); it.hasNext();)
+		{
+			Map.Entry<String, Postings> e = it.next();
+			e.getValue().purge(ids);
+			if (e.getValue().size == 0)
+			{
+				terms.remove(e.getKey());
+				it.remove();
+			}
+		}
+
+		docCount = live;
+		removedCount = 0;
+		generation++;
+	}
+
+	/**
+	 * Returns the messages containing every word of <code>query</code>, as
+	 * a word or as the beginning of a word. Letter case and punctuation are
+	 * ignored and an empty query matches every message.
+	 */
+	public SearchResult search(String query)
+	{
+		Set<String> parsed = parseQuery(query);
+		String[] words = parsed.toArray(new String[parsed.size()]);
+
+		lock.readLock().lock();
+		try
+		{
+			return new SearchResult(words, words.length == 0 ? null : match(words));
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the words of <code>query</code> as they are looked up by
+	 * {@link #search(String)}. Words longer than {@link #MAX_TERM_LENGTH}
+	 * are ignored.
+	 */
+	public static Set<String> parseQuery(String query)
+	{
+		Set<String> words = new HashSet<String>();
+		tokenize(query, false, words);
+		return words;
+	}
+
+	/**
+	 * Returns the numbers of the live documents matching every word. Must
+	 * be called with the read lock held.
+	 */
+	private BitSet match(String[] words)
+	{
+		// The lists of the words beginning with each query word, the
+		// most selective first
+		List<Expansion> expansions = new ArrayList<Expansion>(words.length);
+		for (String word : words)
+			expansions.add(new Expansion(terms.subMap(word, word + Character.MAX_VALUE).values()));
+		Collections.sort(expansions);
+
+		BitSet matches = new BitSet(docCount);
+		for (Postings p : expansions.get(0).postings)
+			p.addTo(matches);
+
+		for (int i = 1; i < expansions.size() && !matches.isEmpty(); i++)
+		{
+			Expansion e = expansions.get(i);
+			long probes = (long) matches.cardinality() * e.postings.length * PROBE_COST;
+
+			if (probes < e.count)
+			{
+				// Looks the few matches up instead of reading long lists
+				for (int doc = matches.nextSetBit(0); doc >= 0; doc = matches.nextSetBit(doc + 1))
+				{
+					if (!e.contains(doc))
+						matches.clear(doc);
+				}
+			}
+			else
+			{
+				BitSet found = new BitSet(docCount);
+				for (Postings p : e.postings)
+					p.addTo(found);
+				matches.and(found);
+			}
+		}
+
+		// Drops the removed documents not purged yet
+		for (int doc = matches.nextSetBit(0); doc >= 0; doc = matches.nextSetBit(doc + 1))
+		{
+			if (docs[doc] == null)
+				matches.clear(doc);
+		}
+
+		return matches;
+	}
+
+	/**
+	 * Returns the number of indexed messages.
+	 */
+	public int size()
+	{
+		lock.readLock().lock();
+		try
+		{
+			return docCount - removedCount;
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of distinct indexed words.
+	 */
+	public int getTermCount()
+	{
+		lock.readLock().lock();
+		try
+		{
+			return postings.size();
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	private static void addHeaderTerms(MessageBlob blob, Set<String> words)
+	{
+		tokenize(blob.getMessageSubject(), false, words);
+		tokenize(MailUtilities.decodeHeaderValue(blob.getMessageFrom()), false, words);
+		tokenize(MailUtilities.decodeHeaderValue(blob.getMessageTo()), false, words);
+	}
+
+	private static void addPartTerms(SmtpMessagePart part, Set<String> words)
+	{
+		String fileName = part.getFileName();
+		if (fileName != null)
+		{
+			tokenize(MailUtilities.decodeHeaderValue(fileName), false, words);
+			return;
+		}
+
+		List<SmtpMessagePart> parts = part.getParts();
+		if (parts != null && !parts.isEmpty())
+		{
+			for (SmtpMessagePart p : parts)
+				addPartTerms(p, words);
+			return;
+		}
+
+		String type = part.getContentType();
+		type = type == null ? "text/plain" : type.trim().toLowerCase(); //$NON-NLS-1$
+		if (type.startsWith("text/")) //$NON-NLS-1$
+			tokenize(part.getDecodedBody(), type.startsWith("text/html"), words); //$NON-NLS-1$
+	}
+
+	/**
+	 * Adds the lower cased words of <code>text</code>, the runs of letters and
+	 * digits, to <code>words</code>.
+	 *
+	 * @param markup if true, HTML tags and character references are skipped
+	 */
+	protected static void tokenize(CharSequence text, boolean markup, Collection<String> words)
+	{
+		if (text == null)
+			return;
+
+		StringBuilder sb = new StringBuilder();
+		int len = text.length();
+		boolean tag = false;
+
+		for (int i = 0; i <= len; i++)
+		{
+			char c = i < len ? text.charAt(i) : ' ';
+			if (markup)
+			{
+				if (tag)
+				{
+					tag = c != '>';
+					continue;
+				}
+
+				if (c == '<' || c == '&')
+				{
+					tag = c == '<';
+					if (!tag)
+					{
+						// Skips a character reference
+						int end = i + 1;
+						if (end < len && text.charAt(end) == '#')
+							end++;
+						while (end < len && end - i <= 10 && Character.isLetterOrDigit(text.charAt(end)))
+							end++;
+						if (end < len && text.charAt(end) == ';')
+							i = end;
+					}
+					c = ' ';
+				}
+			}
+
+			if (Character.isLetterOrDigit(c))
+				sb.append(Character.toLowerCase(c));
+			else
+			if (sb.length() > 0)
+			{
+				if (sb.length() <= MAX_TERM_LENGTH)
+					words.add(sb.toString());
+				sb.setLength(0);
+			}
+		}
+	}
+}
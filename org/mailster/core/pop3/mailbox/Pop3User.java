@@ -32,6 +32,8 @@ import java.net.UnknownHostException;
  */
 public class Pop3User
 {
+    private static String hostName;
+
     private String email;
     private String password;
 
@@ -68,14 +70,33 @@ public class Pop3User
 
     public String getQualifiedMailboxID()
     {
-        try
-        {
-            return email+".Mailster@"+InetAddress.getLocalHost().getHostName();
-        }
-        catch (UnknownHostException e)
+        return getQualifiedMailboxID(email);
+    }
+
+    /**
+     * Returns the mailbox ID of <code>email</code>. The host name is only
+     * resolved once.
+     */
+    public static String getQualifiedMailboxID(String email)
+    {
+        return email+".Mailster@"+getHostName();
+    }
+
+    private static synchronized String getHostName()
+    {
+        if (hostName == null)
         {
-            return email+".Mailster@localhost";
+            try
+            {
+                hostName = InetAddress.getLocalHost().getHostName();
+            }
+            catch (UnknownHostException e)
+            {
+                hostName = "localhost";
+            }
         }
+
+        return hostName;
     }
 
     public int hashCode()
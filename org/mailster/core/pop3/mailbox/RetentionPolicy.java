@@ -0,0 +1,104 @@
+package org.mailster.core.pop3.mailbox;
+
+/**
+ * ---<br>
+ * Mailster (C) 2007-2009 De Oliveira Edouard
+ * <p>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 675 Mass
+ * Ave, Cambridge, MA 02139, USA.
+ * <p>
+ * See&nbsp; <a href="http://tedorg.free.fr/en/projects.php" target="_parent">Mailster
+ * Web Site</a> <br>
+ * ---
+ * <p>
+ * RetentionPolicy.java - Limits the content of a mailbox : once the maximum
+ * number of messages, the maximum size or the maximum age is exceeded, the
+ * oldest messages are expired. A zero limit means no limit.
+ *
+ * @author <a href="mailto:doe_wanted@yahoo.fr">Edouard De Oliveira</a>
+ * @version $Revision$, $Date$
+ */
+public class RetentionPolicy
+{
+	/**
+	 * The policy keeping every message.
+	 */
+	public final static RetentionPolicy UNLIMITED = new RetentionPolicy(0, 0, 0);
+
+	private final int maxMessages;
+	private final long maxBytes;
+	private final long maxAge;
+
+	/**
+	 * Creates a new policy.
+	 *
+	 * @param maxMessages the maximum number of messages
+	 * @param maxBytes the maximum size (in bytes) of the messages
+	 * @param maxAge the maximum time (in milliseconds) a message is kept
+	 */
+	public RetentionPolicy(int maxMessages, long maxBytes, long maxAge)
+	{
+		if (maxMessages < 0 || maxBytes < 0 || maxAge < 0)
+			throw new IllegalArgumentException("Limits must be >= 0");
+
+		this.maxMessages = maxMessages;
+		this.maxBytes = maxBytes;
+		this.maxAge = maxAge;
+	}
+
+	public int getMaxMessages()
+	{
+		return maxMessages;
+	}
+
+	public long getMaxBytes()
+	{
+		return maxBytes;
+	}
+
+	public long getMaxAge()
+	{
+		return maxAge;
+	}
+
+	public boolean isUnlimited()
+	{
+		return maxMessages == 0 && maxBytes == 0 && maxAge == 0;
+	}
+
+	/**
+	 * Returns true if a mailbox holding <code>count</code> messages of a
+	 * total size of <code>bytes</code> exceeds the limits.
+	 */
+	public boolean isExceeded(long count, long bytes)
+	{
+		return (maxMessages > 0 && count > maxMessages)
+				|| (maxBytes > 0 && bytes > maxBytes);
+	}
+
+	/**
+	 * Returns true if a message stored at <code>time</code> is expired at
+	 * <code>now</code>.
+	 */
+	public boolean isExpired(long time, long now)
+	{
+		return maxAge > 0 && now - time > maxAge;
+	}
+
+	public String toString()
+	{
+		return "Retention policy [" + maxMessages + " messages, " + maxBytes
+				+ " bytes, " + maxAge + " ms]";
+	}
+}
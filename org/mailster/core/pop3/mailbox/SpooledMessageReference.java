@@ -0,0 +1,229 @@
+package org.mailster.core.pop3.mailbox;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.mailster.core.mail.SmtpMessage;
+import org.mailster.core.mail.SmtpMessageFactory;
+import org.mailster.core.metrics.Counter;
+import org.mailster.core.metrics.Histogram;
+import org.mailster.core.metrics.MetricsRegistry;
+import org.mailster.core.spool.MessageSpool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ---<br>
+ * Mailster (C) 2007-2009 De Oliveira Edouard
+ * <p>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 675 Mass
+ * Ave, Cambridge, MA 02139, USA.
+ * <p>
+ * See&nbsp; <a href="http://tedorg.free.fr/en/projects.php" target="_parent">Mailster
+ * Web Site</a> <br>
+ * ---
+ * <p>
+ * SpooledMessageReference.java - References a {@link SmtpMessage} whose raw
+ * data is written to the {@link MessageSpool} when the reference is created.
+ * The parsed message is kept in a bounded {@link MessageCache} : when it has
+ * been evicted, it is rebuilt by parsing the headers from a read-only view of
+ * the spool, the body being decoded on demand.
+ * 
+ * @author <a href="mailto:doe_wanted@yahoo.fr">Edouard De Oliveira</a>
+ * @version $Revision: 1.11 $, $Date: 2011/05/14 12:08:10 $
+ */
+public class SpooledMessageReference
+{
+	private static final Logger LOG = LoggerFactory.getLogger(SpooledMessageReference.class);
+	
+	private static final Histogram SPOOL_TIME = MetricsRegistry.getDefault().histogram(
+			"mailster_spool_write_seconds", "Time spent writing a message to the spool");
+	private static final Counter SPOOL_FAILURES = MetricsRegistry.getDefault().counter(
+			"mailster_spool_write_failures_total", "Messages kept in memory because they could not be spooled");
+	private static final Histogram RELOAD_TIME = MetricsRegistry.getDefault().histogram(
+			"mailster_spool_reload_seconds", "Time spent rebuilding a message evicted from the cache");
+
+	private MessageSpool spool;
+	private MessageCache cache;
+	private Long key;
+	
+	private String charset;
+	private List<String> recipients;
+	private String messageID;
+	private String date;
+	
+	/**
+	 * Holds the message when it could not be spooled.
+	 */
+	private SmtpMessage _msg;
+	
+	public SpooledMessageReference(SmtpMessage object) 
+	{
+		this(object, MessageSpool.getDefault(), MessageCache.getDefault());
+	}
+	
+	public SpooledMessageReference(SmtpMessage object, MessageSpool spool, MessageCache cache) 
+	{
+		this.spool = spool;
+		this.cache = cache;
+		store(object);
+	}
+	
+	/**
+	 * References a message spooled by a previous instance of a persistent 
+	 * spool. The message is parsed on first access.
+	 */
+	public SpooledMessageReference(long key, String charset, List<String> recipients, 
+			String messageID, String date, MessageSpool spool, MessageCache cache) 
+	{
+		this.spool = spool;
+		this.cache = cache;
+		this.key = new Long(key);
+		this.charset = charset;
+		this.recipients = new ArrayList<String>(recipients);
+		this.messageID = messageID;
+		this.date = date;
+	}
+	
+	/**
+	 * Returns the message, reloading it from the spool if it isn't cached.
+	 */
+	public SmtpMessage get()
+	{
+		if (_msg != null)
+			return _msg;
+		
+		SmtpMessage msg = cache.get(key);
+		if (msg == null)
+		{
+			msg = reload();
+			if (msg != null)
+				cache.put(key, msg);
+		}
+		
+		return msg;
+	}
+	
+	/**
+	 * Returns the message if it is held or cached, or else parses it from
+	 * the spool without caching it : the returned message is meant to be
+	 * read once and dropped, without evicting the cached ones.
+	 */
+	public SmtpMessage peek()
+	{
+		if (_msg != null)
+			return _msg;
+		
+		SmtpMessage msg = cache.get(key);
+		return msg == null ? reload() : msg;
+	}
+	
+	/**
+	 * Returns a read-only view of the raw message. The spooled data is read
+	 * directly : the message is neither parsed nor cached.
+	 */
+	public ByteBuffer getRawData()
+	{
+		if (_msg != null)
+			return _msg.getRawData();
+		
+		return spool.read(key.longValue());
+	}
+	
+	private SmtpMessage reload()
+	{
+		long started = System.nanoTime();
+		LOG.debug("Reloading Object[id:{}] ...", key);
+		
+		ByteBuffer data = spool.read(key.longValue());
+		if (data == null)
+		{
+			LOG.debug("Unable to reload the spooled object [id:{}]", key);
+			return null;
+		}
+		
+		SmtpMessage msg = new SmtpMessageFactory(Charset.forName(charset))
+			.asSmtpMessage(data, recipients);
+		msg.restoreGeneratedValues(messageID, date);
+		
+		long elapsed = System.nanoTime() - started;
+		RELOAD_TIME.record(elapsed);
+		LOG.debug("Object[id:{}] reloaded in {} ms", new Object[] {key, elapsed / 1000000});
+		
+		return msg;
+	}
+
+	private void store(SmtpMessage object) 
+	{
+		charset = object.getRawCharset();
+		recipients = new ArrayList<String>(object.getRecipients());
+		messageID = object.getMessageID();
+		date = object.getDate();
+		
+		try 
+		{
+			long start = System.nanoTime();
+			key = new Long(spool.append(object.getRawData()));
+			SPOOL_TIME.recordSince(start);
+			
+			// Recently received messages are likely to be read soon
+			cache.put(key, object);
+		}
+		catch (IOException ex) 
+		{
+			LOG.debug("Unable to spool the object", ex);
+			SPOOL_FAILURES.increment();
+			_msg = object;
+		}
+	}
+	
+	/**
+	 * Returns the id of the message in the spool or null if it could not be
+	 * spooled.
+	 */
+	public Long getKey()
+	{
+		return key;
+	}
+	
+	public String getCharset()
+	{
+		return charset;
+	}
+	
+	public String getMessageID()
+	{
+		return messageID;
+	}
+	
+	public String getDate()
+	{
+		return date;
+	}
+	
+	/**
+	 * Removes the message from the cache and from the spool.
+	 */
+	public void delete()
+	{
+		if (key != null)
+		{
+			cache.remove(key);
+			spool.delete(key.longValue());
+		}
+	}
+}
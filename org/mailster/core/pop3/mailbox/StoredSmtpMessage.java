@@ -1,15 +1,12 @@
 package org.mailster.core.pop3.mailbox;
 
-import java.text.ParseException;
+import java.nio.ByteBuffer;
 import java.util.Date;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.mail.Flags;
 
-import org.mailster.core.mail.SmtpHeadersInterface;
 import org.mailster.core.mail.SmtpMessage;
-import org.mailster.gui.Messages;
-import org.mailster.util.DateUtilities;
-import org.mailster.util.DateUtilities.DateFormatterEnum;
 
 /**
  * ---<br>
@@ -31,141 +28,101 @@ import org.mailster.util.DateUtilities.DateFormatterEnum;
  * ---
  * <p>
  * StoredSmtpMessage.java - Decorates the <code>SmtpMessage</code>object with properties used for
- * the POP3 protocol and for the storage in a <code>MailBox</code>.
+ * the POP3 protocol and for the storage in a <code>MailBox</code>. The message itself is held by a
+ * {@link MessageBlob} shared by all the mailboxes it was delivered to : a stored message only holds
+ * the state of the mailbox entry and a reference on the blob.
  * 
  * @author <a href="mailto:doe_wanted@yahoo.fr">Edouard De Oliveira</a>
  * @version $Revision: 1.9 $, $Date: 2011/05/14 12:08:10 $
  */
 public class StoredSmtpMessage
 {
-	private static final String DEFAULT_LABEL = Messages.getString("MailsterSWT.treeView.localNetwork.label"); //$NON-NLS-1$
+	/**
+	 * The host label used when the recipient host can't be computed. The GUI
+	 * replaces it with its localized label.
+	 */
+	private static String defaultHostLabel = "Local network"; //$NON-NLS-1$
 	
 	private MailBox mailBox;
 
-	private SoftSmtpMessageReference message;
+	private MessageBlob blob;
+	private final AtomicBoolean released = new AtomicBoolean();
 	private Date internalDate = new Date();
 	private Flags flags = new Flags();
 	private Long id;
 	private boolean checked;
 
-	// Cached data to prevent from parsing the date multiple times.
-	private Date messageDate;
-
-	// Cached data, allows to gc the message.
-	private String _msgId;
-	private String _msgFrom;
-	private String _msgTo;
-	private String _msgSubject;
-	private String _msgHost;
-	private int _msgSize;
-	private int _msgAttachedFilesCount;
-
+	/**
+	 * Stores the message in the default {@link MessageBlobStore}.
+	 */
 	public StoredSmtpMessage(SmtpMessage msg, Long id)
 	{
-		updateCache(msg);
+		this(MessageBlobStore.getDefault().acquire(msg), id);
+	}
 
-		this.message = new SoftSmtpMessageReference(id, msg);
+	/**
+	 * Creates an entry owning a reference on <code>blob</code> : the
+	 * reference is released when the entry is removed from its mailbox.
+	 */
+	protected StoredSmtpMessage(MessageBlob blob, Long id)
+	{
+		this.blob = blob;
 		this.id = id;
 	}
 
-	protected void updateCache(SmtpMessage msg)
+	public static void setDefaultHostLabel(String label)
 	{
-		try
-		{
-			messageDate = DateUtilities.parse(DateFormatterEnum.RFC822, msg.getDate());
-		} catch (ParseException e)
-		{
-			messageDate = new Date();
-		}
+		defaultHostLabel = label;
+	}
 
-		_msgId = msg.getMessageID();
-		_msgTo = msg.getTo();
-		_msgSubject = msg.getSubject();
-		_msgSize = msg.getSize();
-		_msgAttachedFilesCount = msg.getInternalParts().getAttachedFiles().length;
-		_msgFrom = msg.getHeaderValue(SmtpHeadersInterface.FROM);
-		_msgHost = computeHost();
+	protected static String getDefaultHostLabel()
+	{
+		return defaultHostLabel;
 	}
-	
-	/**
-	 * Retrieves the host of the first email in the TO header.
-	 */
-	private String computeHost()
-	{
-		String email = _msgTo;
-		
-		if (email == null)
-			return DEFAULT_LABEL;
-
-		try
-		{
-			email = email.toLowerCase();
-			int pos = email.indexOf(','); //$NON-NLS-1$
-			if (pos >= 0)
-				email = email.substring(0, pos);
-
-			pos = email.indexOf(';'); //$NON-NLS-1$
-			if (pos >= 0)
-				email = email.substring(0, pos);
-
-			pos = email.lastIndexOf("@"); //$NON-NLS-1$
-			if (pos >= 0)
-			{
-				pos++;
-				int end = email.indexOf(">"); //$NON-NLS-1$
-				return end < 0 ? email.substring(pos) : email.substring(pos, end);
-			}
-			else
-				return DEFAULT_LABEL;
-		} catch (Exception ex)
-		{
-			return DEFAULT_LABEL;
-		}
-	}	
 
 	public Date getMessageDate()
 	{
-		return messageDate;
+		return blob.getMessageDate();
 	}
 
 	public boolean isPassivated()
 	{
-		return message.get() == null;
+		return blob.getMessage() == null;
 	}
 
 	public String getMessageId()
 	{
-		return _msgId;
+		return blob.getMessageId();
 	}
 	
 	public String getMessageHost()
 	{
-		return _msgHost;
+		return blob.getMessageHost();
 	}
 
 	public String getMessageFrom()
 	{
-		return _msgFrom;
+		return blob.getMessageFrom();
 	}
 	
 	public String getMessageTo()
 	{
-		return _msgTo;
+		return blob.getMessageTo();
 	}
 
 	public String getMessageSubject()
 	{
-		return _msgSubject;
+		return blob.getMessageSubject();
 	}
 
 	public int getMessageSize()
 	{
-		return _msgSize;
+		return blob.getMessageSize();
 	}
 
 	public int getAttachedFilesCount()
 	{
-		return _msgAttachedFilesCount;
+		return blob.getAttachedFilesCount();
 	}
 
 	public boolean isChecked()
@@ -188,16 +145,23 @@ public class StoredSmtpMessage
 		return flags;
 	}
 
-	public synchronized SmtpMessage getMessage()
+	public MessageBlob getBlob()
+	{
+		return blob;
+	}
+
+	public SmtpMessage getMessage()
+	{
+		return blob.getMessage();
+	}
+	
+	/**
+	 * Returns a read-only view of the message as received, without parsing 
+	 * it.
+	 */
+	public ByteBuffer getRawData()
 	{
-		SmtpMessage object = message.get();
-	    if (object == null)
-	    {
-			object = message.reload();
-			message = new SoftSmtpMessageReference(id, object); 
-	    }
-	    
-	    return object;
+		return blob.getRawData();
 	}
 	
 	public Date getInternalDate()
@@ -210,14 +174,21 @@ public class StoredSmtpMessage
 		return flags.contains(Flags.Flag.SEEN);
 	}
 
+	protected void setInternalDate(Date internalDate)
+	{
+		this.internalDate = internalDate;
+	}
+
 	public void setNotSeen()
 	{
 		flags.remove(Flags.Flag.SEEN);
+		blob.getStore().seenChanged(this);
 	}
 	
 	public void setSeen()
 	{
 		flags.add(Flags.Flag.SEEN);
+		blob.getStore().seenChanged(this);
 	}
 
 	public MailBox getMailBox()
@@ -230,9 +201,14 @@ public class StoredSmtpMessage
 		this.mailBox = mailBox;
 	}
 
-	protected void finalize()
-		throws Throwable
+	/**
+	 * Releases the reference on the blob. Entries must be released when they
+	 * are removed from their mailbox. Calling this method more than once has
+	 * no effect.
+	 */
+	protected void release()
 	{
-		message.delete();
+		if (released.compareAndSet(false, true))
+			blob.release();
 	}
 }
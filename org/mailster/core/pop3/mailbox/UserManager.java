@@ -1,8 +1,8 @@
 package org.mailster.core.pop3.mailbox;
 
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * ---<br>
@@ -40,8 +40,8 @@ public class UserManager
 	 */
     private static String defaultPassword = DEFAULT_PASSWORD;
     
-    private Map<String, Pop3User> _users = Collections
-            .synchronizedMap(new HashMap<String, Pop3User>());
+    private ConcurrentMap<String, Pop3User> _users = 
+    	new ConcurrentHashMap<String, Pop3User>();
     
     private MailBoxManager mailBoxManager = new MailBoxManager();
 
@@ -62,16 +62,34 @@ public class UserManager
 
     private Pop3User createUserIfNecessary(String login)
     {
-        Pop3User user = (Pop3User) _users.get(login);
+        Pop3User user = _users.get(login);
         if (user == null)
         {
-            user = new Pop3User(login);
-            _users.put(login, user);            
+            Pop3User u = new Pop3User(login);
+            user = _users.putIfAbsent(login, u);
+            if (user == null)
+                user = u;
         }
         
         return user;
     }
 
+    /**
+     * Evicts the idle and empty mailboxes along with their users.
+     * 
+     * @param idleTime the minimum idle time (in milliseconds)
+     * @return the number of evicted mailboxes
+     * @see MailBoxManager#evictIdleMailBoxes(long)
+     */
+    public int evictIdleMailBoxes(long idleTime)
+    {
+        List<String> evicted = mailBoxManager.evictIdleMailBoxes(idleTime);
+        for (String email : evicted)
+            _users.remove(email);
+
+        return evicted.size();
+    }
+
     public void clear()
     {
         _users.clear();
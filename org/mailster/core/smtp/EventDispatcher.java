@@ -0,0 +1,289 @@
+package org.mailster.core.smtp;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mailster.core.metrics.Histogram;
+import org.mailster.core.metrics.MetricsRegistry;
+import org.mailster.util.ThreadFactoryUtilities;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ---<br>
+ * Mailster (C) 2007-2009 De Oliveira Edouard
+ * <p>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 675 Mass
+ * Ave, Cambridge, MA 02139, USA.
+ * <p>
+ * See&nbsp; <a href="http://tedorg.free.fr/en/projects.php" target="_parent">Mailster
+ * Web Site</a> <br>
+ * ---
+ * <p>
+ * EventDispatcher.java - A bounded event dispatcher. At most <i>capacity</i>
+ * events may be waiting for a dispatching thread : when the queue is full the
+ * calling thread (ie the SMTP session) blocks until room is made or the offer
+ * timeout expires, in which case the event is dropped. Control events, such
+ * as server state changes, don't count against the capacity and never block.
+ *
+ * @author <a href="mailto:doe_wanted@yahoo.fr">Edouard De Oliveira</a>
+ * @version $Revision$, $Date$
+ */
+public class EventDispatcher
+{
+	private static final Logger LOG = LoggerFactory.getLogger(EventDispatcher.class);
+
+	/**
+	 * The default number of dispatching threads.
+	 */
+	public final static int DEFAULT_PARALLELISM = 4;
+
+	/**
+	 * The default maximum number of events waiting to be dispatched.
+	 */
+	public final static int DEFAULT_QUEUE_CAPACITY = 1000;
+
+	/**
+	 * The default time (in milliseconds) a caller waits for room in the queue.
+	 */
+	public final static long DEFAULT_OFFER_TIMEOUT = 30000;
+
+	/**
+	 * A semaphore which number of permits can be decreased.
+	 */
+	private static class CapacitySemaphore extends Semaphore
+	{
+		private static final long serialVersionUID = -2213787352632372187L;
+
+		public CapacitySemaphore(int permits)
+		{
+			super(permits, true);
+		}
+
+		protected void reducePermits(int reduction)
+		{
+			super.reducePermits(reduction);
+		}
+	}
+
+	/**
+	 * Wraps an event to release its queue slot and update counters.
+	 */
+	private class DispatchTask implements Runnable
+	{
+		private Runnable event;
+		private boolean bounded;
+
+		public DispatchTask(Runnable event, boolean bounded)
+		{
+			this.event = event;
+			this.bounded = bounded;
+		}
+
+		public void run()
+		{
+			if (bounded)
+				slots.release();
+			try
+			{
+				event.run();
+			}
+			catch (RuntimeException ex)
+			{
+				LOG.error("Event dispatching failed", ex);
+			}
+			finally
+			{
+				dispatched.incrementAndGet();
+			}
+		}
+	}
+
+	private final static Histogram WAIT_TIME = MetricsRegistry.getDefault().histogram(
+			"mailster_dispatch_wait_seconds", "Time spent waiting for room in an event dispatcher queue");
+
+	private ThreadPoolExecutor executor;
+	private CapacitySemaphore slots;
+	private int capacity;
+	private volatile long offerTimeout = DEFAULT_OFFER_TIMEOUT;
+
+	private final AtomicLong queued = new AtomicLong();
+	private final AtomicLong dispatched = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+
+	public EventDispatcher(String threadName)
+	{
+		this(threadName, DEFAULT_PARALLELISM, DEFAULT_QUEUE_CAPACITY);
+	}
+
+	public EventDispatcher(String threadName, int parallelism, int capacity)
+	{
+		if (parallelism < 1 || capacity < 1)
+			throw new IllegalArgumentException("Parallelism and capacity must be >= 1");
+
+		this.capacity = capacity;
+		this.slots = new CapacitySemaphore(capacity);
+		this.executor = new ThreadPoolExecutor(parallelism, parallelism,
+				0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+				ThreadFactoryUtilities.createFactory(threadName));
+	}
+
+	/**
+	 * Queues an event. If the queue is full, blocks the calling thread until
+	 * some room is available or the offer timeout expires.
+	 *
+	 * @param event the event to dispatch
+	 * @return false if the event has been dropped
+	 */
+	public boolean dispatch(Runnable event)
+	{
+		boolean acquired = false;
+		try
+		{
+			// A zero timeout honors the fairness, unlike tryAcquire()
+			acquired = slots.tryAcquire(0, TimeUnit.MILLISECONDS);
+			if (!acquired)
+			{
+				// Only the blocking case is timed to keep the fast path cheap
+				long start = System.nanoTime();
+				try
+				{
+					acquired = slots.tryAcquire(offerTimeout, TimeUnit.MILLISECONDS);
+				}
+				finally
+				{
+					WAIT_TIME.recordSince(start);
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+
+		if (!acquired)
+		{
+			dropped.incrementAndGet();
+			LOG.warn("Event dispatcher queue is full, event dropped");
+			return false;
+		}
+
+		queued.incrementAndGet();
+		executor.execute(new DispatchTask(event, true));
+		return true;
+	}
+
+	/**
+	 * Queues a control event without taking room in the queue : the calling
+	 * thread (ie the UI thread) is never blocked and the event is never
+	 * dropped. It must only be used for rare events.
+	 *
+	 * @param event the event to dispatch
+	 */
+	public void dispatchControl(Runnable event)
+	{
+		queued.incrementAndGet();
+		executor.execute(new DispatchTask(event, false));
+	}
+
+	public int getParallelism()
+	{
+		return executor.getMaximumPoolSize();
+	}
+
+	public synchronized void setParallelism(int parallelism)
+	{
+		if (parallelism < 1)
+			throw new IllegalArgumentException("Parallelism must be >= 1");
+
+		if (parallelism > executor.getMaximumPoolSize())
+		{
+			executor.setMaximumPoolSize(parallelism);
+			executor.setCorePoolSize(parallelism);
+		}
+		else
+		{
+			executor.setCorePoolSize(parallelism);
+			executor.setMaximumPoolSize(parallelism);
+		}
+	}
+
+	public synchronized int getQueueCapacity()
+	{
+		return capacity;
+	}
+
+	public synchronized void setQueueCapacity(int capacity)
+	{
+		if (capacity < 1)
+			throw new IllegalArgumentException("Capacity must be >= 1");
+
+		if (capacity > this.capacity)
+			slots.release(capacity - this.capacity);
+		else
+			slots.reducePermits(this.capacity - capacity);
+
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Returns the time (in milliseconds) a caller waits for room in the queue.
+	 */
+	public long getOfferTimeout()
+	{
+		return offerTimeout;
+	}
+
+	public void setOfferTimeout(long offerTimeout)
+	{
+		this.offerTimeout = offerTimeout < 0 ? 0 : offerTimeout;
+	}
+
+	/**
+	 * Returns the number of events waiting for a dispatching thread.
+	 */
+	public int getQueueSize()
+	{
+		return executor.getQueue().size();
+	}
+
+	/**
+	 * Returns the number of events accepted since the creation of the
+	 * dispatcher.
+	 */
+	public long getQueuedCount()
+	{
+		return queued.get();
+	}
+
+	/**
+	 * Returns the number of events dispatched since the creation of the
+	 * dispatcher.
+	 */
+	public long getDispatchedCount()
+	{
+		return dispatched.get();
+	}
+
+	/**
+	 * Returns the number of events dropped because the queue was full.
+	 */
+	public long getDroppedCount()
+	{
+		return dropped.get();
+	}
+}
@@ -5,6 +5,8 @@ import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.mailster.core.metrics.Counter;
+import org.mailster.core.metrics.MetricsRegistry;
 import org.mailster.smtp.api.RejectException;
 import org.mailster.smtp.api.TooMuchDataException;
 import org.mailster.smtp.api.handler.AbstractDeliveryHandler;
@@ -43,6 +45,9 @@ import org.mailster.smtp.util.SharedStreamUtils;
 public class MailsterDeliveryHandler
 	extends AbstractDeliveryHandler
 {
+	private final static Counter SESSIONS = MetricsRegistry.getDefault().counter(
+			"mailster_smtp_sessions_total", "SMTP sessions opened");
+	
 	private List<String> recipients = new ArrayList<String>();
 	private String from;
 	
@@ -50,6 +55,7 @@ public class MailsterDeliveryHandler
 			AuthenticationHandler authHandler)
 	{
 		super(ctx, authHandler);
+		SESSIONS.increment();
 	}
 	
 	public void from(String from) throws RejectException
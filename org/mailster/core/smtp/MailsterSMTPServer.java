@@ -3,15 +3,19 @@ package org.mailster.core.smtp;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.List;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.mailster.core.crypto.SSLFilterFactory;
 import org.mailster.core.crypto.X509SecureSocketFactory.SSLProtocol;
 import org.mailster.core.mail.SmtpMessage;
 import org.mailster.core.mail.SmtpMessageFactory;
+import org.mailster.core.metrics.Counter;
+import org.mailster.core.metrics.DeliveryTrace;
+import org.mailster.core.metrics.DeliveryTracer;
+import org.mailster.core.metrics.Gauge;
+import org.mailster.core.metrics.Histogram;
+import org.mailster.core.metrics.MetricsRegistry;
 import org.mailster.core.smtp.events.SMTPServerEvent;
 import org.mailster.core.smtp.events.SMTPServerListener;
 import org.mailster.smtp.SMTPServer;
@@ -20,6 +24,8 @@ import org.mailster.smtp.api.listener.MessageListener;
 import org.mailster.smtp.api.listener.MessageListenerAdapter;
 import org.mailster.smtp.command.impl.StartTLSCommand;
 import org.mailster.util.StringUtilities;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * ---<br>
@@ -51,6 +57,8 @@ import org.mailster.util.StringUtilities;
 
 public class MailsterSMTPServer extends MessageListenerAdapter
 {
+	private static final Logger LOG = LoggerFactory.getLogger(MailsterSMTPServer.class);
+	
 	/**
 	 * The default timeout.
 	 */
@@ -98,23 +106,55 @@ public class MailsterSMTPServer extends MessageListenerAdapter
     private SMTPServer server;
 
     /**
-     * Task event dispatched when an email has been received.
+     * The factory shared by all the delivery threads.
+     */
+    private final static SmtpMessageFactory factory = 
+    	new SmtpMessageFactory(MailsterConstants.DEFAULT_CHARSET);
+    
+    private final static Counter MESSAGES_RECEIVED = MetricsRegistry.getDefault().counter(
+    		"mailster_smtp_messages_received_total", "Messages received by the SMTP server");
+    private final static Counter BYTES_RECEIVED = MetricsRegistry.getDefault().counter(
+    		"mailster_smtp_received_bytes_total", "Raw bytes of the received messages");
+    private final static Counter MESSAGES_DROPPED = MetricsRegistry.getDefault().counter(
+    		"mailster_smtp_messages_dropped_total", "Messages dropped because the dispatch queue was full");
+    private final static Histogram PARSE_TIME = MetricsRegistry.getDefault().histogram(
+    		"mailster_smtp_parse_seconds", "Time spent parsing the headers of a received message");
+    
+    /**
+     * Task event dispatched when an email has been received. A new task
+     * is created for each received message.
      */    
     class EmailReceivedTask implements Runnable {
-    	private SmtpMessage msg;
+    	private final SmtpMessage msg;
+    	
+    	public EmailReceivedTask(SmtpMessage msg)
+    	{
+    		this.msg = msg;
+    	}
     	
         public void run()
         {
+            DeliveryTrace trace = msg.getTrace();
+            if (trace != null)
+            {
+            	// The dispatching thread may start before deliver() returns
+            	trace.mark(DeliveryTrace.Stage.QUEUED);
+            	trace.mark(DeliveryTrace.Stage.DISPATCHED);
+            }
+            
             SMTPServerEvent e = new SMTPServerEvent(this);
             e.setMessage(msg);
-            List<SMTPServerListener> list = copyListeners();
-            for (SMTPServerListener l : list)
-            	l.emailReceived(e);
-        }
-        
-        public void setMessage(SmtpMessage msg)
-        {
-        	this.msg = msg;
+            for (SMTPServerListener l : externalListeners)
+            {
+            	try
+            	{
+            		l.emailReceived(e);
+            	}
+            	catch (RuntimeException ex)
+            	{
+            		LOG.error("Listener failed to handle received email", ex);
+            	}
+            }
         }
     }
 
@@ -125,8 +165,7 @@ public class MailsterSMTPServer extends MessageListenerAdapter
         public void run()
         {
             SMTPServerEvent e = new SMTPServerEvent(this);
-            List<SMTPServerListener> list = copyListeners();
-            for (SMTPServerListener l : list)
+            for (SMTPServerListener l : externalListeners)
             {
                 if (isStopped())
                 	l.stopped(e);
@@ -139,24 +178,31 @@ public class MailsterSMTPServer extends MessageListenerAdapter
     /**
      * The list of smtp server events listeners.
      */
-    private Collection<SMTPServerListener> externalListeners = 
-    	new ArrayList<SMTPServerListener>();
+    private List<SMTPServerListener> externalListeners = 
+    	new CopyOnWriteArrayList<SMTPServerListener>();
     
     /**
-     * The event dispatcher executor.
+     * The bounded event dispatcher.
      */
-    private Executor eventDispatcher = Executors.newFixedThreadPool(4);
+    private EventDispatcher eventDispatcher = 
+    	new EventDispatcher("SMTP Event Dispatcher");
     
-    /**
-     * The email received event task.
-     */
-    private EmailReceivedTask emailTask = new EmailReceivedTask();
-
     /**
      * The server state updated event task.
      */    
     private ServerStateUpdatedTask serverStateTask = new ServerStateUpdatedTask();
     
+    /**
+     * The size of the dispatch queue, exported while the server is running.
+     */
+    private final Gauge dispatchQueueSize = new Gauge("mailster_smtp_dispatch_queue_size", 
+    		"Received messages waiting to be dispatched to the listeners") {
+    	public long getValue()
+    	{
+    		return eventDispatcher.getQueueSize();
+    	}
+    };
+    
     /**
      * Creates an instance of SimpleSmtpServer. Server will listen on the
      * default host:port. Debug mode is off by default.
@@ -236,7 +282,11 @@ public class MailsterSMTPServer extends MessageListenerAdapter
      */
     public void start()
     {
+   		server.getConfig().setHostName(hostName);
+   		server.setPort(port);
+   		server.getConfig().setConnectionTimeout(connectionTimeout);
    		server.start();
+   		MetricsRegistry.getDefault().register(dispatchQueueSize);
    		fireServerStateUpdated();
     }
     
@@ -247,15 +297,16 @@ public class MailsterSMTPServer extends MessageListenerAdapter
     public void stop()
     {
         server.stop();
+        MetricsRegistry.getDefault().unregister(dispatchQueueSize);
         fireServerStateUpdated();
     }
 
-    public synchronized void addSMTPServerListener(SMTPServerListener listener)
+    public void addSMTPServerListener(SMTPServerListener listener)
     {
     	externalListeners.add(listener);
     }
     
-    public synchronized void removeSMTPServerListener(SMTPServerListener listener)
+    public void removeSMTPServerListener(SMTPServerListener listener)
     {
     	externalListeners.remove(listener);
     }
@@ -270,38 +321,81 @@ public class MailsterSMTPServer extends MessageListenerAdapter
     	return server == null ||  !server.isRunning();
     }
 	
+	/**
+	 * Parses the received data and dispatches the message to the listeners.
+	 * The calling session is blocked while the dispatch queue is full. 
+	 * 
+	 * @throws IOException if data can't be read or the message has been 
+	 * dropped because listeners fell too far behind
+	 */
 	public void deliver(String from, List<String> recipients, InputStream data)
 			throws TooMuchDataException, IOException 
 	{		
-		SmtpMessageFactory factory = 
-			new SmtpMessageFactory(MailsterConstants.DEFAULT_CHARSET);
-		
+		DeliveryTrace trace = DeliveryTracer.getDefault().start();
+		SmtpMessage msg = null;
 		try 
 		{
-			SmtpMessage msg = factory.asSmtpMessage(data, recipients);
-			fireMessageReceived(msg);
+			long start = System.nanoTime();
+			msg = factory.asSmtpMessage(data, recipients);
+			PARSE_TIME.recordSince(start);
 		} 
 		catch (Exception e) 
 		{
 			throw new IOException(e.getLocalizedMessage());
 		}
+		
+		trace.setMessageID(msg.getMessageID());
+		trace.mark(DeliveryTrace.Stage.PARSED);
+		msg.setTrace(trace);
+		
+		MESSAGES_RECEIVED.increment();
+		BYTES_RECEIVED.add(msg.getRawData().remaining());
+		
+		if (!fireMessageReceived(msg))
+		{
+			MESSAGES_DROPPED.increment();
+			throw new IOException("Server busy, message dropped");
+		}
+		
+		trace.mark(DeliveryTrace.Stage.QUEUED);
 	}
     
-	private synchronized ArrayList<SMTPServerListener> copyListeners() 
-	{
-	    return new ArrayList<SMTPServerListener>(externalListeners);
-	}
-	
-    private void fireMessageReceived(final SmtpMessage msg)
+    private boolean fireMessageReceived(SmtpMessage msg)
     {
-    	emailTask.setMessage(msg);
-    	eventDispatcher.execute(emailTask);
+    	return eventDispatcher.dispatch(new EmailReceivedTask(msg));
     }
 
     private void fireServerStateUpdated()
     {
-    	eventDispatcher.execute(serverStateTask);    	
+    	// Called by the UI thread : must not wait for room in the queue
+    	eventDispatcher.dispatchControl(serverStateTask);
     }	
+    
+    /**
+     * Returns the dispatcher of the server events. It exposes the counters 
+     * of queued, dispatched and dropped events.
+     */
+    public EventDispatcher getEventDispatcher()
+    {
+    	return eventDispatcher;
+    }
+    
+    /**
+     * Sets the number of threads dispatching events to the listeners.
+     */
+    public void setEventDispatcherParallelism(int parallelism)
+    {
+    	eventDispatcher.setParallelism(parallelism);
+    }
+    
+    /**
+     * Sets the maximum number of received emails waiting to be dispatched 
+     * before SMTP sessions are blocked.
+     */
+    public void setEventDispatcherQueueCapacity(int capacity)
+    {
+    	eventDispatcher.setQueueCapacity(capacity);
+    }
 	
     public boolean isDebug()
     {
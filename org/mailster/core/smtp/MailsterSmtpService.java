@@ -1,28 +1,44 @@
 package org.mailster.core.smtp;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
+import java.io.File;
 import java.io.IOException;
 import java.text.MessageFormat;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 
+import javax.management.JMException;
+
 import org.eclipse.jface.dialogs.MessageDialog;
 import org.eclipse.swt.widgets.Display;
 import org.mailster.MailsterSWT;
 import org.mailster.core.mail.SmtpMessage;
+import org.mailster.core.metrics.DeliveryTrace;
+import org.mailster.core.metrics.DeliveryTracer;
+import org.mailster.core.metrics.MetricsRegistry;
 import org.mailster.core.pop3.MailsterPop3Service;
+import org.mailster.core.pop3.mailbox.MailBox;
+import org.mailster.core.pop3.mailbox.MailBoxManager;
+import org.mailster.core.pop3.mailbox.MessageExpiryListener;
 import org.mailster.core.pop3.mailbox.StoredSmtpMessage;
 import org.mailster.core.smtp.events.SMTPServerAdapter;
 import org.mailster.core.smtp.events.SMTPServerEvent;
 import org.mailster.core.smtp.events.SMTPServerListener;
 import org.mailster.gui.Messages;
 import org.mailster.gui.prefs.ConfigurationManager;
+import org.mailster.gui.utils.BatchEventList;
+import org.mailster.gui.views.mailbox.MailBoxView;
 import org.mailster.util.DateUtilities;
 import org.mailster.util.DateUtilities.DateFormatterEnum;
 import org.slf4j.Logger;
@@ -60,29 +76,70 @@ public class MailsterSmtpService
     
 	public final static long DEFAULT_QUEUE_REFRESH_TIMEOUT = 120;
 
+	/**
+	 * The default delay in milliseconds after which received messages are shown.
+	 */
+	public final static long DEFAULT_QUEUE_FLUSH_LATENCY = 250;
+
+	/**
+	 * The maximum number of messages added to the mailbox list at once.
+	 */
+	private final static int MAX_FLUSH_BATCH_SIZE = 5000;
+
 	private List<StoredSmtpMessage> receivedMessages = new ArrayList<StoredSmtpMessage>();
+	private Set<StoredSmtpMessage> expiredMessages = new HashSet<StoredSmtpMessage>();
+	private Map<StoredSmtpMessage, DeliveryTrace> receivedTraces =
+		new IdentityHashMap<StoredSmtpMessage, DeliveryTrace>();
 	private MailQueueControl updater = new MailQueueControl();
 	private MailsterSMTPServer server;
 
 	// Options
 	private long queueRefreshtimeout = DEFAULT_QUEUE_REFRESH_TIMEOUT;
+	private long queueFlushLatency = DEFAULT_QUEUE_FLUSH_LATENCY;
 	private boolean autoStart = false;
 
 	private MailsterPop3Service pop3Service;
 	private MailsterSWT main;
 
+	/**
+	 * Schedules the flushes of the received messages to the mailbox list. A flush is scheduled
+	 * when messages are queued so that they are shown within the flush latency, and the periodic
+	 * refresh only remains as a fallback.
+	 * <p>
+	 * After each flush a probe is posted to the UI thread, behind the changes of the list. While
+	 * the UI thread hasn't run it, no other flush is made and the messages are left in the queue,
+	 * up to the refresh timeout. The time the UI thread took to run the last probe also delays the
+	 * next flush so that a busy UI thread gets bigger and fewer batches.
+	 */
 	class MailQueueControl
 		implements Runnable
 	{
 		private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
 		private long lastExecutionTime;
 
+		private ScheduledFuture<?> flush;
+		private long probeTime;
+		private long uiLag;
+
+		private Runnable flushTask = new Runnable() {
+			public void run()
+			{
+				try
+				{
+					flush();
+				} catch (RuntimeException e)
+				{
+					e.printStackTrace();
+				}
+			}
+		};
+
 		public void run()
 		{
 			try
 			{
 				lastExecutionTime = System.currentTimeMillis();
-				Display.getDefault().asyncExec(new MailQueueObserver());
+				MailBoxView.updateList(new MailQueueObserver(MAX_FLUSH_BATCH_SIZE));
 			} catch (RuntimeException e)
 			{
 				e.printStackTrace();
@@ -91,6 +148,60 @@ public class MailsterSmtpService
 
 		private ScheduledFuture<?> handle = null;
 
+		/**
+		 * Schedules a flush of the queue unless one already is.
+		 */
+		public synchronized void messagesQueued()
+		{
+			if (flush == null)
+				flush = scheduler.schedule(flushTask, getFlushDelay(), MILLISECONDS);
+		}
+
+		private synchronized long getFlushDelay()
+		{
+			return Math.min(Math.max(queueFlushLatency, uiLag * 2), queueRefreshtimeout * 1000);
+		}
+
+		private synchronized void flush()
+		{
+			long now = System.currentTimeMillis();
+			if (probeTime != 0)
+			{
+				// The UI thread hasn't caught up with the last flush yet
+				uiLag = now - probeTime;
+				if (uiLag < queueRefreshtimeout * 1000)
+				{
+					flush = scheduler.schedule(flushTask, getFlushDelay(), MILLISECONDS);
+					return;
+				}
+			}
+
+			flush = null;
+			lastExecutionTime = now;
+			MailBoxView.updateList(new MailQueueObserver(MAX_FLUSH_BATCH_SIZE));
+		}
+
+		/**
+		 * Posts a probe to the UI thread after the changes of a flush.
+		 */
+		public synchronized void flushed()
+		{
+			if (probeTime != 0)
+				return;
+
+			probeTime = System.currentTimeMillis();
+			Display.getDefault().asyncExec(new Runnable() {
+				public void run()
+				{
+					synchronized (MailQueueControl.this)
+					{
+						uiLag = System.currentTimeMillis() - probeTime;
+						probeTime = 0;
+					}
+				}
+			});
+		}
+
 		public void updateDelay()
 		{
 			if (handle == null)
@@ -118,44 +229,111 @@ public class MailsterSmtpService
 		}
 	}
 
+	/**
+	 * Moves the received messages to the mailbox list and removes the expired ones from it. As the
+	 * list is sorted and filtered by the thread changing it, this is run out of the UI thread which
+	 * only gets the resulting changes. All the changes are made in a single batch of the list.
+	 */
 	class MailQueueObserver
 		implements Runnable
 	{
+		private int maxBatchSize;
+
+		/**
+		 * Flushes at most <code>maxBatchSize</code> messages, the remaining ones being left for
+		 * another flush.
+		 */
+		public MailQueueObserver(int maxBatchSize)
+		{
+			this.maxBatchSize = maxBatchSize;
+		}
+
 		public void run()
 		{
 			if (main.getShell().isDisposed())
 				return;
 
-			int nb = 0;
-
-			EventList<StoredSmtpMessage> list = main.getMailBoxView().getEventList();
-			list.getReadWriteLock().writeLock().lock();
-			
+			List<StoredSmtpMessage> messages;
+			List<DeliveryTrace> traces;
+			Set<StoredSmtpMessage> expired;
+			boolean remaining = false;
 			synchronized (receivedMessages)
 			{
+				// Swaps the queue so that the SMTP sessions aren't blocked by the update
+				List<StoredSmtpMessage> batch = receivedMessages;
+				if (batch.size() > maxBatchSize)
+				{
+					batch = batch.subList(0, maxBatchSize);
+					remaining = true;
+				}
+				messages = new ArrayList<StoredSmtpMessage>(batch);
+				batch.clear();
+
+				// Only the messages of this batch are displayed
+				traces = new ArrayList<DeliveryTrace>(messages.size());
+				for (StoredSmtpMessage msg : messages)
+				{
+					DeliveryTrace trace = receivedTraces.remove(msg);
+					if (trace != null)
+						traces.add(trace);
+				}
+				expired = expiredMessages;
+				expiredMessages = new HashSet<StoredSmtpMessage>();
+			}
+
+			if (!messages.isEmpty() || !expired.isEmpty())
+			{
+				EventList<StoredSmtpMessage> list = main.getMailBoxView().getEventList();
+				BatchEventList<StoredSmtpMessage, StoredSmtpMessage> batchList = main.getMailBoxView()
+						.getBatchList();
+				list.getReadWriteLock().writeLock().lock();
 				try
 				{
-					list.addAll(receivedMessages);
+					batchList.beginBatch();
+					try
+					{
+						if (!expired.isEmpty())
+							list.removeAll(expired);
+						list.addAll(messages);
+					} finally
+					{
+						batchList.commitBatch();
+					}
 				} finally
 				{
 					list.getReadWriteLock().writeLock().unlock();
 				}
-
-				nb = receivedMessages.size();
-				receivedMessages.clear();
+				updater.flushed();
 			}
 
+			if (remaining)
+				updater.messagesQueued();
+
+			for (DeliveryTrace trace : traces)
+				trace.mark(DeliveryTrace.Stage.DISPLAYED);
+
+			final int nb = messages.size();
+			if (nb == 0)
+				return;
+
 			main.log(MessageFormat.format(Messages
 					.getString("MailsterSWT.log.server.updated.emailQueue"), //$NON-NLS-1$
 					new Object[] {new Integer(nb)}));
+			main.log(MessageFormat.format(Messages
+					.getString("MailsterSWT.log.server.delivery.latency"), //$NON-NLS-1$
+					new Object[] {DeliveryTracer.getDefault().getSummary()}));
 
-			if (nb > 0
-					&& ConfigurationManager.CONFIG_STORE
-							.getBoolean(ConfigurationManager.NOTIFY_ON_NEW_MESSAGES_RECEIVED_KEY))
+			if (ConfigurationManager.CONFIG_STORE
+					.getBoolean(ConfigurationManager.NOTIFY_ON_NEW_MESSAGES_RECEIVED_KEY))
 			{
-				main.showTrayItemTooltipMessage(Messages.getString("MailView.trayTooltip.title") //$NON-NLS-1$
-						+ DateUtilities.format(DateFormatterEnum.HOUR, new Date()) + ")", //$NON-NLS-1$
-						nb + Messages.getString("MailView.trayTooltip.newMessages")); //$NON-NLS-1$
+				Display.getDefault().asyncExec(new Runnable() {
+					public void run()
+					{
+						main.showTrayItemTooltipMessage(Messages.getString("MailView.trayTooltip.title") //$NON-NLS-1$
+								+ DateUtilities.format(DateFormatterEnum.HOUR, new Date()) + ")", //$NON-NLS-1$
+								nb + Messages.getString("MailView.trayTooltip.newMessages")); //$NON-NLS-1$
+					}
+				});
 			}
 		}
 	}
@@ -167,6 +345,15 @@ public class MailsterSmtpService
 		try
 		{
 			pop3Service = new MailsterPop3Service();
+			final MailBoxManager manager = pop3Service.getUserManager().getMailBoxManager();
+			manager.addMessageExpiryListener(new MessageExpiryListener() {
+				public void messagesExpired(MailBox mailBox, List<StoredSmtpMessage> messages)
+				{
+					// The queue only shows the special account mailbox
+					if (mailBox == manager.getSpecialAccountMailBox())
+						removeExpiredEmails(messages);
+				}
+			});
 		} catch (Exception e)
 		{
 			e.printStackTrace();
@@ -184,7 +371,7 @@ public class MailsterSmtpService
 	public void addReceivedEmail(List<SmtpMessage> list)
 	{
 		LOG.debug("Received {} mails ...", list.size());
-		Collection<StoredSmtpMessage> mails = new ArrayList<StoredSmtpMessage>();
+		List<StoredSmtpMessage> mails = new ArrayList<StoredSmtpMessage>();
 		for (SmtpMessage msg : list)
 		{
 			mails.add(pop3Service.storeMessage(msg));
@@ -192,7 +379,10 @@ public class MailsterSmtpService
 		synchronized (receivedMessages)
 		{
 			receivedMessages.addAll(mails);
+			for (int i = 0; i < mails.size(); i++)
+				addTrace(mails.get(i), list.get(i));
 		}
+		updater.messagesQueued();
 	}
 
 	public void addReceivedEmail(SmtpMessage msg)
@@ -201,7 +391,51 @@ public class MailsterSmtpService
 		synchronized (receivedMessages)
 		{
 			receivedMessages.add(stored);
+			addTrace(stored, msg);
 		}
+		updater.messagesQueued();
+	}
+
+	/**
+	 * Restores the messages of the persistent store of <code>directory</code>
+	 * and queues them for display.
+	 *
+	 * @throws IOException if the store can't be opened
+	 */
+	public void openPersistentStore(File directory) throws IOException
+	{
+		List<StoredSmtpMessage> restored = pop3Service.openPersistentStore(directory);
+		synchronized (receivedMessages)
+		{
+			receivedMessages.addAll(restored);
+		}
+		updater.messagesQueued();
+	}
+
+	/**
+	 * Keeps the trace of a queued message until it is displayed.
+	 */
+	private void addTrace(StoredSmtpMessage stored, SmtpMessage msg)
+	{
+		if (msg.getTrace() != null)
+			receivedTraces.put(stored, msg.getTrace());
+	}
+
+	/**
+	 * Removes the expired messages from the queue. They are removed from the mailbox list by the
+	 * next flush.
+	 */
+	private void removeExpiredEmails(List<StoredSmtpMessage> messages)
+	{
+		Set<StoredSmtpMessage> expired = new HashSet<StoredSmtpMessage>(messages);
+		synchronized (receivedMessages)
+		{
+			receivedMessages.removeAll(expired);
+			for (StoredSmtpMessage msg : expired)
+				receivedTraces.remove(msg);
+			expiredMessages.addAll(expired);
+		}
+		updater.messagesQueued();
 	}
 
 	public void addSMTPServerListener(SMTPServerListener listener)
@@ -216,12 +450,31 @@ public class MailsterSmtpService
 			server.removeSMTPServerListener(listener);
 	}
 
-	public void refreshEmailQueue(boolean syncExec)
+	/**
+	 * Flushes the queued messages to the mailbox list.
+	 *
+	 * @param wait if true, waits until the list is updated
+	 */
+	public void refreshEmailQueue(boolean wait)
 	{
-		if (syncExec)
-			Display.getDefault().syncExec(new MailQueueObserver());
-		else
-			Display.getDefault().asyncExec(new MailQueueObserver());
+		if (!wait)
+		{
+			MailBoxView.updateList(new MailQueueObserver(Integer.MAX_VALUE));
+			return;
+		}
+
+		try
+		{
+			MailBoxView.updateListAndWait(new MailQueueObserver(Integer.MAX_VALUE));
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		catch (ExecutionException e)
+		{
+			LOG.error("Unable to refresh the mail queue", e.getCause());
+		}
 	}
 
 	public void clearQueue()
@@ -232,26 +485,45 @@ public class MailsterSmtpService
 						.getString("MailView.dialog.confirm.deleteMails"), Messages
 						.getString("MailView.dialog.confirm.clear")))
 		{
-			receivedMessages.clear();
+			synchronized (receivedMessages)
+			{
+				receivedMessages.clear();
+				receivedTraces.clear();
+				expiredMessages.clear();
+			}
 			pop3Service.getUserManager().getMailBoxManager().removeAllMessagesFromSpecialAccount();
 
 			main.getMultiView().switchTopControl(false);
-			EventList<StoredSmtpMessage> eventList = main.getMailBoxView().getEventList();
-			eventList.getReadWriteLock().writeLock().lock();
-			try
-			{
-				eventList.clear();
-				main.getFilterTreeView().updateMessageCounts(eventList);
-			} finally
-			{
-				eventList.getReadWriteLock().writeLock().unlock();
-			}
+			final EventList<StoredSmtpMessage> eventList = main.getMailBoxView().getEventList();
+			MailBoxView.updateList(new Runnable() {
+				public void run()
+				{
+					eventList.getReadWriteLock().writeLock().lock();
+					try
+					{
+						eventList.clear();
+					} finally
+					{
+						eventList.getReadWriteLock().writeLock().unlock();
+					}
+				}
+			});
 			main.getOutlineView().setMessage(null);
 		}
 	}
 
 	public void startServer(boolean debug)
 	{
+		try
+		{
+			MetricsRegistry.getDefault().registerMBean();
+			DeliveryTracer.getDefault().registerMBean();
+		}
+		catch (JMException e)
+		{
+			LOG.warn("Unable to export the metrics over JMX", e);
+		}
+
 		try
 		{
 			server.setDebug(debug);
@@ -358,6 +630,23 @@ public class MailsterSmtpService
 		return queueRefreshtimeout;
 	}
 
+	/**
+	 * Set the delay after which received messages are shown in milliseconds. The delay grows
+	 * while the UI thread is busy, up to the queue refresh timeout.
+	 * 
+	 * @param latency
+	 *            the new delay in milliseconds
+	 */
+	public void setQueueFlushLatency(long latency)
+	{
+		this.queueFlushLatency = latency <= 0 ? 1 : latency;
+	}
+
+	public long getQueueFlushLatency()
+	{
+		return queueFlushLatency;
+	}
+
 	public String getOutputDirectory()
 	{
 		return ConfigurationManager.CONFIG_STORE
@@ -398,4 +687,14 @@ public class MailsterSmtpService
 	{
 		server.setConnectionTimeout(timeout);
 	}
+
+	public void setEventDispatcherParallelism(int parallelism)
+	{
+		server.setEventDispatcherParallelism(parallelism);
+	}
+
+	public void setEventDispatcherQueueCapacity(int capacity)
+	{
+		server.setEventDispatcherQueueCapacity(capacity);
+	}
 }
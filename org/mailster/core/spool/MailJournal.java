@@ -0,0 +1,478 @@
+package org.mailster.core.spool;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ---<br>
+ * Mailster (C) 2007-2009 De Oliveira Edouard
+ * <p>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 675 Mass
+ * Ave, Cambridge, MA 02139, USA.
+ * <p>
+ * See&nbsp; <a href="http://tedorg.free.fr/en/projects.php" target="_parent">Mailster
+ * Web Site</a> <br>
+ * ---
+ * <p>
+ * MailJournal.java - Write-ahead log of the metadata of a persistent mail
+ * store : the messages held by a persistent {@link MessageSpool} and the
+ * mailbox entries referencing them. The bodies are never written here.
+ * <p>
+ * Each change is appended to the journal file as a checksummed record and
+ * applied to an in-memory state. When the journal grows, the state is written
+ * to a compact index file which replaces the journal. Opening the journal
+ * loads the index and replays the journal up to the first incomplete record.
+ * Records are idempotent so a journal replayed over the index it was
+ * compacted to yields the same state.
+ *
+ * @author <a href="mailto:doe_wanted@yahoo.fr">Edouard De Oliveira</a>
+ * @version $Revision$, $Date$
+ */
+public class MailJournal
+{
+	private static final Logger LOG = LoggerFactory.getLogger(MailJournal.class);
+
+	private final static String INDEX_FILENAME = "index.dat"; //$NON-NLS-1$
+	private final static String JOURNAL_FILENAME = "journal.log"; //$NON-NLS-1$
+
+	private final static byte MESSAGE_RECORD = 1;
+	private final static byte ENTRY_RECORD = 2;
+	private final static byte REMOVE_RECORD = 3;
+	private final static byte FLAGS_RECORD = 4;
+	private final static byte REMOVE_MESSAGE_RECORD = 5;
+
+	/**
+	 * The minimum number of records appended before the journal is compacted.
+	 */
+	private final static int MIN_COMPACTION_RECORDS = 10000;
+
+	/**
+	 * The metadata of a spooled message : everything needed to list and
+	 * display it without parsing it.
+	 */
+	public static class MessageRecord
+	{
+		public long key;
+		public String digest;
+		public String charset;
+		public List<String> recipients = new ArrayList<String>();
+		public String messageID;
+		public String date;
+		public long messageDate;
+		public String from;
+		public String to;
+		public String subject;
+		public String host;
+		public int size;
+		public int attachedFilesCount;
+	}
+
+	/**
+	 * A mailbox entry referencing a spooled message.
+	 */
+	public static class EntryRecord
+	{
+		public String email;
+		public long id;
+		public long key;
+		public long internalDate;
+		public boolean seen;
+	}
+
+	private File directory;
+	private DataOutputStream out;
+	private int appended;
+
+	private Map<Long, MessageRecord> messages = new LinkedHashMap<Long, MessageRecord>();
+	private Map<String, EntryRecord> entries = new LinkedHashMap<String, EntryRecord>();
+
+	/**
+	 * Opens the journal of <code>directory</code>, creating it if needed.
+	 *
+	 * @throws IOException if the files can't be read or written
+	 */
+	public MailJournal(File directory) throws IOException
+	{
+		this.directory = directory;
+		directory.mkdirs();
+
+		int count = read(new File(directory, INDEX_FILENAME))
+			+ read(new File(directory, JOURNAL_FILENAME));
+		LOG.debug("Journal opened : {} records replayed", new Integer(count));
+
+		// Messages no entry references were being delivered or freed
+		Map<Long, MessageRecord> referenced = new LinkedHashMap<Long, MessageRecord>();
+		for (EntryRecord e : entries.values())
+		{
+			Long key = new Long(e.key);
+			MessageRecord m = messages.get(key);
+			if (m != null)
+				referenced.put(key, m);
+		}
+		messages = referenced;
+
+		compact();
+	}
+
+	private static String getEntryKey(String email, long id)
+	{
+		return email + '\0' + id;
+	}
+
+	/**
+	 * Replays the records of a file up to the first incomplete one.
+	 *
+	 * @return the number of records read
+	 */
+	private int read(File f) throws IOException
+	{
+		if (!f.exists())
+			return 0;
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+		int count = 0;
+		try
+		{
+			CRC32 crc = new CRC32();
+			for (;;)
+			{
+				byte[] record;
+				try
+				{
+					int length = in.readInt();
+					long checksum = in.readLong();
+					if (length <= 0)
+						break;
+
+					record = new byte[length];
+					in.readFully(record);
+
+					crc.reset();
+					crc.update(record);
+					if (crc.getValue() != checksum)
+						break;
+				}
+				catch (EOFException e)
+				{
+					break;
+				}
+
+				apply(new DataInputStream(new ByteArrayInputStream(record)));
+				count++;
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+
+		return count;
+	}
+
+	private void apply(DataInputStream in) throws IOException
+	{
+		byte type = in.readByte();
+		if (type == MESSAGE_RECORD)
+		{
+			MessageRecord m = new MessageRecord();
+			m.key = in.readLong();
+			m.digest = readString(in);
+			m.charset = readString(in);
+			int count = in.readInt();
+			for (int i = 0; i < count; i++)
+				m.recipients.add(readString(in));
+			m.messageID = readString(in);
+			m.date = readString(in);
+			m.messageDate = in.readLong();
+			m.from = readString(in);
+			m.to = readString(in);
+			m.subject = readString(in);
+			m.host = readString(in);
+			m.size = in.readInt();
+			m.attachedFilesCount = in.readInt();
+			messages.put(new Long(m.key), m);
+		}
+		else
+		if (type == ENTRY_RECORD)
+		{
+			EntryRecord e = new EntryRecord();
+			e.email = readString(in);
+			e.id = in.readLong();
+			e.key = in.readLong();
+			e.internalDate = in.readLong();
+			e.seen = in.readBoolean();
+			entries.put(getEntryKey(e.email, e.id), e);
+		}
+		else
+		if (type == REMOVE_RECORD)
+			entries.remove(getEntryKey(readString(in), in.readLong()));
+		else
+		if (type == REMOVE_MESSAGE_RECORD)
+			messages.remove(new Long(in.readLong()));
+		else
+		if (type == FLAGS_RECORD)
+		{
+			EntryRecord e = entries.get(getEntryKey(readString(in), in.readLong()));
+			boolean seen = in.readBoolean();
+			if (e != null)
+				e.seen = seen;
+		}
+		else
+			throw new IOException("Unknown journal record type " + type);
+	}
+
+	private static String readString(DataInputStream in) throws IOException
+	{
+		int length = in.readInt();
+		if (length < 0)
+			return null;
+
+		byte[] b = new byte[length];
+		in.readFully(b);
+		return new String(b, "UTF-8"); //$NON-NLS-1$
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException
+	{
+		if (s == null)
+		{
+			out.writeInt(-1);
+			return;
+		}
+
+		byte[] b = s.getBytes("UTF-8"); //$NON-NLS-1$
+		out.writeInt(b.length);
+		out.write(b);
+	}
+
+	private static byte[] toRecord(MessageRecord m) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(MESSAGE_RECORD);
+		out.writeLong(m.key);
+		writeString(out, m.digest);
+		writeString(out, m.charset);
+		out.writeInt(m.recipients.size());
+		for (String recipient : m.recipients)
+			writeString(out, recipient);
+		writeString(out, m.messageID);
+		writeString(out, m.date);
+		out.writeLong(m.messageDate);
+		writeString(out, m.from);
+		writeString(out, m.to);
+		writeString(out, m.subject);
+		writeString(out, m.host);
+		out.writeInt(m.size);
+		out.writeInt(m.attachedFilesCount);
+
+		return bytes.toByteArray();
+	}
+
+	private static byte[] toRecord(EntryRecord e) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(ENTRY_RECORD);
+		writeString(out, e.email);
+		out.writeLong(e.id);
+		out.writeLong(e.key);
+		out.writeLong(e.internalDate);
+		out.writeBoolean(e.seen);
+
+		return bytes.toByteArray();
+	}
+
+	private static void write(DataOutputStream out, byte[] record) throws IOException
+	{
+		CRC32 crc = new CRC32();
+		crc.update(record);
+		out.writeInt(record.length);
+		out.writeLong(crc.getValue());
+		out.write(record);
+	}
+
+	/**
+	 * Appends a record to the journal. The record is flushed to the OS
+	 * before returning so that it survives a crash of the process.
+	 */
+	private void append(byte[] record) throws IOException
+	{
+		if (out == null)
+			throw new IOException("Journal is closed");
+
+		write(out, record);
+		out.flush();
+
+		if (++appended >= Math.max(MIN_COMPACTION_RECORDS, 2 * (messages.size() + entries.size())))
+			compact();
+	}
+
+	/**
+	 * Writes the state to a new index file and starts an empty journal.
+	 *
+	 * @throws IOException if the index can't be written
+	 */
+	public synchronized void compact() throws IOException
+	{
+		if (out != null)
+			out.close();
+
+		File tmp = new File(directory, INDEX_FILENAME + ".tmp"); //$NON-NLS-1$
+		FileOutputStream fos = new FileOutputStream(tmp);
+		DataOutputStream index = new DataOutputStream(new BufferedOutputStream(fos));
+		try
+		{
+			for (MessageRecord m : messages.values())
+				write(index, toRecord(m));
+			for (EntryRecord e : entries.values())
+				write(index, toRecord(e));
+
+			index.flush();
+			fos.getFD().sync();
+		}
+		finally
+		{
+			index.close();
+		}
+
+		File f = new File(directory, INDEX_FILENAME);
+		if (!tmp.renameTo(f) && (!f.delete() || !tmp.renameTo(f)))
+			throw new IOException("Unable to rename " + tmp + " to " + f);
+
+		// Replaying the old journal over the new index would be harmless
+		out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(new File(directory, JOURNAL_FILENAME))));
+		appended = 0;
+
+		LOG.debug("Journal compacted : {} messages, {} entries",
+				new Integer(messages.size()), new Integer(entries.size()));
+	}
+
+	/**
+	 * Records a spooled message.
+	 */
+	public synchronized void addMessage(MessageRecord m) throws IOException
+	{
+		messages.put(new Long(m.key), m);
+		append(toRecord(m));
+	}
+
+	/**
+	 * Records the deletion of a spooled message.
+	 */
+	public synchronized void removeMessage(long key) throws IOException
+	{
+		if (messages.remove(new Long(key)) == null)
+			return;
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(16);
+		DataOutputStream record = new DataOutputStream(bytes);
+		record.writeByte(REMOVE_MESSAGE_RECORD);
+		record.writeLong(key);
+		append(bytes.toByteArray());
+	}
+
+	/**
+	 * Records a mailbox entry.
+	 */
+	public synchronized void addEntry(EntryRecord e) throws IOException
+	{
+		entries.put(getEntryKey(e.email, e.id), e);
+		append(toRecord(e));
+	}
+
+	/**
+	 * Records the removal of a mailbox entry.
+	 */
+	public synchronized void removeEntry(String email, long id) throws IOException
+	{
+		if (entries.remove(getEntryKey(email, id)) == null)
+			return;
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		DataOutputStream record = new DataOutputStream(bytes);
+		record.writeByte(REMOVE_RECORD);
+		writeString(record, email);
+		record.writeLong(id);
+		append(bytes.toByteArray());
+	}
+
+	/**
+	 * Records the seen flag of a mailbox entry.
+	 */
+	public synchronized void setSeen(String email, long id, boolean seen) throws IOException
+	{
+		EntryRecord e = entries.get(getEntryKey(email, id));
+		if (e == null || e.seen == seen)
+			return;
+
+		e.seen = seen;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		DataOutputStream record = new DataOutputStream(bytes);
+		record.writeByte(FLAGS_RECORD);
+		writeString(record, email);
+		record.writeLong(id);
+		record.writeBoolean(seen);
+		append(bytes.toByteArray());
+	}
+
+	/**
+	 * Returns the recorded messages.
+	 */
+	public synchronized List<MessageRecord> getMessages()
+	{
+		return Collections.unmodifiableList(new ArrayList<MessageRecord>(messages.values()));
+	}
+
+	/**
+	 * Returns the recorded entries, in the order they were added.
+	 */
+	public synchronized List<EntryRecord> getEntries()
+	{
+		return Collections.unmodifiableList(new ArrayList<EntryRecord>(entries.values()));
+	}
+
+	public synchronized void close() throws IOException
+	{
+		if (out != null)
+		{
+			out.close();
+			out = null;
+		}
+	}
+
+	public File getDirectory()
+	{
+		return directory;
+	}
+}
@@ -0,0 +1,586 @@
+package org.mailster.core.spool;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.mailster.core.metrics.Gauge;
+import org.mailster.core.metrics.Histogram;
+import org.mailster.core.metrics.MetricsRegistry;
+import org.mailster.core.smtp.MailsterConstants;
+import org.mailster.util.FileUtilities;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ---<br>
+ * Mailster (C) 2007-2009 De Oliveira Edouard
+ * <p>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 675 Mass
+ * Ave, Cambridge, MA 02139, USA.
+ * <p>
+ * See&nbsp; <a href="http://tedorg.free.fr/en/projects.php" target="_parent">Mailster
+ * Web Site</a> <br>
+ * ---
+ * <p>
+ * MessageSpool.java - An append-only spool of raw messages. Messages are
+ * copied in memory-mapped segment files and located through an in-memory
+ * index keyed by an id assigned by the spool. Reading a message returns a
+ * read-only slice of the mapped segment : no copy nor deserialization is
+ * involved.
+ * <p>
+ * A segment file is deleted as soon as all the messages it holds have been
+ * deleted. Messages larger than the segment size get their own segment. A
+ * segment pinned by a few long lived messages is reclaimed by compacting the
+ * spool : its remaining messages are moved to the current segment.
+ * <p>
+ * A persistent spool prefixes each message with a record header holding its
+ * id and length, so that the index can be rebuilt by scanning the segments
+ * when the spool is opened again. The header is written last : a message
+ * whose append was interrupted is ignored. Deleting a message overwrites its
+ * header marker in place.
+ *
+ * @author <a href="mailto:doe_wanted@yahoo.fr">Edouard De Oliveira</a>
+ * @version $Revision$, $Date$
+ */
+public class MessageSpool
+{
+	private static final Logger LOG = LoggerFactory.getLogger(MessageSpool.class);
+
+	/**
+	 * The default size of a segment file.
+	 */
+	public final static int DEFAULT_SEGMENT_SIZE = 8 * 1024 * 1024;
+
+	/**
+	 * The default ratio of live bytes under which a segment is compacted.
+	 */
+	public final static double DEFAULT_COMPACTION_RATIO = 0.25;
+
+	/**
+	 * The directory of the default spool.
+	 */
+	public final static String DEFAULT_DIRECTORY =
+		MailsterConstants.USER_DIR + File.separator + "tmp"; //$NON-NLS-1$
+
+	private final static String SEGMENT_PREFIX = "spool-"; //$NON-NLS-1$
+	private final static String SEGMENT_SUFFIX = ".seg"; //$NON-NLS-1$
+
+	/**
+	 * Size of the record header of a persistent spool : marker, id and
+	 * length.
+	 */
+	private final static int HEADER_SIZE = 16;
+	private final static int LIVE_RECORD = 0x4D534C56;
+	private final static int DEAD_RECORD = 0x4D534444;
+
+	private static MessageSpool defaultSpool;
+
+	private final static Histogram LOCK_WAIT_TIME = MetricsRegistry.getDefault().histogram(
+			"mailster_spool_lock_wait_seconds", "Time spent waiting for the spool lock to append a message");
+
+	private static class Segment
+	{
+		private File file;
+
+		/**
+		 * The mapped file. Its position is never modified so that it can be
+		 * safely duplicated by readers.
+		 */
+		private volatile MappedByteBuffer buffer;
+
+		/**
+		 * The view used to append data.
+		 */
+		private ByteBuffer writer;
+
+		private int liveEntries;
+		private long liveBytes;
+
+		public Segment(File file, long size) throws IOException
+		{
+			this.file = file;
+			RandomAccessFile raf = new RandomAccessFile(file, "rw"); //$NON-NLS-1$
+			try
+			{
+				// The mapping stays valid once the channel is closed
+				buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			}
+			finally
+			{
+				raf.close();
+			}
+			writer = buffer.duplicate();
+		}
+	}
+
+	private static class Entry
+	{
+		private final Segment segment;
+		private final int offset;
+		private final int length;
+
+		public Entry(Segment segment, int offset, int length)
+		{
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	private File directory;
+	private int segmentSize;
+	private boolean persistent;
+
+	private ConcurrentHashMap<Long, Entry> index = new ConcurrentHashMap<Long, Entry>();
+	private Segment current;
+	private List<Segment> segments = new ArrayList<Segment>();
+	private int nextSegmentNumber;
+	private long lastId;
+
+	public MessageSpool(File directory)
+	{
+		this(directory, DEFAULT_SEGMENT_SIZE);
+	}
+
+	public MessageSpool(File directory, int segmentSize)
+	{
+		if (segmentSize < 1)
+			throw new IllegalArgumentException("Segment size must be >= 1");
+
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		directory.mkdirs();
+	}
+
+	/**
+	 * Opens a persistent spool, indexing the messages left in
+	 * <code>directory</code> by a previous instance.
+	 *
+	 * @throws IOException if a segment can't be mapped
+	 */
+	public static MessageSpool open(File directory, int segmentSize) throws IOException
+	{
+		MessageSpool spool = new MessageSpool(directory, segmentSize);
+		spool.persistent = true;
+		spool.load();
+
+		return spool;
+	}
+
+	/**
+	 * Returns the number of a segment file or -1 if it isn't one.
+	 */
+	private static int getSegmentNumber(File f)
+	{
+		String name = f.getName();
+		if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX))
+			return -1;
+
+		try
+		{
+			return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(),
+					name.length() - SEGMENT_SUFFIX.length()));
+		}
+		catch (NumberFormatException e)
+		{
+			return -1;
+		}
+	}
+
+	/**
+	 * Rebuilds the index from the segment files. A message found in several
+	 * segments (a compaction was interrupted) is read from the newest one.
+	 */
+	private synchronized void load() throws IOException
+	{
+		File[] files = directory.listFiles();
+		if (files == null)
+			return;
+
+		Arrays.sort(files, new Comparator<File>() {
+			public int compare(File f1, File f2)
+			{
+				return getSegmentNumber(f1) - getSegmentNumber(f2);
+			}
+		});
+
+		for (File f : files)
+		{
+			int number = getSegmentNumber(f);
+			if (number < 0)
+				continue;
+
+			nextSegmentNumber = Math.max(nextSegmentNumber, number + 1);
+			Segment segment = new Segment(f, f.length());
+			segments.add(segment);
+
+			ByteBuffer b = segment.buffer;
+			int pos = 0;
+			while (pos + HEADER_SIZE <= b.capacity())
+			{
+				int marker = b.getInt(pos);
+				long id = b.getLong(pos + 4);
+				int length = b.getInt(pos + 12);
+
+				// Unwritten space or interrupted append
+				if ((marker != LIVE_RECORD && marker != DEAD_RECORD) || length < 0
+						|| pos + HEADER_SIZE + length > b.capacity())
+					break;
+
+				if (marker == LIVE_RECORD)
+				{
+					Entry e = new Entry(segment, pos + HEADER_SIZE, length);
+					Entry old = index.put(new Long(id), e);
+					if (old != null)
+					{
+						old.segment.liveEntries--;
+						old.segment.liveBytes -= old.length;
+					}
+					segment.liveEntries++;
+					segment.liveBytes += length;
+					lastId = Math.max(lastId, id);
+				}
+
+				pos += HEADER_SIZE + length;
+			}
+		}
+
+		for (Segment segment : new ArrayList<Segment>(segments))
+		{
+			if (segment.liveEntries == 0)
+				release(segment);
+		}
+
+		LOG.debug("Spool opened : {} messages in {} segments",
+				new Integer(index.size()), new Integer(segments.size()));
+	}
+
+	/**
+	 * Returns the spool shared by the mailboxes. Its directory is emptied
+	 * when created and on exit.
+	 */
+	public static synchronized MessageSpool getDefault()
+	{
+		if (defaultSpool == null)
+		{
+			final File dir = new File(DEFAULT_DIRECTORY);
+
+			// remove residual files.
+			FileUtilities.deleteDirectory(dir);
+
+			defaultSpool = new MessageSpool(dir);
+			defaultSpool.registerGauges();
+			Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+				public void run()
+				{
+					// remove temporary files
+					FileUtilities.deleteDirectory(dir);
+				}
+			}));
+		}
+
+		return defaultSpool;
+	}
+
+	/**
+	 * Exports the size of the spool as gauges, replacing those of the spool
+	 * previously registered. It is called for the spool in use.
+	 */
+	public void registerGauges()
+	{
+		final MessageSpool spool = this;
+		MetricsRegistry registry = MetricsRegistry.getDefault();
+		registry.register(new Gauge("mailster_spool_messages", "Messages in the spool") {
+			public long getValue()
+			{
+				return spool.getMessageCount();
+			}
+		});
+		registry.register(new Gauge("mailster_spool_bytes", "Size of the messages in the spool") {
+			public long getValue()
+			{
+				return spool.getSize();
+			}
+		});
+		registry.register(new Gauge("mailster_spool_segments", "Spool segment files") {
+			public long getValue()
+			{
+				return spool.getSegmentCount();
+			}
+		});
+	}
+
+	/**
+	 * Appends the remaining bytes of <code>data</code> to the spool. The
+	 * position of <code>data</code> is not modified.
+	 *
+	 * @return the id of the spooled message
+	 * @throws IOException if a new segment can't be created
+	 */
+	public long append(ByteBuffer data) throws IOException
+	{
+		long start = System.nanoTime();
+		synchronized (this)
+		{
+			LOCK_WAIT_TIME.recordSince(start);
+
+			Long id = new Long(++lastId);
+			index.put(id, write(data.duplicate(), id.longValue()));
+
+			return id.longValue();
+		}
+	}
+
+	/**
+	 * Copies the remaining bytes of <code>src</code> to the current segment.
+	 */
+	private Entry write(ByteBuffer src, long id) throws IOException
+	{
+		int length = src.remaining();
+		int header = persistent ? HEADER_SIZE : 0;
+
+		if (current == null || current.writer.remaining() < header + length)
+			newSegment(header + length);
+
+		ByteBuffer writer = current.writer;
+		int start = writer.position();
+		if (persistent)
+		{
+			writer.position(start + 4);
+			writer.putLong(id);
+			writer.putInt(length);
+		}
+
+		int offset = writer.position();
+		writer.put(src);
+
+		// The marker validates the record
+		if (persistent)
+			writer.putInt(start, LIVE_RECORD);
+
+		current.liveEntries++;
+		current.liveBytes += length;
+
+		return new Entry(current, offset, length);
+	}
+
+	private void newSegment(int minSize) throws IOException
+	{
+		Segment old = current;
+		File f = new File(directory, SEGMENT_PREFIX + (nextSegmentNumber++) + SEGMENT_SUFFIX);
+		current = new Segment(f, Math.max(segmentSize, minSize));
+		segments.add(current);
+		LOG.debug("New spool segment {}", f.getName());
+
+		if (old != null && old.liveEntries == 0)
+			release(old);
+	}
+
+	private void release(Segment segment)
+	{
+		segments.remove(segment);
+		segment.buffer = null;
+		segment.writer = null;
+
+		// Mapped memory is only unmapped by the GC : the file deletion may
+		// fail on some platforms.
+		if (!segment.file.delete())
+			segment.file.deleteOnExit();
+
+		LOG.debug("Spool segment {} released", segment.file.getName());
+	}
+
+	/**
+	 * Returns a read-only view of a spooled message or null if the id is
+	 * unknown.
+	 */
+	public ByteBuffer read(long id)
+	{
+		Long key = new Long(id);
+		Entry e;
+		MappedByteBuffer buffer;
+		do
+		{
+			e = index.get(key);
+			if (e == null)
+				return null;
+
+			buffer = e.segment.buffer;
+
+			// The segment may have been released by a compaction which
+			// moved the message : look it up again
+		} while (buffer == null && index.get(key) != e);
+
+		if (buffer == null)
+			return null;
+
+		ByteBuffer b = buffer.duplicate();
+		b.limit(e.offset + e.length);
+		b.position(e.offset);
+
+		return b.slice().asReadOnlyBuffer();
+	}
+
+	/**
+	 * Deletes a message from the spool. Views previously returned by
+	 * {@link #read(long)} remain readable.
+	 */
+	public synchronized void delete(long id)
+	{
+		Entry e = index.remove(new Long(id));
+		if (e == null)
+			return;
+
+		Segment s = e.segment;
+		if (persistent)
+			s.buffer.putInt(e.offset - HEADER_SIZE, DEAD_RECORD);
+
+		s.liveEntries--;
+		s.liveBytes -= e.length;
+
+		if (s.liveEntries == 0 && s != current)
+			release(s);
+	}
+
+	/**
+	 * Moves the messages of the segments whose ratio of live bytes is under
+	 * <code>minLiveRatio</code> to the current segment and deletes these 
+	 * segments. Views previously returned by {@link #read(long)} remain 
+	 * readable.
+	 *
+	 * @param minLiveRatio the ratio of live bytes under which a segment is
+	 * compacted
+	 * @param maxSegments the maximum number of segments to compact
+	 * @return the number of deleted segments
+	 * @throws IOException if a new segment can't be created
+	 */
+	public synchronized int compact(double minLiveRatio, int maxSegments) throws IOException
+	{
+		List<Segment> sparse = new ArrayList<Segment>();
+		for (Segment s : segments)
+		{
+			if (sparse.size() == maxSegments)
+				break;
+
+			if (s != current && s.liveBytes < s.buffer.capacity() * minLiveRatio)
+				sparse.add(s);
+		}
+
+		if (sparse.isEmpty())
+			return 0;
+
+		long moved = 0;
+		for (Map.Entry<Long, Entry> me : index.entrySet())
+		{
+			Entry e = me.getValue();
+			if (!sparse.contains(e.segment))
+				continue;
+
+			ByteBuffer src = e.segment.buffer.duplicate();
+			src.limit(e.offset + e.length);
+			src.position(e.offset);
+
+			// Readers see either the old or the new entry
+			me.setValue(write(src, me.getKey().longValue()));
+			e.segment.liveEntries--;
+			e.segment.liveBytes -= e.length;
+			moved += e.length;
+		}
+
+		for (Segment s : sparse)
+			release(s);
+
+		LOG.debug("Spool compacted : {} segments released, {} bytes moved",
+				new Integer(sparse.size()), new Long(moved));
+
+		return sparse.size();
+	}
+
+	public boolean contains(long id)
+	{
+		return index.containsKey(new Long(id));
+	}
+
+	/**
+	 * Returns the ids of the spooled messages.
+	 */
+	public Set<Long> getIds()
+	{
+		return new HashSet<Long>(index.keySet());
+	}
+
+	/**
+	 * Writes the segments of a persistent spool to the disk.
+	 */
+	public synchronized void force()
+	{
+		for (Segment s : segments)
+			s.buffer.force();
+	}
+
+	public boolean isPersistent()
+	{
+		return persistent;
+	}
+
+	/**
+	 * Returns the number of messages in the spool.
+	 */
+	public int getMessageCount()
+	{
+		return index.size();
+	}
+
+	/**
+	 * Returns the number of segment files.
+	 */
+	public synchronized int getSegmentCount()
+	{
+		return segments.size();
+	}
+
+	/**
+	 * Returns the size in bytes of the messages in the spool.
+	 */
+	public synchronized long getSize()
+	{
+		long size = 0;
+		for (Segment s : segments)
+			size += s.liveBytes;
+
+		return size;
+	}
+
+	public File getDirectory()
+	{
+		return directory;
+	}
+
+	public int getSegmentSize()
+	{
+		return segmentSize;
+	}
+}
@@ -267,6 +267,47 @@ public class ConfigurationManager
      * <code>true</code> if APOP authentication mechanism is allowed.
      */
     public final static String POP3_ALLOW_APOP_AUTH_METHOD_KEY = "pop3.authentication.allowAPOP";
+
+    /**
+     * The maximum size (in kilobytes) of the messages kept in memory.
+     */
+    public final static String POP3_CACHE_SIZE_KEY = "pop3.cache.size";
+
+    /**
+     * The maximum number of messages kept in memory.
+     */
+    public final static String POP3_CACHE_ENTRIES_KEY = "pop3.cache.entries";
+
+    /**
+     * The time (in seconds) after which an empty mailbox which is not 
+     * accessed is evicted.
+     */
+    public final static String POP3_MAILBOX_IDLE_TIMEOUT_KEY = "pop3.mailbox.idleTimeout";
+
+    /**
+     * The maximum number of messages kept in a mailbox.
+     */
+    public final static String POP3_RETENTION_MAX_MESSAGES_KEY = "pop3.retention.maxMessages";
+
+    /**
+     * The maximum size (in kilobytes) of the messages kept in a mailbox.
+     */
+    public final static String POP3_RETENTION_MAX_SIZE_KEY = "pop3.retention.maxSize";
+
+    /**
+     * The maximum time (in seconds) a message is kept in a mailbox.
+     */
+    public final static String POP3_RETENTION_MAX_AGE_KEY = "pop3.retention.maxAge";
+
+    /**
+     * Whether the mailboxes are kept on disk and restored on startup.
+     */
+    public final static String POP3_STORE_PERSISTENT_KEY = "pop3.store.persistent";
+
+    /**
+     * The directory of the persistent store.
+     */
+    public final static String POP3_STORE_DIRECTORY_KEY = "pop3.store.directory";
     
     /* SMTP options */
     /**
@@ -295,6 +336,29 @@ public class ConfigurationManager
      */
     public final static String SMTP_CONNECTION_TIMEOUT_KEY = "smtp.connection.timeout";
 
+    /**
+     * The number of threads dispatching the received emails to the listeners.
+     */
+    public final static String SMTP_DISPATCHER_THREADS_KEY = "smtp.dispatcher.threads";
+
+    /**
+     * The maximum number of received emails waiting to be dispatched before
+     * SMTP sessions are blocked.
+     */
+    public final static String SMTP_DISPATCHER_QUEUE_CAPACITY_KEY = "smtp.dispatcher.queue.capacity";
+
+    /* Metrics options */
+    /**
+     * The file the metrics are periodically written to in the Prometheus 
+     * text format. No file is written if empty.
+     */
+    public final static String METRICS_PROMETHEUS_FILE_KEY = "metrics.prometheus.file";
+
+    /**
+     * The period (in seconds) between two writes of the metrics file.
+     */
+    public final static String METRICS_PROMETHEUS_PERIOD_KEY = "metrics.prometheus.period";
+
     /* Enclosure options */
     /**
      * Key to access the attachments options
@@ -1,6 +1,7 @@
 package org.mailster.gui.views;
 
-import java.util.List;
+import java.util.HashSet;
+import java.util.Set;
 
 import javax.mail.Flags;
 import javax.mail.Flags.Flag;
@@ -34,14 +35,9 @@ import org.mailster.gui.Messages;
 import org.mailster.gui.SWTHelper;
 import org.mailster.gui.views.mailbox.MailBoxView;
 import org.mailster.gui.widgets.DropDownListener;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
-import ca.odell.glazedlists.DisposableMap;
 import ca.odell.glazedlists.EventList;
 import ca.odell.glazedlists.FilterList;
-import ca.odell.glazedlists.FunctionList;
-import ca.odell.glazedlists.GlazedLists;
 import ca.odell.glazedlists.event.ListEvent;
 import ca.odell.glazedlists.event.ListEventListener;
 import ca.odell.glazedlists.matchers.AbstractMatcherEditor;
@@ -74,7 +70,6 @@ import ca.odell.glazedlists.matchers.Matcher;
 public class FilterTreeView
 	extends TreeView
 {
-	private static final Logger LOG = LoggerFactory.getLogger(FilterTreeView.class);
 	private static final String DELETED_TREEITEM_LABEL = Messages.getString("MailsterSWT.treeView.trash.label"); //$NON-NLS-1$
 	private static final String CHECKED_TREEITEM_LABEL = Messages.getString("MailsterSWT.treeView.flaggedMail.label"); //$NON-NLS-1$
 	private static final Image FOLDER_IMAGE = SWTHelper.loadImage("folder.gif"); //$NON-NLS-1$
@@ -90,26 +85,28 @@ public class FilterTreeView
 	private HostMatcherEditor editor;
 
 	/**
-	 * The count of messages last time a event occurred. Prevents from multiple unnecessary updates.
+	 * The counts of messages by host, maintained from the changes of the list.
 	 */
-	private long lastCallCount = 0;
+	private HostMessageCounters counters;
 
 	private class HostMatcherEditor
 		extends AbstractMatcherEditor<StoredSmtpMessage>
 		implements SelectionListener
 	{
+		/**
+		 * Matches the messages of a tree item. The host of the item is read on the UI thread as
+		 * the messages are then matched by the thread updating the list.
+		 */
 		private class HostMatcher
 			implements Matcher<StoredSmtpMessage>
 		{
 			private TreeItem selectedItem;
+			private String host;
 
-			public HostMatcher()
-			{
-			}
-
-			public void setSelectedItem(TreeItem selectedItem)
+			public HostMatcher(TreeItem selectedItem)
 			{
 				this.selectedItem = selectedItem;
+				this.host = (String) selectedItem.getData();
 			}
 
 			public boolean matches(StoredSmtpMessage msg)
@@ -123,12 +120,11 @@ public class FilterTreeView
 							&& msg.isChecked();
 				else
 					return !msg.getFlags().contains(Flags.Flag.FLAGGED)
-							&& ((String) selectedItem.getData()).equals(msg.getMessageHost());
+							&& host.equals(msg.getMessageHost());
 			}
 		}
 
 		private Tree mailBoxTree;
-		private final HostMatcher matcher = new HostMatcher();
 
 		public HostMatcherEditor(Tree mailBoxTree)
 		{
@@ -143,8 +139,13 @@ public class FilterTreeView
 				mailBoxTree.setSelection(root);
 			else
 			{
-				matcher.setSelectedItem(selected[0]);
-				fireChanged(matcher);
+				final HostMatcher matcher = new HostMatcher(selected[0]);
+				MailBoxView.updateList(new Runnable() {
+					public void run()
+					{
+						fireChanged(matcher);
+					}
+				});
 			}
 		}
 
@@ -392,130 +393,86 @@ public class FilterTreeView
 		clearQueueToolItem.addSelectionListener(selectionAdapter);
 	}
 	
-	public void updateMessageCounts(EventList<StoredSmtpMessage> eventList)
+	/**
+	 * Recounts <code>msg</code> after its flags changed and refreshes the labels if needed.
+	 */
+	public void messageChanged(StoredSmtpMessage msg)
 	{
-		LOG.debug("Call to updateMessagesCounts()");
-
-		String filter;
-		List<StoredSmtpMessage> l;
-		DisposableMap<String, List<StoredSmtpMessage>> map;
+		if (counters != null && counters.update(msg))
+			updateMessageCounts();
+	}
 
-		eventList.getReadWriteLock().readLock().lock();
-		try
-		{
-			lastCallCount = eventList.size();
-			map = GlazedLists.syncEventListToMultiMap(
-					eventList, 
-					new FunctionList.Function<StoredSmtpMessage, String>() {
-						public String evaluate(StoredSmtpMessage msg)
-						{
-							if (msg.getFlags().contains(Flags.Flag.FLAGGED))
-								return DELETED_TREEITEM_LABEL;
-							else
-								return msg.getMessageHost();
-						}
-					});
-		} finally
-		{
-			eventList.getReadWriteLock().readLock().unlock();
-		}
+	/**
+	 * Refreshes the labels of the tree from the message counters : the number of unread messages of
+	 * each host and of the trash. Hosts are added or removed as messages are received or deleted.
+	 */
+	public void updateMessageCounts()
+	{
+		if (counters == null || tree.isDisposed())
+			return;
 
 		tree.setRedraw(false);
+		Set<String> hosts = new HashSet<String>(counters.getHosts());
 		for (TreeItem child : root.getItems())
 		{
 			if (child == checkedMailsTreeItem)
 				continue;
-			else
-			{
-				filter = (String) child.getData();
-				l = map == null ? null : map.get(filter);
-			}
-
-			long count = l == null ? 0 : l.size();
 
-			if (count > 0)
+			String filter = (String) child.getData();
+			int count;
+			if (child == deletedMailsTreeItem)
+				count = counters.getTotalCounts().getFlaggedUnread();
+			else
 			{
-				StringBuilder countLabel = new StringBuilder(filter);
-
-				count = 0;
-				eventList.getReadWriteLock().readLock().lock();
-				try
+				HostMessageCounters.Counts c = counters.getCounts(filter);
+				hosts.remove(filter);
+				if (c == null)
 				{
-					for (StoredSmtpMessage msg : l)
-					{
-						// We only count unread messages
-						if (!msg.isSeen())
-							count++;
-					}
-				} finally
-				{
-					eventList.getReadWriteLock().readLock().unlock();
-				}
-
-				if (count > 0)
-					countLabel.append(" (").append(count).append(')');
-				
-				child.setText(countLabel.toString());
-			}
-			else if (l == null && !DELETED_TREEITEM_LABEL.equals(filter))
-			{
-				if (!findInFolder(CHECKED_TREEITEM_LABEL, eventList, map, filter) &&
-						!findInFolder(DELETED_TREEITEM_LABEL, eventList, map, filter))
 					child.dispose();
+					continue;
+				}
+				count = c.getUnread();
 			}
-			else
-				child.setText(filter);
+
+			setLabel(child, filter, count);
 		}
+
+		for (String host : hosts)
+		{
+			TreeItem item = new TreeItem(root, SWT.NONE, 0);
+			item.setImage(FOLDER_IMAGE);
+			item.setData(host);
+			setLabel(item, host, counters.getCounts(host).getUnread());
+		}
+
+		root.setExpanded(true);
 		tree.setRedraw(true);
-		map.dispose();
 	}
 
-	private boolean findInFolder(String folderLabel, 
-			EventList<StoredSmtpMessage> eventList, 
-			DisposableMap<String, List<StoredSmtpMessage>> map,
-			String host)
+	private static void setLabel(TreeItem item, String filter, int unread)
 	{
-		eventList.getReadWriteLock().readLock().lock();
-		try
+		if (unread > 0)
 		{
-			List<StoredSmtpMessage> folder = map.get(folderLabel);
-			if (folder != null)
-			{
-				for (StoredSmtpMessage msg : folder)
-				{
-					if (host.equals(msg.getMessageHost()))
-						return true;
-				}
-			}
+			StringBuilder countLabel = new StringBuilder(filter);
+			countLabel.append(" (").append(unread).append(')');
+			filter = countLabel.toString();
 		}
-		finally
-		{
-			eventList.getReadWriteLock().readLock().unlock();
-		}
-		
-		return false;
+
+		if (!filter.equals(item.getText()))
+			item.setText(filter);
 	}
-	
-	public void installListeners(EventList<StoredSmtpMessage> filterList, final EventList<StoredSmtpMessage> baseList)
+
+	public void installListeners(final EventList<StoredSmtpMessage> baseList)
 	{
-		filterList.addListEventListener(new ListEventListener<StoredSmtpMessage>() {
-			public void listChanged(ListEvent<StoredSmtpMessage> listChanges)
-			{
-				baseList.getReadWriteLock().readLock().lock();
-				try
-				{
-					if (!listChanges.isReordering() && lastCallCount != baseList.size())
-						updateMessageCounts(baseList);
-				} finally
-				{
-					baseList.getReadWriteLock().readLock().unlock();
-				}
-			}
-		});
+		counters = new HostMessageCounters(baseList);
+		updateMessageCounts();
 
 		baseList.addListEventListener(new ListEventListener<StoredSmtpMessage>() {
 			public void listChanged(ListEvent<StoredSmtpMessage> evt)
 			{
+				counters.listChanged(evt);
+				updateMessageCounts();
+
 				boolean notEmpty = !baseList.isEmpty();
 
 				clearQueueToolItem.setEnabled(notEmpty);
@@ -525,49 +482,8 @@ public class FilterTreeView
 		});
 	}
 
-	private void addNodeIfNewHost(String host)
-	{
-		for (TreeItem child : root.getItems())
-		{
-			if (((String) child.getData()).equals(host))
-				return;
-		}
-
-		try
-		{
-			TreeItem item = new TreeItem(root, SWT.NONE, 0);
-			item.setImage(FOLDER_IMAGE);
-			item.setText(host);
-			item.setData(host);
-		} catch (Exception e)
-		{
-			e.printStackTrace();
-		}
-	}
-
 	public FilterList<StoredSmtpMessage> buildFilterList(final EventList<StoredSmtpMessage> eventList)
 	{
-		eventList.addListEventListener(new ListEventListener<StoredSmtpMessage>() {
-			public void listChanged(ListEvent<StoredSmtpMessage> listChanges)
-			{
-				if (listChanges.isReordering())
-					return;
-				
-				tree.setRedraw(false);
-				while (listChanges.next())
-				{
-					if (listChanges.getType() == ListEvent.INSERT || listChanges.getType() == ListEvent.UPDATE)
-					{
-						String host = eventList.get(listChanges.getIndex()).getMessageHost();
-						addNodeIfNewHost(host);
-					}
-				}
-
-				root.setExpanded(true);
-				tree.setRedraw(true);
-			}
-		});
-
 		eventList.getReadWriteLock().readLock().lock();
 		try
 		{
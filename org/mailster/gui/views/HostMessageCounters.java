@@ -0,0 +1,280 @@
+package org.mailster.gui.views;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.mail.Flags;
+
+import org.mailster.core.pop3.mailbox.StoredSmtpMessage;
+
+import ca.odell.glazedlists.EventList;
+import ca.odell.glazedlists.event.ListEvent;
+import ca.odell.glazedlists.event.ListEventListener;
+
+/**
+ * ---<br>
+ * Mailster (C) 2007-2009 De Oliveira Edouard
+ * <p>
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along with this program; if
+ * not, write to the Free Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ * <p>
+ * See&nbsp; <a href="http://tedorg.free.fr/en/projects.php" target="_parent">Mailster Web Site</a>
+ * <br>
+ * ---
+ * <p>
+ * HostMessageCounters.java - Counts the messages of a list by destination host. The counters are
+ * updated from the changes of the list and from {@link #update(StoredSmtpMessage)} when the flags
+ * of a message change, so that reading them never scans the list.
+ * <p>
+ * The seen and flagged state each message was last counted with is remembered, so that a change
+ * is applied by subtracting the previous state and adding the new one.
+ *
+ * @author <a href="mailto:doe_wanted@yahoo.fr">Edouard De Oliveira</a>
+ * @version $Revision$, $Date$
+ */
+public class HostMessageCounters
+	implements ListEventListener<StoredSmtpMessage>
+{
+	private final static int SEEN = 1;
+	private final static int FLAGGED = 2;
+
+	private final static Integer[] STATES = {new Integer(0), new Integer(SEEN), new Integer(FLAGGED),
+			new Integer(SEEN | FLAGGED)};
+
+	/**
+	 * The counters of a host.
+	 */
+	public static class Counts
+	{
+		private int total;
+		private int unread;
+		private int flagged;
+		private int flaggedUnread;
+
+		/**
+		 * Returns the number of messages, including the flagged ones.
+		 */
+		public int getTotal()
+		{
+			return total;
+		}
+
+		/**
+		 * Returns the number of unread messages which are not flagged.
+		 */
+		public int getUnread()
+		{
+			return unread;
+		}
+
+		/**
+		 * Returns the number of flagged messages, which are shown in the trash.
+		 */
+		public int getFlagged()
+		{
+			return flagged;
+		}
+
+		/**
+		 * Returns the number of unread flagged messages.
+		 */
+		public int getFlaggedUnread()
+		{
+			return flaggedUnread;
+		}
+
+		private void add(int state, int delta)
+		{
+			boolean unseen = (state & SEEN) == 0;
+			total += delta;
+			if ((state & FLAGGED) != 0)
+			{
+				flagged += delta;
+				if (unseen)
+					flaggedUnread += delta;
+			}
+			else
+			if (unseen)
+				unread += delta;
+		}
+	}
+
+	private EventList<StoredSmtpMessage> list;
+	private Map<StoredSmtpMessage, Integer> states = new IdentityHashMap<StoredSmtpMessage, Integer>();
+	private Map<String, Counts> hosts = new HashMap<String, Counts>();
+	private Counts all = new Counts();
+
+	/**
+	 * Counts the messages of <code>list</code>. The counters must then be notified of its changes,
+	 * by registering them as a listener of the list.
+	 */
+	public HostMessageCounters(EventList<StoredSmtpMessage> list)
+	{
+		this.list = list;
+		list.getReadWriteLock().readLock().lock();
+		try
+		{
+			for (StoredSmtpMessage msg : list)
+				add(msg);
+		}
+		finally
+		{
+			list.getReadWriteLock().readLock().unlock();
+		}
+	}
+
+	private static int getState(StoredSmtpMessage msg)
+	{
+		Flags flags = msg.getFlags();
+		return (flags.contains(Flags.Flag.SEEN) ? SEEN : 0) | (flags.contains(Flags.Flag.FLAGGED) ? FLAGGED : 0);
+	}
+
+	private Counts getOrCreateCounts(String host)
+	{
+		Counts c = hosts.get(host);
+		if (c == null)
+		{
+			c = new Counts();
+			hosts.put(host, c);
+		}
+
+		return c;
+	}
+
+	private void add(StoredSmtpMessage msg)
+	{
+		int state = getState(msg);
+		if (states.put(msg, STATES[state]) != null)
+			return;
+
+		getOrCreateCounts(msg.getMessageHost()).add(state, 1);
+		all.add(state, 1);
+	}
+
+	private void remove(StoredSmtpMessage msg)
+	{
+		Integer state = states.remove(msg);
+		if (state == null)
+			return;
+
+		String host = msg.getMessageHost();
+		Counts c = hosts.get(host);
+		c.add(state.intValue(), -1);
+		if (c.total == 0)
+			hosts.remove(host);
+		all.add(state.intValue(), -1);
+	}
+
+	/**
+	 * Recounts <code>msg</code> after its flags changed.
+	 *
+	 * @return true if the counters changed
+	 */
+	public boolean update(StoredSmtpMessage msg)
+	{
+		Integer previous = states.get(msg);
+		int state = getState(msg);
+		if (previous == null || previous.intValue() == state)
+			return false;
+
+		states.put(msg, STATES[state]);
+		Counts c = hosts.get(msg.getMessageHost());
+		c.add(previous.intValue(), -1);
+		c.add(state, 1);
+		all.add(previous.intValue(), -1);
+		all.add(state, 1);
+		return true;
+	}
+
+	/**
+	 * Applies the changes of the list. The removed and replaced elements are
+	 * read with the deprecated {@link ListEvent#getOldValue()} : the list no
+	 * longer holds them and the counters only map elements to their state,
+	 * not to their index.
+	 */
+	@SuppressWarnings("deprecation")
+	public void listChanged(ListEvent<StoredSmtpMessage> evt)
+	{
+		if (evt.isReordering())
+			return;
+
+		while (evt.next())
+		{
+			int type = evt.getType();
+			if (type == ListEvent.INSERT)
+				add(list.get(evt.getIndex()));
+			else
+			{
+				Object old = evt.getOldValue();
+				if (old == ListEvent.UNKNOWN_VALUE)
+				{
+					// The list doesn't tell what it removed
+					recount();
+					return;
+				}
+
+				StoredSmtpMessage msg = (StoredSmtpMessage) old;
+				if (type == ListEvent.DELETE)
+					remove(msg);
+				else
+				{
+					StoredSmtpMessage current = list.get(evt.getIndex());
+					if (current == msg)
+						update(msg);
+					else
+					{
+						remove(msg);
+						add(current);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Counts all the messages of the list again.
+	 */
+	public void recount()
+	{
+		states.clear();
+		hosts.clear();
+		all = new Counts();
+
+		for (StoredSmtpMessage msg : list)
+			add(msg);
+	}
+
+	/**
+	 * Returns the counters of <code>host</code> or null if the list holds none of its messages.
+	 */
+	public Counts getCounts(String host)
+	{
+		return hosts.get(host);
+	}
+
+	/**
+	 * Returns the counters of all the messages.
+	 */
+	public Counts getTotalCounts()
+	{
+		return all;
+	}
+
+	/**
+	 * Returns the hosts the list holds messages for.
+	 */
+	public Set<String> getHosts()
+	{
+		return hosts.keySet();
+	}
+}
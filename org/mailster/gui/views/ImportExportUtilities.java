@@ -1,11 +1,8 @@
 package org.mailster.gui.views;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileReader;
-import java.io.FileWriter;
-import java.io.PrintWriter;
+import java.text.MessageFormat;
 import java.util.List;
 
 import org.apache.mina.filter.codec.textline.LineDelimiter;
@@ -13,17 +10,19 @@ import org.eclipse.core.runtime.IStatus;
 import org.eclipse.core.runtime.Status;
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.widgets.Dialog;
+import org.eclipse.swt.widgets.Display;
 import org.eclipse.swt.widgets.DirectoryDialog;
 import org.eclipse.swt.widgets.FileDialog;
 import org.mailster.MailsterSWT;
+import org.mailster.core.mail.MBoxImporter;
 import org.mailster.core.mail.SmtpMessage;
 import org.mailster.core.mail.SmtpMessageFactory;
+import org.mailster.core.pop3.mailbox.MessageExporter;
 import org.mailster.core.pop3.mailbox.StoredSmtpMessage;
 import org.mailster.core.smtp.MailsterConstants;
 import org.mailster.core.smtp.MailsterSmtpService;
 import org.mailster.gui.Messages;
 import org.mailster.gui.dialogs.ErrorDialog;
-import org.mailster.util.StreamUtilities;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -31,6 +30,12 @@ public class ImportExportUtilities
 {
 	private static final Logger LOG = LoggerFactory.getLogger(ImportExportUtilities.class);
 
+	/**
+	 * The minimum time (in milliseconds) between two refreshes of the queue
+	 * while importing.
+	 */
+	private final static long PROGRESS_REFRESH_INTERVAL = 1000;
+
 	protected static void importFromEmailFile()
 	{
 		String fileName = getPath(true, false, false, SWT.OPEN);
@@ -69,35 +74,74 @@ public class ImportExportUtilities
 	{
 		String fileName = getPath(true, true, false, SWT.OPEN);
 
+		// Imported in background
 		if (fileName != null)
-		{
-			MailsterSWT.getInstance().setWaitCursor();
 			importFromMbox(fileName);
-			MailsterSWT.getInstance().setDefaultCursor();
-		}
 	}
 
-	public static void importFromMbox(String fileName)
+	/**
+	 * Imports the messages of a mbox file in a background thread. The
+	 * messages are queued as they are parsed and the progress is logged.
+	 */
+	public static void importFromMbox(final String fileName)
 	{
 		LOG.debug("Importing from {} ...", fileName);
 
-		try
-		{
-			BufferedReader in = new BufferedReader(new FileReader(fileName));
-
-			List<SmtpMessage> mails = StreamUtilities.readMessageFromMBoxRDFormat(in, MailsterConstants.DEFAULT_CHARSET);
+		new Thread("MBox Importer") { //$NON-NLS-1$
+			public void run()
+			{
+				final MailsterSmtpService smtp = MailsterSWT.getInstance().getSMTPService();
+				final File file = new File(fileName);
+
+				try
+				{
+					MBoxImporter importer = new MBoxImporter(MailsterConstants.DEFAULT_CHARSET);
+					int count = importer.importFile(file, new MBoxImporter.ImportListener() {
+						private int imported;
+						private long lastRefresh;
+
+						public void messagesImported(List<SmtpMessage> messages, long position, long length)
+						{
+							smtp.addReceivedEmail(messages);
+							imported += messages.size();
+
+							// Refreshing the queue for each batch would flood the UI thread
+							long now = System.currentTimeMillis();
+							if (now - lastRefresh >= PROGRESS_REFRESH_INTERVAL)
+							{
+								lastRefresh = now;
+								smtp.refreshEmailQueue(false);
+								log(MessageFormat.format(Messages.getString("MailsterSWT.log.import.progress"), //$NON-NLS-1$
+										new Object[] {file.getName(), new Integer(imported),
+												new Long(length == 0 ? 100 : position * 100 / length)}));
+							}
+						}
+					});
+
+					smtp.refreshEmailQueue(false);
+					log(MessageFormat.format(Messages.getString("MailsterSWT.log.import.done"), //$NON-NLS-1$
+							new Object[] {new Integer(count), file.getName()}));
+				} catch (Exception e)
+				{
+					LOG.error("Failed importing " + fileName, e);
+					log(MessageFormat.format(Messages.getString("MailsterSWT.log.import.failed"), //$NON-NLS-1$
+							new Object[] {file.getName(), e.getMessage()}));
+				} finally
+				{
+					LOG.debug("Importing from {} ... ACHIEVED", fileName);
+				}
+			}
+		}.start();
+	}
 
-			MailsterSmtpService smtp = MailsterSWT.getInstance().getSMTPService();
-			smtp.addReceivedEmail(mails);
-			smtp.refreshEmailQueue(false);
-			in.close();
-		} catch (Exception e)
-		{
-			e.printStackTrace();
-		} finally
-		{
-			LOG.debug("Importing from {} ... ACHIEVED", fileName);
-		}
+	private static void log(final String msg)
+	{
+		Display.getDefault().asyncExec(new Runnable() {
+			public void run()
+			{
+				MailsterSWT.getInstance().log(msg);
+			}
+		});
 	}
 
 	private static List<StoredSmtpMessage> getEmailSelection(boolean all)
@@ -113,23 +157,12 @@ public class ImportExportUtilities
 		if (path == null)
 			return;
 
-		for (StoredSmtpMessage msg : mails)
+		try
 		{
-			PrintWriter out = null;
-
-			try
-			{
-				out = new PrintWriter(new FileWriter(path + File.separatorChar
-						+ msg.getMessageId().substring(1, msg.getMessageId().length() - 1) + ".eml", false));
-				out.write(msg.getMessage().toString());
-			} catch (Exception e)
-			{
-				e.printStackTrace();
-			} finally
-			{
-				if (out != null)
-					out.close();
-			}
+			new MessageExporter().exportEmlFiles(mails, new File(path));
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
 		}
 	}
 
@@ -149,11 +182,7 @@ public class ImportExportUtilities
 
 		try
 		{
-			PrintWriter out = new PrintWriter(new FileWriter(fileName, false));
-			for (StoredSmtpMessage msg : mails)
-				StreamUtilities.writeMessageToMBoxRDFormat(msg, out);
-
-			out.close();
+			new MessageExporter(1).exportMBox(mails, new File(fileName));
 			return true;
 		} catch (Exception e)
 		{
@@ -1,9 +1,13 @@
 package org.mailster.gui.views;
 
 import java.io.File;
+import java.text.MessageFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.SWTError;
@@ -15,6 +19,7 @@ import org.eclipse.swt.custom.CTabFolder2Adapter;
 import org.eclipse.swt.custom.CTabFolderEvent;
 import org.eclipse.swt.custom.CTabItem;
 import org.eclipse.swt.custom.StackLayout;
+import org.eclipse.swt.custom.StyledText;
 import org.eclipse.swt.events.DisposeEvent;
 import org.eclipse.swt.events.DisposeListener;
 import org.eclipse.swt.events.SelectionAdapter;
@@ -24,7 +29,6 @@ import org.eclipse.swt.graphics.Image;
 import org.eclipse.swt.layout.GridData;
 import org.eclipse.swt.widgets.Composite;
 import org.eclipse.swt.widgets.Control;
-import org.eclipse.swt.widgets.Text;
 import org.eclipse.swt.widgets.ToolBar;
 import org.eclipse.swt.widgets.ToolItem;
 import org.mailster.MailsterSWT;
@@ -34,6 +38,7 @@ import org.mailster.gui.utils.LayoutUtils;
 import org.mailster.gui.views.mailview.OutlookMailView;
 import org.mailster.gui.widgets.GIFAnimator;
 import org.mailster.util.DateUtilities;
+import org.mailster.util.RingBuffer;
 import org.mailster.util.DateUtilities.DateFormatterEnum;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -58,6 +63,10 @@ import org.slf4j.LoggerFactory;
  * ---
  * <p>
  * MultiView.java - The right view which contains a web view, a log view and the mail view.
+ * <p>
+ * The lines logged by any thread are queued in a bounded ring buffer and appended to the console
+ * at most once per frame. The console only keeps the last lines, and the lines lost when the
+ * buffer overflows are reported by a single line.
  * 
  * @author <a href="mailto:doe_wanted@yahoo.fr">Edouard De Oliveira</a>
  * @version $Revision: 1.27 $, $Date: 2009/05/18 22:14:26 $
@@ -70,6 +79,33 @@ public class MultiView
 			.createColor(61, 149, 255));
 	private static final Image HOME_IMAGE = SWTHelper.loadImage("home.gif"); //$NON-NLS-1$
 
+	/**
+	 * The number of log lines waiting to be shown above which the oldest ones are dropped.
+	 */
+	private static final int LOG_BUFFER_CAPACITY = 10000;
+
+	/**
+	 * The number of lines kept by the log console.
+	 */
+	private static final int MAX_LOG_LINES = 5000;
+
+	/**
+	 * The delay in milliseconds between two appends to the log console.
+	 */
+	private static final int LOG_FRAME_INTERVAL = 100;
+
+	private static class LogEntry
+	{
+		private long time;
+		private String msg;
+
+		private LogEntry(long time, String msg)
+		{
+			this.time = time;
+			this.msg = msg;
+		}
+	}
+
 	private MailsterSWT main;
 	private OutlookMailView mailView;
 
@@ -77,11 +113,24 @@ public class MultiView
 	private StackLayout stackLayout = new StackLayout();
 	private CTabFolder folder;
 
-	private Text log;
+	private StyledText log;
 	private CTabItem logTabItem;
 	private ToolBar logViewToolBar;
 	private boolean logViewIsScrollLocked;
 
+	private RingBuffer<LogEntry> logBuffer = new RingBuffer<LogEntry>(LOG_BUFFER_CAPACITY);
+	private AtomicBoolean logFlushScheduled = new AtomicBoolean();
+	private long logDroppedCount;
+	private long logDateSecond = -1;
+	private String logDate;
+
+	private Runnable logFlusher = new Runnable() {
+		public void run()
+		{
+			flushLog();
+		}
+	};
+
 	private ToolBar browserViewToolBar;
 	private ToolItem stopToolItem;
 	private ToolItem backToolItem;
@@ -224,7 +273,7 @@ public class MultiView
 
 		if (log == null)
 		{
-			log = new Text(logComposite, SWT.MULTI | SWT.BORDER | SWT.V_SCROLL | SWT.WRAP);
+			log = new StyledText(logComposite, SWT.MULTI | SWT.BORDER | SWT.V_SCROLL | SWT.WRAP);
 
 			GridData gridData = new GridData(GridData.FILL_BOTH);
 			gridData.grabExcessHorizontalSpace = true;
@@ -402,30 +451,92 @@ public class MultiView
 	{
 		if (log != null && !log.isDisposed() && msg != null)
 		{
-			String date = DateUtilities.format(DateFormatterEnum.DF, new Date());
-			
-			StringBuilder sb = new StringBuilder(3 + date.length() + msg.length());
-			sb.append('['); //$NON-NLS-1$
-			sb.append(date);
-			sb.append(']'); //$NON-NLS-1$
-			sb.append(msg);
-			sb.append('\n'); //$NON-NLS-1$
-			final String s = sb.toString();
-
-			log.getDisplay().asyncExec(new Thread() {
-				public void run()
-				{
-					int idx = log.getTopIndex();
-					log.append(s.toString());
-					if (logViewIsScrollLocked)
-						log.setTopIndex(idx);
-				}
-			});
+			logBuffer.add(new LogEntry(System.currentTimeMillis(), msg));
+			if (logFlushScheduled.compareAndSet(false, true))
+				log.getDisplay().asyncExec(logFlusher);
 		}
 		else
 			LOG.info(msg);
 	}
 
+	private String formatLogDate(long time)
+	{
+		// The date only changes once per second
+		long second = time / 1000;
+		if (second != logDateSecond)
+		{
+			logDate = DateUtilities.format(DateFormatterEnum.DF, new Date(time));
+			logDateSecond = second;
+		}
+
+		return logDate;
+	}
+
+	/**
+	 * Appends the queued log lines to the console, then waits for the next frame as long as lines
+	 * keep being logged.
+	 */
+	private void flushLog()
+	{
+		if (log == null || log.isDisposed())
+		{
+			logFlushScheduled.set(false);
+			return;
+		}
+
+		List<LogEntry> entries = new ArrayList<LogEntry>(logBuffer.size());
+		if (logBuffer.drainTo(entries) == 0)
+		{
+			logFlushScheduled.set(false);
+
+			// A line may have been logged before the flag was reset
+			if (logBuffer.isEmpty() || !logFlushScheduled.compareAndSet(false, true))
+				return;
+		}
+		else
+			appendLog(entries);
+
+		log.getDisplay().timerExec(LOG_FRAME_INTERVAL, logFlusher);
+	}
+
+	private void appendLog(List<LogEntry> entries)
+	{
+		StringBuilder sb = new StringBuilder();
+		long dropped = logBuffer.getDroppedCount();
+		if (dropped != logDroppedCount)
+		{
+			sb.append('[').append(formatLogDate(entries.get(0).time)).append(']');
+			sb.append(MessageFormat.format(Messages.getString("MultiView.log.dropped"), //$NON-NLS-1$
+					new Object[] {new Long(dropped - logDroppedCount)}));
+			sb.append('\n');
+			logDroppedCount = dropped;
+		}
+
+		for (LogEntry entry : entries)
+		{
+			sb.append('[').append(formatLogDate(entry.time)).append(']');
+			sb.append(entry.msg).append('\n');
+		}
+
+		int idx = log.getTopIndex();
+		log.append(sb.toString());
+
+		int excess = log.getLineCount() - MAX_LOG_LINES;
+		if (excess > 0)
+		{
+			log.replaceTextRange(0, log.getOffsetAtLine(excess), ""); //$NON-NLS-1$
+			idx -= excess;
+		}
+
+		if (logViewIsScrollLocked)
+			log.setTopIndex(Math.max(0, idx));
+		else
+		{
+			log.setCaretOffset(log.getCharCount());
+			log.showSelection();
+		}
+	}
+
 	public void showURL(String url, boolean setURLAsTitle, boolean showCloseHandle)
 	{
 		showURL(HOME_IMAGE, url, null, setURLAsTitle, showCloseHandle);
@@ -85,7 +85,6 @@ public class MailBoxListener
 				refreshViewers(stored, true);
 			}
 			setRedraw(true);
-			treeView.updateMessageCounts(srcList);
 		}
 		else if (e.keyCode == 'q')
 		{
@@ -98,9 +97,9 @@ public class MailBoxListener
 				else
 					stored.setSeen();
 				refreshViewers(stored, true);
+				treeView.messageChanged(stored);
 			}
 			setRedraw(true);
-			treeView.updateMessageCounts(srcList);
 		}
 		else if (e.keyCode == SWT.DEL)
 		{
@@ -112,9 +111,9 @@ public class MailBoxListener
 				{
 					stored.getFlags().remove(Flags.Flag.FLAGGED);
 					refreshViewers(stored, true);
+					treeView.messageChanged(stored);
 				}
 				setRedraw(true);
-				treeView.updateMessageCounts(srcList);
 			}
 			else if (trashSelected || (e.stateMask & SWT.SHIFT) != 0)
 			{
@@ -157,12 +156,12 @@ public class MailBoxListener
 					{
 						stored.getFlags().add(Flags.Flag.FLAGGED);
 						refreshViewers(stored, true);
+						treeView.messageChanged(stored);
 					}
 				}
 				setRedraw(true);
 				treeView.filter();
 			}
-			treeView.updateMessageCounts(srcList);
 		}
 	}
 
@@ -185,7 +184,7 @@ public class MailBoxListener
 					{
 						stored.setSeen();
 						refreshViewers(stored, true);
-						main.getFilterTreeView().updateMessageCounts(srcList);
+						main.getFilterTreeView().messageChanged(stored);
 					}
 	
 					main.getMultiView().getMailView().setMail(stored);
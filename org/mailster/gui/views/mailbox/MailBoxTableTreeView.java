@@ -14,6 +14,7 @@ import org.eclipse.swt.layout.GridData;
 import org.eclipse.swt.widgets.Composite;
 import org.eclipse.swt.widgets.Event;
 import org.eclipse.swt.widgets.Listener;
+import org.eclipse.swt.widgets.Menu;
 import org.eclipse.swt.widgets.Shell;
 import org.eclipse.swt.widgets.Table;
 import org.eclipse.swt.widgets.TableColumn;
@@ -27,6 +28,7 @@ import ca.odell.glazedlists.FunctionList;
 import ca.odell.glazedlists.TreeList;
 import ca.odell.glazedlists.event.ListEvent;
 import ca.odell.glazedlists.event.ListEventListener;
+import ca.odell.glazedlists.swt.GlazedListsSWT;
 
 /**
  * ---<br>
@@ -48,6 +50,11 @@ import ca.odell.glazedlists.event.ListEventListener;
  * ---
  * <p>
  * MailBoxTableTreeView.java - The new mailbox treeTable tree view.
+ * <p>
+ * Every message is wrapped into a {@link MailBoxItem} and owner drawn, so the lists backing the
+ * tree are only kept while the view is shown: they are disposed when it is hidden and built again
+ * from the table list when it is shown. The categories are grouped by the thread changing the
+ * messages and a proxy of the tree list applies the changes to the tree on the UI thread.
  * 
  * @author <a href="mailto:doe_wanted@yahoo.fr">Edouard De Oliveira</a>
  * @version $Revision: 1.27 $, $Date: 2009/05/18 22:14:26 $
@@ -57,9 +64,52 @@ public class MailBoxTableTreeView
 {
 	private final ScheduledExecutorService svc = Executors.newSingleThreadScheduledExecutor();
 	
+	private EventList<StoredSmtpMessage> tableList;
+	private FunctionList<StoredSmtpMessage, MailBoxItem> functionList;
 	private TreeList<MailBoxItem> treeList;
+	private EventList<MailBoxItem> treeProxy;
 	private	MailBoxTableTree mailBoxTableTree;
 	private Table treeTable;
+
+	private ListEventListener<MailBoxItem> treeListener = new ListEventListener<MailBoxItem>() {
+		public void listChanged(final ListEvent<MailBoxItem> listChanges)
+		{
+			treeTable.setRedraw(false);
+			int countSelected = treeTable.getSelectionCount();
+
+			// get the list before looping, otherwise
+			// it won't be the same list as it's modified continuously
+			final List<MailBoxItem> changeList = new ArrayList<MailBoxItem>(listChanges.getSourceList());
+
+			while (listChanges.next())
+			{
+				int sourceIndex = listChanges.getIndex();
+				int changeType = listChanges.getType();
+
+				switch (changeType)
+				{
+					case ListEvent.DELETE :
+						mailBoxTableTree.removeByRealIndex(sourceIndex);
+					break;
+					case ListEvent.INSERT :
+						insertItem(sourceIndex, changeList.get(sourceIndex));
+					break;
+					case ListEvent.UPDATE :
+						MailBoxItem m = changeList.get(sourceIndex);
+						MailBoxTableTreeItem item = mailBoxTableTree.getByRealIndex(sourceIndex);
+						item.setText(m.toString());
+						item.setData(m);
+					break;
+				}
+			}
+
+			if (countSelected != 0 && treeTable.getSelectionCount() == 0)
+				MailsterSWT.getInstance().getMultiView().switchTopControl(false);
+
+			treeTable.setRedraw(true);
+			resizeTableTreeColumn(treeTable, isVerticalBarNeeded(treeTable));
+		}
+	};
 	
 	private static class StoredSmtpMessage2MailBoxItemFunction
 		implements FunctionList.Function<StoredSmtpMessage, MailBoxItem>
@@ -162,13 +212,9 @@ public class MailBoxTableTreeView
 		column.setResizable(false);
 		column.setMoveable(false);
 
-		final FunctionList<StoredSmtpMessage, MailBoxItem> fl = 
-			new FunctionList<StoredSmtpMessage, MailBoxItem>(tableList, 
-					new StoredSmtpMessage2MailBoxItemFunction());
+		this.tableList = tableList;
+		setActive(true);
 
-		treeList = new TreeList<MailBoxItem>(fl, new MailBoxTreeFormat(),
-				new MailBoxTreeExpansionModel());
-		
 		svc.scheduleAtFixedRate(new Runnable() {
 			public void run()
 			{
@@ -176,6 +222,9 @@ public class MailBoxTableTreeView
 				treeTable.getDisplay().syncExec(new Runnable() {
 					public void run()
 					{
+						if (treeList == null)
+							return;
+
 						treeList.getReadWriteLock().writeLock().lock();
 						try
 						{
@@ -201,56 +250,72 @@ public class MailBoxTableTreeView
 		}, ((MailBoxItem.categories.getTomorrow() + 1) - System.currentTimeMillis()), 
 			24L * 60L * 60L * 1000L,
 			TimeUnit.MILLISECONDS);
+	}
 
-		treeList.addListEventListener(new ListEventListener<MailBoxItem>() {
-			public void listChanged(final ListEvent<MailBoxItem> listChanges)
-			{
-				treeTable.setRedraw(false);
-				int countSelected = treeTable.getSelectionCount();
-
-				// get the list before looping, otherwise
-				// it won't be the same list as it's modified continuously
-				final List<MailBoxItem> changeList = new ArrayList<MailBoxItem>(listChanges.getSourceList());
-
-				while (listChanges.next())
-				{
-					int sourceIndex = listChanges.getIndex();
-					int changeType = listChanges.getType();
-
-					switch (changeType)
-					{
-						case ListEvent.DELETE :
-							mailBoxTableTree.removeByRealIndex(sourceIndex);
-						break;
-						case ListEvent.INSERT :
-							MailBoxItem m = changeList.get(sourceIndex);
-							MailBoxTableTreeItem item = null;
-							if (m.isRoot())
-							{
-								item = mailBoxTableTree.insertAtRealIndex(sourceIndex, SWT.MULTI);
-								item.setExpanded(true);
-							}
-							else
-								item = mailBoxTableTree.insertAtRealIndex(sourceIndex, SWT.NONE);
-							item.setText(m.toString());
-							item.setData(m);
-						break;
-						case ListEvent.UPDATE :
-							m = changeList.get(sourceIndex);
-							item = mailBoxTableTree.getByRealIndex(sourceIndex);
-							item.setText(m.toString());
-							item.setData(m);
-						break;
-					}
-				}
+	/**
+	 * Builds the lists backing the tree and fills it when <code>active</code> is true, disposes
+	 * them and empties the tree otherwise.
+	 */
+	public void setActive(boolean active)
+	{
+		if (active == (treeList != null))
+			return;
 
-				if (countSelected != 0 && treeTable.getSelectionCount() == 0)
-					MailsterSWT.getInstance().getMultiView().switchTopControl(false);
+		if (active)
+		{
+			tableList.getReadWriteLock().readLock().lock();
+			try
+			{
+				functionList = new FunctionList<StoredSmtpMessage, MailBoxItem>(tableList, 
+						new StoredSmtpMessage2MailBoxItemFunction());
+				treeList = new TreeList<MailBoxItem>(functionList, new MailBoxTreeFormat(),
+						new MailBoxTreeExpansionModel());
+				treeProxy = GlazedListsSWT.swtThreadProxyList(treeList, treeTable.getDisplay());
 
+				treeTable.setRedraw(false);
+				for (int i = 0, max = treeProxy.size(); i < max; i++)
+					insertItem(i, treeProxy.get(i));
 				treeTable.setRedraw(true);
-				resizeTableTreeColumn(treeTable, isVerticalBarNeeded(treeTable));
+
+				treeProxy.addListEventListener(treeListener);
+			} finally
+			{
+				tableList.getReadWriteLock().readLock().unlock();
 			}
-		});		
+			resizeTableTreeColumn(treeTable, isVerticalBarNeeded(treeTable));
+		}
+		else
+		{
+			tableList.getReadWriteLock().writeLock().lock();
+			try
+			{
+				treeProxy.removeListEventListener(treeListener);
+				treeProxy.dispose();
+				treeList.dispose();
+				functionList.dispose();
+			} finally
+			{
+				tableList.getReadWriteLock().writeLock().unlock();
+			}
+			treeProxy = null;
+			treeList = null;
+			functionList = null;
+			mailBoxTableTree.removeAll();
+		}
+	}
+
+	private void insertItem(int index, MailBoxItem m)
+	{
+		MailBoxTableTreeItem item = null;
+		if (m.isRoot())
+		{
+			item = mailBoxTableTree.insertAtRealIndex(index, SWT.MULTI);
+			item.setExpanded(true);
+		}
+		else
+			item = mailBoxTableTree.insertAtRealIndex(index, SWT.NONE);
+		item.setText(m.toString());
+		item.setData(m);
 	}
 	
 	private void resizeTableTreeColumn(Table table, boolean isVerticalBarNeeded)
@@ -274,6 +339,9 @@ public class MailBoxTableTreeView
 	
 	public void selectAll()
 	{
+		if (treeList == null)
+			return;
+
 		MailBoxTableTreeItem[] roots = mailBoxTableTree.getItems();
 		for (MailBoxTableTreeItem item : roots)
 			item.setExpanded(true);
@@ -290,10 +358,13 @@ public class MailBoxTableTreeView
 
 	public void setSelection(List<StoredSmtpMessage> selected)
 	{
+		if (treeList == null)
+			return;
+
 		int[] sel = new int[selected.size()];
 		int i=0;
 		for (StoredSmtpMessage msg : selected)
-			sel[i++] = treeList.indexOf(new MailBoxItem(msg));
+			sel[i++] = treeProxy.indexOf(new MailBoxItem(msg));
 		
 		treeTable.setSelection(sel);
 	}
@@ -301,8 +372,11 @@ public class MailBoxTableTreeView
 	public List<StoredSmtpMessage> getSelection()
 	{
 		List<StoredSmtpMessage> l = new ArrayList<StoredSmtpMessage>(treeTable.getSelectionCount());
+		if (treeList == null)
+			return l;
+
 		for (int idx : treeTable.getSelectionIndices())
-			l.add(treeList.get(idx).getMessage());
+			l.add(treeProxy.get(idx).getMessage());
 
 		return l;
 	}
@@ -332,6 +406,11 @@ public class MailBoxTableTreeView
 		return treeTable.forceFocus();
 	}
 
+	public void setMenu(Menu menu)
+	{
+		mailBoxTableTree.setMenu(menu);
+	}
+
 	@Override
 	public Shell getShell()
 	{
@@ -1,17 +1,17 @@
 package org.mailster.gui.views.mailbox;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.eclipse.jface.viewers.ILabelProviderListener;
-import org.eclipse.jface.viewers.ISelection;
-import org.eclipse.jface.viewers.IStructuredContentProvider;
-import org.eclipse.jface.viewers.IStructuredSelection;
+import org.eclipse.jface.viewers.ILazyContentProvider;
 import org.eclipse.jface.viewers.ITableFontProvider;
 import org.eclipse.jface.viewers.ITableLabelProvider;
-import org.eclipse.jface.viewers.StructuredSelection;
 import org.eclipse.jface.viewers.TableViewer;
 import org.eclipse.jface.viewers.Viewer;
 import org.eclipse.swt.SWT;
@@ -35,6 +35,7 @@ import org.eclipse.swt.widgets.Composite;
 import org.eclipse.swt.widgets.Event;
 import org.eclipse.swt.widgets.Label;
 import org.eclipse.swt.widgets.Listener;
+import org.eclipse.swt.widgets.Menu;
 import org.eclipse.swt.widgets.Shell;
 import org.eclipse.swt.widgets.Table;
 import org.eclipse.swt.widgets.TableColumn;
@@ -44,6 +45,7 @@ import org.mailster.MailsterSWT;
 import org.mailster.core.pop3.mailbox.StoredSmtpMessage;
 import org.mailster.gui.Messages;
 import org.mailster.gui.SWTHelper;
+import org.mailster.gui.utils.BatchEventList;
 import org.mailster.gui.utils.LayoutUtils;
 import org.mailster.gui.views.FilterTreeView;
 import org.mailster.util.DateUtilities;
@@ -52,12 +54,10 @@ import org.mailster.util.DateUtilities.DateFormatterEnum;
 import ca.odell.glazedlists.BasicEventList;
 import ca.odell.glazedlists.EventList;
 import ca.odell.glazedlists.FilterList;
-import ca.odell.glazedlists.GlazedLists;
 import ca.odell.glazedlists.SortedList;
-import ca.odell.glazedlists.TextFilterator;
 import ca.odell.glazedlists.event.ListEvent;
 import ca.odell.glazedlists.event.ListEventListener;
-import ca.odell.glazedlists.swt.TextWidgetMatcherEditor;
+import ca.odell.glazedlists.swt.GlazedListsSWT;
 
 /**
  * ---<br>
@@ -79,6 +79,15 @@ import ca.odell.glazedlists.swt.TextWidgetMatcherEditor;
  * ---
  * <p>
  * MailBoxView.java - The mailbox table view.
+ * <p>
+ * The table is virtual: a row is only materialized, that is given its message and labels, when it
+ * is shown or about to be shown after a scroll. The materialized rows are tracked so that a change
+ * of the list only clears the ones following the first changed row, and so that the rows out of
+ * the viewport are cleared once too many of them are held.
+ * <p>
+ * The lists are sorted and filtered by the thread changing them. The table is fed by a proxy of
+ * the filtered list which applies the changes on the UI thread as a single event, and the sort
+ * order and filters are changed through {@link MailBoxView#updateList(Runnable)}.
  * 
  * @author <a href="mailto:doe_wanted@yahoo.fr">Edouard De Oliveira</a>
  * @version $Revision: 1.27 $, $Date: 2009/05/18 22:14:26 $
@@ -86,14 +95,37 @@ import ca.odell.glazedlists.swt.TextWidgetMatcherEditor;
 public class MailBoxTableView
 	implements MailBoxTableInterface
 {
+	/**
+	 * The number of rows materialized ahead of the viewport in the direction of the scroll.
+	 */
+	private final static int PREFETCH_ROWS = 50;
+
+	/**
+	 * The number of materialized rows above which the rows out of the viewport are cleared.
+	 */
+	private final static int MAX_MATERIALIZED_ROWS = 500;
+
 	private MailBoxTableViewFormat fmt = new MailBoxTableViewFormat();
 
 	private TableViewer _viewer;
 	private Table _table;
 
 	private EventList<StoredSmtpMessage> _eventList;
+	private BatchEventList<StoredSmtpMessage, StoredSmtpMessage> _batchList;
 	private SortedList<StoredSmtpMessage> _sortedList;
 	private FilterList<StoredSmtpMessage> _filterList;
+	private EventList<StoredSmtpMessage> _displayList;
+	private EventList<StoredSmtpMessage> _countList;
+
+	private BitSet materialized = new BitSet();
+	private int materializedCount;
+	private boolean evictionPending;
+	private int lastTopIndex;
+
+	/**
+	 * The selected messages, as the rows out of the viewport may not hold their message.
+	 */
+	private Map<StoredSmtpMessage, Object> selectedMessages = new IdentityHashMap<StoredSmtpMessage, Object>();
 
 	public MailBoxTableView(Composite parent, Text filterText)
 	{
@@ -164,8 +196,7 @@ public class MailBoxTableView
 		final FilterTreeView treeView = MailsterSWT.getInstance().getFilterTreeView();
 		final Composite tableComposite = new Composite(parent, SWT.NONE);
 		tableComposite.setLayout(LayoutUtils.createGridLayout(1, false, 0, 0, 0, 0, 0, 0, 0, 2));
-		
-		// TODO to see if SWT.VIRTUAL does not cause any trouble any more
+
 		_viewer = new TableViewer(tableComposite, SWT.NONE | SWT.FULL_SELECTION | SWT.MULTI | SWT.VIRTUAL);
 		_viewer.setLabelProvider(new GlazedLabelProvider());
 		_viewer.setContentProvider(new GlazedContentProvider());
@@ -250,6 +281,27 @@ public class MailBoxTableView
 			}
 		});
 
+		_table.addListener(SWT.Selection, new Listener() {
+			public void handleEvent(Event e)
+			{
+				selectionChanged();
+			}
+		});
+
+		_table.getVerticalBar().addListener(SWT.Selection, new Listener() {
+			public void handleEvent(Event e)
+			{
+				// Let the visible rows be painted first
+				_table.getDisplay().asyncExec(new Runnable() {
+					public void run()
+					{
+						if (!_table.isDisposed())
+							prefetchRows();
+					}
+				});
+			}
+		});
+
 		GridData gd = new GridData(GridData.FILL_BOTH);
 		gd.grabExcessHorizontalSpace = true;
 		gd.grabExcessVerticalSpace = true;
@@ -273,7 +325,8 @@ public class MailBoxTableView
 		_eventList.getReadWriteLock().readLock().lock();
 		try
 		{
-			_sortedList = new SortedList<StoredSmtpMessage>(_eventList, null);
+			_batchList = new BatchEventList<StoredSmtpMessage, StoredSmtpMessage>(_eventList);
+			_sortedList = new SortedList<StoredSmtpMessage>(_batchList, null);
 		} finally
 		{
 			_eventList.getReadWriteLock().readLock().unlock();
@@ -281,69 +334,53 @@ public class MailBoxTableView
 
 		final FilterList<StoredSmtpMessage> treeFilteredList = treeView.buildFilterList(_sortedList);
 
-		String[] filterProperties = new String[] {"messageFrom", "messageTo", "messageSubject"}; //$NON-NLS-1$  //$NON-NLS-2$
-		TextFilterator<StoredSmtpMessage> filterator = GlazedLists.textFilterator(filterProperties);
-		TextWidgetMatcherEditor<StoredSmtpMessage> matcher = new TextWidgetMatcherEditor<StoredSmtpMessage>(filterText,
-				filterator);
+		MessageIndexMatcherEditor matcher = new MessageIndexMatcherEditor(filterText);
 
-		_filterList = new FilterList<StoredSmtpMessage>(treeFilteredList, matcher);
-		_filterList.addListEventListener(new ListEventListener<StoredSmtpMessage>() {
-			public void listChanged(ListEvent<StoredSmtpMessage> listChanges)
+		final Runnable countUpdater = new Runnable() {
+			public void run()
 			{
-				try
-				{
-					int curr = _filterList.size();
-					int total = _eventList.size();
-					countLabel.setText("<" + curr + "/" + total + ">");	//$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
-					if (curr == 0 && total > 0)
-						countLabel.setForeground(_table.getDisplay().getSystemColor(SWT.COLOR_RED));
-					else if (curr < total)
-						countLabel.setForeground(c);
-					else
-						countLabel.setForeground(_table.getDisplay().getSystemColor(SWT.COLOR_BLACK));
-					tableComposite.layout();
-
-					_table.setRedraw(false);
+				int curr = _displayList.size();
+				int total = _countList.size();
+				countLabel.setText("<" + curr + "/" + total + ">");	//$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+				if (curr == 0 && total > 0)
+					countLabel.setForeground(_table.getDisplay().getSystemColor(SWT.COLOR_RED));
+				else if (curr < total)
+					countLabel.setForeground(c);
+				else
+					countLabel.setForeground(_table.getDisplay().getSystemColor(SWT.COLOR_BLACK));
+				tableComposite.layout();
+			}
+		};
 
-					// get the list before looping, otherwise it won't be the same list as it's
-					// modified continuously
-					final List<StoredSmtpMessage> changeList = new ArrayList<StoredSmtpMessage>(listChanges.getSourceList());
+		_eventList.getReadWriteLock().readLock().lock();
+		try
+		{
+			_filterList = new FilterList<StoredSmtpMessage>(treeFilteredList, matcher);
+			_displayList = GlazedListsSWT.swtThreadProxyList(_filterList, _table.getDisplay());
+			_countList = GlazedListsSWT.swtThreadProxyList(_eventList, _table.getDisplay());
+		} finally
+		{
+			_eventList.getReadWriteLock().readLock().unlock();
+		}
 
-					while (listChanges.next())
-					{
-						int sourceIndex = listChanges.getIndex();
-						int changeType = listChanges.getType();
+		_displayList.addListEventListener(new ListEventListener<StoredSmtpMessage>() {
+			public void listChanged(ListEvent<StoredSmtpMessage> listChanges)
+			{
+				countUpdater.run();
 
-						switch (changeType)
-						{
-							case ListEvent.DELETE :
-								// note the remove of the object fetched from the event list here,
-								// we need to remove by index which the viewer does not support
-								// and we're removing from the raw list, not the filtered list
-								StoredSmtpMessage o = _eventList.get(sourceIndex);
-								_viewer.refresh(o, true);
-							break;
-							case ListEvent.INSERT :
-								StoredSmtpMessage obj = changeList.get(sourceIndex);
-								_viewer.insert(obj, sourceIndex);
-							break;
-							case ListEvent.UPDATE :
-							break;
-						}
-					}
-				} catch (Exception err)
-				{
-					err.printStackTrace();
-				} finally
-				{
-					// most important, we update the table size after the update
-					_viewer.setItemCount(_filterList.size());
+				// only the rows from the first change on need to be fetched again
+				int from = listChanges.isReordering() ? 0 : Integer.MAX_VALUE;
+				while (listChanges.nextBlock())
+					from = Math.min(from, listChanges.getBlockStartIndex());
 
-					_table.setRedraw(true);
+				rowsChanged(from);
+			}
+		});
 
-					// we could do detailed refreshes, but this isn't much of a performance hit
-					_viewer.refresh(true);
-				}
+		_countList.addListEventListener(new ListEventListener<StoredSmtpMessage>() {
+			public void listChanged(ListEvent<StoredSmtpMessage> listChanges)
+			{
+				countUpdater.run();
 			}
 		});
 
@@ -351,8 +388,8 @@ public class MailBoxTableView
 		_eventList.getReadWriteLock().readLock().lock();
 		try
 		{
-			_viewer.setInput(_eventList);
-			_viewer.setItemCount(_eventList.size());
+			_viewer.setInput(_displayList);
+			_viewer.setItemCount(_displayList.size());
 		} finally
 		{
 			_eventList.getReadWriteLock().readLock().unlock();
@@ -377,7 +414,6 @@ public class MailBoxTableView
 							StoredSmtpMessage stored = (StoredSmtpMessage) item.getData();
 							stored.setChecked(!stored.isChecked());
 							_viewer.refresh(stored, true);
-							treeView.updateMessageCounts(_eventList);
 							return;
 						}
 						if (!visible && rect.intersects(clientArea))
@@ -393,7 +429,7 @@ public class MailBoxTableView
 		_table.setSortColumn(_table.getColumn(MailBoxTableViewFormat.DATE_COLUMN));
 		_table.setSortDirection(SWT.DOWN);
 		
-		treeView.installListeners(_filterList, _eventList);
+		treeView.installListeners(_countList);
 		MailBoxView.setupFileDrop(_table);
 		setupAsDragSource();
 	}
@@ -412,6 +448,126 @@ public class MailBoxTableView
 		});
     }
 
+	private int getVisibleRowCount()
+	{
+		return _table.getClientArea().height / _table.getItemHeight() + 1;
+	}
+
+	private void materialize(int index)
+	{
+		_viewer.replace(_displayList.get(index), index);
+		if (!materialized.get(index))
+		{
+			materialized.set(index);
+			materializedCount++;
+		}
+
+		if (materializedCount > MAX_MATERIALIZED_ROWS && !evictionPending)
+		{
+			evictionPending = true;
+			_table.getDisplay().asyncExec(new Runnable() {
+				public void run()
+				{
+					evictionPending = false;
+					if (!_table.isDisposed())
+						evictRows();
+				}
+			});
+		}
+	}
+
+	private void clearRow(int index)
+	{
+		materialized.clear(index);
+		materializedCount--;
+		_viewer.clear(index);
+	}
+
+	/**
+	 * Materializes the rows following the viewport in the direction of the last scroll.
+	 */
+	private void prefetchRows()
+	{
+		int top = _table.getTopIndex();
+		int from = top + getVisibleRowCount();
+		int to = from + PREFETCH_ROWS;
+		if (top < lastTopIndex)
+		{
+			from = top - PREFETCH_ROWS;
+			to = top;
+		}
+		lastTopIndex = top;
+
+		to = Math.min(to, _table.getItemCount());
+		for (int i = materialized.nextClearBit(Math.max(0, from)); i < to; i = materialized.nextClearBit(i + 1))
+			materialize(i);
+	}
+
+	/**
+	 * Clears the materialized rows which are out of the viewport and of the prefetch windows
+	 * around it.
+	 */
+	private void evictRows()
+	{
+		int top = _table.getTopIndex();
+		int from = top - PREFETCH_ROWS;
+		int to = top + getVisibleRowCount() + PREFETCH_ROWS;
+
+		for (int i = materialized.nextSetBit(0); i >= 0; i = materialized.nextSetBit(i + 1))
+		{
+			if (i >= from && i < to)
+				i = to - 1;
+			else
+				clearRow(i);
+		}
+	}
+
+	/**
+	 * Records the selected messages after the selection of the table changed. The rows and the
+	 * list are in sync at this point.
+	 */
+	private void selectionChanged()
+	{
+		selectedMessages.clear();
+		for (int idx : _table.getSelectionIndices())
+		{
+			StoredSmtpMessage msg = _displayList.get(idx);
+			selectedMessages.put(msg, msg);
+		}
+	}
+
+	/**
+	 * Updates the table after the rows from <code>from</code> changed. The materialized rows from
+	 * there are cleared so that they are fetched again when shown and the selected messages keep
+	 * their selection if they moved.
+	 */
+	private void rowsChanged(int from)
+	{
+		boolean reselect = false;
+		boolean allSelected = false;
+		int[] indices = _table.getSelectionIndices();
+		if (indices.length > 0 && indices[indices.length - 1] >= from)
+		{
+			reselect = true;
+			allSelected = indices.length == _table.getItemCount();
+		}
+
+		for (int i = materialized.nextSetBit(from); i >= 0; i = materialized.nextSetBit(i + 1))
+			clearRow(i);
+
+		// updates the table size after the clear as the removed rows are still there
+		_viewer.setItemCount(_displayList.size());
+
+		if (allSelected)
+		{
+			_table.selectAll();
+			selectionChanged();
+		}
+		else
+		if (reselect)
+			select(new ArrayList<StoredSmtpMessage>(selectedMessages.keySet()), false);
+	}
+
 	private void sortColumn(int col)
 	{
 		int dir = SWT.UP;
@@ -426,14 +582,20 @@ public class MailBoxTableView
 		_table.setSortDirection(dir);
 
 		// now tell the sorted list we've updated
-		_sortedList.getReadWriteLock().writeLock().lock();
-		try
-		{
-			_sortedList.setComparator(new GlazedSortComparator(col, dir));
-		} finally
-		{
-			_sortedList.getReadWriteLock().writeLock().unlock();
-		}
+		final GlazedSortComparator comparator = new GlazedSortComparator(col, dir);
+		MailBoxView.updateList(new Runnable() {
+			public void run()
+			{
+				_sortedList.getReadWriteLock().writeLock().lock();
+				try
+				{
+					_sortedList.setComparator(comparator);
+				} finally
+				{
+					_sortedList.getReadWriteLock().writeLock().unlock();
+				}
+			}
+		});
 	}
 
 	protected void updateTableColumnsWidth()
@@ -471,13 +633,29 @@ public class MailBoxTableView
 			_direction = direction;
 		}
 
+		private int compare(String s1, String s2)
+		{
+			if (s1 == null)
+				return s2 == null ? 0 : -1;
+			else
+				return s2 == null ? 1 : s1.compareTo(s2);
+		}
+
 		public int compare(StoredSmtpMessage o1, StoredSmtpMessage o2)
 		{
+			// reads the headers parsed once by the message blobs rather than the column values
 			int ret = 0;
-			if (fmt.getColumnValue(o1, _col) instanceof Date)
-				ret = ((Date) fmt.getColumnValue(o1, _col)).compareTo((Date) fmt.getColumnValue(o2, _col));
+			if (_col == MailBoxTableViewFormat.DATE_COLUMN)
+			{
+				long d1 = o1.getMessageDate().getTime();
+				long d2 = o2.getMessageDate().getTime();
+				ret = d1 < d2 ? -1 : (d1 == d2 ? 0 : 1);
+			}
+			else
+			if (_col == MailBoxTableViewFormat.TO_COLUMN)
+				ret = compare(o1.getMessageTo(), o2.getMessageTo());
 			else
-				ret = ((String) fmt.getColumnValue(o1, _col)).compareTo((String)fmt.getColumnValue(o2, _col));
+				ret = compare(o1.getMessageSubject(), o2.getMessageSubject());
 			
 			if (_direction == SWT.DOWN)
 				return -ret;
@@ -487,11 +665,11 @@ public class MailBoxTableView
 	}
 
 	class GlazedContentProvider
-		implements IStructuredContentProvider
+		implements ILazyContentProvider
 	{
-		public Object[] getElements(Object inputElement)
+		public void updateElement(int index)
 		{
-			return _filterList.toArray();
+			materialize(index);
 		}
 
 		public void dispose()
@@ -500,6 +678,8 @@ public class MailBoxTableView
 
 		public void inputChanged(Viewer viewer, Object oldInput, Object newInput)
 		{
+			materialized.clear();
+			materializedCount = 0;
 		}
 	}
 
@@ -561,9 +741,14 @@ public class MailBoxTableView
 		return _eventList;
 	}
 
+	BatchEventList<StoredSmtpMessage, StoredSmtpMessage> getBatchList()
+	{
+		return _batchList;
+	}
+
 	EventList<StoredSmtpMessage> getTableList()
 	{
-		return _filterList;
+		return _displayList;
 	}
 
 	public void addTableListener(int eventType, Listener listener)
@@ -571,11 +756,14 @@ public class MailBoxTableView
 		_table.addListener(eventType, listener);
 	}
 
-	@SuppressWarnings("unchecked")
 	public List<StoredSmtpMessage> getSelection()
 	{
-		return new ArrayList<StoredSmtpMessage>((List<StoredSmtpMessage>) ((IStructuredSelection) _viewer.getSelection())
-				.toList());
+		int[] indices = _table.getSelectionIndices();
+		List<StoredSmtpMessage> l = new ArrayList<StoredSmtpMessage>(indices.length);
+		for (int idx : indices)
+			l.add(_displayList.get(idx));
+
+		return l;
 	}
 
 	public Shell getShell()
@@ -591,24 +779,54 @@ public class MailBoxTableView
 	public void selectAll()
 	{
 		_table.selectAll();
+		selectionChanged();
 	}
 
 	public void setSelection(List<StoredSmtpMessage> selected)
 	{
-		List<StoredSmtpMessage> tmp = new ArrayList<StoredSmtpMessage>();
+		select(selected, true);
+	}
+
+	/**
+	 * Selects the rows of the <code>selected</code> messages, found in a single pass over the list
+	 * rather than by materializing the rows.
+	 */
+	private void select(List<StoredSmtpMessage> selected, boolean reveal)
+	{
+		Map<StoredSmtpMessage, Object> lookup = new IdentityHashMap<StoredSmtpMessage, Object>();
 		for (StoredSmtpMessage msg : selected)
 		{
 			if (msg != null)
-				tmp.add(msg);
+				lookup.put(msg, msg);
 		}
-		
-		if (tmp.size() == 0)
-			_viewer.setSelection(null);
-		else
+
+		if (lookup.isEmpty())
+		{
+			_table.deselectAll();
+			selectedMessages.clear();
+			return;
+		}
+
+		int[] indices = new int[lookup.size()];
+		int count = 0;
+		int index = 0;
+		for (StoredSmtpMessage msg : _displayList)
 		{
-			ISelection sel = new StructuredSelection(tmp);
-			_viewer.setSelection(sel, true);
+			if (lookup.containsKey(msg))
+			{
+				indices[count++] = index;
+				if (count == indices.length)
+					break;
+			}
+			index++;
 		}
+
+		int[] sel = new int[count];
+		System.arraycopy(indices, 0, sel, 0, count);
+		_table.setSelection(sel);
+		selectionChanged();
+		if (reveal)
+			_table.showSelection();
 	}
 
 	public void setTableRedraw(boolean redraw)
@@ -625,4 +843,9 @@ public class MailBoxTableView
 	{
 		return _table.forceFocus();
 	}
+
+	public void setMenu(Menu menu)
+	{
+		_table.setMenu(menu);
+	}
 }
\ No newline at end of file
@@ -1,8 +1,13 @@
 package org.mailster.gui.views.mailbox;
 
+import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import org.eclipse.jface.dialogs.MessageDialog;
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.custom.StackLayout;
 import org.eclipse.swt.dnd.DND;
@@ -11,6 +16,8 @@ import org.eclipse.swt.dnd.DropTargetAdapter;
 import org.eclipse.swt.dnd.DropTargetEvent;
 import org.eclipse.swt.dnd.FileTransfer;
 import org.eclipse.swt.dnd.Transfer;
+import org.eclipse.swt.events.SelectionAdapter;
+import org.eclipse.swt.events.SelectionEvent;
 import org.eclipse.swt.graphics.Font;
 import org.eclipse.swt.graphics.FontData;
 import org.eclipse.swt.graphics.Image;
@@ -20,10 +27,17 @@ import org.eclipse.swt.widgets.Composite;
 import org.eclipse.swt.widgets.Control;
 import org.eclipse.swt.widgets.Event;
 import org.eclipse.swt.widgets.Listener;
+import org.eclipse.swt.widgets.Menu;
+import org.eclipse.swt.widgets.MenuItem;
+import org.mailster.core.metrics.DeliveryTrace;
+import org.mailster.core.metrics.DeliveryTracer;
 import org.mailster.core.pop3.mailbox.StoredSmtpMessage;
+import org.mailster.gui.Messages;
 import org.mailster.gui.SWTHelper;
+import org.mailster.gui.utils.BatchEventList;
 import org.mailster.gui.utils.LayoutUtils;
 import org.mailster.gui.views.ImportExportUtilities;
+import org.mailster.util.ThreadFactoryUtilities;
 
 import ca.odell.glazedlists.EventList;
 
@@ -47,6 +61,11 @@ import ca.odell.glazedlists.EventList;
  * ---
  * <p>
  * MailBoxView.java - The new mailbox view.
+ * <p>
+ * The message list is sorted and filtered by the thread changing it. Bulk changes and the changes
+ * of the sort order or of the filters are thus run by {@link #updateList(Runnable)} out of the UI
+ * thread, and the views are fed by proxies of the lists which publish each batch of changes at
+ * once on the UI thread.
  * 
  * @author <a href="mailto:doe_wanted@yahoo.fr">Edouard De Oliveira</a>
  * @version $Revision: 1.27 $, $Date: 2009/05/18 22:14:26 $
@@ -60,6 +79,8 @@ public class MailBoxView
 
 	private static final int MIN_WIDTH_FOR_MULTI_COLUMN = 380;
 
+	private static ExecutorService listUpdater;
+
 	private SearchBoxView sbView;
 	private MailBoxTableView tableView;
 	private MailBoxTableTreeView tableTreeView;
@@ -89,6 +110,39 @@ public class MailBoxView
 		});
 	}
 	
+	/**
+	 * Runs <code>update</code> on the thread which changes the message list. The updates are run
+	 * one after the other in the order they were submitted.
+	 */
+	public static void updateList(Runnable update)
+	{
+		getListUpdater().execute(update);
+	}
+
+	/**
+	 * Runs <code>update</code> like {@link #updateList(Runnable)} and waits until it is done. The
+	 * update must not wait for the UI thread, which may be the calling thread.
+	 *
+	 * @throws InterruptedException if the calling thread is interrupted while waiting
+	 * @throws ExecutionException if the update failed
+	 */
+	public static void updateListAndWait(Runnable update)
+		throws InterruptedException, ExecutionException
+	{
+		getListUpdater().submit(update).get();
+	}
+
+	private static synchronized ExecutorService getListUpdater()
+	{
+		if (listUpdater == null)
+		{
+			listUpdater = Executors.newSingleThreadExecutor(
+					ThreadFactoryUtilities.createFactory("Mailbox List Updater", true)); //$NON-NLS-1$
+		}
+
+		return listUpdater;
+	}
+
 	public MailBoxView(final Composite parent)
 	{
 		super(parent, SWT.NONE);
@@ -109,11 +163,12 @@ public class MailBoxView
 
 		final Composite tableViewComposite = createTableView(tComposite);		
 		final Composite tableTreeComposite = new Composite(tComposite, SWT.NONE);
-		tableTreeView = new MailBoxTableTreeView(tableTreeComposite, tableView.getTableList());
+		tableTreeView = new MailBoxTableTreeView(tableTreeComposite, tableView.getFilterList());
 		
 		sl.topControl = tableTreeComposite;
 		
 		mboxListener = new MailBoxListener(tableTreeView, tableView, getEventList());
+		createMenu();
 
 		parent.addListener(SWT.Resize, new Listener() {
 			public void handleEvent(Event event)
@@ -122,10 +177,13 @@ public class MailBoxView
 				if (w > MIN_WIDTH_FOR_MULTI_COLUMN && sl.topControl != tableViewComposite) {
 					sl.topControl = tableViewComposite;
 					mboxListener.switchListenerSource();
+					tableTreeView.setActive(false);
 					MailBoxView.this.layout();
 				}
 				else if (w <= MIN_WIDTH_FOR_MULTI_COLUMN && sl.topControl != tableTreeComposite) {
 					sl.topControl = tableTreeComposite;
+					tableTreeView.setActive(true);
+					tableTreeView.setSelection(tableView.getSelection());
 					mboxListener.switchListenerSource();
 					MailBoxView.this.layout();
 				}
@@ -133,6 +191,47 @@ public class MailBoxView
 		});
 	}
 	
+	/**
+	 * Creates the context menu of the mailbox views, which shows the delivery trace of the
+	 * selected message.
+	 */
+	private void createMenu()
+	{
+		Menu menu = new Menu(getShell());
+		MenuItem trace = new MenuItem(menu, SWT.NONE);
+		trace.setText(Messages.getString("MailBoxView.menu.showTrace")); //$NON-NLS-1$
+		trace.addSelectionListener(new SelectionAdapter() {
+			public void widgetSelected(SelectionEvent event)
+			{
+				List<StoredSmtpMessage> selection = getSelection();
+				if (!selection.isEmpty())
+					showTrace(selection.get(0).getMessageId());
+			}
+		});
+
+		tableView.setMenu(menu);
+		tableTreeView.setMenu(menu);
+	}
+
+	/**
+	 * Shows the delivery trace of the message <code>messageID</code>, kept by the
+	 * {@link DeliveryTracer} for the latest deliveries.
+	 */
+	private void showTrace(String messageID)
+	{
+		DeliveryTrace trace = DeliveryTracer.getDefault().getTrace(messageID);
+		String text;
+		if (trace == null)
+			text = MessageFormat.format(Messages.getString("MailBoxView.dialog.trace.notFound"), //$NON-NLS-1$
+					new Object[] {messageID});
+		else
+			text = MessageFormat.format(Messages.getString("MailBoxView.dialog.trace.message"), //$NON-NLS-1$
+					new Object[] {trace.toString(), trace.getLastStage().getLabel()});
+
+		MessageDialog.openInformation(getShell(), 
+				Messages.getString("MailBoxView.dialog.trace.title"), text); //$NON-NLS-1$
+	}
+
 	private Composite createTableView(final Composite parent)
 	{
 		Composite mailTableComposite = new Composite(parent, SWT.NONE);
@@ -170,6 +269,15 @@ public class MailBoxView
 		return tableView.getEventList();
 	}
 
+	/**
+	 * Returns the list through which several changes of the event list are sorted and filtered
+	 * as a single change.
+	 */
+	public BatchEventList<StoredSmtpMessage, StoredSmtpMessage> getBatchList()
+	{
+		return tableView.getBatchList();
+	}
+
 	public List<StoredSmtpMessage> getSelection()
 	{
 		return mboxListener.getSource().getSelection();
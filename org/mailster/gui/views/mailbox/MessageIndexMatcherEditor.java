@@ -0,0 +1,137 @@
+package org.mailster.gui.views.mailbox;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+
+import org.eclipse.swt.events.ModifyEvent;
+import org.eclipse.swt.events.ModifyListener;
+import org.eclipse.swt.widgets.Text;
+import org.mailster.core.pop3.mailbox.MessageBlobStore;
+import org.mailster.core.pop3.mailbox.MessageIndex;
+import org.mailster.core.pop3.mailbox.StoredSmtpMessage;
+
+import ca.odell.glazedlists.matchers.AbstractMatcherEditor;
+import ca.odell.glazedlists.matchers.Matcher;
+
+/**
+ * ---<br>
+ * Mailster (C) 2007-2009 De Oliveira Edouard
+ * <p>
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 2 of the
+ * License, or (at your option) any later version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along with this program; if
+ * not, write to the Free Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ * <p>
+ * See&nbsp; <a href="http://tedorg.free.fr/en/projects.php" target="_parent">Mailster Web Site</a>
+ * <br>
+ * ---
+ * <p>
+ * MessageIndexMatcherEditor.java - Filters the messages with the words typed in a text widget,
+ * looked up in the {@link MessageIndex} of the default store. The index is queried once per
+ * keystroke and each message is then matched by its document number. Both are run out of the UI
+ * thread by {@link MailBoxView#updateList(Runnable)}.
+ *
+ * @author <a href="mailto:doe_wanted@yahoo.fr">Edouard De Oliveira</a>
+ * @version $Revision$, $Date$
+ */
+public class MessageIndexMatcherEditor
+	extends AbstractMatcherEditor<StoredSmtpMessage>
+{
+	private Text text;
+	private Set<String> words = Collections.emptySet();
+
+	private ModifyListener listener = new ModifyListener() {
+		public void modifyText(ModifyEvent e)
+		{
+			final String typed = text.getText();
+			MailBoxView.updateList(new Runnable() {
+				public void run()
+				{
+					refilter(typed);
+				}
+			});
+		}
+	};
+
+	public MessageIndexMatcherEditor(Text text)
+	{
+		this.text = text;
+		text.addModifyListener(listener);
+		refilter(text.getText());
+	}
+
+	/**
+	 * Runs the query <code>typed</code> in the text widget.
+	 */
+	public void refilter(String typed)
+	{
+		Set<String> previous = words;
+		words = MessageIndex.parseQuery(typed);
+
+		// Also when the only word is too long to be looked up
+		if (words.isEmpty())
+		{
+			fireMatchAll();
+			return;
+		}
+
+		MessageIndex index = MessageBlobStore.getDefault().getIndex();
+		if (index == null)
+		{
+			// Messages are then only matched by their headers
+			index = new MessageIndex();
+		}
+
+		final MessageIndex.SearchResult result = index.search(typed);
+		Matcher<StoredSmtpMessage> matcher = new Matcher<StoredSmtpMessage>() {
+			public boolean matches(StoredSmtpMessage msg)
+			{
+				return result.contains(msg.getBlob());
+			}
+		};
+
+		// Compares the parsed words as some typed ones are ignored
+		if (!previous.isEmpty() && narrows(words, previous))
+			fireConstrained(matcher);
+		else
+		if (narrows(previous, words))
+			fireRelaxed(matcher);
+		else
+			fireChanged(matcher);
+	}
+
+	/**
+	 * Returns true if the messages matching <code>narrower</code> all match <code>wider</code>,
+	 * that is if each word of <code>wider</code> begins a word of <code>narrower</code>.
+	 */
+	private static boolean narrows(Set<String> narrower, Set<String> wider)
+	{
+		for (String w : wider)
+		{
+			boolean found = false;
+			for (Iterator<String> it = narrower.iterator(); !found && it.hasNext();)
+				found = it.next().startsWith(w);
+
+			if (!found)
+				return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Stops listening to the text widget.
+	 */
+	public void dispose()
+	{
+		if (!text.isDisposed())
+			text.removeModifyListener(listener);
+	}
+}
@@ -0,0 +1,109 @@
+package org.mailster.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * ---<br>
+ * Mailster (C) 2007-2009 De Oliveira Edouard
+ * <p>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 675 Mass
+ * Ave, Cambridge, MA 02139, USA.
+ * <p>
+ * See&nbsp; <a href="http://tedorg.free.fr/en/projects.php" target="_parent">Mailster
+ * Web Site</a> <br>
+ * ---
+ * <p>
+ * CharSequenceInputStream.java - Reads the chars of a {@link CharSequence}
+ * encoded with a charset. Chars are encoded as they are read : the sequence
+ * is never copied.
+ *
+ * @author <a href="mailto:doe_wanted@yahoo.fr">Edouard De Oliveira</a>
+ * @version $Revision$, $Date$
+ */
+public class CharSequenceInputStream extends InputStream
+{
+	private CharBuffer in;
+	private CharsetEncoder encoder;
+	private ByteBuffer out = ByteBuffer.allocate(4096);
+	private boolean encoded;
+	private boolean flushed;
+
+	public CharSequenceInputStream(CharSequence s, Charset charset)
+	{
+		in = CharBuffer.wrap(s);
+		encoder = charset.newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		out.flip();
+	}
+
+	/**
+	 * Encodes the next chars.
+	 *
+	 * @return false if the end of the sequence has been reached
+	 */
+	private boolean fill()
+	{
+		if (flushed)
+			return false;
+
+		out.clear();
+		if (!encoded && encoder.encode(in, out, true).isUnderflow())
+			encoded = true;
+
+		if (encoded && encoder.flush(out).isUnderflow())
+			flushed = true;
+
+		out.flip();
+		return true;
+	}
+
+	public int read() throws IOException
+	{
+		while (!out.hasRemaining())
+		{
+			if (!fill())
+				return -1;
+		}
+
+		return out.get() & 0xff;
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException
+	{
+		if (len == 0)
+			return 0;
+
+		while (!out.hasRemaining())
+		{
+			if (!fill())
+				return -1;
+		}
+
+		int n = Math.min(len, out.remaining());
+		out.get(b, off, n);
+		return n;
+	}
+
+	public int available()
+	{
+		return out.remaining();
+	}
+}
@@ -1,15 +1,14 @@
 package org.mailster.util;
 
 import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
@@ -19,10 +18,12 @@ import java.util.StringTokenizer;
 import javax.mail.MessagingException;
 import javax.mail.internet.MimeUtility;
 
-import org.mailster.core.mail.SmtpHeaders;
 import org.mailster.core.mail.SmtpHeadersInterface;
 import org.mailster.core.mail.SmtpMessage;
 import org.mailster.core.mail.SmtpMessagePart;
+import org.mailster.core.mail.SmtpMessagePartParser;
+import org.mailster.core.metrics.Histogram;
+import org.mailster.core.metrics.MetricsRegistry;
 import org.mailster.util.DateUtilities.DateFormatterEnum;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -62,13 +63,9 @@ public class MailUtilities
      */
     private static final Logger LOG = LoggerFactory.getLogger(MailUtilities.class);
     
-    /**
-     * Maximum SMTP communication line width (RFC 822 sets it to "72 or 73
-     * characters" so we give some extra characters just to ensure not loosing
-     * characters).
-     */
-    public final static int MAX_LINE_LENGTH = 80;
-
+    private static final Histogram MIME_PARSE_TIME = MetricsRegistry.getDefault().histogram(
+    		"mailster_mime_parse_seconds", "Time spent parsing the MIME structure of a message");
+    
     /**
      * Temporary directory name used when saving temporary data. Value is set to
      * the value of the 'java.io.tmpdir' system property.
@@ -267,6 +264,36 @@ public class MailUtilities
         return cids;
     }
 
+    /**
+     * Returns a stream of the decoded content of <code>encoded</code>. The 
+     * content is encoded and decoded as the stream is read so that no copy
+     * of it is made.
+     * 
+     * @param encoded the content to decode
+     * @param charsetName the name of the charset
+     * @param encoding the name of the encoding
+     * @throws UnsupportedEncodingException if the charset is unknown
+     * @throws MessagingException if the encoding is unknown
+     */
+    public static InputStream getDecodedInputStream(CharSequence encoded,
+            String charsetName, String encoding) 
+    	throws UnsupportedEncodingException, MessagingException
+    {
+        String charset = charsetName != null ? MimeUtility
+                .javaCharset(charsetName) : null;
+        Charset cs;
+        try
+        {
+            cs = charset == null ? Charset.defaultCharset() : Charset.forName(charset);
+        }
+        catch (IllegalArgumentException e)
+        {
+            throw new UnsupportedEncodingException(charset);
+        }
+
+        return MimeUtility.decode(new CharSequenceInputStream(encoded, cs), encoding);
+    }
+
     /**
      * Outputs the decoded content from the
      * <code>encodedString</quote> string to the <code>os</code> output stream.
@@ -278,16 +305,11 @@ public class MailUtilities
      * @throws IOException
      * @throws MessagingException
      */
-    public static void write(OutputStream os, String encodedString,
+    public static void write(OutputStream os, CharSequence encodedString,
             String charsetName, String encoding) throws IOException,
             MessagingException
     {
-        String charset = charsetName != null ? MimeUtility
-                .javaCharset(charsetName) : null;
-        byte[] b = charset == null ? encodedString.getBytes() : encodedString
-                .getBytes(charset);
-        InputStream is = MimeUtility.decode(new ByteArrayInputStream(b),
-                encoding);
+        InputStream is = getDecodedInputStream(encodedString, charsetName, encoding);
 
         byte[] buffer = new byte[4096];
         int nb = 0;
@@ -414,21 +436,6 @@ public class MailUtilities
         return null;
     }
 
-    /**
-     * Returns the string that delimits sub parts of a MIME multipart message.
-     * This string is the value of the boundary parameter which is a sub value
-     * of the Content-Type header from the headers <code>headers</code>.
-     * 
-     * @param headers the headers of the part
-     * @return the boundary string
-     */
-    private static String getPartBoundary(SmtpHeadersInterface headers)
-    {
-        return getHeaderParameterValue(headers,
-                SmtpHeadersInterface.CONTENT_TYPE,
-                SmtpHeadersInterface.BOUNDARY_PARAMETER);
-    }
-
     /**
      * Returns true if headers <code>headers</code> represent a multipart
      * content.
@@ -443,207 +450,6 @@ public class MailUtilities
         return contentType != null && contentType.startsWith("multipart");
     }
 
-    /**
-     * Returns true if headers <code>headers</code> represent a message
-     * content.
-     * 
-     * @param headers the headers
-     * @return true if part content is of type message
-     */
-    private static boolean isMessagePart(SmtpHeadersInterface headers)
-    {
-        String contentType = headers
-                .getHeaderValue(SmtpHeadersInterface.CONTENT_TYPE);
-        return contentType != null && contentType.startsWith("message");
-    }
-
-    /**
-     * Returns a SmtpMessagePart from parsing <code>reader</code>. If
-     * <code>readHeader</code> is true then data read from <code>reader</code>
-     * should contain the headers of the part (always the case except for a
-     * simple single part message where headers are set within the message
-     * headers).
-     * 
-     * @param reader the mail body reader stream
-     * @param parentHeaders the headers of the parent part
-     * @param readHeader true if method should read headers from the reader
-     * @return a part representing the reader contents
-     * @throws IOException
-     */
-    private static SmtpMessagePart handleBodyPart(BufferedReader reader,
-            SmtpHeadersInterface parentHeaders, boolean readHeader)
-            throws IOException
-    {
-        boolean isHeader = readHeader;
-        int lineNum = 0;
-        SmtpHeadersInterface headers = new SmtpHeaders();
-        SmtpMessagePart mPart = new SmtpMessagePart();
-
-        LOG.debug("[DEBUG] --- BODY PART START ---");
-        if (isHeader)
-            LOG.debug("[DEBUG] --- Header start ---");
-
-        while (reader.ready())
-        {
-            reader.mark(MAX_LINE_LENGTH);
-            String line = reader.readLine();
-
-            if (isHeader)
-            {
-                if ("".equals(line))
-                {
-                    isHeader = false;
-                    LOG.debug("[DEBUG] --- Header end ---");
-
-                    mPart.setHeaders(headers);
-                    if (isMultiPart(headers))
-                    {
-                        mPart.setBoundary(getPartBoundary(headers));
-                        mPart.setParts(handleMultiPart(reader, headers));
-                        LOG.debug("[DEBUG] --- BODY PART END ---");
-                        return mPart;
-                    }
-                    if (isMessagePart(headers))
-                    {
-                        handleRFC822MessagePart(reader, mPart,
-                                getPartBoundary(parentHeaders));
-                        LOG.debug("[DEBUG] --- BODY PART END ---");
-                        return mPart;
-                    }
-                }
-                else
-                    headers.addHeaderLine(line);
-
-                LOG.debug(line);
-            }
-            else if (line == null || line.startsWith("--"))
-            {
-                reader.reset();
-                break;
-            }
-            else
-            {
-            	if (lineNum == 1)
-            	{
-                	lineNum++;
-                	mPart.appendToBody("\n");
-            	}
-
-            	if (!"".equals(line))
-            		mPart.appendToBody(line);
-            	
-            	if (!readHeader && lineNum == 0)
-            		lineNum++;
-            	else
-            		mPart.appendToBody("\n");
-            }
-        }
-
-        if (LOG.isDebugEnabled())
-        	LOG.debug(mPart.getBody().toString());
-        
-        LOG.debug("[DEBUG] --- BODY PART END ---");
-        return mPart;
-    }
-
-    /**
-     * Reads an embedded RFC 822 message and writes it to the <code>part</code>
-     * body's part.
-     * 
-     * @param reader the reader stream
-     * @param part the target part
-     * @param boundary the boundary of the part
-     * @throws IOException
-     */
-    private static void handleRFC822MessagePart(BufferedReader reader,
-            SmtpMessagePart part, String boundary) throws IOException
-    {
-        String partEndBoundary = "--" + boundary + "--";
-
-        while (reader.ready())
-        {
-            String line = reader.readLine();
-
-            if (line == null || line.startsWith(partEndBoundary))
-                break;
-            else
-            {
-                part.appendToBody(line);
-                part.appendToBody("\n");
-            }
-        }
-
-        if (LOG.isDebugEnabled())
-        	LOG.debug(part.getBody().toString());
-    }
-
-    /**
-     * Returns a SmtpMessagePart's list from parsing <code>reader</code>.
-     * 
-     * @param reader the mail body reader stream
-     * @param parentHeaders the headers of the parent part
-     * @return the list of parts
-     * @throws IOException
-     */
-    private static List<SmtpMessagePart> handleMultiPart(BufferedReader reader,
-            SmtpHeadersInterface parentHeaders) throws IOException
-    {
-        List<SmtpMessagePart> mParts = new ArrayList<SmtpMessagePart>();
-        String boundary = getPartBoundary(parentHeaders);
-        String end = "--" + boundary + "--";
-        StringBuilder bodyPart = new StringBuilder();
-
-        while (reader.ready())
-        {
-            String line = reader.readLine();
-            
-            if (line == null)
-        	break;
-            
-            if (boundary == null && line.startsWith("--"))
-            {
-                boundary = line;
-                end = boundary + "--";
-            }
-            
-            if (boundary != null && line.equals(end)) {
-                bodyPart.append(line).append('\n');
-                break;
-            }
-            
-            bodyPart.append(line).append('\n');
-        }
-
-        BufferedReader mpReader = new BufferedReader(new StringReader(bodyPart
-                .toString()));
-        LOG.debug("[DEBUG] --- MULTI PART START (boundary {}) --- ", boundary);
-
-        int i = 1;
-        String line = null;
-        do
-        {
-            while (mpReader.ready())
-            {
-                line = mpReader.readLine();
-                if (line == null || line.indexOf(boundary) >= 0)
-                    break;
-                LOG.debug(line);
-            }
-
-            if (line == null || line.equals(end))
-                break;
-
-            LOG.debug("[DEBUG] --- MULTI PART {} (boundary={}) START ---", i, boundary);
-            mParts.add(handleBodyPart(mpReader, parentHeaders, true));
-            LOG.debug("[DEBUG] --- MULTI PART {} (boundary={}) END ---", i, boundary);
-            i++;
-        }
-        while (mpReader.ready());
-
-        LOG.debug("[DEBUG] --- MULTI PART END (boundary {}) ---", boundary);
-        return mParts;
-    }
-
     /**
      * Parses <code>msg</code> and returns a SmtpMessagePart representing the
      * contents of the message.
@@ -651,32 +457,17 @@ public class MailUtilities
      * @param msg the message to be parsed
      * @param body the body of the message
      * @return the object representation of the message's body
+     * @see SmtpMessagePartParser
      */
     public static SmtpMessagePart parseInternalParts(SmtpMessage msg, String body)
     {
-        LOG.debug("[DEBUG] --- MAIL ---");
-        if (LOG.isDebugEnabled())
-        	LOG.debug(body);
-        LOG.debug("[DEBUG] --- END MAIL ---\n\n");
-
         SmtpMessagePart mPart = null;
+        long start = System.nanoTime();
 
         try
         {
-            BufferedReader reader = new BufferedReader(new StringReader(body));
-            LOG.debug("[DEBUG] --- MAIL BODY PARSING START ---");
-
-            if (isMultiPart(msg.getHeaders()))
-            {
-                mPart = new SmtpMessagePart();
-                mPart.setBoundary(getPartBoundary(msg.getHeaders()));
-                mPart.setParts(handleMultiPart(reader, msg.getHeaders()));
-            }
-            else
-                mPart = handleBodyPart(reader, msg.getHeaders(), false);
-
-            mPart.setHeaders(msg.getHeaders());
-            LOG.debug("[DEBUG] --- MAIL BODY PARSING END ---");
+            mPart = SmtpMessagePartParser.parse(msg.getHeaders(), body);
+            MIME_PARSE_TIME.recordSince(start);
         }
         catch (Exception ex)
         {
@@ -685,9 +476,7 @@ public class MailUtilities
             mPart.setHeaders(msg.getHeaders());
             mPart.setBody(body);
         }
-        LOG.debug("*************************************************************");
-        if (LOG.isDebugEnabled())
-        	LOG.debug(mPart.toString());
+
         return mPart;
     }
 
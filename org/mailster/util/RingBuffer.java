@@ -0,0 +1,116 @@
+package org.mailster.util;
+
+import java.util.Collection;
+
+/**
+ * ---<br>
+ * Mailster (C) 2007-2009 De Oliveira Edouard
+ * <p>
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ * <p>
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * <p>
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 675 Mass
+ * Ave, Cambridge, MA 02139, USA.
+ * <p>
+ * See&nbsp; <a href="http://tedorg.free.fr/en/projects.php" target="_parent">Mailster
+ * Web Site</a> <br>
+ * ---
+ * <p>
+ * RingBuffer.java - A bounded buffer filled by any thread and drained by a
+ * consumer. When it is full the oldest element is overwritten, so that the
+ * producers are never blocked, and the number of elements lost this way is
+ * counted.
+ *
+ * @author <a href="mailto:doe_wanted@yahoo.fr">Edouard De Oliveira</a>
+ * @version $Revision$, $Date$
+ */
+public class RingBuffer<E>
+{
+	private Object[] elements;
+	private int head;
+	private int size;
+	private long droppedCount;
+
+	public RingBuffer(int capacity)
+	{
+		if (capacity <= 0)
+			throw new IllegalArgumentException("capacity must be positive");
+
+		elements = new Object[capacity];
+	}
+
+	/**
+	 * Adds <code>e</code>, overwriting the oldest element if the buffer is
+	 * full.
+	 */
+	public synchronized void add(E e)
+	{
+		int tail = head + size;
+		if (tail >= elements.length)
+			tail -= elements.length;
+
+		elements[tail] = e;
+		if (size == elements.length)
+		{
+			head = tail + 1 == elements.length ? 0 : tail + 1;
+			droppedCount++;
+		}
+		else
+			size++;
+	}
+
+	/**
+	 * Moves all the elements of the buffer, oldest first, to
+	 * <code>c</code>.
+	 *
+	 * @return the number of elements moved
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized int drainTo(Collection<? super E> c)
+	{
+		int n = size;
+		for (int i = 0; i < n; i++)
+		{
+			c.add((E) elements[head]);
+			elements[head] = null;
+			if (++head == elements.length)
+				head = 0;
+		}
+
+		head = 0;
+		size = 0;
+		return n;
+	}
+
+	public synchronized boolean isEmpty()
+	{
+		return size == 0;
+	}
+
+	public synchronized int size()
+	{
+		return size;
+	}
+
+	public int getCapacity()
+	{
+		return elements.length;
+	}
+
+	/**
+	 * Returns the number of elements overwritten before being drained since
+	 * the buffer was created.
+	 */
+	public synchronized long getDroppedCount()
+	{
+		return droppedCount;
+	}
+}
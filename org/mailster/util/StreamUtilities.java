@@ -1,10 +1,10 @@
 package org.mailster.util;
 
 import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringReader;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
@@ -47,6 +47,11 @@ public class StreamUtilities
     private final static String From_ = "From ";
     private final static LineDelimiter lineDelimiter = new LineDelimiter("\n");
 
+    /**
+     * The maximum size of the buffers written to a POP3 connection.
+     */
+    public final static int WRITE_CHUNK_SIZE = 64 * 1024;
+
     public static void write(String s, AbstractPop3Connection conn)
     {
         write(s, conn, -1);
@@ -69,6 +74,82 @@ public class StreamUtilities
         }
     }
 
+    /**
+     * Writes the raw message <code>data</code> to the connection in chunks 
+     * of at most {@link #WRITE_CHUNK_SIZE} bytes. Lines starting with a '.' 
+     * are byte-stuffed and bare LFs are converted to CRLF. A CRLF is added 
+     * if the data doesn't end with a line delimiter. The data position is not
+     * modified.
+     * 
+     * @param numLines the number of body lines to write or -1 to write the 
+     * whole message
+     */
+    public static void write(ByteBuffer data, AbstractPop3Connection conn, 
+            int numLines)
+    {
+        ByteBuffer out = ByteBuffer.allocate(WRITE_CHUNK_SIZE);
+        boolean lineStart = true;
+        boolean headerEnded = false;
+        int lineLength = 0;
+        int count = 0;
+
+        for (int i = data.position(), limit = data.limit(); i < limit; i++)
+        {
+            byte b = data.get(i);
+
+            // Leaves room for the longest sequence written below
+            if (out.remaining() < 3)
+                out = flush(out, conn);
+
+            if (lineStart)
+            {
+                if (numLines != -1 && headerEnded && count >= numLines)
+                    break;
+
+                lineStart = false;
+                if (b == '.')
+                    out.put((byte) '.');
+            }
+
+            if (b == '\n')
+            {
+                out.put((byte) '\r').put((byte) '\n');
+                lineStart = true;
+
+                if (headerEnded)
+                    count++;
+                else
+                    headerEnded = lineLength == 0;
+
+                lineLength = 0;
+            }
+            else
+            if (b != '\r' || i + 1 == limit || data.get(i + 1) != '\n')
+            {
+                out.put(b);
+                lineLength++;
+            }
+        }
+
+        if (!lineStart)
+        {
+            if (out.remaining() < 2)
+                out = flush(out, conn);
+            out.put((byte) '\r').put((byte) '\n');
+        }
+
+        out.flip();
+        if (out.hasRemaining())
+            conn.write(out);
+    }
+
+    private static ByteBuffer flush(ByteBuffer out, AbstractPop3Connection conn)
+    {
+        out.flip();
+        conn.write(out);
+        return ByteBuffer.allocate(WRITE_CHUNK_SIZE);
+    }
+
     public static void write(BufferedReader in, AbstractPop3Connection conn)
             throws IOException
     {
@@ -135,7 +216,7 @@ public class StreamUtilities
 					 {
 						 msg.deleteCharAt(msg.length()-1);
 						 mails.add(factory.asSmtpMessage(
-							new ByteArrayInputStream(msg.toString().getBytes(charsetName)), null));
+							msg.toString().getBytes(charsetName), null));
 					 }
 					 
 					 msg = new StringBuilder();
@@ -163,7 +244,7 @@ public class StreamUtilities
 			{
 				msg.deleteCharAt(msg.length()-1);
 				mails.add(factory.asSmtpMessage(
-						new ByteArrayInputStream(msg.toString().getBytes(charsetName)), null));
+						msg.toString().getBytes(charsetName), null));
 			}
 		} 
     	catch (Exception e) 
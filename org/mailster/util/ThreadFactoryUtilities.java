@@ -32,6 +32,16 @@ import java.util.concurrent.ThreadFactory;
 public class ThreadFactoryUtilities
 {
 	public static ThreadFactory createFactory(final String threadName)
+	{
+		return createFactory(threadName, false);
+	}
+	
+	/**
+	 * Creates a factory of threads named after <code>threadName</code>.
+	 * 
+	 * @param daemon if true, the threads don't prevent the JVM from exiting
+	 */
+	public static ThreadFactory createFactory(final String threadName, final boolean daemon)
 	{
 		return
 			new ThreadFactory() 
@@ -44,7 +54,9 @@ public class ThreadFactoryUtilities
 					StringBuilder sb = new StringBuilder();
 					sb.append('[').append(Thread.currentThread().getThreadGroup().getName()).append("] ");
 					sb.append(threadName).append(" - ").append(sequence);
-					return new Thread(r, sb.toString());
+					Thread t = new Thread(r, sb.toString());
+					t.setDaemon(daemon);
+					return t;
 				}			
 			};
 	}
@@ -7,7 +7,22 @@ import test.junit.CustomClientCommandTest;
 import test.junit.ServerTest;
 import test.junit.EncryptedMailTest;
 import test.junit.HmacTest;
+import test.junit.MailDropTest;
+import test.junit.MessageBlobStoreTest;
+import test.junit.AttachmentStoreTest;
+import test.junit.MailBoxManagerTest;
+import test.junit.MBoxImporterTest;
+import test.junit.MessageIndexTest;
+import test.junit.HostMessageCountersTest;
+import test.junit.RingBufferTest;
+import test.junit.EventDispatcherTest;
+import test.junit.MessageCacheTest;
+import test.junit.MessageSpoolTest;
+import test.junit.MetricsRegistryTest;
 import test.junit.Pop3DigestMD5Test;
+import test.junit.Pop3StreamingTest;
+import test.junit.SmtpMessageFactoryTest;
+import test.junit.SmtpMessagePartParserTest;
 import test.junit.SmtpServerTest;
 
 /**
@@ -45,8 +60,23 @@ public class AllTests
 		suite.addTestSuite(ServerTest.class);
 		suite.addTestSuite(CustomClientCommandTest.class);
 		suite.addTestSuite(SmtpServerTest.class);
+		suite.addTestSuite(SmtpMessageFactoryTest.class);
+		suite.addTestSuite(SmtpMessagePartParserTest.class);
+		suite.addTestSuite(MailDropTest.class);
+		suite.addTestSuite(MessageCacheTest.class);
+		suite.addTestSuite(MessageBlobStoreTest.class);
+		suite.addTestSuite(AttachmentStoreTest.class);
+		suite.addTestSuite(MailBoxManagerTest.class);
+		suite.addTestSuite(MessageSpoolTest.class);
+		suite.addTestSuite(MetricsRegistryTest.class);
+		suite.addTestSuite(MBoxImporterTest.class);
+		suite.addTestSuite(MessageIndexTest.class);
+		suite.addTestSuite(HostMessageCountersTest.class);
+		suite.addTestSuite(RingBufferTest.class);
+		suite.addTestSuite(EventDispatcherTest.class);
 		suite.addTestSuite(HmacTest.class);
 		suite.addTestSuite(Pop3DigestMD5Test.class);
+		suite.addTestSuite(Pop3StreamingTest.class);
 		suite.addTestSuite(EncryptedMailTest.class);
 		return suite;
 	}
@@ -0,0 +1,84 @@
+package test.junit;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.bouncycastle.util.encoders.Base64;
+import org.mailster.core.mail.Attachment;
+import org.mailster.core.mail.AttachmentStore;
+import org.mailster.core.mail.SmtpHeaders;
+import org.mailster.core.mail.SmtpHeadersInterface;
+import org.mailster.core.mail.SmtpMessagePart;
+import org.mailster.core.mail.SmtpMessagePartParser;
+
+public class AttachmentStoreTest extends TestCase
+{
+	private static byte[] createContent(int size)
+	{
+		byte[] b = new byte[size];
+		for (int i = 0; i < size; i++)
+			b[i] = (byte) (i * 31);
+
+		return b;
+	}
+
+	private static String createBody(String encoded)
+	{
+		return "--sep\n" +
+			"Content-Type: text/plain\n" +
+			"\n" +
+			"text\n" +
+			"--sep\n" +
+			"Content-Type: application/octet-stream\n" +
+			"Content-Transfer-Encoding: base64\n" +
+			"Content-Disposition: attachment; filename=\"a.bin\"\n" +
+			"\n" +
+			encoded + "\n" +
+			"--sep--\n";
+	}
+
+	private static SmtpMessagePart parse(String body, AttachmentStore store)
+	{
+		SmtpHeadersInterface headers = new SmtpHeaders();
+		headers.addHeaderLine("Content-Type: multipart/mixed; boundary=\"sep\"");
+		return SmtpMessagePartParser.parse(headers, body, store);
+	}
+
+	public void testSharedAttachment() throws Exception
+	{
+		AttachmentStore store = new AttachmentStore();
+		byte[] content = createContent(4096);
+		String encoded = new String(Base64.encode(content), "US-ASCII");
+
+		// Bodies are distinct strings with the same content
+		SmtpMessagePart first = parse(createBody(encoded), store);
+		SmtpMessagePart second = parse(new String(createBody(encoded)), store);
+
+		Attachment attachment = first.getParts().get(1).getAttachment();
+		assertNotNull(attachment);
+		assertSame(attachment, second.getParts().get(1).getAttachment());
+		assertNull(first.getParts().get(0).getAttachment());
+		assertEquals("text\n", first.getParts().get(0).getBody().toString());
+
+		assertEquals(1, store.size());
+		assertEquals(2, store.getInternCount());
+		assertEquals(1, store.getHitCount());
+		assertEquals(2.0, store.getDedupRatio(), 0.001);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		second.getParts().get(1).write(out);
+		assertTrue(Arrays.equals(content, out.toByteArray()));
+	}
+
+	public void testSmallAttachment() throws Exception
+	{
+		AttachmentStore store = new AttachmentStore();
+		String encoded = new String(Base64.encode(createContent(16)), "US-ASCII");
+		SmtpMessagePart root = parse(createBody(encoded), store);
+
+		assertNull(root.getParts().get(1).getAttachment());
+		assertEquals(0, store.getInternCount());
+	}
+}
@@ -0,0 +1,63 @@
+package test.junit;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.mailster.core.smtp.EventDispatcher;
+
+public class EventDispatcherTest extends TestCase
+{
+	private static class LatchEvent implements Runnable
+	{
+		private CountDownLatch started = new CountDownLatch(1);
+		private CountDownLatch release;
+
+		public LatchEvent(CountDownLatch release)
+		{
+			this.release = release;
+		}
+
+		public void run()
+		{
+			started.countDown();
+			try
+			{
+				if (release != null)
+					release.await();
+			}
+			catch (InterruptedException e)
+			{
+			}
+		}
+	}
+
+	public void testControlEventsSkipCapacity() throws Exception
+	{
+		EventDispatcher dispatcher = new EventDispatcher("Test Dispatcher", 1, 1);
+		dispatcher.setOfferTimeout(0);
+		CountDownLatch release = new CountDownLatch(1);
+
+		// Keeps the dispatching thread busy and fills the queue
+		LatchEvent busy = new LatchEvent(release);
+		assertTrue(dispatcher.dispatch(busy));
+		assertTrue(busy.started.await(5, TimeUnit.SECONDS));
+		assertTrue(dispatcher.dispatch(new LatchEvent(null)));
+		assertFalse(dispatcher.dispatch(new LatchEvent(null)));
+		assertEquals(1, dispatcher.getDroppedCount());
+
+		dispatcher.setOfferTimeout(30000);
+		LatchEvent control = new LatchEvent(null);
+		long start = System.currentTimeMillis();
+		dispatcher.dispatchControl(control);
+		assertTrue(System.currentTimeMillis() - start < 1000);
+
+		release.countDown();
+		assertTrue(control.started.await(5, TimeUnit.SECONDS));
+		assertEquals(3, dispatcher.getQueuedCount());
+
+		// The control event didn't take a slot
+		assertTrue(dispatcher.dispatch(new LatchEvent(null)));
+	}
+}
@@ -0,0 +1,75 @@
+package test.junit;
+
+import javax.mail.Flags;
+
+import junit.framework.TestCase;
+
+import org.mailster.core.mail.SmtpMessageFactory;
+import org.mailster.core.pop3.mailbox.StoredSmtpMessage;
+import org.mailster.core.smtp.MailsterConstants;
+import org.mailster.gui.views.HostMessageCounters;
+
+import ca.odell.glazedlists.BasicEventList;
+import ca.odell.glazedlists.EventList;
+
+public class HostMessageCountersTest extends TestCase
+{
+	private SmtpMessageFactory factory =
+		new SmtpMessageFactory(MailsterConstants.DEFAULT_CHARSET);
+
+	private int sequence;
+
+	private StoredSmtpMessage createMessage(String to) throws Exception
+	{
+		int id = sequence++;
+		String data = "To: " + to + "\r\nSubject: message " + id + "\r\nMessage-ID: <" + id
+				+ "@counters.mailster.org>\r\n\r\nbody\r\n";
+		return new StoredSmtpMessage(factory.asSmtpMessage(
+				data.getBytes(MailsterConstants.DEFAULT_CHARSET_NAME), null), new Long(id));
+	}
+
+	public void testCounters() throws Exception
+	{
+		EventList<StoredSmtpMessage> list = new BasicEventList<StoredSmtpMessage>();
+		StoredSmtpMessage first = createMessage("user@mailster.org");
+		list.add(first);
+
+		HostMessageCounters counters = new HostMessageCounters(list);
+		list.addListEventListener(counters);
+
+		StoredSmtpMessage second = createMessage("other@mailster.org");
+		StoredSmtpMessage third = createMessage("user@example.com");
+		list.add(second);
+		list.add(third);
+
+		assertEquals(2, counters.getHosts().size());
+		HostMessageCounters.Counts c = counters.getCounts("mailster.org");
+		assertEquals(2, c.getTotal());
+		assertEquals(2, c.getUnread());
+		assertEquals(3, counters.getTotalCounts().getUnread());
+
+		first.setSeen();
+		assertTrue(counters.update(first));
+		assertFalse(counters.update(first));
+		assertEquals(1, c.getUnread());
+
+		// Flagged messages are counted in the trash
+		second.getFlags().add(Flags.Flag.FLAGGED);
+		list.set(1, second);
+		assertEquals(0, c.getUnread());
+		assertEquals(1, c.getFlagged());
+		assertEquals(1, counters.getTotalCounts().getFlaggedUnread());
+		assertEquals(2, c.getTotal());
+
+		list.remove(second);
+		assertEquals(1, c.getTotal());
+		assertEquals(0, counters.getTotalCounts().getFlagged());
+
+		list.remove(third);
+		assertNull(counters.getCounts("example.com"));
+
+		list.clear();
+		assertTrue(counters.getHosts().isEmpty());
+		assertEquals(0, counters.getTotalCounts().getTotal());
+	}
+}
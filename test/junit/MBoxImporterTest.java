@@ -0,0 +1,165 @@
+package test.junit;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.mailster.core.mail.MBoxImporter;
+import org.mailster.core.mail.SmtpMessage;
+import org.mailster.core.mail.SmtpMessageFactory;
+import org.mailster.core.pop3.mailbox.MessageExporter;
+import org.mailster.core.pop3.mailbox.StoredSmtpMessage;
+import org.mailster.core.smtp.MailsterConstants;
+import org.mailster.util.FileUtilities;
+
+public class MBoxImporterTest extends TestCase
+{
+	private File file;
+
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		file = File.createTempFile("mailster", ".mbx");
+	}
+
+	protected void tearDown() throws Exception
+	{
+		file.delete();
+		super.tearDown();
+	}
+
+	private void write(String content) throws Exception
+	{
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(content.getBytes(MailsterConstants.DEFAULT_CHARSET_NAME));
+		out.close();
+	}
+
+	private List<SmtpMessage> importFile(MBoxImporter importer) throws Exception
+	{
+		final List<SmtpMessage> messages = new ArrayList<SmtpMessage>();
+		final long[] last = new long[1];
+
+		int count = importer.importFile(file, new MBoxImporter.ImportListener() {
+			public void messagesImported(List<SmtpMessage> batch, long position, long length)
+			{
+				assertTrue(position > last[0]);
+				assertTrue(position <= length);
+				last[0] = position;
+				messages.addAll(batch);
+			}
+		});
+
+		assertEquals(file.length(), last[0]);
+		assertEquals(count, messages.size());
+		return messages;
+	}
+
+	public void testImport() throws Exception
+	{
+		StringBuilder sb = new StringBuilder("preamble\n");
+		for (int i = 0; i < 20; i++)
+		{
+			sb.append("From sender@mailster.org Sat Oct 17 10:00:00 2009\n");
+			sb.append("Subject: message ").append(i).append("\nTo: user@mailster.org\n\n");
+			sb.append("line ").append(i).append("\n>From the quoted line\n>>From twice\n");
+			sb.append("Fromage\n\n");
+		}
+		write(sb.toString());
+
+		// Tiny windows and batches to cross their boundaries
+		MBoxImporter importer = new MBoxImporter(MailsterConstants.DEFAULT_CHARSET, 3);
+		importer.setWindowSize(100);
+		importer.setBatchSize(3);
+		List<SmtpMessage> messages = importFile(importer);
+
+		assertEquals(20, messages.size());
+		for (int i = 0; i < 20; i++)
+		{
+			SmtpMessage msg = messages.get(i);
+			assertEquals("message " + i, msg.getSubject());
+			assertEquals("user@mailster.org", msg.getRecipients().get(0));
+			assertEquals("line " + i + "\nFrom the quoted line\n>From twice\nFromage\n", msg.getBody());
+		}
+	}
+
+	public void testExportRoundTrip() throws Exception
+	{
+		SmtpMessageFactory factory = new SmtpMessageFactory(MailsterConstants.DEFAULT_CHARSET);
+		List<StoredSmtpMessage> stored = new ArrayList<StoredSmtpMessage>();
+		for (int i = 0; i < 3; i++)
+		{
+			String data = "Subject: exported " + i + "\r\nMessage-ID: <" + i + "/export@mailster.org>\r\n"
+					+ "From: sender@mailster.org\r\n\r\nFrom the start\r\n>From quoted\r\nlast\r\n";
+			stored.add(new StoredSmtpMessage(factory.asSmtpMessage(
+					data.getBytes(MailsterConstants.DEFAULT_CHARSET_NAME), null), new Long(i)));
+		}
+
+		assertEquals(3, new MessageExporter(1).exportMBox(stored, file));
+		List<SmtpMessage> messages = importFile(new MBoxImporter(MailsterConstants.DEFAULT_CHARSET));
+
+		assertEquals(3, messages.size());
+		for (int i = 0; i < 3; i++)
+		{
+			ByteBuffer raw = messages.get(i).getRawData();
+			assertEquals(stored.get(i).getRawData(), raw);
+		}
+
+		File dir = new File(System.getProperty("java.io.tmpdir"), "mailster-eml-test");
+		dir.mkdirs();
+		try
+		{
+			assertEquals(3, new MessageExporter(2).exportEmlFiles(stored, dir));
+			File eml = new File(dir, "0_export@mailster.org.eml");
+			assertEquals(stored.get(0).getRawData().remaining(), eml.length());
+		}
+		finally
+		{
+			FileUtilities.deleteDirectory(dir);
+		}
+	}
+
+	public void testExportDuplicateMessageId() throws Exception
+	{
+		SmtpMessageFactory factory = new SmtpMessageFactory(MailsterConstants.DEFAULT_CHARSET);
+		List<StoredSmtpMessage> stored = new ArrayList<StoredSmtpMessage>();
+		for (int i = 0; i < 2; i++)
+		{
+			String data = "Subject: duplicate " + i + "\r\nMessage-ID: <dup@mailster.org>\r\n"
+					+ "From: sender@mailster.org\r\n\r\n" + (i == 0 ? "short" : "a longer body") + "\r\n";
+			stored.add(new StoredSmtpMessage(factory.asSmtpMessage(
+					data.getBytes(MailsterConstants.DEFAULT_CHARSET_NAME), null), new Long(i)));
+		}
+
+		File dir = new File(System.getProperty("java.io.tmpdir"), "mailster-eml-dup-test");
+		dir.mkdirs();
+		try
+		{
+			assertEquals(2, new MessageExporter(2).exportEmlFiles(stored, dir));
+			File first = new File(dir, "dup@mailster.org.eml");
+			File second = new File(dir, "dup@mailster.org-1.eml");
+			assertEquals(stored.get(0).getRawData().remaining(), first.length());
+			assertEquals(stored.get(1).getRawData().remaining(), second.length());
+			assertEquals(2, dir.list().length);
+		}
+		finally
+		{
+			FileUtilities.deleteDirectory(dir);
+		}
+	}
+
+	public void testLastMessage() throws Exception
+	{
+		write("From sender@mailster.org Sat Oct 17 10:00:00 2009\r\n"
+				+ "Subject: crlf\r\n\r\nbody\r\n\r\n");
+
+		List<SmtpMessage> messages = importFile(new MBoxImporter(MailsterConstants.DEFAULT_CHARSET));
+		assertEquals(1, messages.size());
+		assertEquals("crlf", messages.get(0).getSubject());
+		assertEquals("body", messages.get(0).getBody().trim());
+	}
+}
@@ -0,0 +1,170 @@
+package test.junit;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+import org.mailster.core.mail.SmtpMessage;
+import org.mailster.core.mail.SmtpMessageFactory;
+import org.mailster.core.pop3.mailbox.MailBox;
+import org.mailster.core.pop3.mailbox.MailBoxManager;
+import org.mailster.core.pop3.mailbox.MailDrop;
+import org.mailster.core.pop3.mailbox.MessageBlob;
+import org.mailster.core.pop3.mailbox.MessageBlobStore;
+import org.mailster.core.pop3.mailbox.MessageExpiryListener;
+import org.mailster.core.pop3.mailbox.RetentionPolicy;
+import org.mailster.core.pop3.mailbox.StoredSmtpMessage;
+import org.mailster.core.pop3.mailbox.UserManager;
+import org.mailster.core.smtp.MailsterConstants;
+
+public class MailBoxManagerTest extends TestCase
+{
+	private UserManager users;
+	private MailBoxManager manager;
+
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		users = new UserManager();
+		manager = users.getMailBoxManager();
+	}
+
+	public void testConcurrentCreation() throws Exception
+	{
+		final MailBox[] found = new MailBox[8];
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] threads = new Thread[found.length];
+
+		for (int i = 0; i < threads.length; i++)
+		{
+			final int index = i;
+			threads[i] = new Thread() {
+				public void run()
+				{
+					try
+					{
+						start.await();
+						found[index] = manager.getMailBoxByEmail("user@mailster.org");
+					}
+					catch (InterruptedException e)
+					{
+					}
+				}
+			};
+			threads[i].start();
+		}
+
+		start.countDown();
+		for (Thread t : threads)
+			t.join();
+
+		for (MailBox mbox : found)
+			assertSame(found[0], mbox);
+		assertSame(found[0], manager.getMailBoxByUser(users.getUserByEmail("user@mailster.org")));
+		assertEquals(1, manager.getMailBoxCount());
+	}
+
+	public void testEviction() throws Exception
+	{
+		SmtpMessageFactory factory = new SmtpMessageFactory(MailsterConstants.DEFAULT_CHARSET);
+		String data = "Subject: evict\r\nMessage-ID: <evict@mailster.org>\r\n\r\nbody\r\n";
+		SmtpMessage msg = factory.asSmtpMessage(
+				data.getBytes(MailsterConstants.DEFAULT_CHARSET_NAME),
+				Arrays.asList(new String[] {"full@mailster.org"}));
+
+		MailBox empty = manager.getMailBoxByEmail("empty@mailster.org");
+		MailBox locked = manager.getMailBoxByEmail("locked@mailster.org");
+		MailBox full = manager.getMailBoxByEmail("full@mailster.org");
+
+		MessageBlob blob = MessageBlobStore.getDefault().acquire(msg);
+		manager.storeMessage("full@mailster.org", blob);
+		blob.release();
+
+		MailDrop drop = locked.tryLock();
+		assertEquals(0, users.evictIdleMailBoxes(60000));
+		assertEquals(3, manager.getMailBoxCount());
+
+		// Idle time is measured in milliseconds
+		Thread.sleep(20);
+		assertEquals(1, users.evictIdleMailBoxes(10));
+		assertTrue(empty.isEvicted());
+		assertFalse(locked.isEvicted());
+		assertFalse(full.isEvicted());
+		assertNull(empty.tryLock());
+
+		// A new mailbox replaces the evicted one
+		MailBox mbox = manager.getMailBoxByEmail("empty@mailster.org");
+		assertNotSame(empty, mbox);
+		assertNotNull(mbox.tryLock());
+
+		drop.close();
+		manager.removeAllMessages();
+	}
+
+	public void testClear() throws Exception
+	{
+		SmtpMessageFactory factory = new SmtpMessageFactory(MailsterConstants.DEFAULT_CHARSET);
+		String data = "Subject: clear\r\nMessage-ID: <clear@mailster.org>\r\n\r\nbody\r\n";
+		MessageBlob blob = MessageBlobStore.getDefault().acquire(factory.asSmtpMessage(
+				data.getBytes(MailsterConstants.DEFAULT_CHARSET_NAME),
+				Arrays.asList(new String[] {"user@mailster.org"})));
+		manager.storeMessage("user@mailster.org", blob);
+		blob.release();
+		assertEquals(1, blob.getReferenceCount());
+
+		// The entries of the dropped mailboxes are released
+		manager.clear();
+		assertEquals(0, manager.getMailBoxCount());
+		assertEquals(0, blob.getReferenceCount());
+		assertNull(blob.getRawData());
+	}
+
+	public void testRetention() throws Exception
+	{
+		SmtpMessageFactory factory = new SmtpMessageFactory(MailsterConstants.DEFAULT_CHARSET);
+		final List<StoredSmtpMessage> expired = new ArrayList<StoredSmtpMessage>();
+		manager.addMessageExpiryListener(new MessageExpiryListener() {
+			public void messagesExpired(MailBox mailBox, List<StoredSmtpMessage> messages)
+			{
+				if (mailBox.getEmail().equals("user@mailster.org"))
+					expired.addAll(messages);
+			}
+		});
+		manager.setRetentionPolicy("user@mailster.org", new RetentionPolicy(3, 0, 0));
+
+		StoredSmtpMessage[] stored = new StoredSmtpMessage[5];
+		for (int i = 0; i < stored.length; i++)
+		{
+			String data = "Subject: retention\r\nMessage-ID: <" + i
+					+ "@mailster.org>\r\n\r\nbody\r\n";
+			MessageBlob blob = MessageBlobStore.getDefault().acquire(factory.asSmtpMessage(
+					data.getBytes(MailsterConstants.DEFAULT_CHARSET_NAME),
+					Arrays.asList(new String[] {"user@mailster.org"})));
+			stored[i] = manager.storeMessage("user@mailster.org", blob);
+			blob.release();
+		}
+
+		MailBox mbox = manager.getMailBoxByEmail("user@mailster.org");
+		MailDrop drop = mbox.tryLock();
+		assertEquals(0, manager.expireMessages(100));
+		drop.close();
+
+		// The oldest messages are expired first, by batches
+		assertEquals(1, manager.expireMessages(1));
+		assertEquals(1, manager.expireMessages(100));
+		assertEquals(0, manager.expireMessages(100));
+		assertEquals(3, mbox.getMessageCount());
+		assertEquals(Arrays.asList(new StoredSmtpMessage[] {stored[0], stored[1]}), expired);
+		assertNull(stored[0].getRawData());
+		assertNotNull(mbox.getMessage(stored[2].getId()));
+
+		manager.setRetentionPolicy("user@mailster.org", new RetentionPolicy(0, 0, 1));
+		Thread.sleep(10);
+		assertEquals(3, manager.expireMessages(100));
+		assertEquals(0, mbox.getMessageCount());
+		assertEquals(0, mbox.getMailBoxByteSize());
+	}
+}
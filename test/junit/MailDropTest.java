@@ -0,0 +1,108 @@
+package test.junit;
+
+import java.io.ByteArrayInputStream;
+
+import junit.framework.TestCase;
+
+import org.mailster.core.mail.SmtpMessage;
+import org.mailster.core.mail.SmtpMessageFactory;
+import org.mailster.core.pop3.mailbox.MailBox;
+import org.mailster.core.pop3.mailbox.MailDrop;
+import org.mailster.core.pop3.mailbox.UserManager;
+import org.mailster.core.smtp.MailsterConstants;
+
+public class MailDropTest extends TestCase
+{
+	private SmtpMessageFactory factory =
+		new SmtpMessageFactory(MailsterConstants.DEFAULT_CHARSET);
+
+	private MailBox mailBox;
+
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		UserManager users = new UserManager();
+		mailBox = users.getMailBoxManager().getMailBoxByUser(
+				users.getUserByEmail("user@mailster.org"));
+	}
+
+	private SmtpMessage createMessage(String subject) throws Exception
+	{
+		String data = "Subject: " + subject + "\r\nTo: user@mailster.org\r\n\r\nbody\r\n";
+		return factory.asSmtpMessage(new ByteArrayInputStream(
+				data.getBytes(MailsterConstants.DEFAULT_CHARSET_NAME)), null);
+	}
+
+	public void testLockIsExclusive() throws Exception
+	{
+		MailDrop drop = mailBox.tryLock();
+		assertNotNull(drop);
+		assertNull(mailBox.tryLock());
+
+		drop.close();
+		drop.close();
+		assertFalse(mailBox.isLocked());
+
+		MailDrop other = mailBox.tryLock();
+		assertNotNull(other);
+
+		// Closing again the first maildrop must not release the new lock
+		drop.close();
+		assertTrue(mailBox.isLocked());
+		other.close();
+	}
+
+	public void testDeliveryWhileLocked() throws Exception
+	{
+		mailBox.storeMessage(createMessage("first"));
+		MailDrop drop = mailBox.tryLock();
+
+		mailBox.storeMessage(createMessage("second"));
+
+		assertEquals(2, mailBox.getMessageCount());
+		assertEquals(1, drop.size());
+		assertEquals("first", drop.getMessage(1).getMessageSubject());
+		assertNull(drop.getMessage(2));
+		drop.close();
+
+		drop = mailBox.tryLock();
+		assertEquals(2, drop.size());
+		drop.close();
+	}
+
+	public void testDeleteAndReset() throws Exception
+	{
+		mailBox.storeMessage(createMessage("first"));
+		mailBox.storeMessage(createMessage("second"));
+
+		MailDrop drop = mailBox.tryLock();
+		drop.markDeleted(1);
+		assertTrue(drop.isDeleted(1));
+		assertEquals(1, drop.getMessageCount());
+		assertEquals(drop.getMessage(2).getMessageSize(), drop.getMailDropSize());
+
+		drop.reset();
+		assertEquals(2, drop.getMessageCount());
+		drop.close();
+		assertEquals(2, mailBox.getMessageCount());
+	}
+
+	public void testCommit() throws Exception
+	{
+		mailBox.storeMessage(createMessage("first"));
+		mailBox.storeMessage(createMessage("second"));
+
+		MailDrop drop = mailBox.tryLock();
+		drop.markDeleted(1);
+		mailBox.storeMessage(createMessage("third"));
+		drop.commit();
+
+		assertFalse(mailBox.isLocked());
+		assertEquals(2, mailBox.getMessageCount());
+
+		drop = mailBox.tryLock();
+		assertEquals("second", drop.getMessage(1).getMessageSubject());
+		assertEquals("third", drop.getMessage(2).getMessageSubject());
+		drop.close();
+	}
+}
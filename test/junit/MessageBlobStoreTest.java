@@ -0,0 +1,167 @@
+package test.junit;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.mailster.core.mail.SmtpMessage;
+import org.mailster.core.mail.SmtpMessageFactory;
+import org.mailster.core.pop3.MailsterPop3Service;
+import org.mailster.core.pop3.mailbox.MailBox;
+import org.mailster.core.pop3.mailbox.MailBoxManager;
+import org.mailster.core.pop3.mailbox.MailDrop;
+import org.mailster.core.pop3.mailbox.MessageBlob;
+import org.mailster.core.pop3.mailbox.MessageBlobStore;
+import org.mailster.core.pop3.mailbox.MessageCache;
+import org.mailster.core.pop3.mailbox.MessageIndex;
+import org.mailster.core.pop3.mailbox.StoredSmtpMessage;
+import org.mailster.core.pop3.mailbox.UserManager;
+import org.mailster.core.smtp.MailsterConstants;
+import org.mailster.core.spool.MessageSpool;
+import org.mailster.util.FileUtilities;
+
+public class MessageBlobStoreTest extends TestCase
+{
+	private SmtpMessageFactory factory =
+		new SmtpMessageFactory(MailsterConstants.DEFAULT_CHARSET);
+
+	private SmtpMessage createMessage(String subject, String[] recipients) throws Exception
+	{
+		String data = "Subject: " + subject + "\r\nMessage-ID: <" + subject
+				+ "@mailster.org>\r\nDate: Sat, 17 Oct 2009 10:00:00 +0200\r\n\r\nbody\r\n";
+		return factory.asSmtpMessage(data.getBytes(MailsterConstants.DEFAULT_CHARSET_NAME),
+				Arrays.asList(recipients));
+	}
+
+	public void testContentAddressing() throws Exception
+	{
+		File dir = new File(System.getProperty("java.io.tmpdir"), "blobtest");
+		MessageSpool spool = new MessageSpool(dir, 1024);
+		MessageBlobStore store = new MessageBlobStore(spool, new MessageCache());
+
+		try
+		{
+			String[] to = new String[] {"user@mailster.org"};
+			MessageBlob blob = store.acquire(createMessage("first", to));
+			MessageBlob same = store.acquire(createMessage("first", to));
+			MessageBlob other = store.acquire(createMessage("first",
+					new String[] {"other@mailster.org"}));
+
+			assertSame(blob, same);
+			assertNotSame(blob, other);
+			assertEquals(2, blob.getReferenceCount());
+			assertEquals(2, store.size());
+			assertEquals(2, spool.getMessageCount());
+
+			blob.release();
+			assertNotNull(blob.getMessage());
+			blob.release();
+			other.release();
+
+			assertEquals(0, store.size());
+			assertEquals(0, spool.getMessageCount());
+			assertNull(blob.getRawData());
+
+			try
+			{
+				blob.retain();
+				fail("A freed blob can't be retained");
+			}
+			catch (IllegalStateException ex)
+			{
+			}
+		}
+		finally
+		{
+			FileUtilities.deleteDirectory(dir);
+		}
+	}
+
+	public void testPersistentStore() throws Exception
+	{
+		File dir = new File(System.getProperty("java.io.tmpdir"), "blobtest-persistent");
+		FileUtilities.deleteDirectory(dir);
+
+		try
+		{
+			String[] to = new String[] {"user@mailster.org"};
+			MessageBlobStore store = MessageBlobStore.open(dir, new MessageCache());
+			MailBox mbox = new UserManager().getMailBoxManager().getMailBoxByEmail(to[0]);
+
+			MessageBlob blob = store.acquire(createMessage("kept", to));
+			mbox.storeMessage(blob).setSeen();
+			blob.release();
+			blob = store.acquire(createMessage("deleted", to));
+			mbox.storeMessage(blob);
+			blob.release();
+
+			MailDrop drop = mbox.tryLock();
+			drop.markDeleted(2);
+			drop.commit();
+			store.close();
+
+			// Restored without parsing the messages
+			MessageCache cache = new MessageCache();
+			MessageBlobStore reopened = MessageBlobStore.open(dir, cache);
+			MessageIndex index = new MessageIndex();
+			reopened.setIndex(index);
+			MailBoxManager manager = new UserManager().getMailBoxManager();
+			List<StoredSmtpMessage> restored = reopened.restore(manager);
+
+			// Indexed without filling the cache
+			index.flush();
+			assertEquals(1, index.search("kept body").size());
+			assertEquals(0, cache.size());
+
+			assertEquals(1, restored.size());
+			assertEquals(1, reopened.size());
+			assertEquals(1, reopened.getSpool().getMessageCount());
+
+			StoredSmtpMessage stored = restored.get(0);
+			assertSame(stored, manager.getMailBoxByEmail(to[0]).getMessage(new Long(1)));
+			assertEquals("kept", stored.getMessageSubject());
+			assertEquals("<kept@mailster.org>", stored.getMessageId());
+			assertTrue(stored.isSeen());
+			assertEquals(1, stored.getBlob().getReferenceCount());
+			assertEquals("body", stored.getMessage().getBody().trim());
+
+			// New deliveries don't reuse the restored ids
+			blob = reopened.acquire(createMessage("new", to));
+			assertEquals(new Long(2), stored.getMailBox().storeMessage(blob).getId());
+			blob.release();
+			reopened.close();
+		}
+		finally
+		{
+			FileUtilities.deleteDirectory(dir);
+		}
+	}
+
+	public void testSharedDelivery() throws Exception
+	{
+		MailsterPop3Service service = new MailsterPop3Service();
+		UserManager users = service.getUserManager();
+		MailBoxManager manager = users.getMailBoxManager();
+		MailBox user = manager.getMailBoxByUser(users.getUserByEmail("user@mailster.org"));
+		MailBox other = manager.getMailBoxByUser(users.getUserByEmail("other@mailster.org"));
+
+		StoredSmtpMessage stored = service.storeMessage(createMessage("shared",
+				new String[] {"user@mailster.org", "<other@mailster.org>"}));
+
+		MessageBlob blob = stored.getBlob();
+		assertEquals(3, blob.getReferenceCount());
+
+		MailDrop drop = user.tryLock();
+		assertSame(blob, drop.getMessage(1).getBlob());
+		drop.markDeleted(1);
+		drop.commit();
+		assertEquals(2, blob.getReferenceCount());
+
+		service.removeMessage(stored);
+		assertEquals(0, other.getMessageCount());
+		assertEquals(0, blob.getReferenceCount());
+		assertNull(blob.getRawData());
+	}
+}
@@ -0,0 +1,62 @@
+package test.junit;
+
+import junit.framework.TestCase;
+
+import org.mailster.core.mail.SmtpMessage;
+import org.mailster.core.mail.SmtpMessageFactory;
+import org.mailster.core.pop3.mailbox.MessageCache;
+import org.mailster.core.smtp.MailsterConstants;
+
+public class MessageCacheTest extends TestCase
+{
+	private SmtpMessageFactory factory =
+		new SmtpMessageFactory(MailsterConstants.DEFAULT_CHARSET);
+
+	// Each message is 21 bytes long and weighs 63 bytes : its raw data is
+	// on the heap, plus 2 bytes per byte for its decoded content
+	private SmtpMessage createMessage(int i) throws Exception
+	{
+		String data = "Subject: " + (10 + i) + "\r\n\r\nbody\r\n";
+		return factory.asSmtpMessage(data.getBytes(MailsterConstants.DEFAULT_CHARSET_NAME), null);
+	}
+
+	public void testMaxEntries() throws Exception
+	{
+		MessageCache cache = new MessageCache(1000, 2);
+		cache.put(new Long(1), createMessage(1));
+		cache.put(new Long(2), createMessage(2));
+
+		// Makes 1 the most recently used
+		assertNotNull(cache.get(new Long(1)));
+		cache.put(new Long(3), createMessage(3));
+
+		assertEquals(2, cache.size());
+		assertNull(cache.get(new Long(2)));
+		assertNotNull(cache.get(new Long(1)));
+		assertNotNull(cache.get(new Long(3)));
+
+		assertEquals(3, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+		assertEquals(1, cache.getEvictionCount());
+	}
+
+	public void testMaxBytes() throws Exception
+	{
+		MessageCache cache = new MessageCache(150, 100);
+		for (int i = 1; i <= 3; i++)
+			cache.put(new Long(i), createMessage(i));
+
+		assertEquals(2, cache.size());
+		assertEquals(126, cache.getByteSize());
+		assertNull(cache.get(new Long(1)));
+
+		cache.setMaxBytes(50);
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.getByteSize());
+
+		// Too large to be cached
+		cache.put(new Long(4), createMessage(4));
+		assertNull(cache.get(new Long(4)));
+		assertEquals(3, cache.getEvictionCount());
+	}
+}
@@ -0,0 +1,156 @@
+package test.junit;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.mailster.core.mail.SmtpMessage;
+import org.mailster.core.mail.SmtpMessageFactory;
+import org.mailster.core.pop3.mailbox.MessageBlob;
+import org.mailster.core.pop3.mailbox.MessageBlobStore;
+import org.mailster.core.pop3.mailbox.MessageCache;
+import org.mailster.core.pop3.mailbox.MessageIndex;
+import org.mailster.core.smtp.MailsterConstants;
+import org.mailster.core.spool.MessageSpool;
+import org.mailster.util.FileUtilities;
+
+public class MessageIndexTest extends TestCase
+{
+	private SmtpMessageFactory factory =
+		new SmtpMessageFactory(MailsterConstants.DEFAULT_CHARSET);
+
+	private File dir;
+	private MessageBlobStore store;
+	private MessageIndex index;
+
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		dir = new File(System.getProperty("java.io.tmpdir"), "indextest");
+		store = new MessageBlobStore(new MessageSpool(dir, 4096), new MessageCache());
+		index = new MessageIndex();
+		store.setIndex(index);
+	}
+
+	protected void tearDown() throws Exception
+	{
+		FileUtilities.deleteDirectory(dir);
+		super.tearDown();
+	}
+
+	private MessageBlob store(String headers, String body) throws Exception
+	{
+		String data = headers + "Date: Sat, 17 Oct 2009 10:00:00 +0200\r\n\r\n" + body;
+		SmtpMessage msg = factory.asSmtpMessage(data.getBytes(MailsterConstants.DEFAULT_CHARSET_NAME), null);
+		return store.acquire(msg);
+	}
+
+	public void testSearch() throws Exception
+	{
+		MessageBlob plain = store("Subject: Quarterly report\r\nFrom: alice@mailster.org\r\n"
+				+ "To: bob@mailster.org\r\nCc: carol@example.com\r\n", "Figures are attached.\r\n");
+		MessageBlob html = store("Subject: =?ISO-8859-1?Q?R=E9union?=\r\nFrom: bob@mailster.org\r\n"
+				+ "To: alice@mailster.org\r\nContent-Type: text/html\r\n",
+				"<p class=\"agenda\">Budget&nbsp;review</p>\r\n");
+		MessageBlob multipart = store("Subject: Files\r\nFrom: dave@mailster.org\r\n"
+				+ "Content-Type: multipart/mixed; boundary=\"XX\"\r\n",
+				"--XX\r\nContent-Type: text/plain\r\nContent-Transfer-Encoding: quoted-printable\r\n\r\n"
+				+ "Monthly=20invoice\r\n--XX\r\nContent-Type: application/octet-stream\r\n"
+				+ "Content-Disposition: attachment; filename=\"scan-0042.pdf\"\r\n\r\nAAAA\r\n--XX--\r\n");
+		index.flush();
+
+		assertEquals(3, index.size());
+		assertEquals(1, index.search("quarterly").size());
+		assertTrue(index.search("QUART").contains(plain));
+		assertTrue(index.search("carol").contains(plain));
+		assertFalse(index.search("carol").contains(html));
+
+		// Matches the words of the address
+		assertEquals(2, index.search("alice@mailster").size());
+		assertEquals(1, index.search("alice budget").size());
+		assertTrue(index.search("r\u00e9union").contains(html));
+
+		// Markup isn't indexed
+		assertEquals(0, index.search("agenda").size());
+		assertEquals(0, index.search("nbsp").size());
+		assertTrue(index.search("review").contains(html));
+
+		assertTrue(index.search("monthly invoice").contains(multipart));
+		assertTrue(index.search("scan 0042").contains(multipart));
+		assertEquals(0, index.search("aaaa").size());
+
+		assertEquals(-1, index.search(" ").size());
+
+		// Too long to be looked up
+		StringBuilder sb = new StringBuilder("Quarterly ");
+		for (int i = 0; i <= MessageIndex.MAX_TERM_LENGTH; i++)
+			sb.append('a');
+		assertEquals(1, MessageIndex.parseQuery(sb.toString()).size());
+		assertTrue(MessageIndex.parseQuery(sb.substring(10)).isEmpty());
+		List<MessageBlob> blobs = index.search("mailster").getBlobs();
+		assertEquals(3, blobs.size());
+
+		multipart.release();
+		assertEquals(2, index.size());
+		assertEquals(0, index.search("invoice").size());
+		assertEquals(2, index.search("mailster").getBlobs().size());
+
+		plain.release();
+		html.release();
+	}
+
+	public void testPurge() throws Exception
+	{
+		List<MessageBlob> kept = new ArrayList<MessageBlob>();
+		List<MessageBlob> deleted = new ArrayList<MessageBlob>();
+		for (int i = 0; i < 5000; i++)
+		{
+			boolean keep = i % 100 == 0;
+			MessageBlob blob = store("Subject: message " + i + "\r\n", (keep ? "kept" : "deleted") + "\r\n");
+			(keep ? kept : deleted).add(blob);
+		}
+		index.flush();
+
+		MessageIndex.SearchResult before = index.search("kept");
+		assertEquals(50, before.size());
+
+		// Enough removals to renumber the remaining documents
+		for (MessageBlob blob : deleted)
+			blob.release();
+
+		assertEquals(50, index.size());
+		assertEquals(50, index.search("kept").size());
+		assertEquals(0, index.search("deleted").size());
+		assertTrue(index.search("message 4900").contains(kept.get(49)));
+		assertFalse(index.search("message 4900").contains(kept.get(48)));
+
+		// A result of a query run before the purge is still valid
+		assertTrue(before.contains(kept.get(10)));
+		assertEquals(50, before.getBlobs().size());
+
+		MessageBlob blob = store("Subject: after purge\r\n", "kept\r\n");
+		index.flush();
+		assertEquals(51, index.search("kept").size());
+		assertTrue(index.search("after").contains(blob));
+
+		blob.release();
+		for (MessageBlob b : kept)
+			b.release();
+		assertEquals(0, index.size());
+	}
+
+	public void testNotIndexedYet() throws Exception
+	{
+		MessageIndex.SearchResult result = index.search("report");
+		MessageBlob blob = store("Subject: Weekly report\r\n", "body\r\n");
+
+		// Matched by its headers
+		assertTrue(result.contains(blob));
+
+		index.flush();
+		assertTrue(index.search("weekly body").contains(blob));
+		blob.release();
+	}
+}
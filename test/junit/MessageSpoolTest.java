@@ -0,0 +1,141 @@
+package test.junit;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+import org.mailster.core.mail.SmtpMessage;
+import org.mailster.core.mail.SmtpMessageFactory;
+import org.mailster.core.pop3.mailbox.MessageCache;
+import org.mailster.core.pop3.mailbox.SpooledMessageReference;
+import org.mailster.core.smtp.MailsterConstants;
+import org.mailster.core.spool.MessageSpool;
+import org.mailster.util.FileUtilities;
+
+public class MessageSpoolTest extends TestCase
+{
+	private File dir = new File(System.getProperty("java.io.tmpdir"), "mailster-spool-test");
+	private MessageSpool spool;
+
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		FileUtilities.deleteDirectory(dir);
+		spool = new MessageSpool(dir, 64);
+	}
+
+	protected void tearDown() throws Exception
+	{
+		FileUtilities.deleteDirectory(dir);
+		super.tearDown();
+	}
+
+	private static ByteBuffer bytes(String s) throws Exception
+	{
+		return ByteBuffer.wrap(s.getBytes(MailsterConstants.DEFAULT_CHARSET_NAME));
+	}
+
+	private static String string(ByteBuffer b) throws Exception
+	{
+		byte[] data = new byte[b.remaining()];
+		b.duplicate().get(data);
+		return new String(data, MailsterConstants.DEFAULT_CHARSET_NAME);
+	}
+
+	public void testAppendAndRead() throws Exception
+	{
+		long first = spool.append(bytes("first message"));
+		long second = spool.append(bytes("second message"));
+
+		assertEquals("first message", string(spool.read(first)));
+		assertEquals("second message", string(spool.read(second)));
+		assertTrue(spool.read(first).isReadOnly());
+		assertEquals(2, spool.getMessageCount());
+		assertEquals(27, spool.getSize());
+	}
+
+	public void testSegments() throws Exception
+	{
+		long first = spool.append(ByteBuffer.allocate(40));
+		long second = spool.append(ByteBuffer.allocate(40));
+		assertEquals(2, spool.getSegmentCount());
+
+		// Larger than a segment
+		long big = spool.append(ByteBuffer.allocate(100));
+		assertEquals(100, spool.read(big).remaining());
+		assertEquals(3, spool.getSegmentCount());
+
+		spool.delete(first);
+		assertEquals(2, spool.getSegmentCount());
+		assertNull(spool.read(first));
+		assertFalse(spool.contains(first));
+
+		// The current segment is kept until a new one is created
+		spool.delete(big);
+		assertEquals(2, spool.getSegmentCount());
+		spool.delete(second);
+		assertEquals(1, spool.getSegmentCount());
+	}
+
+	public void testCompaction() throws Exception
+	{
+		long first = spool.append(bytes("first message......."));
+		long second = spool.append(bytes("second message......"));
+		long third = spool.append(bytes("third message......."));
+		long fourth = spool.append(bytes("fourth message......"));
+		assertEquals(2, spool.getSegmentCount());
+
+		// The third message pins the first segment
+		spool.delete(first);
+		spool.delete(second);
+		ByteBuffer view = spool.read(third);
+		assertEquals(0, spool.compact(0.25, 10));
+		assertEquals(1, spool.compact(0.5, 10));
+
+		assertEquals(1, spool.getSegmentCount());
+		assertEquals("third message.......", string(spool.read(third)));
+		assertEquals("fourth message......", string(spool.read(fourth)));
+		assertEquals("third message.......", string(view));
+		assertEquals(40, spool.getSize());
+	}
+
+	public void testPersistentSpool() throws Exception
+	{
+		MessageSpool persistent = MessageSpool.open(dir, 64);
+		long first = persistent.append(bytes("first message"));
+		long second = persistent.append(bytes("second message"));
+		long third = persistent.append(ByteBuffer.allocate(40));
+		persistent.delete(second);
+		persistent.force();
+
+		MessageSpool reopened = MessageSpool.open(dir, 64);
+		assertEquals(2, reopened.getMessageCount());
+		assertEquals("first message", string(reopened.read(first)));
+		assertFalse(reopened.contains(second));
+		assertEquals(40, reopened.read(third).remaining());
+
+		// Ids are never reused
+		assertTrue(reopened.append(bytes("fourth")) > third);
+	}
+
+	public void testMessageReload() throws Exception
+	{
+		SmtpMessageFactory factory = new SmtpMessageFactory(MailsterConstants.DEFAULT_CHARSET);
+		SmtpMessage msg = factory.asSmtpMessage(bytes(
+				"Subject: spooled\r\nTo: user@mailster.org\r\n\r\nline 1\r\nline 2\r\n").array(), null);
+
+		// An empty cache forces the reference to reload the message
+		SpooledMessageReference ref = new SpooledMessageReference(msg, spool, new MessageCache(0, 0));
+		SmtpMessage reloaded = ref.get();
+
+		assertNotSame(msg, reloaded);
+		assertEquals("spooled", reloaded.getSubject());
+		assertEquals(msg.getBody(), reloaded.getBody());
+		assertEquals(msg.getMessageID(), reloaded.getMessageID());
+		assertEquals(msg.getDate(), reloaded.getDate());
+
+		ref.delete();
+		assertEquals(0, spool.getMessageCount());
+	}
+}
@@ -0,0 +1,112 @@
+package test.junit;
+
+import java.io.StringWriter;
+
+import junit.framework.TestCase;
+
+import org.mailster.core.metrics.Counter;
+import org.mailster.core.metrics.DeliveryTrace;
+import org.mailster.core.metrics.DeliveryTracer;
+import org.mailster.core.metrics.Gauge;
+import org.mailster.core.metrics.Histogram;
+import org.mailster.core.metrics.MetricsRegistry;
+
+public class MetricsRegistryTest extends TestCase
+{
+	public void testStripedCounter() throws Exception
+	{
+		final Counter counter = new MetricsRegistry().counter("test_total", "test");
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++)
+		{
+			threads[i] = new Thread() {
+				public void run()
+				{
+					for (int j = 0; j < 10000; j++)
+						counter.increment();
+				}
+			};
+			threads[i].start();
+		}
+
+		for (Thread t : threads)
+			t.join();
+
+		assertEquals(40000, counter.getValue());
+	}
+
+	public void testHistogram()
+	{
+		Histogram h = new Histogram("test_seconds", "test");
+		for (int i = 1; i <= 100; i++)
+			h.record(i * 1000000L);
+
+		assertEquals(100, h.getCount());
+		assertEquals(100000000L, h.getMax());
+		assertEquals(50500000L, h.getMean());
+
+		// Quantiles are rounded up to a bucket bound
+		long p50 = h.getQuantile(0.5);
+		assertTrue(p50 >= 50000000L && p50 <= 100000000L);
+		assertEquals(h.getMax(), h.getQuantile(1));
+	}
+
+	public void testPrometheusFormat() throws Exception
+	{
+		MetricsRegistry registry = new MetricsRegistry();
+		assertSame(registry.counter("test_total", "Test counter", "command", "RETR"),
+				registry.counter("test_total", "Test counter", "command", "RETR"));
+		registry.counter("test_total", "Test counter", "command", "RETR").add(3);
+		registry.counter("test_total", "Test counter", "command", "LIST").increment();
+		registry.histogram("test_seconds", "Test histogram").record(1500000L);
+		registry.register(new Gauge("test_size", null) {
+			public long getValue()
+			{
+				return 42;
+			}
+		});
+
+		StringWriter out = new StringWriter();
+		registry.writePrometheus(out);
+		String text = out.toString();
+
+		assertEquals(text.indexOf("# TYPE test_total counter"),
+				text.lastIndexOf("# TYPE test_total counter"));
+		assertTrue(text.contains("# HELP test_total Test counter\n"));
+		assertTrue(text.contains("test_total{command=\"RETR\"} 3\n"));
+		assertTrue(text.contains("test_total{command=\"LIST\"} 1\n"));
+		assertTrue(text.contains("test_size 42\n"));
+		assertTrue(text.contains("# TYPE test_seconds histogram\n"));
+		assertTrue(text.contains("test_seconds_bucket{le=\"0.001024\"} 0\n"));
+		assertTrue(text.contains("test_seconds_bucket{le=\"0.002048\"} 1\n"));
+		assertTrue(text.contains("test_seconds_bucket{le=\"+Inf\"} 1\n"));
+		assertTrue(text.contains("test_seconds_sum 0.0015\n"));
+		assertTrue(text.contains("test_seconds_count 1\n"));
+	}
+
+	public void testDeliveryTracer() throws Exception
+	{
+		DeliveryTracer tracer = new DeliveryTracer(2, new MetricsRegistry());
+		DeliveryTrace first = tracer.start();
+		first.setMessageID("<1@mailster.org>");
+		DeliveryTrace second = tracer.start();
+		second.setMessageID("<2@mailster.org>");
+		second.mark(DeliveryTrace.Stage.PARSED);
+		Thread.sleep(5);
+		second.mark(DeliveryTrace.Stage.STORED);
+		second.mark(DeliveryTrace.Stage.STORED);
+
+		assertEquals(DeliveryTrace.Stage.STORED, second.getLastStage());
+		assertEquals(-1, second.getElapsed(DeliveryTrace.Stage.QUEUED));
+		assertTrue(second.getStageDuration(DeliveryTrace.Stage.STORED) >= 5000000L);
+		assertEquals(1, tracer.getStageHistogram(DeliveryTrace.Stage.STORED).getCount());
+		assertSame(first, tracer.getTrace("<1@mailster.org>"));
+
+		// The oldest trace is overwritten
+		DeliveryTrace third = tracer.start();
+		assertNull(tracer.getTrace("<1@mailster.org>"));
+		assertEquals(2, tracer.getTraces().size());
+		assertSame(third, tracer.getTraces().get(0));
+		assertSame(second, tracer.getTraces().get(1));
+	}
+}
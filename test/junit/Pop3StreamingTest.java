@@ -0,0 +1,104 @@
+package test.junit;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import junit.framework.TestCase;
+
+import org.mailster.core.mail.SmtpMessage;
+import org.mailster.core.mail.SmtpMessageFactory;
+import org.mailster.core.pop3.connection.AbstractPop3Connection;
+import org.mailster.core.pop3.connection.Pop3State;
+import org.mailster.util.StreamUtilities;
+
+public class Pop3StreamingTest extends TestCase
+{
+	private static class RecordingConnection implements AbstractPop3Connection
+	{
+		private ByteArrayOutputStream out = new ByteArrayOutputStream();
+		private int writes;
+
+		public void println(String line)
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		public void write(ByteBuffer data)
+		{
+			writes++;
+			while (data.hasRemaining())
+				out.write(data.get());
+		}
+
+		public boolean isTLSConnection()
+		{
+			return false;
+		}
+
+		public void startTLS(String response)
+		{
+		}
+
+		public Pop3State getState()
+		{
+			return null;
+		}
+	}
+
+	private static String write(String data, int numLines) throws Exception
+	{
+		RecordingConnection conn = new RecordingConnection();
+		ByteBuffer b = ByteBuffer.wrap(data.getBytes("US-ASCII"));
+		StreamUtilities.write(b, conn, numLines);
+		assertEquals(0, b.position());
+
+		return conn.out.toString("US-ASCII");
+	}
+
+	public void testByteStuffing() throws Exception
+	{
+		assertEquals("Subject: a\r\n\r\n..dot\r\nline\r\n..\r\n",
+				write("Subject: a\r\n\r\n.dot\r\nline\r\n.\r\n", -1));
+	}
+
+	public void testLineDelimiters() throws Exception
+	{
+		assertEquals("Subject: a\r\n\r\nbare\r\nlf\r\nlast\r\n",
+				write("Subject: a\n\nbare\nlf\r\nlast", -1));
+	}
+
+	public void testTop() throws Exception
+	{
+		String msg = "Subject: a\r\nTo: b\r\n\r\nl1\r\nl2\r\nl3\r\n";
+		assertEquals("Subject: a\r\nTo: b\r\n\r\n", write(msg, 0));
+		assertEquals("Subject: a\r\nTo: b\r\n\r\nl1\r\nl2\r\n", write(msg, 2));
+		assertEquals(msg, write(msg, 10));
+	}
+
+	public void testOctetSize() throws Exception
+	{
+		SmtpMessageFactory factory = new SmtpMessageFactory(Charset.forName("US-ASCII"));
+		String[] messages = { "Subject: a\r\n\r\nbody\r\n", "Subject: a\n\nbare\nlf\r\nlast", "" };
+
+		for (String data : messages)
+		{
+			SmtpMessage msg = factory.asSmtpMessage(data.getBytes("US-ASCII"), null);
+			assertEquals(write(data, -1).length(), msg.getSize());
+		}
+	}
+
+	public void testChunks() throws Exception
+	{
+		StringBuilder sb = new StringBuilder("Subject: big\r\n\r\n");
+		while (sb.length() < 3 * StreamUtilities.WRITE_CHUNK_SIZE)
+			sb.append(".0123456789\r\n");
+
+		RecordingConnection conn = new RecordingConnection();
+		StreamUtilities.write(ByteBuffer.wrap(sb.toString().getBytes("US-ASCII")), conn, -1);
+
+		String expected = sb.toString().replace("\n.", "\n..");
+		assertEquals(expected, conn.out.toString("US-ASCII"));
+		assertEquals(4, conn.writes);
+	}
+}
@@ -0,0 +1,47 @@
+package test.junit;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.mailster.util.RingBuffer;
+
+public class RingBufferTest extends TestCase
+{
+	public void testDrain()
+	{
+		RingBuffer<Integer> buffer = new RingBuffer<Integer>(4);
+		buffer.add(new Integer(1));
+		buffer.add(new Integer(2));
+
+		List<Integer> l = new ArrayList<Integer>();
+		assertEquals(2, buffer.drainTo(l));
+		assertEquals(2, l.size());
+		assertEquals(1, l.get(0).intValue());
+		assertTrue(buffer.isEmpty());
+		assertEquals(0, buffer.getDroppedCount());
+	}
+
+	public void testOverflow()
+	{
+		RingBuffer<Integer> buffer = new RingBuffer<Integer>(3);
+		for (int i = 0; i < 7; i++)
+			buffer.add(new Integer(i));
+
+		assertEquals(3, buffer.size());
+		assertEquals(4, buffer.getDroppedCount());
+
+		// The oldest elements were overwritten
+		List<Integer> l = new ArrayList<Integer>();
+		buffer.drainTo(l);
+		assertEquals(4, l.get(0).intValue());
+		assertEquals(6, l.get(2).intValue());
+
+		buffer.add(new Integer(7));
+		l.clear();
+		buffer.drainTo(l);
+		assertEquals(1, l.size());
+		assertEquals(7, l.get(0).intValue());
+	}
+}
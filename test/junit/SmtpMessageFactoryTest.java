@@ -0,0 +1,128 @@
+package test.junit;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.mina.filter.codec.textline.LineDelimiter;
+import org.mailster.core.mail.SmtpHeadersInterface;
+import org.mailster.core.mail.SmtpMessage;
+import org.mailster.core.mail.SmtpMessageFactory;
+import org.mailster.core.smtp.MailsterConstants;
+
+public class SmtpMessageFactoryTest extends TestCase
+{
+	private final static String SIMPLE_MAIL =
+		"From: sender@here.com\r\n" +
+		"To: rcpt1@there.com\r\n" +
+		"Cc: rcpt2@there.com\r\n" +
+		"Subject: Simple\r\n" +
+		"\r\n" +
+		"line 1\r\n" +
+		"\r\n" +
+		"line 3\r\n";
+
+	private SmtpMessageFactory factory =
+		new SmtpMessageFactory(MailsterConstants.DEFAULT_CHARSET);
+
+	private SmtpMessage parse(SmtpMessageFactory f, String data, List<String> recipients)
+		throws Exception
+	{
+		return f.asSmtpMessage(new ByteArrayInputStream(
+				data.getBytes(MailsterConstants.DEFAULT_CHARSET_NAME)), recipients);
+	}
+
+	public void testHeadersAndBody() throws Exception
+	{
+		SmtpMessage msg = parse(factory, SIMPLE_MAIL, null);
+
+		assertEquals("sender@here.com", msg.getHeaderValue(SmtpHeadersInterface.FROM));
+		assertEquals("Simple", msg.getSubject());
+		assertEquals(2, msg.getRecipients().size());
+		assertEquals("line 1\n\nline 3\n", msg.getBody());
+	}
+
+	public void testEnvelopeRecipients() throws Exception
+	{
+		List<String> rcpts = new ArrayList<String>();
+		rcpts.add("<bcc@there.com>");
+		SmtpMessage msg = parse(factory, SIMPLE_MAIL, rcpts);
+
+		assertEquals(1, msg.getRecipients().size());
+		assertEquals("<bcc@there.com>", msg.getRecipients().get(0));
+	}
+
+	public void testBodyCharsetIsDecodedLazily() throws Exception
+	{
+		String mail = "Subject: Charset\r\n" +
+			"Content-Type: text/plain; charset=UTF-8\r\n" +
+			"\r\n" +
+			"caf\u00c3\u00a9\r\n";
+		SmtpMessage msg = parse(factory, mail, null);
+
+		assertEquals("caf\u00e9", msg.getBody());
+	}
+
+	public void testHeadersOnly() throws Exception
+	{
+		SmtpMessage msg = parse(factory, "Subject: No body", null);
+
+		assertEquals("No body", msg.getSubject());
+		assertEquals("", msg.getBody());
+	}
+
+	public void testLineFeedDelimiter() throws Exception
+	{
+		SmtpMessageFactory f = new SmtpMessageFactory(
+				MailsterConstants.DEFAULT_CHARSET, new LineDelimiter("\n"));
+		SmtpMessage msg = parse(f, SIMPLE_MAIL.replace("\r\n", "\n"), null);
+
+		assertEquals("Simple", msg.getSubject());
+		assertEquals("line 1\n\nline 3\n", msg.getBody());
+
+		// CRLF data read with a LF delimiter
+		msg = parse(f, SIMPLE_MAIL, null);
+		assertEquals("Simple", msg.getSubject());
+		assertEquals("line 1\n\nline 3\n", msg.getBody());
+	}
+
+	public void testConcurrentParsing() throws Exception
+	{
+		final List<Throwable> errors = new ArrayList<Throwable>();
+		Thread[] threads = new Thread[8];
+
+		for (int i = 0; i < threads.length; i++)
+		{
+			final int n = i;
+			threads[i] = new Thread() {
+				public void run()
+				{
+					try
+					{
+						for (int j = 0; j < 200; j++)
+						{
+							SmtpMessage msg = parse(factory,
+								SIMPLE_MAIL.replace("Simple", "Mail "+n+"-"+j), null);
+							assertEquals("Mail "+n+"-"+j, msg.getSubject());
+						}
+					}
+					catch (Throwable t)
+					{
+						synchronized (errors)
+						{
+							errors.add(t);
+						}
+					}
+				}
+			};
+			threads[i].start();
+		}
+
+		for (Thread t : threads)
+			t.join();
+
+		assertTrue(errors.toString(), errors.isEmpty());
+	}
+}
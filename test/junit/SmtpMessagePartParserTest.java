@@ -0,0 +1,90 @@
+package test.junit;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.mailster.core.mail.SmtpMessage;
+import org.mailster.core.mail.SmtpMessageFactory;
+import org.mailster.core.mail.SmtpMessagePart;
+import org.mailster.core.smtp.MailsterConstants;
+
+public class SmtpMessagePartParserTest extends TestCase
+{
+	private final static String NESTED_MAIL =
+		"Subject: Nested\r\n" +
+		"Content-Type: multipart/mixed; boundary=\"outer\"\r\n" +
+		"\r\n" +
+		"preamble\r\n" +
+		"--outer\r\n" +
+		"Content-Type: multipart/alternative; boundary=\"inner\"\r\n" +
+		"\r\n" +
+		"--inner\r\n" +
+		"Content-Type: text/plain\r\n" +
+		"\r\n" +
+		"text\r\n" +
+		"-- \r\n" +
+		"signature\r\n" +
+		"--inner\r\n" +
+		"Content-Type: text/html\r\n" +
+		"\r\n" +
+		"<p>html</p>\r\n" +
+		"--outer\r\n" +
+		"Content-Type: application/octet-stream; name=\"a.bin\"\r\n" +
+		"Content-Disposition: attachment; filename=\"a.bin\"\r\n" +
+		"\r\n" +
+		"AAAA\r\n" +
+		"--outer--\r\n" +
+		"epilogue\r\n";
+
+	private SmtpMessageFactory factory =
+		new SmtpMessageFactory(MailsterConstants.DEFAULT_CHARSET);
+
+	private SmtpMessage parse(String data) throws Exception
+	{
+		return factory.asSmtpMessage(data.getBytes(MailsterConstants.DEFAULT_CHARSET_NAME), null);
+	}
+
+	public void testNestedParts() throws Exception
+	{
+		SmtpMessagePart root = parse(NESTED_MAIL).getInternalParts();
+		List<SmtpMessagePart> parts = root.getParts();
+		assertEquals(2, parts.size());
+
+		// The outer delimiter closes the unterminated inner multipart
+		List<SmtpMessagePart> alternatives = parts.get(0).getParts();
+		assertEquals(2, alternatives.size());
+		assertEquals("text\n-- \nsignature\n", alternatives.get(0).getBody().toString());
+		assertEquals("<p>html</p>\n", alternatives.get(1).getBody().toString());
+
+		assertEquals("AAAA\n", parts.get(1).getBody().toString());
+		assertEquals("a.bin", parts.get(1).getFileName());
+		assertEquals(root.toString().length(), root.getSize());
+	}
+
+	public void testLongLines() throws Exception
+	{
+		StringBuilder line = new StringBuilder();
+		for (int i = 0; i < 10000; i++)
+			line.append('x');
+
+		String data = "Subject: Long\r\n" +
+			"Content-Type: multipart/mixed; boundary=\"b\"\r\n" +
+			"\r\n" +
+			"--b\r\n" +
+			"Content-Type: text/plain\r\n" +
+			"\r\n" +
+			line + "\r\n" +
+			"--b--\r\n";
+
+		SmtpMessagePart part = parse(data).getInternalParts().getParts().get(0);
+		assertEquals(line + "\n", part.getBody().toString());
+	}
+
+	public void testSinglePart() throws Exception
+	{
+		assertEquals("one line", parse("Subject: a\r\n\r\none line\r\n").getBody());
+		assertEquals("text\n-- \nsignature\n",
+				parse("Subject: a\r\n\r\ntext\r\n-- \r\nsignature\r\n").getBody());
+	}
+}